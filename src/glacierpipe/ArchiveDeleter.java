@@ -0,0 +1,382 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package glacierpipe;
+
+import glacierpipe.net.RequestRateController;
+import glacierpipe.net.RetryScheduler;
+import glacierpipe.net.RetryScheduler.ErrorType;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DeleteArchiveRequest;
+import com.amazonaws.services.glacier.model.DescribeVaultRequest;
+
+/**
+ * Deletes archives in bulk, several at once.  Glacier throttles accounts that delete faster than it likes, so how many
+ * requests are in flight, and how often they start, is left to a {@link RequestRateController}, which backs off when
+ * a request's throttled and creeps back up while they succeed.  Other failures are retried as the
+ * {@link RetryScheduler} allows.  An archive Glacier won't delete, e.g. one that's too young, is reported and passed
+ * over; anything else that can't be retried stops the whole run.
+ * <p>
+ * Each archive deleted is recorded in a {@link DeleteCheckpoint}, and archives already in it are skipped, so a run
+ * that's stopped can be started again from the same list.  An archive Glacier can't find counts as deleted, but the
+ * vault it can't find doesn't: that's the wrong vault, region or endpoint, and the run stops before anything's
+ * recorded.
+ */
+public class ArchiveDeleter {
+
+	/**
+	 * Deletes are small, quick requests; it takes a few at once to get anywhere
+	 */
+	public static final int DEFAULT_THREADS = 8;
+	
+	protected final AmazonGlacierClient client;
+	protected final String vaultName;
+	protected final DeleteObserver observer;
+	protected final int threads;
+	protected final int maxRetries;
+	protected final RetryScheduler retryScheduler;
+	protected final DeleteCheckpoint checkpoint;
+	protected final RequestRateController requestRateController;
+	
+	protected final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+	protected int deleted = 0;
+	protected int failed = 0;
+	
+	/**
+	 * @param threads the most archives to delete at once; throttling can bring it down
+	 */
+	public ArchiveDeleter(AmazonGlacierClient client, String vaultName, DeleteObserver observer, int threads, int maxRetries, RetryScheduler retryScheduler, DeleteCheckpoint checkpoint) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads < 1");
+		} else if (maxRetries < 1) {
+			throw new IllegalArgumentException("maxRetries < 1");
+		}
+		
+		this.client = Objects.requireNonNull(client, "client was null");
+		this.vaultName = Objects.requireNonNull(vaultName, "vaultName was null");
+		this.observer = Objects.requireNonNull(observer, "observer was null");
+		this.threads = threads;
+		this.maxRetries = maxRetries;
+		this.retryScheduler = Objects.requireNonNull(retryScheduler, "retryScheduler was null");
+		this.checkpoint = Objects.requireNonNull(checkpoint, "checkpoint was null");
+		this.requestRateController = new RequestRateController(threads);
+	}
+	
+	public RequestRateController getRequestRateController() {
+		return this.requestRateController;
+	}
+	
+	/**
+	 * Deletes the archives an inventory lists, as it's read.  It has to be this vault's; another's archives would all
+	 * look like they'd already been deleted.
+	 * 
+	 * @return how many archives Glacier refused to delete
+	 */
+	public int delete(final InventoryReader inventory) throws IOException {
+		return this.delete(new ArchiveIds() {
+			@Override
+			public String next() throws IOException {
+				Inventory.Archive archive = inventory.read();
+				
+				String vaultArn = inventory.getVaultArn();
+				if (archive != null && vaultArn != null && !Inventory.getVaultName(vaultArn).equals(ArchiveDeleter.this.vaultName)) {
+					throw new IOException("The inventory is of vault " + Inventory.getVaultName(vaultArn) + ", not " + ArchiveDeleter.this.vaultName);
+				}
+				return archive != null ? archive.archiveId : null;
+			}
+		});
+	}
+	
+	/**
+	 * @return how many archives Glacier refused to delete
+	 */
+	public int delete(Iterable<String> archiveIds) throws IOException {
+		final Iterator<String> i = archiveIds.iterator();
+		return this.delete(new ArchiveIds() {
+			@Override
+			public String next() {
+				return i.hasNext() ? i.next() : null;
+			}
+		});
+	}
+	
+	protected int delete(ArchiveIds archiveIds) throws IOException {
+		this.checkVault();
+		this.observer.startDeleting(this.vaultName, this.checkpoint.size());
+		
+		ExecutorService executor = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "glacierpipe-delete");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		// Only as many deletions are handed out as there are threads, so the list's read no faster than it's needed
+		Semaphore idle = new Semaphore(this.threads);
+		
+		boolean listed = false;
+		try {
+			String archiveId;
+			while (this.failure.get() == null && (archiveId = archiveIds.next()) != null) {
+				if (this.checkpoint.contains(archiveId)) {
+					this.observer.archiveSkipped(archiveId);
+					continue;
+				}
+				
+				idle.acquire();
+				executor.execute(new ArchiveDeletion(archiveId, idle));
+			}
+			listed = true;
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Deletion interrupted");
+		} finally {
+			// Deletions already started are let finish, or interrupted if the run's stopping, but either way waited
+			// for, so whatever they deleted is in the checkpoint
+			if (listed && this.failure.get() == null) {
+				executor.shutdown();
+			} else {
+				executor.shutdownNow();
+			}
+			
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.checkpoint.sync();
+		}
+		
+		if (this.failure.get() != null) {
+			throw this.failure.get();
+		}
+		
+		int deleted, failed;
+		synchronized (this) {
+			deleted = this.deleted;
+			failed = this.failed;
+		}
+		
+		this.observer.done(deleted, failed);
+		return failed;
+	}
+	
+	/**
+	 * Makes sure the vault's there before anything's deleted from it.  Glacier answers a delete from a vault it can't
+	 * find just as it does one of an archive it can't find, and taking those as already deleted would checkpoint every
+	 * archive in the list.
+	 */
+	protected void checkVault() throws IOException {
+		try {
+			this.client.describeVault(new DescribeVaultRequest().withVaultName(this.vaultName));
+		} catch (AmazonClientException e) {
+			// Anything else, e.g. not being allowed to describe vaults, is left to the deletes, which check again
+			if (isNotFound(e)) {
+				throw new IOException(this.noSuchVault(), e);
+			}
+		}
+	}
+	
+	protected String noSuchVault() {
+		return "There's no vault " + this.vaultName + "; check --vault and --endpoint";
+	}
+	
+	/**
+	 * @return true if Glacier says there's no such archive, or no such vault; see {@link #isVaultNotFound}
+	 */
+	protected static boolean isNotFound(AmazonClientException e) {
+		return e instanceof AmazonServiceException && (((AmazonServiceException)e).getStatusCode() == 404
+				|| "ResourceNotFoundException".equals(((AmazonServiceException)e).getErrorCode()));
+	}
+	
+	/**
+	 * @return true if it's the vault Glacier can't find, which it only says in the message, e.g. "Vault not found for
+	 * ARN: ..."
+	 */
+	protected static boolean isVaultNotFound(AmazonClientException e) {
+		if (!isNotFound(e)) {
+			return false;
+		}
+		
+		String message = ((AmazonServiceException)e).getErrorMessage();
+		return message != null && message.toLowerCase().contains("vault not found");
+	}
+	
+	protected static void sleep(long millis) throws InterruptedIOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Deletion interrupted");
+		}
+	}
+	
+	/**
+	 * Archive IDs read one at a time, from wherever they're listed
+	 */
+	protected interface ArchiveIds {
+		
+		/**
+		 * @return the next archive ID, or null if there are no more
+		 */
+		public String next() throws IOException;
+	}
+	
+	/**
+	 * Deletes one archive, retrying it as the {@link RetryScheduler} allows.  Retries sleep on the thread, since it has
+	 * nothing else to do.
+	 */
+	protected class ArchiveDeletion implements Runnable {
+		
+		protected final String archiveId;
+		protected final Semaphore idle;
+		
+		protected int attempts = 0;
+		protected long lastDelay = 0;
+		
+		public ArchiveDeletion(String archiveId, Semaphore idle) {
+			this.archiveId = archiveId;
+			this.idle = idle;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				this.delete();
+			} catch (IOException e) {
+				ArchiveDeleter.this.failure.compareAndSet(null, e);
+			} finally {
+				this.idle.release();
+			}
+		}
+		
+		protected void delete() throws IOException {
+			RequestRateController controller = ArchiveDeleter.this.requestRateController;
+			
+			while (ArchiveDeleter.this.failure.get() == null) {
+				// Everyone waits while the circuit breaker is open
+				long wait = ArchiveDeleter.this.retryScheduler.admit();
+				if (wait > 0) {
+					sleep(wait);
+					continue;
+				}
+				
+				long permit;
+				try {
+					permit = controller.acquire();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Deletion interrupted");
+				}
+				
+				try {
+					ArchiveDeleter.this.client.deleteArchive(new DeleteArchiveRequest()
+							.withVaultName(ArchiveDeleter.this.vaultName)
+							.withArchiveId(this.archiveId));
+				} catch (AmazonClientException e) {
+					if (isVaultNotFound(e)) {
+						controller.failed(permit);
+						throw new IOException(ArchiveDeleter.this.noSuchVault(), e);
+					} else if (isNotFound(e)) {
+						controller.succeeded(permit);
+						this.deleted(true);
+						return;
+					}
+					
+					ErrorType errorType = RetryScheduler.classify(e);
+					if (errorType == ErrorType.THROTTLING) {
+						if (controller.throttled(permit)) {
+							ArchiveDeleter.this.observer.requestLimitsChanged(controller.getConcurrencyLimit(), controller.getRequestsPerSecond());
+						}
+					} else {
+						controller.failed(permit);
+					}
+					
+					if (!this.failed(e, errorType)) {
+						return;
+					}
+					continue;
+				}
+				
+				if (controller.succeeded(permit)) {
+					ArchiveDeleter.this.observer.requestLimitsChanged(controller.getConcurrencyLimit(), controller.getRequestsPerSecond());
+				}
+				ArchiveDeleter.this.retryScheduler.recordSuccess();
+				this.deleted(false);
+				return;
+			}
+		}
+		
+		protected void deleted(boolean alreadyGone) throws IOException {
+			ArchiveDeleter.this.checkpoint.add(this.archiveId);
+			synchronized (ArchiveDeleter.this) {
+				ArchiveDeleter.this.deleted++;
+			}
+			ArchiveDeleter.this.observer.archiveDeleted(this.archiveId, alreadyGone);
+		}
+		
+		/**
+		 * @return true to try again, or false to pass over this archive
+		 * @throws IOException to stop the whole run
+		 */
+		protected boolean failed(AmazonClientException e, ErrorType errorType) throws IOException {
+			this.attempts++;
+			ArchiveDeleter.this.retryScheduler.recordFailure(errorType);
+			
+			// Glacier won't delete this one, but that's no reason not to delete the rest
+			if (!errorType.retryable) {
+				ArchiveDeleter.this.observer.exceptionDeleting(this.archiveId, e, this.attempts, false);
+				synchronized (ArchiveDeleter.this) {
+					ArchiveDeleter.this.failed++;
+				}
+				return false;
+			}
+			
+			String abortReason = null;
+			if (this.attempts >= ArchiveDeleter.this.maxRetries) {
+				abortReason = "Failed to delete archive " + this.archiveId + " after " + this.attempts + " attempts";
+			} else if (!ArchiveDeleter.this.retryScheduler.tryAcquireRetry()) {
+				abortReason = "Failed to delete archive " + this.archiveId + " after " + this.attempts + " attempts; retry budget exhausted";
+			}
+			
+			ArchiveDeleter.this.observer.exceptionDeleting(this.archiveId, e, this.attempts, abortReason == null);
+			
+			if (abortReason != null) {
+				throw new IOException(abortReason, e);
+			}
+			
+			this.lastDelay = ArchiveDeleter.this.retryScheduler.nextDelay(this.lastDelay);
+			ArchiveDeleter.this.observer.sleepingBeforeRetry(this.archiveId, this.lastDelay);
+			sleep(this.lastDelay);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package glacierpipe;
+
+import glacierpipe.net.RetryScheduler;
+import glacierpipe.net.RetryScheduler.ErrorType;
+import glacierpipe.security.TreeHashMessageDigest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.DescribeJobRequest;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.GetJobOutputRequest;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+import com.amazonaws.services.glacier.model.InitiateJobRequest;
+import com.amazonaws.services.glacier.model.InitiateJobResult;
+import com.amazonaws.services.glacier.model.JobParameters;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Restores an archive: starts a retrieval job for it, waits for the job to finish, then downloads the job's output as
+ * several ranges at once.  Ranges are a power of 2 megabytes and start on a multiple of their size, so they're tree
+ * hash aligned and Glacier sends each one's tree hash, which is checked as it arrives; a range that doesn't match is
+ * downloaded again.  Once they're all in, their tree hashes are combined into the archive's and checked against the
+ * one it was uploaded with.
+ * <p>
+ * Output goes either to a stream, which is written in order, holding ranges that arrive ahead of the one it's waiting
+ * for until it can be written, or to a file, which each range is written straight into at its own position.
+ */
+public class ArchiveDownloader {
+
+	public static final long MIN_RANGE_SIZE = 1024 * 1024;
+	
+	/**
+	 * Ranges written to a stream are held in a byte array while they wait their turn, so they can't be any bigger
+	 */
+	public static final long MAX_RANGE_SIZE = 1024 * 1024 * 1024;
+	
+	public static final long DEFAULT_RANGE_SIZE = 16 * 1024 * 1024;
+	public static final int DEFAULT_THREADS = 4;
+	
+	/**
+	 * Retrievals take hours, so there's no point asking much more often than this
+	 */
+	public static final long DEFAULT_POLL_INTERVAL = 15 * 60 * 1000;
+	
+	protected static final int COPY_BUFFER_SIZE = 64 * 1024;
+	
+	protected final AmazonGlacierClient client;
+	protected final String vaultName;
+	protected final DownloadObserver observer;
+	protected final int threads;
+	protected final long rangeSize;
+	protected final int maxRetries;
+	protected final RetryScheduler retryScheduler;
+	
+	/**
+	 * @param threads how many ranges to download at once
+	 * @param rangeSize how big each range is; a power of 2 between {@link #MIN_RANGE_SIZE} and {@link #MAX_RANGE_SIZE}
+	 */
+	public ArchiveDownloader(AmazonGlacierClient client, String vaultName, DownloadObserver observer, int threads, long rangeSize, int maxRetries, RetryScheduler retryScheduler) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads < 1");
+		} else if (rangeSize < MIN_RANGE_SIZE || rangeSize > MAX_RANGE_SIZE || Long.bitCount(rangeSize) != 1) {
+			throw new IllegalArgumentException("rangeSize must be a power of 2 between 1MB and 1GB; rangeSize = " + rangeSize);
+		} else if (maxRetries < 1) {
+			throw new IllegalArgumentException("maxRetries < 1");
+		}
+		
+		this.client = Objects.requireNonNull(client, "client was null");
+		this.vaultName = Objects.requireNonNull(vaultName, "vaultName was null");
+		this.observer = Objects.requireNonNull(observer, "observer was null");
+		this.threads = threads;
+		this.rangeSize = rangeSize;
+		this.maxRetries = maxRetries;
+		this.retryScheduler = Objects.requireNonNull(retryScheduler, "retryScheduler was null");
+	}
+	
+	/**
+	 * Starts a job retrieving the whole of an archive
+	 * 
+	 * @return the job's ID
+	 */
+	public String initiateRetrieval(String archiveId) {
+		InitiateJobResult result = this.client.initiateJob(new InitiateJobRequest()
+				.withVaultName(this.vaultName)
+				.withJobParameters(new JobParameters().withType("archive-retrieval").withArchiveId(archiveId)));
+		
+		this.observer.jobInitiated(result.getJobId());
+		return result.getJobId();
+	}
+	
+	/**
+	 * Asks after a job every {@code pollInterval} milliseconds until it's finished.
+	 * 
+	 * @return the finished job
+	 * @throws IOException if the job failed
+	 */
+	public DescribeJobResult awaitJob(String jobId, long pollInterval) throws IOException {
+		long start = System.currentTimeMillis();
+		while (true) {
+			DescribeJobResult job = this.client.describeJob(new DescribeJobRequest().withVaultName(this.vaultName).withJobId(jobId));
+			if (Boolean.TRUE.equals(job.getCompleted())) {
+				if (!"Succeeded".equals(job.getStatusCode())) {
+					throw new IOException("Job " + jobId + " didn't succeed: " + job.getStatusCode() + "; " + job.getStatusMessage());
+				} else if (job.getArchiveSizeInBytes() == null) {
+					throw new IOException("Job " + jobId + " isn't an archive retrieval");
+				}
+				return job;
+			}
+			
+			this.observer.waitingForJob(jobId, job.getStatusCode(), System.currentTimeMillis() - start);
+			sleep(pollInterval);
+		}
+	}
+	
+	/**
+	 * Downloads a finished job's output to {@code out}, in order.  At most twice as many ranges as are downloaded at
+	 * once are held in memory.
+	 * 
+	 * @return the archive's tree hash, which has already been checked
+	 */
+	public byte[] download(DescribeJobResult job, OutputStream out) throws IOException {
+		return this.download(job, Objects.requireNonNull(out, "out was null"), null);
+	}
+	
+	/**
+	 * Downloads a finished job's output into {@code channel}, from its start, with each range written as it arrives.
+	 * 
+	 * @return the archive's tree hash, which has already been checked
+	 */
+	public byte[] download(DescribeJobResult job, FileChannel channel) throws IOException {
+		return this.download(job, null, Objects.requireNonNull(channel, "channel was null"));
+	}
+	
+	protected byte[] download(DescribeJobResult job, OutputStream out, FileChannel channel) throws IOException {
+		long size = job.getArchiveSizeInBytes();
+		int ranges = (int)((size + this.rangeSize - 1) / this.rangeSize);
+		this.observer.startDownload(job.getJobId(), size, ranges);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(this.threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "glacierpipe-download");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		// Ranges are taken in order, so ones that arrive early wait in here.  Writing to a file, they've already been
+		// written and only their tree hashes wait, but there's nothing to gain from starting more than can run.
+		int window = (channel != null) ? this.threads : this.threads * 2;
+		Deque<Future<Range>> pending = new ArrayDeque<Future<Range>>(window);
+		List<byte[]> treeHashes = new ArrayList<byte[]>(ranges);
+		
+		try {
+			int next = 0;
+			while (next < ranges || !pending.isEmpty()) {
+				while (next < ranges && pending.size() < window) {
+					long offset = next * this.rangeSize;
+					pending.add(executor.submit(new RangeDownload(job.getJobId(), offset, Math.min(this.rangeSize, size - offset), channel)));
+					next++;
+				}
+				
+				Range range = awaitRange(pending.remove());
+				if (out != null) {
+					out.write(range.data);
+				}
+				treeHashes.add(range.treeHash);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		if (out != null) {
+			out.flush();
+		}
+		
+		MessageDigest digest = newDigest();
+		byte[] treeHash = treeHashes.isEmpty() ? digest.digest() : TreeHashMessageDigest.combine(treeHashes, digest);
+		
+		String expected = job.getArchiveSHA256TreeHash();
+		if (expected != null && !expected.equalsIgnoreCase(BinaryUtils.toHex(treeHash))) {
+			throw new IOException("The archive's tree hash is " + expected + ", but what was downloaded hashes to " + BinaryUtils.toHex(treeHash));
+		}
+		
+		this.observer.done(treeHash, size);
+		return treeHash;
+	}
+	
+	protected static Range awaitRange(Future<Range> range) throws IOException {
+		try {
+			return range.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Download interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	protected static void sleep(long millis) throws InterruptedIOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Download interrupted");
+		}
+	}
+	
+	protected static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 not available", e);
+		}
+	}
+	
+	protected static class Range {
+		
+		/**
+		 * The range's contents, or null if it was written to a file
+		 */
+		public final byte[] data;
+		public final byte[] treeHash;
+		
+		public Range(byte[] data, byte[] treeHash) {
+			this.data = data;
+			this.treeHash = treeHash;
+		}
+	}
+	
+	/**
+	 * Downloads one range, retrying it as the {@link RetryScheduler} allows.  Retries sleep on the thread, since it has
+	 * nothing else to do.
+	 */
+	protected class RangeDownload implements Callable<Range> {
+		
+		protected final String jobId;
+		protected final long offset;
+		protected final long length;
+		protected final FileChannel channel;
+		
+		protected int attempts = 0;
+		protected long lastDelay = 0;
+		protected long read = 0;
+		
+		public RangeDownload(String jobId, long offset, long length, FileChannel channel) {
+			this.jobId = jobId;
+			this.offset = offset;
+			this.length = length;
+			this.channel = channel;
+		}
+		
+		@Override
+		public Range call() throws IOException {
+			while (true) {
+				// Everyone waits while the circuit breaker is open
+				long wait = ArchiveDownloader.this.retryScheduler.admit();
+				if (wait > 0) {
+					sleep(wait);
+					continue;
+				}
+				
+				try {
+					Range range = this.attempt();
+					ArchiveDownloader.this.retryScheduler.recordSuccess();
+					ArchiveDownloader.this.observer.rangeDownloaded(this.offset, this.length, range.treeHash);
+					return range;
+				} catch (AmazonClientException | IOException e) {
+					this.failed(e);
+				}
+			}
+		}
+		
+		protected void failed(Exception e) throws IOException {
+			this.attempts++;
+			
+			// What was read is read again
+			ArchiveDownloader.this.observer.downloading(this.offset, -this.read);
+			
+			ErrorType errorType = RetryScheduler.classify(e);
+			ArchiveDownloader.this.retryScheduler.recordFailure(errorType);
+			
+			String abortReason = null;
+			if (!errorType.retryable) {
+				abortReason = "Failed to download the range at " + this.offset + " after " + this.attempts + " attempts; the request was rejected";
+			} else if (this.attempts >= ArchiveDownloader.this.maxRetries) {
+				abortReason = "Failed to download the range at " + this.offset + " after " + this.attempts + " attempts";
+			} else if (!ArchiveDownloader.this.retryScheduler.tryAcquireRetry()) {
+				abortReason = "Failed to download the range at " + this.offset + " after " + this.attempts + " attempts; retry budget exhausted";
+			}
+			
+			ArchiveDownloader.this.observer.exceptionDownloadingRange(this.offset, e, this.attempts, abortReason == null);
+			
+			if (abortReason != null) {
+				throw new IOException(abortReason, e);
+			}
+			
+			this.lastDelay = ArchiveDownloader.this.retryScheduler.nextDelay(this.lastDelay);
+			ArchiveDownloader.this.observer.sleepingBeforeRetry(this.offset, this.lastDelay);
+			sleep(this.lastDelay);
+		}
+		
+		/**
+		 * Reads the range into memory, or into the file, hashing it on the way.
+		 */
+		protected Range attempt() throws IOException {
+			GetJobOutputResult result = ArchiveDownloader.this.client.getJobOutput(new GetJobOutputRequest()
+					.withVaultName(ArchiveDownloader.this.vaultName)
+					.withJobId(this.jobId)
+					.withRange("bytes=" + this.offset + "-" + (this.offset + this.length - 1)));
+			
+			TreeHashMessageDigest digest = new TreeHashMessageDigest(newDigest());
+			byte[] data = (this.channel == null) ? new byte[(int)this.length] : null;
+			byte[] buffer = (data != null) ? data : new byte[COPY_BUFFER_SIZE];
+			
+			this.read = 0;
+			try (InputStream in = result.getBody()) {
+				while (this.read < this.length) {
+					int bufferOffset = (data != null) ? (int)this.read : 0;
+					int read = in.read(buffer, bufferOffset, (int)Math.min(buffer.length - bufferOffset, this.length - this.read));
+					if (read < 0) {
+						throw new IOException("The range at " + this.offset + " ended after " + this.read + " of " + this.length + " bytes");
+					}
+					
+					digest.update(buffer, bufferOffset, read);
+					if (this.channel != null) {
+						ByteBuffer src = ByteBuffer.wrap(buffer, 0, read);
+						long position = this.offset + this.read;
+						while (src.hasRemaining()) {
+							position += this.channel.write(src, position);
+						}
+					}
+					
+					this.read += read;
+					ArchiveDownloader.this.observer.downloading(this.offset, read);
+				}
+			}
+			
+			byte[] treeHash = digest.digest();
+			
+			// Only sent for tree hash aligned ranges, which these all are, but the whole archive's checked anyway
+			String checksum = result.getChecksum();
+			if (checksum != null && !checksum.equalsIgnoreCase(BinaryUtils.toHex(treeHash))) {
+				throw new IOException("The range at " + this.offset + " should have tree hash " + checksum + ", but hashes to " + BinaryUtils.toHex(treeHash));
+			}
+			
+			return new Range(data, treeHash);
+		}
+	}
+}
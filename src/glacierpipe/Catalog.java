@@ -0,0 +1,385 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A local record of every archive uploaded.  It's a file of JSON objects, one per line, that's only ever appended to,
+ * so an upload that's interrupted can at worst leave a partial last line, which is ignored.  A deleted archive gets a
+ * line of its own naming it, and its entry's left out when the catalog's read.  The whole file's read when it's
+ * opened, and indexed in memory by tree hash; even a million archives only takes a moment.
+ * <p>
+ * Vaults in different regions can have the same name, so each entry records the region it was uploaded to, and it's
+ * only found in that region.  Entries recorded before regions were aren't found at all, until {@link #sync} adds them
+ * again from an inventory, which names the region.
+ */
+public class Catalog {
+
+	protected static final Logger LOGGER = LoggerFactory.getLogger(Catalog.class);
+	
+	/**
+	 * How many archives {@link #sync} adds between syncs to disk
+	 */
+	protected static final int SYNC_BATCH_SIZE = 1000;
+	
+	protected static final Pattern GLACIER_ENDPOINT = Pattern.compile("(?:https?://)?glacier\\.([a-z0-9-]+)\\.amazonaws\\.com(?:\\.cn)?(?::443)?/?", Pattern.CASE_INSENSITIVE);
+	
+	protected final File file;
+	protected final ObjectMapper mapper = new ObjectMapper();
+	protected final List<Entry> entries = new ArrayList<Entry>();
+	protected final Map<String, List<Entry>> byTreeHash = new HashMap<String, List<Entry>>();
+	protected final Set<String> deleted = new HashSet<String>();
+	
+	/**
+	 * Reads the catalog in {@code file}, if there is one; it's created when the first archive's added
+	 */
+	public Catalog(File file) throws IOException {
+		this.file = file;
+		
+		if (!file.exists()) {
+			return;
+		}
+		
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.isEmpty()) {
+					continue;
+				}
+				
+				try {
+					JsonNode node = this.mapper.readTree(line);
+					if (node.has("deleted")) {
+						this.deleted.add(node.get("deleted").textValue());
+					} else {
+						this.index(parseEntry(node));
+					}
+				} catch (JsonProcessingException | IllegalArgumentException e) {
+					LOGGER.warn("Skipping unreadable line {} of catalog {}: {}", lineNumber, file, e.getMessage());
+				}
+			}
+		}
+		
+		if (!this.deleted.isEmpty()) {
+			this.unindex(this.deleted);
+		}
+	}
+	
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(this.entries);
+	}
+	
+	/**
+	 * @param region the vault's region, from {@link #getRegion}
+	 * @return the most recently uploaded archive in {@code vault} with this tree hash and size, or null if there isn't
+	 * one
+	 */
+	public Entry find(String region, String vault, String treeHash, long size) {
+		List<Entry> entries = this.byTreeHash.get(treeHash.toLowerCase());
+		if (entries == null) {
+			return null;
+		}
+		
+		for (int i = entries.size() - 1; i >= 0; i--) {
+			Entry entry = entries.get(i);
+			if (entry.isIn(region, vault) && entry.size == size) {
+				return entry;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Appends an archive to the catalog, and syncs it to disk
+	 */
+	public void add(Entry entry) throws IOException {
+		this.add(Collections.singletonList(entry));
+	}
+	
+	/**
+	 * Appends archives to the catalog, and syncs them to disk together
+	 */
+	public void add(List<Entry> entries) throws IOException {
+		ByteArrayOutputStream lines = new ByteArrayOutputStream();
+		for (Entry entry : entries) {
+			try (JsonGenerator generator = Manifest.JSON_FACTORY.createGenerator(lines, JsonEncoding.UTF8)) {
+				generator.writeStartObject();
+				if (entry.region != null) {
+					generator.writeStringField("region", entry.region);
+				}
+				generator.writeStringField("vault", entry.vault);
+				generator.writeStringField("description", entry.description);
+				generator.writeNumberField("size", entry.size);
+				generator.writeStringField("treeHash", entry.treeHash);
+				generator.writeNumberField("partSize", entry.partSize);
+				generator.writeNumberField("timestamp", entry.timestamp);
+				generator.writeStringField("location", entry.location);
+				generator.writeStringField("archiveId", entry.getArchiveId());
+				generator.writeEndObject();
+			}
+			lines.write('\n');
+		}
+		
+		File parent = this.file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("Failed to create catalog directory " + parent);
+		}
+		
+		try (FileOutputStream out = new FileOutputStream(this.file, true)) {
+			// A write cut short by a crash leaves a torn last line; start a new one rather than run on from it
+			if (!endsWithNewline(this.file)) {
+				out.write('\n');
+			}
+			out.write(lines.toByteArray());
+			out.getFD().sync();
+		}
+		
+		for (Entry entry : entries) {
+			this.index(entry);
+		}
+	}
+	
+	/**
+	 * Adds the archives in a vault inventory that aren't in the catalog yet, e.g. ones uploaded from another machine.
+	 * What Glacier doesn't keep, the part size, is recorded as 0, and the archive's creation date stands in for when
+	 * it was uploaded.  Archives recorded without a region are added again with the inventory's.
+	 * 
+	 * @return how many were added
+	 */
+	public int sync(InventoryReader inventory) throws IOException {
+		// An inventory can be days old, and still list archives deleted since
+		Set<String> archiveIds = new HashSet<String>(this.deleted);
+		for (Entry entry : this.entries) {
+			if (entry.region != null) {
+				archiveIds.add(entry.getArchiveId());
+			}
+		}
+		
+		int added = 0;
+		List<Entry> batch = new ArrayList<Entry>(SYNC_BATCH_SIZE);
+		Inventory.Archive archive;
+		while ((archive = inventory.read()) != null) {
+			if (!archiveIds.add(archive.archiveId)) {
+				continue;
+			}
+			
+			String vaultArn = inventory.getVaultArn();
+			if (vaultArn == null) {
+				throw new IOException("The inventory's VaultARN has to come before its ArchiveList");
+			}
+			
+			long created = archive.creationDate != null ? InventoryFilter.parseDate(archive.creationDate) : 0;
+			batch.add(new Entry(Inventory.getRegion(vaultArn), Inventory.getVaultName(vaultArn), archive.description, archive.size, archive.treeHash, 0,
+					created, Inventory.getLocation(vaultArn, archive.archiveId)));
+			
+			if (batch.size() >= SYNC_BATCH_SIZE) {
+				this.add(batch);
+				added += batch.size();
+				batch.clear();
+			}
+		}
+		
+		if (!batch.isEmpty()) {
+			this.add(batch);
+			added += batch.size();
+		}
+		return added;
+	}
+	
+	/**
+	 * Records that archives have been deleted, so they're no longer found.  Entries are never rewritten; a line naming
+	 * the archive is appended, and the entry's left out when the catalog's read.  Archives not in the catalog are
+	 * ignored.
+	 * 
+	 * @return how many were removed
+	 */
+	public int remove(Collection<String> archiveIds) throws IOException {
+		Set<String> removed = new HashSet<String>();
+		for (Entry entry : this.entries) {
+			if (archiveIds.contains(entry.getArchiveId())) {
+				removed.add(entry.getArchiveId());
+			}
+		}
+		if (removed.isEmpty()) {
+			return 0;
+		}
+		
+		ByteArrayOutputStream lines = new ByteArrayOutputStream();
+		for (String archiveId : removed) {
+			try (JsonGenerator generator = Manifest.JSON_FACTORY.createGenerator(lines, JsonEncoding.UTF8)) {
+				generator.writeStartObject();
+				generator.writeStringField("deleted", archiveId);
+				generator.writeEndObject();
+			}
+			lines.write('\n');
+		}
+		
+		try (FileOutputStream out = new FileOutputStream(this.file, true)) {
+			if (!endsWithNewline(this.file)) {
+				out.write('\n');
+			}
+			out.write(lines.toByteArray());
+			out.getFD().sync();
+		}
+		
+		this.deleted.addAll(removed);
+		this.unindex(removed);
+		return removed.size();
+	}
+	
+	/**
+	 * @return the region an endpoint's in, e.g. {@code us-east-1} for {@code https://glacier.us-east-1.amazonaws.com/},
+	 * or for an endpoint that isn't one of Glacier's own, the endpoint itself
+	 */
+	public static String getRegion(String endpoint) {
+		Matcher matcher = GLACIER_ENDPOINT.matcher(endpoint.trim());
+		if (matcher.matches()) {
+			return matcher.group(1).toLowerCase();
+		}
+		return endpoint.trim().replaceAll("/+$", "");
+	}
+	
+	protected static boolean endsWithNewline(File file) throws IOException {
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			if (in.length() == 0) {
+				return true;
+			}
+			in.seek(in.length() - 1);
+			return in.read() == '\n';
+		}
+	}
+	
+	protected void index(Entry entry) {
+		this.entries.add(entry);
+		
+		List<Entry> entries = this.byTreeHash.get(entry.treeHash);
+		if (entries == null) {
+			entries = new ArrayList<Entry>(1);
+			this.byTreeHash.put(entry.treeHash, entries);
+		}
+		entries.add(entry);
+	}
+	
+	/**
+	 * Drops the entries for these archives; it's one pass over the catalog, however many there are.
+	 */
+	protected void unindex(Set<String> archiveIds) {
+		List<Entry> entries = new ArrayList<Entry>(this.entries);
+		this.entries.clear();
+		this.byTreeHash.clear();
+		
+		for (Entry entry : entries) {
+			if (!archiveIds.contains(entry.getArchiveId())) {
+				this.index(entry);
+			}
+		}
+	}
+	
+	protected static Entry parseEntry(JsonNode node) {
+		String[] fields = { "vault", "description", "size", "treeHash", "partSize", "timestamp", "location" };
+		for (String field : fields) {
+			if (!node.has(field)) {
+				throw new IllegalArgumentException("missing " + field);
+			}
+		}
+		
+		// Entries from before regions were recorded have none
+		String region = node.has("region") ? node.get("region").textValue() : null;
+		return new Entry(region, node.get("vault").textValue(), node.get("description").textValue(), node.get("size").longValue(),
+				node.get("treeHash").textValue(), node.get("partSize").longValue(), node.get("timestamp").longValue(),
+				node.get("location").textValue());
+	}
+	
+	public static class Entry {
+		
+		/**
+		 * The region the vault's in, from {@link Catalog#getRegion}, or null if it wasn't recorded
+		 */
+		public final String region;
+		public final String vault;
+		public final String description;
+		public final long size;
+		public final String treeHash;
+		public final long partSize;
+		public final long timestamp;
+		public final String location;
+		
+		/**
+		 * @param treeHash in hex
+		 * @param timestamp when the upload finished, in milliseconds since the epoch
+		 */
+		public Entry(String region, String vault, String description, long size, String treeHash, long partSize, long timestamp, String location) {
+			if (vault == null || treeHash == null || location == null) {
+				throw new IllegalArgumentException("vault, treeHash and location are required");
+			}
+			
+			this.region = region;
+			this.vault = vault;
+			this.description = description;
+			this.size = size;
+			this.treeHash = treeHash.toLowerCase();
+			this.partSize = partSize;
+			this.timestamp = timestamp;
+			this.location = location;
+		}
+		
+		public String getArchiveId() {
+			return Manifest.getArchiveId(this.location);
+		}
+		
+		/**
+		 * @return true if this archive's in {@code vault} in {@code region}; one whose region wasn't recorded isn't in
+		 * any
+		 */
+		public boolean isIn(String region, String vault) {
+			return this.region != null && this.region.equals(region) && this.vault.equals(vault);
+		}
+	}
+}
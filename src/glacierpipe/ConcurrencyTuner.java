@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe;
+
+/**
+ * Picks how many parts to have in flight by measuring goodput, the rate parts are successfully uploaded at.  Like TCP
+ * slow start, it begins small and doubles the number of parts for as long as each doubling improves goodput by a
+ * meaningful amount.  It then settles on the last level that did, and from time to time tries one part more or one
+ * part less.  An extra part is kept only if goodput improves; a part is given up if goodput doesn't suffer, since a
+ * doubling can overshoot the point of diminishing returns.
+ */
+public class ConcurrencyTuner {
+
+	protected static final double MIN_GAIN = 0.1;
+	protected static final int HOLD_WINDOWS = 4;
+	protected static final double SMOOTHING = 0.5;
+	
+	protected final int maxParts;
+	
+	protected int parts;
+	protected boolean slowStart = true;
+	protected int probe = 0;
+	protected int nextProbe = 1;
+	protected int holdWindows = 0;
+	protected double baseline = Double.NaN;
+	protected double lastGoodput = Double.NaN;
+	
+	protected long windowStart = System.nanoTime();
+	protected long windowBytes = 0;
+	protected int windowParts = 0;
+	
+	public ConcurrencyTuner(int initialParts, int maxParts) {
+		if (maxParts < 1) {
+			throw new IllegalArgumentException("maxParts must be at least 1");
+		} else if (initialParts < 1 || initialParts > maxParts) {
+			throw new IllegalArgumentException("initialParts must be between 1 and maxParts; initialParts = " + initialParts);
+		}
+		
+		this.parts = initialParts;
+		this.maxParts = maxParts;
+		this.slowStart = initialParts < maxParts;
+	}
+	
+	public synchronized int getParts() {
+		return this.parts;
+	}
+	
+	public int getMaxParts() {
+		return this.maxParts;
+	}
+	
+	/**
+	 * @return the goodput, in bytes per second, of the most recent measurement
+	 */
+	public synchronized double getGoodput() {
+		return this.lastGoodput;
+	}
+	
+	/**
+	 * Records a part being uploaded.
+	 * 
+	 * @return true if the number of parts changed
+	 */
+	public boolean partUploaded(long bytes) {
+		return this.partUploaded(bytes, System.nanoTime());
+	}
+	
+	protected synchronized boolean partUploaded(long bytes, long now) {
+		this.windowBytes += bytes;
+		this.windowParts++;
+		
+		// Measure over enough parts that each one in flight has finished about twice
+		if (this.windowParts < 2 * this.parts) {
+			return false;
+		}
+		
+		double goodput = this.windowBytes * 1000000000.0 / Math.max(1, now - this.windowStart);
+		this.lastGoodput = goodput;
+		this.windowStart = now;
+		this.windowBytes = 0;
+		this.windowParts = 0;
+		
+		int previousParts = this.parts;
+		
+		if (this.slowStart) {
+			if (Double.isNaN(this.baseline) || goodput > this.baseline * (1.0 + MIN_GAIN)) {
+				this.baseline = goodput;
+				this.parts = Math.min(this.maxParts, this.parts * 2);
+				this.slowStart = this.parts < this.maxParts;
+			} else {
+				// Diminishing returns; go back to the last level that helped
+				this.parts = Math.max(1, this.parts / 2);
+				this.slowStart = false;
+				this.holdWindows = HOLD_WINDOWS;
+			}
+		} else if (this.probe != 0) {
+			boolean keep = this.probe > 0 ?
+					goodput > this.baseline * (1.0 + MIN_GAIN) :
+					goodput >= this.baseline * (1.0 - MIN_GAIN);
+			
+			if (keep) {
+				// Keep going the same way
+				this.baseline = goodput;
+				this.startProbe(this.probe);
+			} else {
+				this.parts -= this.probe;
+				this.nextProbe = -this.probe;
+				this.probe = 0;
+				this.holdWindows = HOLD_WINDOWS;
+			}
+		} else {
+			this.baseline = Double.isNaN(this.baseline) ? goodput : SMOOTHING * this.baseline + (1.0 - SMOOTHING) * goodput;
+			
+			if (this.holdWindows > 0) {
+				this.holdWindows--;
+			} else if (!this.startProbe(this.nextProbe)) {
+				this.startProbe(-this.nextProbe);
+			}
+		}
+		
+		return this.parts != previousParts;
+	}
+	
+	protected boolean startProbe(int direction) {
+		int parts = this.parts + direction;
+		if (parts < 1 || parts > this.maxParts) {
+			this.probe = 0;
+			return false;
+		}
+		
+		this.parts = parts;
+		this.probe = direction;
+		return true;
+	}
+}
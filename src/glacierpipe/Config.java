@@ -1,15 +1,76 @@
 package glacierpipe;
 
+import glacierpipe.dedup.FastCdcChunker;
+import glacierpipe.net.SocketTuning;
+
 import java.io.File;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 public class Config {
 
+	/**
+	 * A part size that asks for one to be picked from the expected size of the archive and the memory allowed
+	 */
+	public static final long AUTO_PART_SIZE = 0;
+	
+	public static final long MIN_PART_SIZE = 1024L * 1024L;
+	public static final long MAX_PART_SIZE = 1024L * 1024L * 4096L;
+	
+	/**
+	 * How many parts an automatically sized part should leave room to have in memory at once
+	 */
+	protected static final int MIN_BUFFERED_PARTS = 4;
+	
+	/**
+	 * The share of {@link GlacierPipe#MAX_PARTS} an archive of the expected size should fill, leaving room for the
+	 * expectation to be off
+	 */
+	protected static final double EXPECTED_PARTS_FRACTION = 0.9;
+
 	public final String endpoint;
 	
+	public final long expectedSize;
 	public final long partSize;
+	public final boolean rollover;
+	public final long rolloverSize;
 	public final int maxRetries;
+	public final boolean compress;
+	public final int compressLevel;
+	public final int compressThreads;
+	public final File keyFile;
+	public final boolean tarIndex;
+	public final File tarIndexFile;
+	public final File dedupIndex;
+	public final int dedupChunkSize;
+	public final File catalog;
+	public final boolean skipIfUnchanged;
+	public final String jobId;
+	public final File output;
+	public final int downloadThreads;
+	public final long rangeSize;
+	public final int deleteThreads;
+	public final File deleteCheckpoint;
+	public final int parallelParts;
+	public final long maxMemory;
+	public final double retryBudget;
+	public final long stallTimeout;
+	public final double stallMinRate;
+	public final boolean hedge;
+	public final double hedgePercentile;
+	public final double hedgeMultiplier;
+	public final String uploadEngine;
+	public final int ioThreads;
+	public final int sendBufferSize;
+	public final int receiveBufferSize;
+	public final boolean tcpNoDelay;
+	public final int connectTimeout;
+	public final int socketTimeout;
 	public final File propertiesFile;
 	public final boolean reloadProperties;
 	
@@ -19,6 +80,7 @@ public class Config {
 	
 	public final String vault;
 	public final String archive;
+	public final List<TeeDestination> tee;
 	
 	public final String accessKey;
 	public final String secretKey;
@@ -26,16 +88,161 @@ public class Config {
 	public Config(ConfigBuilder builder) {
 		this.endpoint = Objects.requireNonNull(builder.endpoint, "endpoint was null");
 		
-		if (builder.partSize < 1024L * 1024L || builder.partSize > 1024L * 1024L * 4096L || !isPowerOfTwo(builder.partSize)) {
+		if (builder.expectedSize < -1) {
+			throw new IllegalArgumentException("invalid expectedSize: " + builder.expectedSize);
+		}
+		this.expectedSize = builder.expectedSize;
+		
+		if (builder.maxMemory <= 0) {
+			throw new IllegalArgumentException("maxMemory must be positive; maxMemory = " + builder.maxMemory);
+		}
+		this.maxMemory = builder.maxMemory;
+		
+		if (builder.partSize == AUTO_PART_SIZE) {
+			// Parts have to fit in the heap, too
+			this.partSize = choosePartSize(builder.expectedSize, Math.min(builder.maxMemory, Runtime.getRuntime().maxMemory() / 4 * 3));
+		} else if (builder.partSize < MIN_PART_SIZE || builder.partSize > MAX_PART_SIZE || !isPowerOfTwo(builder.partSize)) {
 			throw new IllegalArgumentException("invalid partSize; must be a power of two 1 MB >= n >= 4 GB; partsize = " + builder.partSize);
+		} else {
+			this.partSize = builder.partSize;
+		}
+		
+		this.rollover = builder.rollover;
+		if (builder.rolloverSize < 0) {
+			throw new IllegalArgumentException("rolloverSize was negative");
 		}
-		this.partSize = builder.partSize;
+		this.rolloverSize = builder.rolloverSize;
 		
 		if (builder.maxRetries < 0) {
 			throw new IllegalArgumentException("maxRetries was negative");
 		}
 		this.maxRetries = builder.maxRetries;
 		
+		this.compress = builder.compress;
+		if (builder.compressLevel < 0 || builder.compressLevel > 9) {
+			throw new IllegalArgumentException("compressLevel must be between 0 and 9; compressLevel = " + builder.compressLevel);
+		}
+		this.compressLevel = builder.compressLevel;
+		
+		if (builder.compressThreads < 0) {
+			throw new IllegalArgumentException("compressThreads was negative");
+		}
+		this.compressThreads = builder.compressThreads > 0 ? builder.compressThreads : Runtime.getRuntime().availableProcessors();
+		
+		if (builder.keyFile != null && !builder.keyFile.isFile()) {
+			throw new IllegalArgumentException("key file not found: " + builder.keyFile);
+		}
+		this.keyFile = builder.keyFile;
+		
+		// The index's offsets are only any use if they're offsets into the archive
+		this.tarIndex = builder.tarIndex || builder.tarIndexFile != null;
+		if (this.tarIndex && (this.compress || this.keyFile != null)) {
+			throw new IllegalArgumentException("a tar index can't be made of a compressed or encrypted archive");
+		}
+		this.tarIndexFile = builder.tarIndexFile;
+		
+		// Chunks are found by their offsets in the archive they were uploaded to, too, so it has to be the one archive
+		if (builder.dedupIndex != null && (this.compress || this.keyFile != null || this.tarIndex || this.rollover)) {
+			throw new IllegalArgumentException("deduplication can't be combined with compression, encryption, a tar index or rollover");
+		}
+		this.dedupIndex = builder.dedupIndex;
+		
+		if (builder.dedupChunkSize < FastCdcChunker.MIN_AVERAGE_SIZE || builder.dedupChunkSize > FastCdcChunker.MAX_AVERAGE_SIZE || !isPowerOfTwo(builder.dedupChunkSize)) {
+			throw new IllegalArgumentException("invalid dedupChunkSize; must be a power of two " + FastCdcChunker.MIN_AVERAGE_SIZE + " <= n <= " + FastCdcChunker.MAX_AVERAGE_SIZE + "; dedupChunkSize = " + builder.dedupChunkSize);
+		}
+		this.dedupChunkSize = builder.dedupChunkSize;
+		
+		// What's uploaded has to be stdin as it is for its tree hash to be found in the catalog
+		this.catalog = builder.catalog;
+		if (builder.skipIfUnchanged && this.catalog == null) {
+			throw new IllegalArgumentException("skipping unchanged uploads needs a catalog");
+		} else if (builder.skipIfUnchanged && (this.compress || this.keyFile != null || this.dedupIndex != null)) {
+			throw new IllegalArgumentException("skipping unchanged uploads can't be combined with compression, encryption or deduplication");
+		}
+		this.skipIfUnchanged = builder.skipIfUnchanged;
+		
+		this.jobId = builder.jobId;
+		this.output = builder.output;
+		
+		if (builder.downloadThreads <= 0) {
+			throw new IllegalArgumentException("downloadThreads must be positive; downloadThreads = " + builder.downloadThreads);
+		}
+		this.downloadThreads = builder.downloadThreads;
+		
+		// Tree hash aligned ranges are the ones Glacier sends tree hashes for
+		if (builder.rangeSize < ArchiveDownloader.MIN_RANGE_SIZE || builder.rangeSize > ArchiveDownloader.MAX_RANGE_SIZE || !isPowerOfTwo(builder.rangeSize)) {
+			throw new IllegalArgumentException("invalid rangeSize; must be a power of two " + ArchiveDownloader.MIN_RANGE_SIZE + " <= n <= " + ArchiveDownloader.MAX_RANGE_SIZE + "; rangeSize = " + builder.rangeSize);
+		}
+		this.rangeSize = builder.rangeSize;
+		
+		if (builder.deleteThreads <= 0) {
+			throw new IllegalArgumentException("deleteThreads must be positive; deleteThreads = " + builder.deleteThreads);
+		}
+		this.deleteThreads = builder.deleteThreads;
+		this.deleteCheckpoint = builder.deleteCheckpoint;
+		
+		if (builder.parallelParts < 0) {
+			throw new IllegalArgumentException("parallelParts was negative");
+		}
+		this.parallelParts = builder.parallelParts;
+		
+		if (!(builder.retryBudget >= 0.0) || Double.isInfinite(builder.retryBudget)) {
+			throw new IllegalArgumentException("invalid retryBudget: " + builder.retryBudget);
+		}
+		this.retryBudget = builder.retryBudget;
+		
+		if (builder.stallTimeout < 0) {
+			throw new IllegalArgumentException("stallTimeout was negative");
+		}
+		this.stallTimeout = builder.stallTimeout;
+		
+		if (builder.stallMinRate < 0.0 || Double.isNaN(builder.stallMinRate) || Double.isInfinite(builder.stallMinRate)) {
+			throw new IllegalArgumentException("invalid stallMinRate: " + builder.stallMinRate);
+		}
+		this.stallMinRate = builder.stallMinRate;
+		
+		this.hedge = builder.hedge;
+		if (!(builder.hedgePercentile > 0.0 && builder.hedgePercentile <= 100.0)) {
+			throw new IllegalArgumentException("hedgePercentile must be in (0, 100]; hedgePercentile = " + builder.hedgePercentile);
+		}
+		this.hedgePercentile = builder.hedgePercentile;
+		if (!(builder.hedgeMultiplier >= 1.0) || Double.isInfinite(builder.hedgeMultiplier)) {
+			throw new IllegalArgumentException("hedgeMultiplier must be at least 1; hedgeMultiplier = " + builder.hedgeMultiplier);
+		}
+		this.hedgeMultiplier = builder.hedgeMultiplier;
+		
+		if (!"sdk".equals(builder.uploadEngine) && !"nio".equals(builder.uploadEngine)) {
+			throw new IllegalArgumentException("uploadEngine must be sdk or nio; uploadEngine = " + builder.uploadEngine);
+		}
+		this.uploadEngine = builder.uploadEngine;
+		
+		if (builder.ioThreads <= 0) {
+			throw new IllegalArgumentException("ioThreads must be positive; ioThreads = " + builder.ioThreads);
+		}
+		this.ioThreads = builder.ioThreads;
+		
+		if (builder.sendBufferSize < 0 && builder.sendBufferSize != SocketTuning.AUTO) {
+			throw new IllegalArgumentException("invalid sendBufferSize: " + builder.sendBufferSize);
+		}
+		this.sendBufferSize = builder.sendBufferSize;
+		
+		if (builder.receiveBufferSize < 0 && builder.receiveBufferSize != SocketTuning.AUTO) {
+			throw new IllegalArgumentException("invalid receiveBufferSize: " + builder.receiveBufferSize);
+		}
+		this.receiveBufferSize = builder.receiveBufferSize;
+		
+		this.tcpNoDelay = builder.tcpNoDelay;
+		
+		if (builder.connectTimeout <= 0 || builder.connectTimeout > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("invalid connectTimeout: " + builder.connectTimeout);
+		}
+		this.connectTimeout = (int)builder.connectTimeout;
+		
+		if (builder.socketTimeout <= 0 || builder.socketTimeout > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("invalid socketTimeout: " + builder.socketTimeout);
+		}
+		this.socketTimeout = (int)builder.socketTimeout;
+		
 		this.propertiesFile = builder.propertiesFile;
 		this.reloadProperties = builder.reloadProperties;
 		
@@ -50,11 +257,78 @@ public class Config {
 		this.vault = Objects.requireNonNull(builder.vault, "vault name required");
 		this.archive = Objects.requireNonNull(builder.archive, "archive name required");
 		
+		// Other vaults the upload goes to, in --endpoint unless they say otherwise.  The chunk index and an uploaded tar
+		// index refer to one archive, so they can't be made for copies in several places.
+		List<TeeDestination> tee = new ArrayList<TeeDestination>();
+		Set<String> destinations = new HashSet<String>();
+		destinations.add(new TeeDestination(this.vault, this.endpoint).toString());
+		for (TeeDestination destination : builder.tee) {
+			TeeDestination resolved = new TeeDestination(destination.vault, destination.endpoint != null ? destination.endpoint : this.endpoint);
+			if (!destinations.add(resolved.toString())) {
+				throw new IllegalArgumentException("already uploading to " + resolved);
+			}
+			tee.add(resolved);
+		}
+		if (!tee.isEmpty() && (this.dedupIndex != null || (this.tarIndex && this.tarIndexFile == null))) {
+			throw new IllegalArgumentException("tee can't be combined with deduplication, or a tar index that's uploaded rather than written to a file");
+		}
+		this.tee = Collections.unmodifiableList(tee);
+		
 		this.accessKey = Objects.requireNonNull(builder.accessKey, "accessKey required");
 		this.secretKey = Objects.requireNonNull(builder.secretKey, "secretKey required");
 		
 	}
 	
+	/**
+	 * Picks the part size for an archive.  Bigger parts mean fewer requests, and less of the time spent on each one's
+	 * round trips, signing and hashing, so parts are made as big as {@code maxMemory} allows while still holding
+	 * {@value #MIN_BUFFERED_PARTS} of them, and no bigger than it takes to split the archive into that many, so they
+	 * can still be uploaded in parallel.  Whatever the memory, parts are at least big enough to fit the archive in
+	 * {@link GlacierPipe#MAX_PARTS} with room to spare.
+	 *
+	 * @param expectedSize the archive's expected size in bytes, or -1 if it's not known
+	 * @param maxMemory how much memory buffering parts can take
+	 * @return a power of two between {@link #MIN_PART_SIZE} and {@link #MAX_PART_SIZE}
+	 */
+	public static long choosePartSize(long expectedSize, long maxMemory) {
+		long partSize = floorPowerOfTwo(maxMemory / MIN_BUFFERED_PARTS);
+		
+		if (expectedSize >= 0) {
+			partSize = Math.min(partSize, ceilPowerOfTwo((expectedSize + MIN_BUFFERED_PARTS - 1) / MIN_BUFFERED_PARTS));
+			
+			long maxParts = (long)(GlacierPipe.MAX_PARTS * EXPECTED_PARTS_FRACTION);
+			partSize = Math.max(partSize, ceilPowerOfTwo((expectedSize + maxParts - 1) / maxParts));
+		}
+		
+		return Math.max(MIN_PART_SIZE, Math.min(partSize, MAX_PART_SIZE));
+	}
+	
+	/**
+	 * @return how big an archive can be when it's uploaded in parts of {@code partSize}
+	 */
+	public static long getMaxArchiveSize(long partSize) {
+		return partSize * GlacierPipe.MAX_PARTS;
+	}
+	
+	/**
+	 * @return how many parts of {@code partSize} an archive can have before rolling over to the next
+	 */
+	public static int getRolloverParts(long rolloverSize, long partSize) {
+		if (rolloverSize == 0) {
+			return GlacierPipe.MAX_PARTS;
+		}
+		return (int)Math.max(1, Math.min(rolloverSize / partSize, GlacierPipe.MAX_PARTS));
+	}
+	
+	protected static long floorPowerOfTwo(long val) {
+		return val > 0 ? Long.highestOneBit(val) : 0;
+	}
+	
+	protected static long ceilPowerOfTwo(long val) {
+		long floor = floorPowerOfTwo(val);
+		return floor == val ? val : floor << 1;
+	}
+	
 	public static boolean isPowerOfTwo(long val) {
 		val--;
 
@@ -67,5 +341,52 @@ public class Config {
 
 		return true;
 	}
+	
+	/**
+	 * Another vault an upload's sent to, in the same region or another one
+	 */
+	public static class TeeDestination {
+		
+		public final String vault;
+		
+		/**
+		 * The endpoint's URL, or null for the upload's own endpoint
+		 */
+		public final String endpoint;
+		
+		public TeeDestination(String vault, String endpoint) {
+			if (vault == null || vault.isEmpty()) {
+				throw new IllegalArgumentException("vault name required");
+			}
+			this.vault = vault;
+			this.endpoint = endpoint;
+		}
+		
+		/**
+		 * Parses {@code vault} or {@code vault@endpoint}, where the endpoint can be one of
+		 * {@link ConfigBuilder#GLACIER_ENDPOINTS}' aliases.  Vault names can't have an {@code @} in them.
+		 */
+		public static TeeDestination parse(String destination) {
+			destination = destination.trim();
+			
+			int at = destination.indexOf('@');
+			if (at < 0) {
+				return new TeeDestination(destination, null);
+			}
+			
+			String endpoint = destination.substring(at + 1).trim();
+			if (endpoint.isEmpty()) {
+				throw new IllegalArgumentException("endpoint missing from tee destination: " + destination);
+			} else if (ConfigBuilder.GLACIER_ENDPOINTS.containsKey(endpoint)) {
+				endpoint = ConfigBuilder.GLACIER_ENDPOINTS.get(endpoint);
+			}
+			return new TeeDestination(destination.substring(0, at).trim(), endpoint);
+		}
+		
+		@Override
+		public String toString() {
+			return this.endpoint != null ? this.vault + "@" + this.endpoint : this.vault;
+		}
+	}
 
 }
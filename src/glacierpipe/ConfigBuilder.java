@@ -1,10 +1,14 @@
 package glacierpipe;
 
+import glacierpipe.dedup.FastCdcChunker;
 import glacierpipe.format.StringFormat;
+import glacierpipe.net.SocketTuning;
 
 import java.io.File;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
@@ -27,8 +31,42 @@ public class ConfigBuilder {
 	
 	public String endpoint;
 	
-	public long partSize = 1024 * 1024 * 16;
+	public long expectedSize = -1;
+	public long partSize = Config.AUTO_PART_SIZE;
+	public boolean rollover = false;
+	public long rolloverSize = 0;
 	public int maxRetries = 1000;
+	public boolean compress = false;
+	public int compressLevel = 6;
+	public int compressThreads = 0;
+	public File keyFile;
+	public boolean tarIndex = false;
+	public File tarIndexFile;
+	public File dedupIndex;
+	public int dedupChunkSize = FastCdcChunker.DEFAULT_AVERAGE_SIZE;
+	public File catalog = new File(System.getProperty("user.home") + File.separator + ".glacierpipe" + File.separator + "catalog");
+	public boolean skipIfUnchanged = false;
+	public String jobId;
+	public File output;
+	public int downloadThreads = ArchiveDownloader.DEFAULT_THREADS;
+	public long rangeSize = ArchiveDownloader.DEFAULT_RANGE_SIZE;
+	public int deleteThreads = ArchiveDeleter.DEFAULT_THREADS;
+	public File deleteCheckpoint;
+	public int parallelParts = 0;
+	public long maxMemory = 1024 * 1024 * 256;
+	public double retryBudget = 100.0;
+	public long stallTimeout = 60 * 1000;
+	public double stallMinRate = 1.0;
+	public boolean hedge = false;
+	public double hedgePercentile = 95.0;
+	public double hedgeMultiplier = 2.0;
+	public String uploadEngine = "sdk";
+	public int ioThreads = 2;
+	public int sendBufferSize = 0;
+	public int receiveBufferSize = 0;
+	public boolean tcpNoDelay = true;
+	public long connectTimeout = SocketTuning.DEFAULT_CONNECT_TIMEOUT;
+	public long socketTimeout = SocketTuning.DEFAULT_SOCKET_TIMEOUT;
 	public File propertiesFile = new File(System.getProperty("user.home") + File.separator + "aws.properties");
 	
 	public double maxUploadRate;
@@ -39,6 +77,7 @@ public class ConfigBuilder {
 	
 	public String vault;
 	public String archive;
+	public List<Config.TeeDestination> tee = new ArrayList<Config.TeeDestination>();
 	
 	public String accessKey;
 	public String secretKey;
@@ -50,8 +89,42 @@ public class ConfigBuilder {
 	public ConfigBuilder setFromConfiguration(Config configuration) {
 		this.endpoint = configuration.endpoint;
 		
+		this.expectedSize = configuration.expectedSize;
 		this.partSize = configuration.partSize;
+		this.rollover = configuration.rollover;
+		this.rolloverSize = configuration.rolloverSize;
 		this.maxRetries = configuration.maxRetries;
+		this.compress = configuration.compress;
+		this.compressLevel = configuration.compressLevel;
+		this.compressThreads = configuration.compressThreads;
+		this.keyFile = configuration.keyFile;
+		this.tarIndex = configuration.tarIndex;
+		this.tarIndexFile = configuration.tarIndexFile;
+		this.dedupIndex = configuration.dedupIndex;
+		this.dedupChunkSize = configuration.dedupChunkSize;
+		this.catalog = configuration.catalog;
+		this.skipIfUnchanged = configuration.skipIfUnchanged;
+		this.jobId = configuration.jobId;
+		this.output = configuration.output;
+		this.downloadThreads = configuration.downloadThreads;
+		this.rangeSize = configuration.rangeSize;
+		this.deleteThreads = configuration.deleteThreads;
+		this.deleteCheckpoint = configuration.deleteCheckpoint;
+		this.parallelParts = configuration.parallelParts;
+		this.maxMemory = configuration.maxMemory;
+		this.retryBudget = configuration.retryBudget;
+		this.stallTimeout = configuration.stallTimeout;
+		this.stallMinRate = configuration.stallMinRate;
+		this.hedge = configuration.hedge;
+		this.hedgePercentile = configuration.hedgePercentile;
+		this.hedgeMultiplier = configuration.hedgeMultiplier;
+		this.uploadEngine = configuration.uploadEngine;
+		this.ioThreads = configuration.ioThreads;
+		this.sendBufferSize = configuration.sendBufferSize;
+		this.receiveBufferSize = configuration.receiveBufferSize;
+		this.tcpNoDelay = configuration.tcpNoDelay;
+		this.connectTimeout = configuration.connectTimeout;
+		this.socketTimeout = configuration.socketTimeout;
 		this.propertiesFile = configuration.propertiesFile;
 		
 		this.maxUploadRate = configuration.maxUploadRate;
@@ -62,6 +135,7 @@ public class ConfigBuilder {
 		
 		this.vault = configuration.vault;
 		this.archive = configuration.archive;
+		this.tee = new ArrayList<Config.TeeDestination>(configuration.tee);
 		
 		this.accessKey = configuration.accessKey;
 		this.secretKey = configuration.secretKey;
@@ -81,12 +155,39 @@ public class ConfigBuilder {
 			}
 		}
 
-		// Set up the part size
+		// Set up the part size; auto picks one from the expected size
 		if (properties.containsKey("partsize")) {
+			String partSize = properties.getProperty("partsize").trim().toLowerCase();
+			if ("auto".equals(partSize)) {
+				this.partSize = Config.AUTO_PART_SIZE;
+			} else {
+				try {
+					this.partSize = StringFormat.parseBinarySuffixedLong(partSize);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Illegal partsize");
+				}
+			}
+		}
+		
+		// How big is the archive expected to be?
+		if (properties.containsKey("expected-size")) {
+			try {
+				this.expectedSize = StringFormat.parseBinarySuffixedLong(properties.getProperty("expected-size"));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse expected-size: " + properties.getProperty("expected-size"));
+			}
+		}
+		
+		// Should a stream too big for one archive carry on in another?  A rollover-size of 0 rolls over at the part limit.
+		if (properties.containsKey("rollover")) {
+			this.rollover = parseBoolean("rollover", properties.getProperty("rollover"));
+		}
+		
+		if (properties.containsKey("rollover-size")) {
 			try {
-				this.partSize = StringFormat.parseBinarySuffixedLong(properties.getProperty("partsize"));
+				this.rolloverSize = StringFormat.parseBinarySuffixedLong(properties.getProperty("rollover-size"));
 			} catch (NumberFormatException e) {
-				throw new IllegalArgumentException("Illegal partsize");
+				throw new NumberFormatException("Failed to parse rollover-size: " + properties.getProperty("rollover-size"));
 			}
 		}
 		
@@ -99,27 +200,234 @@ public class ConfigBuilder {
 			}
 		}
 		
-		// Should we poll the properties file for changes?
-		if (properties.containsKey("reload-properties")) {
-			String reloadProperties = properties.getProperty("reload-properties");
-			reloadProperties = reloadProperties != null ? reloadProperties.trim().toLowerCase() : null;
-			
-			if (reloadProperties == null || reloadProperties.isEmpty()) {
-				this.reloadProperties = true;
-			} else if ("yes".equals(reloadProperties) || "1".equals(reloadProperties) || "true".equals(reloadProperties)) {
-				this.reloadProperties = true;
-			} else if ("no".equals(reloadProperties) || "0".equals(reloadProperties) || "false".equals(reloadProperties)) {
-				this.reloadProperties = false;
+		// Should the input be gzipped on the way in?  0 threads uses every processor.
+		if (properties.containsKey("compress")) {
+			this.compress = parseBoolean("compress", properties.getProperty("compress"));
+		}
+		
+		if (properties.containsKey("compress-level")) {
+			try {
+				this.compressLevel = Integer.parseInt(properties.getProperty("compress-level"));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse compress-level: " + properties.getProperty("compress-level"));
+			}
+		}
+		
+		if (properties.containsKey("compress-threads")) {
+			try {
+				this.compressThreads = Integer.parseInt(properties.getProperty("compress-threads"));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse compress-threads: " + properties.getProperty("compress-threads"));
+			}
+		}
+		
+		// Encrypt with the key in this file
+		if (properties.containsKey("key-file")) {
+			this.keyFile = new File(properties.getProperty("key-file"));
+		}
+		
+		// Should the tar archive on stdin be indexed?  The index is uploaded alongside it, unless it's written to a file.
+		if (properties.containsKey("tar-index")) {
+			this.tarIndex = parseBoolean("tar-index", properties.getProperty("tar-index"));
+		}
+		
+		if (properties.containsKey("tar-index-file")) {
+			this.tarIndexFile = new File(properties.getProperty("tar-index-file"));
+		}
+		
+		// Upload only chunks that aren't in this index of earlier uploads
+		if (properties.containsKey("dedup-index")) {
+			this.dedupIndex = new File(properties.getProperty("dedup-index"));
+		}
+		
+		if (properties.containsKey("dedup-chunk-size")) {
+			try {
+				this.dedupChunkSize = (int)StringFormat.parseBinarySuffixedLong(properties.getProperty("dedup-chunk-size"));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse dedup-chunk-size: " + properties.getProperty("dedup-chunk-size"));
+			}
+		}
+		
+		// Where uploads are recorded; none turns it off
+		if (properties.containsKey("catalog")) {
+			String catalog = properties.getProperty("catalog");
+			this.catalog = "none".equals(catalog) ? null : new File(catalog);
+		}
+		
+		if (properties.containsKey("skip-if-unchanged")) {
+			this.skipIfUnchanged = parseBoolean("skip-if-unchanged", properties.getProperty("skip-if-unchanged"));
+		}
+		
+		// Download the output of a retrieval job that's already been started, rather than starting one
+		if (properties.containsKey("job-id")) {
+			this.jobId = properties.getProperty("job-id");
+		}
+		
+		// Download to this file, rather than stdout
+		if (properties.containsKey("output")) {
+			this.output = new File(properties.getProperty("output"));
+		}
+		
+		if (properties.containsKey("download-threads")) {
+			try {
+				this.downloadThreads = Integer.parseInt(properties.getProperty("download-threads"));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse download-threads: " + properties.getProperty("download-threads"));
+			}
+		}
+		
+		if (properties.containsKey("range-size")) {
+			try {
+				this.rangeSize = StringFormat.parseBinarySuffixedLong(properties.getProperty("range-size"));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse range-size: " + properties.getProperty("range-size"));
+			}
+		}
+		
+		if (properties.containsKey("delete-threads")) {
+			try {
+				this.deleteThreads = Integer.parseInt(properties.getProperty("delete-threads"));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse delete-threads: " + properties.getProperty("delete-threads"));
+			}
+		}
+		
+		// Where deleted archives are recorded, so an interrupted run can pick up where it left off
+		if (properties.containsKey("delete-checkpoint")) {
+			this.deleteCheckpoint = new File(properties.getProperty("delete-checkpoint"));
+		}
+		
+		// How many parts can be buffered and uploading at once?  0 tunes it automatically.
+		if (properties.containsKey("parallel-parts")) {
+			String parallelParts = properties.getProperty("parallel-parts");
+			if ("automatic".equals(parallelParts)) {
+				this.parallelParts = 0;
 			} else {
-				throw new IllegalArgumentException("Unrecognized valued for reload-properties: " + reloadProperties);
+				try {
+					this.parallelParts = Integer.parseInt(parallelParts);
+				} catch (NumberFormatException e) {
+					throw new NumberFormatException("Failed to parse parallel-parts: " + parallelParts);
+				}
+			}
+		}
+		
+		if (properties.containsKey("max-memory")) {
+			try {
+				this.maxMemory = StringFormat.parseBinarySuffixedLong(properties.getProperty("max-memory"));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse max-memory: " + properties.getProperty("max-memory"));
 			}
 		}
 		
+		// How many retries, across all parts, can be made beyond what successful uploads earn back?
+		if (properties.containsKey("retry-budget")) {
+			try {
+				this.retryBudget = Double.parseDouble(properties.getProperty("retry-budget"));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse retry-budget: " + properties.getProperty("retry-budget"));
+			}
+		}
+		
+		// How long can a part upload make no progress before it's abandoned and retried?
+		if (properties.containsKey("stall-timeout")) {
+			try {
+				this.stallTimeout = Math.round(Double.parseDouble(properties.getProperty("stall-timeout")) * 1000.0);
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse stall-timeout: " + properties.getProperty("stall-timeout"));
+			}
+		}
+		
+		if (properties.containsKey("stall-min-rate")) {
+			try {
+				this.stallMinRate = StringFormat.parseBinarySuffixedDouble(properties.getProperty("stall-min-rate"));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse stall-min-rate: " + properties.getProperty("stall-min-rate"));
+			}
+		}
+		
+		// Should straggling part uploads be hedged with a duplicate request?
+		if (properties.containsKey("hedge")) {
+			this.hedge = parseBoolean("hedge", properties.getProperty("hedge"));
+		}
+		
+		if (properties.containsKey("hedge-percentile")) {
+			try {
+				this.hedgePercentile = Double.parseDouble(properties.getProperty("hedge-percentile"));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse hedge-percentile: " + properties.getProperty("hedge-percentile"));
+			}
+		}
+		
+		if (properties.containsKey("hedge-multiplier")) {
+			try {
+				this.hedgeMultiplier = Double.parseDouble(properties.getProperty("hedge-multiplier"));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse hedge-multiplier: " + properties.getProperty("hedge-multiplier"));
+			}
+		}
+		
+		// Upload parts with the SDK, or with non-blocking I/O?
+		if (properties.containsKey("upload-engine")) {
+			this.uploadEngine = properties.getProperty("upload-engine").trim().toLowerCase();
+		}
+		
+		if (properties.containsKey("io-threads")) {
+			try {
+				this.ioThreads = Integer.parseInt(properties.getProperty("io-threads"));
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse io-threads: " + properties.getProperty("io-threads"));
+			}
+		}
+		
+		// Socket options; buffer sizes of 0 leave them to the OS, and auto sizes them to the bandwidth-delay product
+		if (properties.containsKey("send-buffer")) {
+			this.sendBufferSize = parseBufferSize("send-buffer", properties.getProperty("send-buffer"));
+		}
+		
+		if (properties.containsKey("receive-buffer")) {
+			this.receiveBufferSize = parseBufferSize("receive-buffer", properties.getProperty("receive-buffer"));
+		}
+		
+		if (properties.containsKey("tcp-nodelay")) {
+			this.tcpNoDelay = parseBoolean("tcp-nodelay", properties.getProperty("tcp-nodelay"));
+		}
+		
+		if (properties.containsKey("connect-timeout")) {
+			try {
+				this.connectTimeout = Math.round(Double.parseDouble(properties.getProperty("connect-timeout")) * 1000.0);
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse connect-timeout: " + properties.getProperty("connect-timeout"));
+			}
+		}
+		
+		if (properties.containsKey("socket-timeout")) {
+			try {
+				this.socketTimeout = Math.round(Double.parseDouble(properties.getProperty("socket-timeout")) * 1000.0);
+			} catch (NumberFormatException e) {
+				throw new NumberFormatException("Failed to parse socket-timeout: " + properties.getProperty("socket-timeout"));
+			}
+		}
+		
+		// Should we poll the properties file for changes?
+		if (properties.containsKey("reload-properties")) {
+			this.reloadProperties = parseBoolean("reload-properties", properties.getProperty("reload-properties"));
+		}
+		
 		// Vault name
 		if (properties.containsKey("vault")) {
 			this.vault = properties.getProperty("vault");
 		}
 		
+		// Other vaults to upload to as well, each vault or vault@endpoint, separated by commas
+		if (properties.containsKey("tee")) {
+			this.tee = new ArrayList<Config.TeeDestination>();
+			for (String destination : properties.getProperty("tee").split(",")) {
+				if (!destination.trim().isEmpty()) {
+					this.tee.add(Config.TeeDestination.parse(destination));
+				}
+			}
+		}
+		
 		// Archive name from properties seems like a bad idea.
 		
 		// Throttling
@@ -146,6 +454,46 @@ public class ConfigBuilder {
 		return this;
 	}
 	
+	/**
+	 * Parses a flag from the command line or a properties file, where an empty value means it was given without an
+	 * argument.
+	 */
+	protected static boolean parseBoolean(String name, String value) {
+		value = value != null ? value.trim().toLowerCase() : null;
+		
+		if (value == null || value.isEmpty()) {
+			return true;
+		} else if ("yes".equals(value) || "1".equals(value) || "true".equals(value)) {
+			return true;
+		} else if ("no".equals(value) || "0".equals(value) || "false".equals(value)) {
+			return false;
+		} else {
+			throw new IllegalArgumentException("Unrecognized valued for " + name + ": " + value);
+		}
+	}
+	
+	/**
+	 * Parses a socket buffer size: a number of bytes, 0 for the OS's default, or {@code auto}.
+	 */
+	protected static int parseBufferSize(String name, String value) {
+		value = value.trim().toLowerCase();
+		if ("auto".equals(value)) {
+			return SocketTuning.AUTO;
+		}
+		
+		long size;
+		try {
+			size = StringFormat.parseBinarySuffixedLong(value);
+		} catch (NumberFormatException e) {
+			throw new NumberFormatException("Failed to parse " + name + ": " + value);
+		}
+		
+		if (size < 0 || size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid " + name + ": " + value);
+		}
+		return (int)size;
+	}
+	
 	public ConfigBuilder setMaxUploadRate(String maxUploadRate) {
 		// FIXME: qosURL never gets set
 		if ("automatic".equals(maxUploadRate)) {
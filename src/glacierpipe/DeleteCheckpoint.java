@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package glacierpipe;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The archives a bulk delete has got through, so one that's interrupted can resume without asking Glacier to delete
+ * them all again.  It's a file of archive IDs, one per line, that's only ever appended to.  Lines are synced to disk
+ * in batches rather than one at a time; what a crash loses is deleted again, which Glacier answers with a
+ * {@code ResourceNotFoundException} that's taken to mean it's done.
+ */
+public class DeleteCheckpoint implements Closeable {
+
+	/**
+	 * How many archives are recorded between syncs to disk
+	 */
+	protected static final int SYNC_INTERVAL = 100;
+	
+	protected final File file;
+	protected final Set<String> archiveIds = new HashSet<String>();
+	
+	protected FileOutputStream out;
+	protected int unsynced = 0;
+	
+	/**
+	 * Reads the checkpoint in {@code file}, if there is one; it's created when the first archive's recorded
+	 */
+	public DeleteCheckpoint(File file) throws IOException {
+		this.file = file;
+		
+		if (!file.exists()) {
+			return;
+		}
+		
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				// A torn last line is an archive ID cut short, which won't match anything
+				if (!line.isEmpty()) {
+					this.archiveIds.add(line);
+				}
+			}
+		}
+	}
+	
+	public File getFile() {
+		return this.file;
+	}
+	
+	public synchronized boolean contains(String archiveId) {
+		return this.archiveIds.contains(archiveId);
+	}
+	
+	public synchronized int size() {
+		return this.archiveIds.size();
+	}
+	
+	public synchronized Set<String> getArchiveIds() {
+		return Collections.unmodifiableSet(new HashSet<String>(this.archiveIds));
+	}
+	
+	public synchronized void add(String archiveId) throws IOException {
+		if (!this.archiveIds.add(archiveId)) {
+			return;
+		}
+		
+		if (this.out == null) {
+			File parent = this.file.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Failed to create checkpoint directory " + parent);
+			}
+			
+			this.out = new FileOutputStream(this.file, true);
+			if (!Catalog.endsWithNewline(this.file)) {
+				this.out.write('\n');
+			}
+		}
+		
+		this.out.write((archiveId + "\n").getBytes(StandardCharsets.UTF_8));
+		if (++this.unsynced >= SYNC_INTERVAL) {
+			this.sync();
+		}
+	}
+	
+	public synchronized void sync() throws IOException {
+		if (this.out != null && this.unsynced > 0) {
+			this.out.getFD().sync();
+			this.unsynced = 0;
+		}
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		if (this.out != null) {
+			try {
+				this.sync();
+			} finally {
+				this.out.close();
+				this.out = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package glacierpipe;
+
+/**
+ * Receives progress from {@link ArchiveDeleter}.  Archives are deleted concurrently, so calls can come from several
+ * threads.
+ */
+public interface DeleteObserver {
+
+	public void startDeleting(String vaultName, int alreadyDeleted);
+	
+	public void archiveDeleted(String archiveId, boolean alreadyGone);
+	public void archiveSkipped(String archiveId);
+	
+	public void exceptionDeleting(String archiveId, Exception e, int attempt, boolean retrying);
+	public void sleepingBeforeRetry(String archiveId, long sleepingFor);
+	public void requestLimitsChanged(int concurrency, double requestsPerSecond);
+	
+	public void done(int deleted, int failed);
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package glacierpipe;
+
+/**
+ * Receives progress from {@link ArchiveDownloader}.  Ranges are downloaded concurrently, so calls can come from several
+ * threads.
+ */
+public interface DownloadObserver {
+
+	public void jobInitiated(String jobId);
+	public void waitingForJob(String jobId, String status, long waitingFor);
+	
+	public void startDownload(String jobId, long size, int ranges);
+	public void downloading(long offset, long dataRead);
+	public void rangeDownloaded(long offset, long length, byte[] treeHash);
+	
+	public void exceptionDownloadingRange(long offset, Exception e, int attempt, boolean retrying);
+	public void sleepingBeforeRetry(long offset, long sleepingFor);
+	
+	public void done(byte[] finalTreeHash, long size);
+}
@@ -19,50 +19,146 @@
 
 package glacierpipe;
 
+import glacierpipe.StageProfiler.Stage;
+import glacierpipe.format.StringFormat;
 import glacierpipe.io.IOBuffer;
 import glacierpipe.io.InputStreamObserver;
 import glacierpipe.io.ObservedInputStream;
 import glacierpipe.io.ObservedOutputStream;
 import glacierpipe.io.OutputStreamObserver;
-import glacierpipe.io.ThrottledInputStream;
+import glacierpipe.io.StallWatchdog;
+import glacierpipe.io.StallWatchdog.StalledException;
+import glacierpipe.io.Pacer;
 import glacierpipe.io.ThrottledInputStream.ThrottlingStrategy;
+import glacierpipe.jfr.BufferingEvent;
+import glacierpipe.jfr.ChecksumPassEvent;
+import glacierpipe.jfr.PartUploadEvent;
+import glacierpipe.jfr.RetrySleepEvent;
+import glacierpipe.jfr.TreeHashEvent;
+import glacierpipe.net.RequestRateController;
+import glacierpipe.net.RetryScheduler;
+import glacierpipe.net.RetryScheduler.ErrorType;
+import glacierpipe.net.nio.Callback;
+import glacierpipe.net.nio.GlacierNioClient;
+import glacierpipe.net.nio.HttpEngine;
 import glacierpipe.security.TreeHashMessageDigest;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.DigestInputStream;
-import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.glacier.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.glacier.model.CompleteMultipartUploadResult;
 import com.amazonaws.services.glacier.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.glacier.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.glacier.model.UploadArchiveRequest;
+import com.amazonaws.services.glacier.model.UploadArchiveResult;
 import com.amazonaws.services.glacier.model.UploadMultipartPartRequest;
 import com.amazonaws.services.glacier.model.UploadMultipartPartResult;
 import com.amazonaws.util.BinaryUtils;
 
 public class GlacierPipe {
 
+	/**
+	 * The most parts a multipart upload can have
+	 */
+	public static final int MAX_PARTS = 10000;
+	
+	/**
+	 * The part at which {@link GlacierPipeObserver#approachingPartLimit} is called
+	 */
+	protected static final int PART_LIMIT_WARNING = MAX_PARTS * 9 / 10;
+	
+	/**
+	 * How often, in milliseconds, a part sent by a {@link GlacierNioClient} checks whether its destination's
+	 * {@link RequestRateController} will let it start
+	 */
+	protected static final long PERMIT_POLL_INTERVAL = 10;
+
 	protected final int maxRetries;
 
 	protected final long partSize;
-	protected final IOBuffer buffer;
+	protected final List<IOBuffer> buffers;
 	protected final GlacierPipeObserver observer;
-	protected final ThrottlingStrategy throttlingStrategy;
+	protected final RetryScheduler retryScheduler;
+	protected final ConcurrencyTuner concurrencyTuner;
+	protected final Pacer pacer;
+	protected final StallWatchdog stallWatchdog;
+	protected final HedgingPolicy hedgingPolicy;
+	protected final int maxRequests;
+	protected final RequestRateController requestRateController;
+	protected final StageProfiler profiler = new StageProfiler();
+	protected int rolloverParts = 0;
+	
+	protected volatile String archiveDescription;
+	protected volatile byte[] archiveTreeHash;
+	protected volatile long archiveSize = -1;
+	
+	protected final ExecutorService uploadExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "glacierpipe-upload");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	
 	public GlacierPipe(IOBuffer buffer, GlacierPipeObserver observer, int maxRetries) {
 		this(buffer, observer, maxRetries, null);
 	}
 	
+	/**
+	 * Uploads are only throttled if the client's connections are paced by {@link #getPacer()}, e.g. with a
+	 * {@link glacierpipe.net.PacedSocketFactory}.
+	 */
 	public GlacierPipe(IOBuffer buffer, GlacierPipeObserver observer, int maxRetries, ThrottlingStrategy throttlingStrategy) {
-		long partSize = buffer.getCapacity();
+		this(Collections.singletonList(buffer), observer, maxRetries, new RetryScheduler(), null, throttlingStrategy != null ? new Pacer(throttlingStrategy) : null, null, null);
+	}
+	
+	/**
+	 * @param buffers one per part that can be in flight at once.  While some parts are uploading or waiting to be
+	 * retried, the input keeps being read into the others.
+	 * @param concurrencyTuner if not null, decides how many of {@code buffers} are used at once
+	 * @param pacer if not null, the pacer the clients' connections are throttled by.  Writes are paced at the
+	 * socket, not here; it's only used to tell when uploads are held up by throttling.
+	 */
+	public GlacierPipe(List<? extends IOBuffer> buffers, GlacierPipeObserver observer, int maxRetries, RetryScheduler retryScheduler, ConcurrencyTuner concurrencyTuner, Pacer pacer, StallWatchdog stallWatchdog, HedgingPolicy hedgingPolicy) {
+		if (buffers.isEmpty()) {
+			throw new IllegalArgumentException("no buffers");
+		}
+		
+		long partSize = buffers.get(0).getCapacity();
 
 		if (partSize < 0) {
 			throw new IllegalArgumentException("partSize too small");
@@ -72,157 +168,347 @@ public class GlacierPipe {
 			throw new IllegalArgumentException("partSize not 1MB * 2^n");
 		} else if (maxRetries < 1) {
 			throw new IllegalArgumentException("maxRetries must be at least 1");
+		} else if (concurrencyTuner != null && concurrencyTuner.getMaxParts() > buffers.size()) {
+			throw new IllegalArgumentException("concurrencyTuner allows more parts than there are buffers");
+		}
+		
+		for (IOBuffer buffer : buffers) {
+			if (buffer.getCapacity() != partSize) {
+				throw new IllegalArgumentException("buffers have different capacities");
+			}
 		}
 
 		this.partSize = partSize;
-		this.buffer = buffer;
+		this.buffers = new ArrayList<IOBuffer>(buffers);
 		this.observer = observer;
 		this.maxRetries = maxRetries;
-		this.throttlingStrategy = throttlingStrategy;
+		this.retryScheduler = Objects.requireNonNull(retryScheduler, "retryScheduler was null");
+		this.concurrencyTuner = concurrencyTuner;
+		this.pacer = pacer;
+		this.stallWatchdog = stallWatchdog;
+		this.hedgingPolicy = hedgingPolicy;
+		
+		// Leave room for every part to be hedged
+		this.maxRequests = this.buffers.size() * (hedgingPolicy != null ? 2 : 1);
+		this.requestRateController = new RequestRateController(this.maxRequests);
+	}
+	
+	/**
+	 * Creates a destination that uses this pipe's own retry scheduler, pacer and {@link RequestRateController}, like
+	 * {@link #pipe(AmazonGlacierClient, GlacierNioClient, String, String, InputStream)}'s does.
+	 * 
+	 * @param nioClient if not null, parts are uploaded with this rather than {@code client}
+	 */
+	public Destination createDestination(AmazonGlacierClient client, GlacierNioClient nioClient, String vaultName) {
+		return new Destination(client, nioClient, vaultName, this.retryScheduler, this.pacer, this.requestRateController);
+	}
+	
+	/**
+	 * Creates another destination for {@link #pipe(List, String, InputStream)}, with a {@link RequestRateController}
+	 * of its own.  Destinations can't share a retry scheduler or pacer without sharing their throttling, too.
+	 * 
+	 * @param nioClient if not null, parts are uploaded with this rather than {@code client}
+	 * @param pacer if not null, the pacer the clients' connections are throttled by
+	 */
+	public Destination createDestination(AmazonGlacierClient client, GlacierNioClient nioClient, String vaultName, RetryScheduler retryScheduler, Pacer pacer) {
+		return new Destination(client, nioClient, vaultName, retryScheduler, pacer, new RequestRateController(this.maxRequests));
+	}
+
+	/**
+	 * @return where the time of the current or most recent call to {@link #pipe} has gone so far
+	 */
+	public StageProfiler.Profile getStageProfile() {
+		return this.profiler.getProfile();
+	}
+	
+	public RequestRateController getRequestRateController() {
+		return this.requestRateController;
+	}
+	
+	public Pacer getPacer() {
+		return this.pacer;
+	}
+	
+	/**
+	 * Has a stream that outgrows an archive carry on in another one rather than fail.  Each archive after the first is
+	 * named for the first, with {@code .1}, {@code .2}, and so on added, and once the stream ends, a {@link Manifest}
+	 * listing them is uploaded as {@code .manifest}.  A stream that fits in one archive is uploaded as usual.
+	 * 
+	 * @param rolloverParts how many parts an archive can have before the next one's started, up to
+	 * {@link #MAX_PARTS}, or 0 to fail instead
+	 */
+	public void setRolloverParts(int rolloverParts) {
+		if (rolloverParts < 0 || rolloverParts > MAX_PARTS) {
+			throw new IllegalArgumentException("rolloverParts must be between 0 and " + MAX_PARTS + "; rolloverParts = " + rolloverParts);
+		}
+		this.rolloverParts = rolloverParts;
+	}
+	
+	public int getRolloverParts() {
+		return this.rolloverParts;
+	}
+
+	/**
+	 * @return the description of the archive the most recent call to {@link #pipe} uploaded, or if it rolled over, of
+	 * its manifest; null until one succeeds
+	 */
+	public String getArchiveDescription() {
+		return this.archiveDescription;
+	}
+	
+	/**
+	 * @return the tree hash of the archive the most recent call to {@link #pipe} uploaded, or if it rolled over, of its
+	 * manifest; null until one succeeds
+	 */
+	public byte[] getArchiveTreeHash() {
+		return this.archiveTreeHash;
+	}
+	
+	/**
+	 * @return the size of the archive the most recent call to {@link #pipe} uploaded, or if it rolled over, of its
+	 * manifest
+	 */
+	public long getArchiveSize() {
+		return this.archiveSize;
 	}
 
 	public String pipe(AmazonGlacierClient client, String vaultName, String archiveDesc, InputStream in) throws IOException {
+		return this.pipe(client, null, vaultName, archiveDesc, in);
+	}
+	
+	/**
+	 * @param nioClient if not null, parts are uploaded with this rather than {@code client}
+	 */
+	public String pipe(AmazonGlacierClient client, GlacierNioClient nioClient, String vaultName, String archiveDesc, InputStream in) throws IOException {
+		return this.pipe(Collections.singletonList(this.createDestination(client, nioClient, vaultName)), archiveDesc, in).get(0);
+	}
+	
+	/**
+	 * Uploads the input to every destination at once.  Each part is read and hashed once, and its buffer's only reused
+	 * once every destination has it, so the slowest destination sets the pace.  If any destination fails, they all
+	 * do.  Only the first destination's uploads report progress; the others' archives are reported as
+	 * {@link GlacierPipeObserver#archiveCompleted}, before {@link GlacierPipeObserver#done} for the first one's.
+	 * 
+	 * @return where the archive, or if it rolled over, its manifest, was created in each destination, in order
+	 */
+	public List<String> pipe(List<Destination> destinations, String archiveDesc, InputStream in) throws IOException {
+		if (destinations.isEmpty()) {
+			throw new IllegalArgumentException("no destinations");
+		}
+		destinations = new ArrayList<Destination>(destinations);
 
 		long currentPosition = 0;
 		int partId = 0;
 		
+		this.profiler.reset();
+		
+		// A thread for every destination of every buffered part, though they're only started as needed, and a part
+		// sent by a GlacierNioClient doesn't need one
+		ExecutorService partExecutor = Executors.newFixedThreadPool(this.buffers.size() * destinations.size(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "glacierpipe-part");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		// Archives that rolled over, being completed in the background
+		List<Future<?>> completions = new ArrayList<Future<?>>();
+		int maxArchiveParts = this.rolloverParts > 0 ? this.rolloverParts : MAX_PARTS;
+		Upload upload = null;
+		
 		try {
 			byte[] buffer = new byte[4096];
 			
-			TreeHashMessageDigest completeHash = new TreeHashMessageDigest(MessageDigest.getInstance("SHA-256"));
-			in = new DigestInputStream(in, completeHash);
+			// Connect while the first part's buffered, rather than once it's ready to send
+			boolean linear = false;
+			for (Destination destination : destinations) {
+				if (destination.nioClient != null) {
+					destination.nioClient.prewarm(this.concurrencyTuner != null ? this.concurrencyTuner.getParts() : this.buffers.size());
+					linear = true;
+				}
+			}
 			
-			/**** Create an upload ID for the current upload ****/
-			InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest().
-					withVaultName(vaultName).
-					withArchiveDescription(archiveDesc).
-					withPartSize(Long.toString(partSize));  
-
-			InitiateMultipartUploadResult result = client.initiateMultipartUpload(request);
-			String uploadId = result.getUploadId();
-
-			this.observer.gotUploadId(uploadId);
+			// The multipart upload's only initiated once the first part's half full, in the background while the rest's
+			// read; anything smaller goes in one request
+			upload = new Upload(destinations, partExecutor);
+			List<Archive> archives = new ArrayList<Archive>();
+			Archive archive = new Archive(archiveDesc, 0, destinations.size());
+			archives.add(archive);
+			IOBuffer partBuffer;
+			boolean full;
 
 			/**** While there are still chunks to process ****/
 			do {
+				partBuffer = upload.takeBuffer();
+				
+				// Once an archive's full, whatever's read next, if anything, goes in another
+				Archive nextArchive = archive;
+				if (archive.parts == maxArchiveParts) {
+					nextArchive = new Archive(archiveDesc + "." + archives.size(), currentPosition, destinations.size());
+				}
+				
 				TreeHashMessageDigest partHash = new TreeHashMessageDigest(MessageDigest.getInstance("SHA-256"));
 				
+				// Requests signed without the SDK need the body's plain SHA-256 up front
+				MessageDigest linearHash = linear ? MessageDigest.getInstance("SHA-256") : null;
+				long hashingTime = 0;
+				
+				BufferingEvent bufferingEvent = new BufferingEvent();
+				bufferingEvent.begin();
+				
 				// Fill up the buffer
 				try (
-						OutputStream bufferOut = this.buffer.getOutputStream();
-						OutputStream observedOut = new ObservedOutputStream(bufferOut, new BufferingObserver(this.observer, partId));
-						DigestOutputStream out = new DigestOutputStream(observedOut, partHash);
+						OutputStream bufferOut = partBuffer.getOutputStream();
+						OutputStream out = new ObservedOutputStream(bufferOut, new BufferingObserver(this.observer, partId));
 				) {
 					int read = 0;
-					while (this.buffer.getRemaining() > 0 && (read = in.read(buffer, 0, (int)Math.min(this.buffer.getRemaining(), buffer.length))) >= 0) {
+					long readStart = System.nanoTime();
+					while (partBuffer.getRemaining() > 0 && (read = in.read(buffer, 0, (int)Math.min(partBuffer.getRemaining(), buffer.length))) >= 0) {
+						long hashStart = System.nanoTime();
+						this.profiler.add(Stage.UPSTREAM, hashStart - readStart);
+						
+						nextArchive.treeHash.update(buffer, 0, read);
+						partHash.update(buffer, 0, read);
+						if (linearHash != null) {
+							linearHash.update(buffer, 0, read);
+						}
+						
+						long copyStart = System.nanoTime();
+						hashingTime += copyStart - hashStart;
+						this.profiler.add(Stage.HASHING, copyStart - hashStart);
+						
 						out.write(buffer, 0, read);
+						
+						// An archive that rolled over can't be small enough for one request, so it's initiated right away
+						if (!nextArchive.isInitiated() && (partId > 0 || partBuffer.getRemaining() <= this.partSize / 2)) {
+							upload.initiateInBackground(nextArchive, this.partSize);
+						}
+						
+						readStart = System.nanoTime();
+						this.profiler.add(Stage.BUFFERING, readStart - copyStart);
 					}
+					this.profiler.add(Stage.UPSTREAM, System.nanoTime() - readStart);
 				}
 				
-				currentPosition += this.buffer.getLength();
+				if (bufferingEvent.shouldCommit()) {
+					bufferingEvent.partId = partId;
+					bufferingEvent.bytes = partBuffer.getLength();
+					bufferingEvent.commit();
+				}
+				
+				currentPosition += partBuffer.getLength();
 				
 				// If we read zero bytes, we reached the end of the stream.  Break.
-				if (this.buffer.getLength() == 0) {
+				if (partBuffer.getLength() == 0) {
+					upload.releaseBuffer(partBuffer);
 					break;
 				}
 				
+				if (nextArchive != archive) {
+					// Fail before uploading a part Glacier won't take, rather than after
+					if (this.rolloverParts == 0) {
+						throw new IOException("input is larger than the " + MAX_PARTS + " parts of " + StringFormat.toHumanReadableDataSize(this.partSize) + " a multipart upload can have");
+					}
+					
+					// Complete the full archive once its last parts are uploaded, without holding up the next
+					completions.add(this.completeInBackground(upload, archive));
+					archive = nextArchive;
+					archives.add(archive);
+				} else if (this.rolloverParts == 0 && archive.parts == PART_LIMIT_WARNING) {
+					this.observer.approachingPartLimit(partId, MAX_PARTS, this.partSize);
+				}
+				
+				full = partBuffer.getRemaining() == 0;
+				boolean wholeArchive = partId == 0 && !full;
+				
 				// Report the Tree Hash of this chunk
+				TreeHashEvent treeHashEvent = new TreeHashEvent();
+				treeHashEvent.begin();
+				
 				byte[] byteChecksum = partHash.digest();
 				String checksum = BinaryUtils.toHex(byteChecksum);
+				
+				if (treeHashEvent.shouldCommit()) {
+					treeHashEvent.partId = partId;
+					treeHashEvent.bytes = partBuffer.getLength();
+					treeHashEvent.hashingTime = hashingTime;
+					treeHashEvent.treeHash = checksum;
+					treeHashEvent.commit();
+				}
+				
 				this.observer.computedTreeHash(partId, byteChecksum);
 
-				// Try to upload this chunk
-				int attempts = 0;
-				do {
-					try (
-							InputStream bufferIn = this.buffer.getInputStream();
-							
-							// KLUDGE: Throttling really belongs closer to EntitySerializer.serialize(), but there
-							// wasn't an easy hook for it.  Throttling on input would work well enough, but
-							// client.uploadMultipartPart() calculates a SHA-256 checksum on the request before it
-							// sends it, then calls reset() on the stream.  Because we know this, don't throttle until
-							// reset() has been called at least once.
-							InputStream throttledIn = this.throttlingStrategy == null ? bufferIn : new ThrottledInputStream(bufferIn, this.throttlingStrategy) {
-								private long resets = 0;
-								
-								@Override
-								public void setBytesPerSecond() {
-									if (this.resets > 0) {
-										super.setBytesPerSecond();
-									}
-								}
-								
-								@Override
-								protected long getMaxRead(long currentTime) {
-									return this.resets > 0 ? super.getMaxRead(currentTime) : Long.MAX_VALUE;
-								}
-								
-								@Override
-								public synchronized void reset() throws IOException {
-									super.reset();
-									this.resets++;
-								}
-							};
-							
-							InputStream observedIn = new ObservedInputStream(throttledIn, new UploadObserver(this.observer, partId));
-					) {
-
-						UploadMultipartPartRequest partRequest = new UploadMultipartPartRequest().
-								withVaultName(vaultName).
-								withBody(observedIn).
-								withChecksum(checksum).
-								withRange(String.format("bytes %d-%d/*", currentPosition - this.buffer.getLength(), currentPosition - 1)).
-								withUploadId(uploadId).
-								withAccountId("-");
-
-						UploadMultipartPartResult partResult = client.uploadMultipartPart(partRequest);
-
-						if (!Arrays.equals(BinaryUtils.fromHex(partResult.getChecksum()), byteChecksum)) {
-							throw new AmazonClientException("Checksum mismatch");
-						}
-
-						break;
-					} catch (AmazonClientException e) {
-						attempts++;
-						observer.exceptionUploadingPart(partId, e, attempts, attempts < this.maxRetries);
-
-						if (attempts >= this.maxRetries) {
-							throw new IOException("Failed to upload after " + attempts + " attempts", e);
-						}
-					} catch (IOException e) {
-						attempts++;
-						observer.exceptionUploadingPart(partId, e, attempts, attempts < this.maxRetries);
-
-						if (attempts >= this.maxRetries) {
-							throw new IOException("Failed to upload after " + attempts + " attempts", e);
-						}
+				String linearChecksum = linearHash != null ? BinaryUtils.toHex(linearHash.digest()) : null;
+				
+				// The input ended before the first part filled up, so it's the whole archive
+				if (wholeArchive) {
+					List<PartUpload> archiveUploads = upload.createParts(archive, partBuffer, partId, null, checksum, byteChecksum, linearChecksum);
+					upload.start(archiveUploads);
+					upload.awaitParts();
+					
+					byte[] archiveHash = archive.treeHash.digest();
+					for (PartUpload archiveUpload : archiveUploads) {
+						archiveUpload.getDestination().uploaded(archiveHash, archive.size, archiveUpload.location);
 					}
-
-					try {
-						long sleepingFor = 1000 * (attempts < 15 ? (long)Math.pow(1.5, attempts) : 300);
-						this.observer.sleepingBeforeRetry(sleepingFor);
-						Thread.sleep(sleepingFor);
-					} catch (InterruptedException e) {
-						throw new IOException("Upload interrupted", e);
+					
+					// Initiated past half a part, and not needed after all
+					if (archive.isInitiated()) {
+						upload.abort(archive);
 					}
-				} while (true);
-
+					return this.done(archive.description, destinations);
+				}
+				
+				upload.awaitInitiated(archive, this.partSize);
+				
+				// Upload this chunk in the background and move on to the next
+				long partStart = currentPosition - partBuffer.getLength() - archive.offset;
+				String range = String.format("bytes %d-%d/*", partStart, partStart + partBuffer.getLength() - 1);
+				upload.start(upload.createParts(archive, partBuffer, partId, range, checksum, byteChecksum, linearChecksum));
+				
+				this.observer.profileUpdated(this.profiler.getProfile());
 				partId++;
-			} while (this.buffer.getRemaining() == 0);
-
-			byte[] complateHash = completeHash.digest();
-
-			CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest().
-					withVaultName(vaultName).
-					withUploadId(uploadId).
-					withChecksum(BinaryUtils.toHex(complateHash)).
-					withArchiveSize(Long.toString(currentPosition));
-
-			CompleteMultipartUploadResult compResult = client.completeMultipartUpload(compRequest);
-			String location = compResult.getLocation();
+			} while (full);
+			
+			upload.awaitParts();
+			
+			// Empty input
+			upload.awaitInitiated(archive, this.partSize);
 
-			this.observer.done(complateHash, location);
-			return location;
+			upload.complete(archive);
+			
+			if (archives.size() == 1) {
+				for (int i = 0; i < destinations.size(); i++) {
+					destinations.get(i).uploaded(archive.checksum, archive.size, archive.locations[i]);
+				}
+				return this.done(archive.description, destinations);
+			}
+			
+			for (Future<?> completion : completions) {
+				awaitCompletion(completion);
+			}
+			for (String location : archive.locations) {
+				this.observer.archiveCompleted(archive.description, archive.size, location);
+			}
+			
+			// The stream rolled over; the manifest's the last archive, and how the others are found.  The archives have
+			// different locations in each destination, so each gets a manifest of its own.
+			Archive manifestArchive = null;
+			for (int i = 0; i < destinations.size(); i++) {
+				Manifest manifest = new Manifest(archiveDesc, this.partSize);
+				for (Archive rolled : archives) {
+					manifest.add(rolled.description, rolled.locations[i], rolled.offset, rolled.size, BinaryUtils.toHex(rolled.checksum));
+				}
+				
+				manifestArchive = new Archive(archiveDesc + ".manifest", 0, destinations.size());
+				PartUpload manifestUpload = this.createManifestUpload(upload, manifestArchive, i, manifest, partId);
+				upload.start(Collections.singletonList(manifestUpload));
+				upload.awaitParts();
+				
+				destinations.get(i).uploaded(manifestUpload.byteChecksum, manifestArchive.size, manifestUpload.location);
+			}
+			return this.done(manifestArchive.description, destinations);
 
 		} catch (IOException e) {
 			this.observer.fatalException(e);
@@ -232,6 +518,1421 @@ public class GlacierPipe {
 			throw e;
 		} catch (NoSuchAlgorithmException e) {
 			throw new RuntimeException("SHA-256 not available", e);
+		} finally {
+			// Abandon whatever's still running after a failure
+			partExecutor.shutdownNow();
+			if (upload != null) {
+				upload.abandonNioParts();
+			}
+			for (Future<?> completion : completions) {
+				completion.cancel(true);
+			}
+		}
+	}
+	
+	/**
+	 * Waits for an archive's parts to be uploaded, then completes it, on {@link #uploadExecutor}.  If it can't be
+	 * completed, the whole upload fails.
+	 */
+	protected Future<?> completeInBackground(final Upload upload, final Archive archive) {
+		return this.uploadExecutor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				try {
+					upload.awaitArchive(archive);
+					upload.complete(archive);
+				} catch (IOException e) {
+					upload.fail(e);
+					throw e;
+				} catch (AmazonClientException e) {
+					IOException failure = new IOException("Failed to complete " + archive.description, e);
+					upload.fail(failure);
+					throw failure;
+				}
+				
+				for (String location : archive.locations) {
+					GlacierPipe.this.observer.archiveCompleted(archive.description, archive.size, location);
+				}
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Reports an upload done once every destination has its archive, the first last, since it's the one the observer
+	 * saw uploaded.
+	 * 
+	 * @return where each destination's archive was created
+	 */
+	protected List<String> done(String description, List<Destination> destinations) {
+		Destination first = destinations.get(0);
+		this.archiveDescription = description;
+		this.archiveTreeHash = first.archiveTreeHash;
+		this.archiveSize = first.archiveSize;
+		
+		List<String> locations = new ArrayList<String>(destinations.size());
+		for (Destination destination : destinations) {
+			locations.add(destination.location);
+		}
+		
+		this.observer.profileUpdated(this.profiler.getProfile());
+		for (Destination destination : destinations.subList(1, destinations.size())) {
+			this.observer.archiveCompleted(description, destination.archiveSize, destination.location);
+		}
+		this.observer.done(first.archiveTreeHash, first.location);
+		return locations;
+	}
+	
+	protected static void awaitCompletion(Future<?> completion) throws IOException {
+		try {
+			completion.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Upload interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Buffers {@code manifest} to be uploaded as a whole archive to one destination, the same way as a small input.
+	 */
+	protected PartUpload createManifestUpload(Upload upload, Archive archive, int destination, Manifest manifest, int partId) throws IOException, NoSuchAlgorithmException {
+		ByteArrayOutputStream manifestOut = new ByteArrayOutputStream();
+		manifest.write(manifestOut);
+		byte[] bytes = manifestOut.toByteArray();
+		
+		if (bytes.length > this.partSize) {
+			throw new IOException("the manifest of " + manifest.getArchives().size() + " archives is larger than a part");
+		}
+		
+		IOBuffer partBuffer = upload.takeBuffer();
+		try (OutputStream out = partBuffer.getOutputStream()) {
+			out.write(bytes);
+		}
+		
+		archive.treeHash.update(bytes);
+		archive.checksum = archive.treeHash.digest();
+		archive.size = bytes.length;
+		
+		String linearChecksum = upload.destinations.get(destination).nioClient != null ? BinaryUtils.toHex(MessageDigest.getInstance("SHA-256").digest(bytes)) : null;
+		return new PartUpload(upload, archive, destination, partBuffer, new AtomicInteger(1), partId, null, BinaryUtils.toHex(archive.checksum), archive.checksum, linearChecksum);
+	}
+	
+	/**
+	 * One archive the input's uploaded to.  There's only more than one if the input rolls over.  Its multipart upload
+	 * isn't initiated until it's sure to have parts, and then in the background.  It's created in every destination, with an upload ID and
+	 * location in each.
+	 */
+	protected class Archive {
+		
+		protected final String description;
+		protected final long offset;
+		protected final TreeHashMessageDigest treeHash;
+		
+		/**
+		 * Set by the initiation before the reader hands out the archive's first part
+		 */
+		protected final String[] uploadIds;
+		
+		/**
+		 * The multipart upload being initiated, once it's been started; only touched by the reader
+		 */
+		protected Future<?> initiation;
+		
+		/**
+		 * Only touched by the reader, until the archive's completed
+		 */
+		protected int parts = 0;
+		protected long size = 0;
+		
+		/**
+		 * Parts started but not yet uploaded; guarded by the {@link Upload}
+		 */
+		protected int pendingParts = 0;
+		
+		protected volatile byte[] checksum;
+		
+		/**
+		 * Set once the archive's completed
+		 */
+		protected final String[] locations;
+		
+		/**
+		 * @param offset where in the input the archive starts
+		 */
+		protected Archive(String description, long offset, int destinations) throws NoSuchAlgorithmException {
+			this.description = description;
+			this.offset = offset;
+			this.treeHash = new TreeHashMessageDigest(MessageDigest.getInstance("SHA-256"));
+			this.uploadIds = new String[destinations];
+			this.locations = new String[destinations];
+		}
+		
+		/**
+		 * @return whether the multipart upload's been started initiating, if not necessarily finished
+		 */
+		protected boolean isInitiated() {
+			return this.initiation != null;
+		}
+	}
+	
+	/**
+	 * A vault the input's uploaded to, with the client, throttling and retry state its requests use, and once
+	 * {@link GlacierPipe#pipe} succeeds, what it uploaded there.
+	 */
+	public static class Destination {
+		
+		protected final AmazonGlacierClient client;
+		protected final GlacierNioClient nioClient;
+		protected final String vaultName;
+		protected final RetryScheduler retryScheduler;
+		protected final Pacer pacer;
+		protected final RequestRateController requestRateController;
+		
+		protected volatile byte[] archiveTreeHash;
+		protected volatile long archiveSize = -1;
+		protected volatile String location;
+		
+		protected Destination(AmazonGlacierClient client, GlacierNioClient nioClient, String vaultName, RetryScheduler retryScheduler, Pacer pacer, RequestRateController requestRateController) {
+			this.client = Objects.requireNonNull(client, "client was null");
+			this.nioClient = nioClient;
+			this.vaultName = Objects.requireNonNull(vaultName, "vaultName was null");
+			this.retryScheduler = Objects.requireNonNull(retryScheduler, "retryScheduler was null");
+			this.pacer = pacer;
+			this.requestRateController = requestRateController;
+		}
+		
+		public String getVaultName() {
+			return this.vaultName;
+		}
+		
+		public RequestRateController getRequestRateController() {
+			return this.requestRateController;
+		}
+		
+		/**
+		 * @return the tree hash of the archive, or if it rolled over, of the manifest, the most recent call to
+		 * {@link GlacierPipe#pipe} uploaded here; null until one succeeds
+		 */
+		public byte[] getArchiveTreeHash() {
+			return this.archiveTreeHash;
+		}
+		
+		/**
+		 * @return the size of the archive, or if it rolled over, of the manifest, the most recent call to
+		 * {@link GlacierPipe#pipe} uploaded here
+		 */
+		public long getArchiveSize() {
+			return this.archiveSize;
+		}
+		
+		/**
+		 * @return where the archive, or if it rolled over, the manifest, the most recent call to
+		 * {@link GlacierPipe#pipe} uploaded here was created; null until one succeeds
+		 */
+		public String getLocation() {
+			return this.location;
+		}
+		
+		protected void uploaded(byte[] treeHash, long size, String location) {
+			this.archiveTreeHash = treeHash;
+			this.archiveSize = size;
+			this.location = location;
+		}
+		
+		@Override
+		public String toString() {
+			return this.vaultName;
+		}
+	}
+	
+	/**
+	 * The state of one call to {@link GlacierPipe#pipe} shared between the thread reading the input and the parts
+	 * being uploaded.  Parts hold a buffer until they've been uploaded, so the reader blocks when every buffer is in
+	 * flight.  Buffers are shared by every {@link Archive}, so the next archive's parts are read while the last
+	 * one's finish, and by every {@link Destination}, so a part's only read once however many it's uploaded to.
+	 */
+	protected class Upload {
+		
+		protected final List<Destination> destinations;
+		protected final Executor partExecutor;
+		
+		protected final Deque<IOBuffer> freeBuffers = new ArrayDeque<IOBuffer>(GlacierPipe.this.buffers);
+		protected final AtomicInteger waitingForRetry = new AtomicInteger();
+		protected IOException failure;
+		
+		// Parts being sent by a GlacierNioClient, which no thread is waiting on to interrupt
+		protected final Set<NioPartUpload> nioParts = Collections.newSetFromMap(new ConcurrentHashMap<NioPartUpload, Boolean>());
+		protected volatile boolean nioAbandoned = false;
+		
+		protected Upload(List<Destination> destinations, Executor partExecutor) {
+			this.destinations = destinations;
+			this.partExecutor = partExecutor;
+		}
+		
+		/**
+		 * Starts initiating an archive's multipart upload on {@link GlacierPipe#uploadExecutor}, so the round trip, and
+		 * the handshake if the client has no connection yet, overlap with reading the archive's first part rather than
+		 * hold it up.  Called by the reader.
+		 */
+		protected void initiateInBackground(final Archive archive, final long partSize) {
+			archive.initiation = GlacierPipe.this.uploadExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					Upload.this.initiate(archive, partSize);
+					return null;
+				}
+			});
+		}
+		
+		/**
+		 * Waits for an archive's upload IDs, initiating it now if that hasn't started.  Called by the reader before it
+		 * hands out the archive's first part.
+		 */
+		protected void awaitInitiated(Archive archive, long partSize) throws IOException {
+			if (!archive.isInitiated()) {
+				this.initiateInBackground(archive, partSize);
+			}
+			
+			try {
+				archive.initiation.get();
+			} catch (InterruptedException e) {
+				throw new IOException("Upload interrupted", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof AmazonClientException) {
+					throw (AmazonClientException)e.getCause();
+				}
+				throw new IOException(e.getCause());
+			}
+		}
+		
+		/**
+		 * Aborts an archive's multipart upload, once it's initiated, wherever it was.  It's only tidying up, so
+		 * failures are ignored; Glacier drops it after a day anyway.
+		 */
+		protected void abort(Archive archive) {
+			try {
+				archive.initiation.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				// Initiating failed in some destination; the others still need aborting
+			}
+			
+			for (int i = 0; i < this.destinations.size(); i++) {
+				if (archive.uploadIds[i] == null) {
+					continue;
+				}
+				
+				Destination destination = this.destinations.get(i);
+				try {
+					destination.client.abortMultipartUpload(new AbortMultipartUploadRequest().
+							withVaultName(destination.vaultName).
+							withUploadId(archive.uploadIds[i]));
+				} catch (AmazonClientException e) {
+					// Ignored
+				}
+			}
+		}
+		
+		/**
+		 * Creates an upload ID for an archive's multipart upload in every destination
+		 */
+		protected void initiate(Archive archive, long partSize) {
+			for (int i = 0; i < this.destinations.size(); i++) {
+				Destination destination = this.destinations.get(i);
+				InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest().
+						withVaultName(destination.vaultName).
+						withArchiveDescription(archive.description).
+						withPartSize(Long.toString(partSize));
+				
+				InitiateMultipartUploadResult result = destination.client.initiateMultipartUpload(request);
+				archive.uploadIds[i] = result.getUploadId();
+				
+				GlacierPipe.this.observer.gotUploadId(archive.uploadIds[i]);
+			}
+		}
+		
+		/**
+		 * Completes an archive's multipart upload in every destination.  Its parts must all have been uploaded.
+		 */
+		protected void complete(Archive archive) {
+			archive.checksum = archive.treeHash.digest();
+			
+			for (int i = 0; i < this.destinations.size(); i++) {
+				Destination destination = this.destinations.get(i);
+				CompleteMultipartUploadRequest request = new CompleteMultipartUploadRequest().
+						withVaultName(destination.vaultName).
+						withUploadId(archive.uploadIds[i]).
+						withChecksum(BinaryUtils.toHex(archive.checksum)).
+						withArchiveSize(Long.toString(archive.size));
+				
+				CompleteMultipartUploadResult result = destination.client.completeMultipartUpload(request);
+				archive.locations[i] = result.getLocation();
+			}
+		}
+		
+		/**
+		 * Creates an upload of a buffered part to each destination, all holding its buffer until they're done.
+		 */
+		protected List<PartUpload> createParts(Archive archive, IOBuffer buffer, int partId, String range, String checksum, byte[] byteChecksum, String linearChecksum) {
+			AtomicInteger holders = new AtomicInteger(this.destinations.size());
+			
+			List<PartUpload> parts = new ArrayList<PartUpload>(this.destinations.size());
+			for (int i = 0; i < this.destinations.size(); i++) {
+				parts.add(new PartUpload(this, archive, i, buffer, holders, partId, range, checksum, byteChecksum, linearChecksum));
+			}
+			return parts;
+		}
+		
+		/**
+		 * Uploads a part to its destinations in the background.  Called by the reader.
+		 */
+		public void start(List<PartUpload> parts) {
+			PartUpload part = parts.get(0);
+			synchronized (this) {
+				part.archive.pendingParts++;
+			}
+			part.archive.parts++;
+			part.archive.size += part.buffer.getLength();
+			
+			for (PartUpload destinationPart : parts) {
+				destinationPart.dispatch();
+			}
+		}
+		
+		/**
+		 * Frees a part's buffer once it's been uploaded to every destination.
+		 */
+		public synchronized void partUploaded(PartUpload part) {
+			part.archive.pendingParts--;
+			this.releaseBuffer(part.buffer);
+		}
+		
+		public synchronized IOBuffer takeBuffer() throws IOException {
+			while (this.freeBuffers.isEmpty() || this.getPartsInFlight() >= this.getMaxPartsInFlight()) {
+				this.waitForParts();
+			}
+			
+			this.checkFailure();
+			return this.freeBuffers.pop();
+		}
+		
+		public synchronized void releaseBuffer(IOBuffer buffer) {
+			this.freeBuffers.push(buffer);
+			this.notifyAll();
+		}
+		
+		public synchronized void awaitParts() throws IOException {
+			while (this.freeBuffers.size() < GlacierPipe.this.buffers.size()) {
+				this.waitForParts();
+			}
+			
+			this.checkFailure();
+		}
+		
+		/**
+		 * Waits for all of an archive's parts to be uploaded.  Unlike {@link #awaitParts}, it's called from the
+		 * background, so the time isn't charged to the profile.
+		 */
+		public synchronized void awaitArchive(Archive archive) throws IOException {
+			while (archive.pendingParts > 0) {
+				this.checkFailure();
+				try {
+					this.wait(100);
+				} catch (InterruptedException e) {
+					throw new IOException("Upload interrupted", e);
+				}
+			}
+			
+			this.checkFailure();
+		}
+		
+		protected int getPartsInFlight() {
+			return GlacierPipe.this.buffers.size() - this.freeBuffers.size();
+		}
+		
+		protected int getMaxPartsInFlight() {
+			ConcurrencyTuner tuner = GlacierPipe.this.concurrencyTuner;
+			return tuner != null ? tuner.getParts() : GlacierPipe.this.buffers.size();
+		}
+		
+		public synchronized void fail(IOException e) {
+			if (this.failure == null) {
+				this.failure = e;
+			}
+			this.notifyAll();
+		}
+		
+		public synchronized boolean isFailed() {
+			return this.failure != null;
+		}
+		
+		/**
+		 * Abandons the parts still being sent by {@link GlacierNioClient}s, and any retried later, once
+		 * {@link GlacierPipe#pipe} has given up.
+		 */
+		public void abandonNioParts() {
+			this.nioAbandoned = true;
+			for (NioPartUpload part : this.nioParts) {
+				part.abandon();
+			}
+		}
+		
+		protected void checkFailure() throws IOException {
+			if (this.failure != null) {
+				throw this.failure;
+			}
+		}
+		
+		/**
+		 * Waits a little while for a part to finish, charging the time to whatever's holding the parts up.
+		 */
+		protected void waitForParts() throws IOException {
+			this.checkFailure();
+			
+			Stage stage;
+			if (this.waitingForRetry.get() > 0) {
+				stage = Stage.RETRY_SLEEP;
+			} else if (this.isThrottled()) {
+				stage = Stage.THROTTLING;
+			} else {
+				stage = Stage.UPLOADING;
+			}
+			
+			long waitStart = System.nanoTime();
+			try {
+				this.wait(100);
+			} catch (InterruptedException e) {
+				throw new IOException("Upload interrupted", e);
+			} finally {
+				GlacierPipe.this.profiler.add(stage, System.nanoTime() - waitStart);
+			}
+		}
+		
+		protected boolean isThrottled() {
+			for (Destination destination : this.destinations) {
+				if ((destination.pacer != null && destination.pacer.getWaiting() > 0) || destination.requestRateController.getWaiting() > 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Uploads a part to one destination, scheduling itself to run again after a failure rather than holding up the
+	 * reader.  Retries are held back by the destination's {@link RetryScheduler}'s budget and circuit breaker.  A part
+	 * with no range is the whole archive, and is uploaded with a single UploadArchive request instead.
+	 */
+	protected class PartUpload implements Runnable {
+		
+		protected final Upload upload;
+		protected final Archive archive;
+		protected final int destination;
+		protected final IOBuffer buffer;
+		
+		/**
+		 * How many of the part's uploads, one per destination, haven't finished with the buffer; shared by them all
+		 */
+		protected final AtomicInteger holders;
+		protected final int partId;
+		protected final String range;
+		protected final String checksum;
+		protected final byte[] byteChecksum;
+		protected final String linearChecksum;
+		
+		/**
+		 * Where the archive was created, once a whole-archive upload succeeds
+		 */
+		protected volatile String location;
+		
+		protected int attempts = 0;
+		protected long lastDelay = 0;
+		protected RetrySleepEvent retrySleepEvent;
+		
+		protected PartUpload(Upload upload, Archive archive, int destination, IOBuffer buffer, AtomicInteger holders, int partId, String range, String checksum, byte[] byteChecksum, String linearChecksum) {
+			this.upload = upload;
+			this.archive = archive;
+			this.destination = destination;
+			this.buffer = buffer;
+			this.holders = holders;
+			this.partId = partId;
+			this.range = range;
+			this.checksum = checksum;
+			this.byteChecksum = byteChecksum;
+			this.linearChecksum = linearChecksum;
+		}
+		
+		protected Destination getDestination() {
+			return this.upload.destinations.get(this.destination);
+		}
+		
+		protected String getUploadId() {
+			return this.archive.uploadIds[this.destination];
+		}
+		
+		/**
+		 * Lets go of the buffer, freeing it if every other destination already has.
+		 */
+		protected void abandon() {
+			if (this.holders.decrementAndGet() == 0) {
+				this.upload.releaseBuffer(this.buffer);
+			}
+		}
+		
+		@Override
+		public void run() {
+			if (this.retrySleepEvent != null) {
+				this.upload.waitingForRetry.decrementAndGet();
+				
+				if (this.retrySleepEvent.shouldCommit()) {
+					this.retrySleepEvent.partId = this.partId;
+					this.retrySleepEvent.attempt = this.attempts;
+					this.retrySleepEvent.commit();
+				}
+				this.retrySleepEvent = null;
+			}
+			
+			if (this.upload.isFailed()) {
+				this.abandon();
+				return;
+			}
+			
+			// Everyone waits while the circuit breaker is open
+			RetryScheduler retryScheduler = this.getDestination().retryScheduler;
+			long wait = retryScheduler.admit();
+			if (wait > 0) {
+				this.schedule(wait);
+				return;
+			}
+			
+			PartUploadEvent uploadEvent = new PartUploadEvent();
+			uploadEvent.begin();
+			
+			try {
+				// Nothing waits on a request sent by a GlacierNioClient; its callbacks finish the part
+				if (this.getDestination().nioClient != null) {
+					new NioPartUpload(this, uploadEvent).start();
+					return;
+				}
+				
+				GlacierPipe.this.uploadPart(this);
+				this.uploaded(uploadEvent);
+			} catch (AmazonClientException e) {
+				this.failed(e, uploadEvent);
+			} catch (IOException e) {
+				this.failed(e, uploadEvent);
+			} catch (RuntimeException | Error e) {
+				this.upload.fail(new IOException("Unexpected failure uploading part " + this.partId, e));
+				throw e;
+			}
+		}
+		
+		/**
+		 * Runs the part on the upload's part threads, or, if its destination has a {@link GlacierNioClient}, on its
+		 * {@link RetryScheduler}'s thread, since all it does there is start a request.
+		 */
+		protected void dispatch() {
+			if (this.getDestination().nioClient != null) {
+				this.getDestination().retryScheduler.schedule(this, 0);
+			} else {
+				this.upload.partExecutor.execute(this);
+			}
+		}
+		
+		protected void uploaded(PartUploadEvent uploadEvent) {
+			uploadEvent.succeeded = true;
+			this.commit(uploadEvent);
+			
+			this.getDestination().retryScheduler.recordSuccess();
+			
+			// The part's only uploaded, and its buffer free, once the last destination has it
+			if (this.holders.decrementAndGet() == 0) {
+				ConcurrencyTuner tuner = GlacierPipe.this.concurrencyTuner;
+				if (tuner != null && tuner.partUploaded(this.buffer.getLength())) {
+					GlacierPipe.this.observer.parallelPartsChanged(tuner.getParts(), tuner.getGoodput());
+				}
+				
+				this.upload.partUploaded(this);
+			}
+		}
+		
+		protected void failed(Exception e, PartUploadEvent uploadEvent) {
+			uploadEvent.exception = e.toString();
+			this.commit(uploadEvent);
+			this.failed(e);
+		}
+		
+		protected void commit(PartUploadEvent uploadEvent) {
+			if (uploadEvent.shouldCommit()) {
+				uploadEvent.partId = this.partId;
+				uploadEvent.attempt = this.attempts;
+				uploadEvent.range = this.range;
+				uploadEvent.bytes = this.buffer.getLength();
+				uploadEvent.commit();
+			}
+		}
+		
+		protected void failed(Exception e) {
+			// Interrupted because another part already failed
+			if (this.upload.isFailed()) {
+				this.abandon();
+				return;
+			}
+			
+			this.attempts++;
+			
+			RetryScheduler retryScheduler = this.getDestination().retryScheduler;
+			ErrorType errorType = RetryScheduler.classify(e);
+			retryScheduler.recordFailure(errorType);
+			
+			// Say which destination failed, if there's more than one
+			String failedTo = this.upload.destinations.size() > 1 ? "Failed to upload to " + this.getDestination() : "Failed to upload";
+			
+			String abortReason = null;
+			if (!errorType.retryable) {
+				abortReason = failedTo + " after " + this.attempts + " attempts; the request was rejected";
+			} else if (this.attempts >= GlacierPipe.this.maxRetries) {
+				abortReason = failedTo + " after " + this.attempts + " attempts";
+			} else if (!retryScheduler.tryAcquireRetry()) {
+				abortReason = failedTo + " after " + this.attempts + " attempts; retry budget exhausted";
+			}
+			
+			GlacierPipe.this.observer.exceptionUploadingPart(this.partId, e, this.attempts, abortReason == null);
+			
+			if (abortReason != null) {
+				this.upload.fail(new IOException(abortReason, e));
+				this.abandon();
+				return;
+			}
+			
+			// A stalled connection was abandoned, not refused; there's no reason to back off
+			if (errorType == ErrorType.STALLED) {
+				this.dispatch();
+				return;
+			}
+			
+			this.lastDelay = retryScheduler.nextDelay(this.lastDelay);
+			GlacierPipe.this.observer.sleepingBeforeRetry(this.partId, this.lastDelay);
+			this.schedule(this.lastDelay);
+		}
+		
+		protected void schedule(long delay) {
+			this.retrySleepEvent = new RetrySleepEvent();
+			this.retrySleepEvent.begin();
+			this.upload.waitingForRetry.incrementAndGet();
+			
+			this.getDestination().retryScheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						PartUpload.this.dispatch();
+					} catch (RejectedExecutionException e) {
+						// pipe() already gave up
+						PartUpload.this.upload.waitingForRetry.decrementAndGet();
+					}
+				}
+			}, delay);
+		}
+	}
+
+	/**
+	 * One round of attempts at uploading a part to a destination with a {@link GlacierNioClient}, like
+	 * {@link GlacierPipe#uploadPart} makes, but without a thread waiting on it.  The engine's I/O threads finish each
+	 * request, and the rest, from waiting on the destination's {@link RequestRateController} to hedging and handling
+	 * the outcome, runs on the destination's {@link RetryScheduler}'s thread.  The part's finished with
+	 * {@link PartUpload#uploaded} or {@link PartUpload#failed}.
+	 */
+	protected class NioPartUpload {
+		
+		protected final PartUpload part;
+		protected final PartUploadEvent uploadEvent;
+		protected final RetryScheduler retryScheduler;
+		protected final RequestRateController requestRateController;
+		protected final BlockingQueue<PartAttempt> completed = new LinkedBlockingQueue<PartAttempt>();
+		
+		// Only the first destination's uploads report progress, or the observer would count each part once per destination
+		protected final boolean observed;
+		
+		protected PartAttempt primary;
+		protected PartAttempt hedge;
+		protected int running = 0;
+		protected boolean waiting = false;
+		protected boolean finished = false;
+		
+		/**
+		 * Run on the engine's I/O threads as each attempt finishes, so it mustn't do more than hand the attempt off
+		 */
+		protected final Runnable whenDone = new Runnable() {
+			@Override
+			public void run() {
+				NioPartUpload.this.schedule(new Runnable() {
+					@Override
+					public void run() {
+						NioPartUpload.this.attemptDone();
+					}
+				}, 0);
+			}
+		};
+		
+		protected NioPartUpload(PartUpload part, PartUploadEvent uploadEvent) {
+			this.part = part;
+			this.uploadEvent = uploadEvent;
+			this.retryScheduler = part.getDestination().retryScheduler;
+			this.requestRateController = part.getDestination().requestRateController;
+			this.observed = part.destination == 0;
+		}
+		
+		public void start() {
+			this.part.upload.nioParts.add(this);
+			this.acquire();
+		}
+		
+		/**
+		 * Abandons the part, e.g. because another one failed.
+		 */
+		public void abandon() {
+			synchronized (this) {
+				if (this.finished) {
+					return;
+				}
+				this.finished = true;
+				this.stopWaiting();
+			}
+			
+			this.close();
+			this.part.abandon();
+		}
+		
+		/**
+		 * Sends the first request once the destination's {@link RequestRateController} allows it, checking back every
+		 * {@link GlacierPipe#PERMIT_POLL_INTERVAL} ms until then.
+		 */
+		protected void acquire() {
+			if (this.part.upload.isFailed() || this.part.upload.nioAbandoned) {
+				this.abandon();
+				return;
+			}
+			
+			synchronized (this) {
+				if (this.finished) {
+					return;
+				}
+				
+				long permit = this.requestRateController.tryAcquire();
+				if (permit == -1) {
+					if (!this.waiting) {
+						this.waiting = true;
+						this.requestRateController.startWaiting();
+					}
+					
+					this.schedule(new Runnable() {
+						@Override
+						public void run() {
+							NioPartUpload.this.acquire();
+						}
+					}, PERMIT_POLL_INTERVAL);
+					return;
+				}
+				this.stopWaiting();
+				
+				this.primary = GlacierPipe.this.startNioAttempt(this.part, permit, this.observed, this.completed, this.whenDone);
+				this.running++;
+			}
+			
+			// Hedging a whole archive would create it twice
+			HedgingPolicy hedgingPolicy = GlacierPipe.this.hedgingPolicy;
+			long hedgeDelay = hedgingPolicy != null && this.part.range != null ? hedgingPolicy.getHedgeDelay(this.part.buffer.getLength()) : -1;
+			if (hedgeDelay >= 0) {
+				this.schedule(new Runnable() {
+					@Override
+					public void run() {
+						NioPartUpload.this.hedge();
+					}
+				}, TimeUnit.NANOSECONDS.toMillis(hedgeDelay));
+			}
+		}
+		
+		/**
+		 * Starts a duplicate request if the first is still running, but only if it wouldn't have to wait to.
+		 */
+		protected synchronized void hedge() {
+			if (this.finished || this.primary.isDone()) {
+				return;
+			}
+			
+			long permit = this.requestRateController.tryAcquire();
+			if (permit == -1) {
+				return;
+			}
+			
+			GlacierPipe.this.observer.hedgingPartUpload(this.part.partId, (System.nanoTime() - this.primary.start) / 1000000);
+			this.hedge = GlacierPipe.this.startNioAttempt(this.part, permit, false, this.completed, this.whenDone);
+			this.running++;
+		}
+		
+		/**
+		 * Handles attempts that have finished.  Whichever succeeds first wins; if one fails while the other's still
+		 * running, the other's waited on.
+		 */
+		protected void attemptDone() {
+			Exception failure = null;
+			synchronized (this) {
+				if (this.finished) {
+					return;
+				}
+				
+				PartAttempt done;
+				while (!this.finished && (done = this.completed.poll()) != null) {
+					this.running--;
+					
+					try {
+						UploadMultipartPartResult partResult;
+						try {
+							partResult = done.getResult();
+						} catch (AmazonClientException | IOException e) {
+							done.releasePermit(e);
+							throw e;
+						}
+						done.releasePermit(null);
+						
+						if (!Arrays.equals(BinaryUtils.fromHex(partResult.getChecksum()), this.part.byteChecksum)) {
+							throw new AmazonClientException("Checksum mismatch");
+						}
+						
+						if (GlacierPipe.this.hedgingPolicy != null) {
+							GlacierPipe.this.hedgingPolicy.record(this.part.buffer.getLength(), done.end - done.start);
+						}
+						
+						this.finished = true;
+					} catch (AmazonClientException | IOException e) {
+						if (this.running == 0) {
+							failure = e;
+							this.finished = true;
+						}
+					}
+				}
+				
+				if (!this.finished) {
+					return;
+				}
+			}
+			
+			// Abandon whichever request didn't finish
+			this.close();
+			
+			try {
+				if (failure == null) {
+					this.part.uploaded(this.uploadEvent);
+				} else {
+					this.part.failed(failure, this.uploadEvent);
+				}
+			} catch (RuntimeException | Error e) {
+				this.part.upload.fail(new IOException("Unexpected failure uploading part " + this.part.partId, e));
+				throw e;
+			}
+		}
+		
+		protected void close() {
+			this.part.upload.nioParts.remove(this);
+			
+			// Attempts sent by the engine have no body stream to fail closing
+			for (PartAttempt attempt : Arrays.asList(this.hedge, this.primary)) {
+				if (attempt != null) {
+					try {
+						attempt.close();
+					} catch (IOException e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+		}
+		
+		protected void stopWaiting() {
+			if (this.waiting) {
+				this.waiting = false;
+				this.requestRateController.stopWaiting();
+			}
+		}
+		
+		protected void schedule(Runnable task, long delay) {
+			try {
+				this.retryScheduler.schedule(task, delay);
+			} catch (RejectedExecutionException e) {
+				// The scheduler was closed after pipe() gave up
+			}
+		}
+	}
+	
+	/**
+	 * Makes a single attempt at uploading {@code part}.  The request runs on {@link #uploadExecutor} so that, if a {@link StallWatchdog} is in use, a stalled request can be
+	 * abandoned without waiting for the SDK to notice.  If a {@link HedgingPolicy} is in use and the request is a straggler, a duplicate
+	 * request is started on another connection; whichever succeeds first wins and the other is abandoned.  Requests
+	 * wait on the destination's {@link RequestRateController}, though a hedge is only made if it wouldn't have to.
+	 */
+	protected void uploadPart(PartUpload part) throws IOException {
+		long bytes = part.buffer.getLength();
+		RequestRateController requestRateController = part.getDestination().requestRateController;
+		BlockingQueue<PartAttempt> completed = new LinkedBlockingQueue<PartAttempt>();
+		PartAttempt primary = null;
+		PartAttempt hedge = null;
+		
+		// Only the first destination's uploads report progress, or the observer would count each part once per destination
+		boolean observed = part.destination == 0;
+		
+		try {
+			long permit = requestRateController.acquire();
+			primary = this.startAttempt(part, permit, observed, completed);
+			
+			// Hedging a whole archive would create it twice
+			long hedgeDelay = this.hedgingPolicy != null && part.range != null ? this.hedgingPolicy.getHedgeDelay(bytes) : -1;
+			int running = 1;
+			
+			while (running > 0) {
+				PartAttempt done;
+				
+				if (hedge == null && hedgeDelay >= 0) {
+					done = completed.poll(Math.max(0, hedgeDelay - (System.nanoTime() - primary.start)), TimeUnit.NANOSECONDS);
+					if (done == null) {
+						long hedgePermit = requestRateController.tryAcquire();
+						if (hedgePermit == -1) {
+							hedgeDelay = -1;
+							continue;
+						}
+						
+						this.observer.hedgingPartUpload(part.partId, (System.nanoTime() - primary.start) / 1000000);
+						hedge = this.startAttempt(part, hedgePermit, false, completed);
+						running++;
+						continue;
+					}
+				} else {
+					done = completed.take();
+				}
+				
+				running--;
+				
+				// If one request fails while the other's still running, wait on the other
+				try {
+					UploadMultipartPartResult partResult;
+					try {
+						partResult = done.getResult();
+					} catch (AmazonClientException e) {
+						done.releasePermit(e);
+						throw e;
+					} catch (IOException e) {
+						done.releasePermit(e);
+						throw e;
+					}
+					done.releasePermit(null);
+					
+					if (!Arrays.equals(BinaryUtils.fromHex(partResult.getChecksum()), part.byteChecksum)) {
+						throw new AmazonClientException("Checksum mismatch");
+					}
+					
+					if (this.hedgingPolicy != null) {
+						this.hedgingPolicy.record(bytes, done.end - done.start);
+					}
+					
+					return;
+				} catch (AmazonClientException e) {
+					if (running == 0) {
+						throw e;
+					}
+				} catch (IOException e) {
+					if (running == 0) {
+						throw e;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Upload interrupted", e);
+		} finally {
+			// Abandon whichever request didn't finish and release the buffer
+			try {
+				if (hedge != null) {
+					hedge.close();
+				}
+			} finally {
+				if (primary != null) {
+					primary.close();
+				}
+			}
+		}
+	}
+	
+	protected PartAttempt startAttempt(PartUpload part, long permit, boolean observed, BlockingQueue<PartAttempt> completed) {
+		Destination destination = part.getDestination();
+		final PartAttempt partAttempt;
+		UploadArchiveRequest archiveRequest = null;
+		UploadMultipartPartRequest partRequest = null;
+		if (part.range == null) {
+			archiveRequest = new UploadArchiveRequest().
+					withVaultName(destination.vaultName).
+					withArchiveDescription(part.archive.description).
+					withChecksum(part.checksum).
+					withContentLength(part.buffer.getLength()).
+					withAccountId("-");
+			partAttempt = new PartAttempt(part, destination.client, archiveRequest, destination.requestRateController, permit, completed);
+		} else {
+			partRequest = new UploadMultipartPartRequest().
+					withVaultName(destination.vaultName).
+					withChecksum(part.checksum).
+					withRange(part.range).
+					withUploadId(part.getUploadId()).
+					withAccountId("-");
+			partAttempt = new PartAttempt(destination.client, partRequest, destination.requestRateController, permit, completed);
+		}
+		
+		InputStream bufferIn = new ChecksumPassInputStream(part.buffer.getInputStream(), part.partId, part.attempts);
+		
+		// Only one request per part reports progress, or the observer would count hedged bytes twice
+		InputStream observedIn = observed ? new ObservedInputStream(bufferIn, new UploadObserver(this.observer, part.partId)) : bufferIn;
+		
+		// On a stall, stop waiting on the request.  The watched stream fails any further reads, so the
+		// abandoned request can't send anything else.  The watch lasts until the attempt's done, since the end of the
+		// body can still be in the socket's send buffer once it's been read, and the response can still stall.
+		if (this.stallWatchdog != null) {
+			partAttempt.watch = this.stallWatchdog.watch(new Runnable() {
+				@Override
+				public void run() {
+					partAttempt.stalled = true;
+					partAttempt.cancel(true);
+				}
+			});
+			partAttempt.body = partAttempt.watch.wrap(observedIn);
+		} else {
+			partAttempt.body = observedIn;
+		}
+		
+		if (archiveRequest != null) {
+			archiveRequest.setBody(partAttempt.body);
+		} else {
+			partRequest.setBody(partAttempt.body);
+		}
+		this.uploadExecutor.execute(partAttempt);
+		
+		return partAttempt;
+	}
+	
+	/**
+	 * Starts an attempt on the part's destination's {@link GlacierNioClient}, which writes the buffer to the socket
+	 * without copying it through streams.  No thread waits on the request; the engine's I/O threads complete the
+	 * attempt, then run {@code whenDone}.
+	 */
+	protected PartAttempt startNioAttempt(final PartUpload part, long permit, final boolean observed, BlockingQueue<PartAttempt> completed, Runnable whenDone) {
+		Destination destination = part.getDestination();
+		final PartAttempt partAttempt = new PartAttempt(destination.requestRateController, permit, completed, whenDone);
+		
+		final StallWatchdog.Watch watch = this.stallWatchdog == null ? null : this.stallWatchdog.watch(new Runnable() {
+			@Override
+			public void run() {
+				partAttempt.stalled = true;
+				partAttempt.cancel(true);
+			}
+		});
+		
+		if (observed) {
+			this.observer.startPartUpload(part.partId);
+		}
+		
+		final Callback<UploadMultipartPartResult> callback = new Callback<UploadMultipartPartResult>() {
+			
+			// Progress is reported in batches, like ObservedInputStream does
+			protected long pending = 0;
+			protected long lastReport = System.currentTimeMillis();
+			
+			@Override
+			public void bytesSent(long bytes) {
+				if (watch != null && bytes > 0) {
+					watch.progress(bytes);
+				}
+				
+				if (observed) {
+					this.pending += bytes;
+					long now = System.currentTimeMillis();
+					if (now - this.lastReport >= 500) {
+						GlacierPipe.this.observer.partUploading(part.partId, this.pending);
+						this.pending = 0;
+						this.lastReport = now;
+					}
+				}
+			}
+			
+			@Override
+			public void completed(UploadMultipartPartResult result) {
+				this.finish();
+				partAttempt.complete(result);
+			}
+			
+			@Override
+			public void failed(Exception e) {
+				this.finish();
+				partAttempt.fail(e);
+			}
+			
+			protected void finish() {
+				if (watch != null) {
+					watch.close();
+				}
+				
+				if (observed) {
+					if (this.pending != 0) {
+						GlacierPipe.this.observer.partUploading(part.partId, this.pending);
+					}
+					GlacierPipe.this.observer.endPartUpload(part.partId);
+				}
+			}
+		};
+		
+		if (part.range == null) {
+			partAttempt.exchange = destination.nioClient.uploadArchive(destination.vaultName, part.archive.description, part.checksum, part.linearChecksum,
+					part.buffer.getByteBuffers(), new Callback<UploadArchiveResult>() {
+				@Override
+				public void bytesSent(long bytes) {
+					callback.bytesSent(bytes);
+				}
+				
+				@Override
+				public void completed(UploadArchiveResult result) {
+					part.location = result.getLocation();
+					callback.completed(new UploadMultipartPartResult().withChecksum(result.getChecksum()));
+				}
+				
+				@Override
+				public void failed(Exception e) {
+					callback.failed(e);
+				}
+			});
+		} else {
+			partAttempt.exchange = destination.nioClient.uploadMultipartPart(destination.vaultName, part.getUploadId(), part.range, part.checksum, part.linearChecksum,
+					part.buffer.getByteBuffers(), callback);
+		}
+		
+		// Cancelled before the exchange was set
+		if (partAttempt.isCancelled()) {
+			partAttempt.exchange.cancel();
+		}
+		
+		return partAttempt;
+	}
+	
+	/**
+	 * A single UploadMultipartPart request, either running on {@link GlacierPipe#uploadExecutor} or sent as an
+	 * {@link HttpEngine.Exchange}.  Adds itself to {@code completed} when it finishes, fails or is cancelled, then runs
+	 * {@code whenDone}, if it has one.
+	 */
+	protected class PartAttempt extends FutureTask<UploadMultipartPartResult> implements Closeable {
+		
+		protected final BlockingQueue<PartAttempt> completed;
+		protected final Runnable whenDone;
+		protected final long start = System.nanoTime();
+		protected volatile long end;
+		protected final RequestRateController requestRateController;
+		protected final long permit;
+		protected volatile boolean stalled = false;
+		protected boolean released = false;
+		protected InputStream body;
+		protected StallWatchdog.Watch watch;
+		protected volatile HttpEngine.Exchange exchange;
+		
+		protected PartAttempt(final AmazonGlacierClient client, final UploadMultipartPartRequest partRequest, RequestRateController requestRateController, long permit, BlockingQueue<PartAttempt> completed) {
+			super(new Callable<UploadMultipartPartResult>() {
+				@Override
+				public UploadMultipartPartResult call() {
+					return client.uploadMultipartPart(partRequest);
+				}
+			});
+			this.requestRateController = requestRateController;
+			this.permit = permit;
+			this.completed = Objects.requireNonNull(completed, "completed was null");
+			this.whenDone = null;
+		}
+		
+		/**
+		 * For a whole archive.  The result only carries the checksum, like a part's would; the archive's location is
+		 * left on {@code part}.
+		 */
+		protected PartAttempt(final PartUpload part, final AmazonGlacierClient client, final UploadArchiveRequest archiveRequest, RequestRateController requestRateController, long permit, BlockingQueue<PartAttempt> completed) {
+			super(new Callable<UploadMultipartPartResult>() {
+				@Override
+				public UploadMultipartPartResult call() {
+					UploadArchiveResult result = client.uploadArchive(archiveRequest);
+					part.location = result.getLocation();
+					return new UploadMultipartPartResult().withChecksum(result.getChecksum());
+				}
+			});
+			this.requestRateController = requestRateController;
+			this.permit = permit;
+			this.completed = Objects.requireNonNull(completed, "completed was null");
+			this.whenDone = null;
+		}
+		
+		/**
+		 * For attempts completed by {@link #complete} or {@link #fail} rather than by running.
+		 */
+		protected PartAttempt(RequestRateController requestRateController, long permit, BlockingQueue<PartAttempt> completed, Runnable whenDone) {
+			super(new Callable<UploadMultipartPartResult>() {
+				@Override
+				public UploadMultipartPartResult call() {
+					throw new IllegalStateException("attempt completes asynchronously");
+				}
+			});
+			this.requestRateController = requestRateController;
+			this.permit = permit;
+			this.completed = Objects.requireNonNull(completed, "completed was null");
+			this.whenDone = Objects.requireNonNull(whenDone, "whenDone was null");
+		}
+		
+		protected void complete(UploadMultipartPartResult result) {
+			this.set(result);
+		}
+		
+		protected void fail(Exception e) {
+			this.setException(e);
+		}
+		
+		/**
+		 * Returns this request's permit to its destination's {@link RequestRateController}, telling it how the request
+		 * went.
+		 * 
+		 * @param e why the request failed, or null if it succeeded
+		 */
+		public synchronized void releasePermit(Exception e) {
+			if (this.released) {
+				return;
+			}
+			this.released = true;
+			
+			RequestRateController controller = this.requestRateController;
+			boolean changed;
+			if (e == null) {
+				changed = controller.succeeded(this.permit);
+			} else if (RetryScheduler.classify(e) == ErrorType.THROTTLING) {
+				changed = controller.throttled(this.permit);
+			} else {
+				controller.failed(this.permit);
+				changed = false;
+			}
+			
+			if (changed) {
+				GlacierPipe.this.observer.requestLimitsChanged(controller.getConcurrencyLimit(), controller.getRequestsPerSecond());
+			}
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			
+			HttpEngine.Exchange exchange = this.exchange;
+			if (exchange != null) {
+				exchange.cancel();
+			}
+			return cancelled;
+		}
+		
+		@Override
+		protected void done() {
+			this.end = System.nanoTime();
+			if (this.watch != null) {
+				this.watch.close();
+			}
+			this.completed.add(this);
+			if (this.whenDone != null) {
+				this.whenDone.run();
+			}
+		}
+		
+		public UploadMultipartPartResult getResult() throws IOException {
+			try {
+				return this.get();
+			} catch (CancellationException e) {
+				if (this.stalled) {
+					throw new StalledException(GlacierPipe.this.stallWatchdog.getMinBytesPerSecond(), GlacierPipe.this.stallWatchdog.getTimeoutMillis());
+				} else {
+					throw new IOException("Upload cancelled", e);
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("Upload interrupted", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof AmazonClientException) {
+					throw (AmazonClientException)cause;
+				} else if (cause instanceof Error) {
+					throw (Error)cause;
+				} else if (cause instanceof IOException) {
+					throw (IOException)cause;
+				} else {
+					throw new IOException(cause);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.cancel(true);
+			this.releasePermit(new IOException("Upload abandoned"));
+			if (this.body != null) {
+				this.body.close();
+			}
+		}
+	}
+
+	/**
+	 * Records the first pass the SDK makes over the request body to compute its checksum, i.e. everything read before
+	 * the first call to {@link #reset()}.
+	 */
+	protected static class ChecksumPassInputStream extends FilterInputStream {
+		
+		protected final ChecksumPassEvent event = new ChecksumPassEvent();
+		protected final int partId;
+		protected final int attempt;
+		protected long firstPassBytes = 0;
+		protected boolean firstPass = true;
+		
+		protected ChecksumPassInputStream(InputStream in, int partId, int attempt) {
+			super(in);
+			this.partId = partId;
+			this.attempt = attempt;
+			this.event.begin();
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			if (this.firstPass && read >= 0) {
+				this.firstPassBytes++;
+			}
+			return read;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (this.firstPass && read > 0) {
+				this.firstPassBytes += read;
+			}
+			return read;
+		}
+
+		@Override
+		public synchronized void reset() throws IOException {
+			super.reset();
+			
+			if (this.firstPass) {
+				this.firstPass = false;
+				
+				if (this.event.shouldCommit()) {
+					this.event.partId = this.partId;
+					this.event.attempt = this.attempt;
+					this.event.bytes = this.firstPassBytes;
+					this.event.commit();
+				}
+			}
 		}
 	}
 
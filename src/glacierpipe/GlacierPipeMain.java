@@ -19,19 +19,59 @@
 
 package glacierpipe;
 
+import glacierpipe.dedup.ChunkIndex;
+import glacierpipe.dedup.DedupInputStream;
+import glacierpipe.dedup.FastCdcChunker;
+import glacierpipe.dedup.Recipe;
+import glacierpipe.format.StringFormat;
+import glacierpipe.io.GzipBlockTransform;
 import glacierpipe.io.IOBuffer;
 import glacierpipe.io.MemoryIOBuffer;
+import glacierpipe.io.Pacer;
+import glacierpipe.io.ParallelBlockInputStream;
+import glacierpipe.io.StallWatchdog;
+import glacierpipe.io.TarIndexInputStream;
+import glacierpipe.io.ThrottledInputStream.ThrottlingStrategy;
+import glacierpipe.net.ConnectionStats;
+import glacierpipe.net.EndpointAddresses;
+import glacierpipe.net.FixedThrottlingStrategy;
+import glacierpipe.net.PacedSocketFactory;
+import glacierpipe.net.RetryScheduler;
+import glacierpipe.net.SocketTuning;
+import glacierpipe.net.nio.GlacierNioClient;
+import glacierpipe.net.nio.HttpEngine;
+import glacierpipe.security.AesGcmBlockTransform;
+import glacierpipe.security.ParallelTreeHash;
+import glacierpipe.terminal.TerminalDeleteObserver;
+import glacierpipe.terminal.TerminalDownloadObserver;
 import glacierpipe.terminal.TerminalGlacierPipeObserver;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.net.ssl.SSLContext;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -43,8 +83,16 @@ import org.apache.commons.cli.OptionGroup;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
 import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.AmazonGlacierClientBuilder;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.util.BinaryUtils;
 
 public class GlacierPipeMain {
 	
@@ -53,6 +101,11 @@ public class GlacierPipeMain {
 		OptionGroup action = new OptionGroup();
 		
 		action.addOption(new Option("u", "upload", false, "upload stdin to glacier"));
+		action.addOption(new Option(null, "download", false, "download an archive, given its ID or location in place of <archive-name>, to stdout or --output"));
+		action.addOption(new Option(null, "verify", false, "check that the files, or directories of them, given in place of <archive-name> are in Glacier, by their tree hashes, according to --inventory or the catalog"));
+		action.addOption(new Option(null, "delete-from", false, "delete archives listed in the inventory given in place of <archive-name>, or if that's catalog, the catalog's archives in --vault at --endpoint; which ones is up to --description, --created-after, --created-before, --min-size and --max-size"));
+		action.addOption(new Option(null, "sync-catalog", false, "add the archives in --inventory that aren't in the catalog yet, e.g. ones uploaded from elsewhere"));
+		action.addOption(new Option(null, "decrypt", false, "decrypt stdin, encrypted with --key-file, to stdout"));
 		action.addOption(new Option(null, "help", false, "show help"));
 		
 		OPTIONS.addOptionGroup(action);
@@ -61,11 +114,31 @@ public class GlacierPipeMain {
 		OPTIONS.addOption("v", "vault", true, "Name of your vault");
 		
 		OptionBuilder.withLongOpt("partsize");
-		OptionBuilder.withArgName("bytes");
-		OptionBuilder.withDescription("the size of each part for multipart uploads.  Must be a power of 2 between (inclusive) 1MB and 4GB (default: 16MB)");
+		OptionBuilder.withArgName("bytes | auto");
+		OptionBuilder.withDescription("the size of each part for multipart uploads.  Must be a power of 2 between (inclusive) 1MB and 4GB.  auto picks the biggest that --max-memory can hold four of, up to a quarter of --expected-size, but always big enough for --expected-size to fit in Glacier's 10,000 parts (default: auto)");
 		OptionBuilder.hasArg();
 		OPTIONS.addOption(OptionBuilder.create("p"));
 		
+		OptionBuilder.withLongOpt("expected-size");
+		OptionBuilder.withArgName("bytes");
+		OptionBuilder.withDescription("roughly how big the archive will be, for --partsize auto.  Not needed when stdin is a file (default: unknown)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OPTIONS.addOption(null, "rollover", false, "when the input outgrows an archive, carry on in another, and finish with a manifest archive listing them");
+		
+		OptionBuilder.withLongOpt("rollover-size");
+		OptionBuilder.withArgName("bytes");
+		OptionBuilder.withDescription("with --rollover, how big each archive can get, in whole parts (default: 10,000 parts)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("tee");
+		OptionBuilder.withArgName("vault[@endpoint],...");
+		OptionBuilder.withDescription("also upload to these vaults, in --endpoint or the endpoint given, reading and hashing stdin once; each has its own connections, paced to --max-upload-rate, and retry budget, and is sent with the sdk engine");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
 		OptionBuilder.withLongOpt("max-retries");
 		OptionBuilder.withArgName("count");
 		OptionBuilder.withType(Number.class);
@@ -73,6 +146,218 @@ public class GlacierPipeMain {
 		OptionBuilder.hasArg();
 		OPTIONS.addOption(OptionBuilder.create("r"));
 		
+		OPTIONS.addOption(null, "compress", false, "gzip the input before uploading it, compressing blocks of it on several threads at once");
+		
+		OptionBuilder.withLongOpt("compress-level");
+		OptionBuilder.withArgName("0-9");
+		OptionBuilder.withDescription("with --compress, how hard to compress, from 0 (not at all) to 9 (most) (default: 6)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("compress-threads");
+		OptionBuilder.withArgName("count");
+		OptionBuilder.withDescription("with --compress, how many blocks to compress at once (default: the number of processors)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("key-file");
+		OptionBuilder.withArgName("path");
+		OptionBuilder.withDescription("encrypt the input, after --compress, with AES-GCM and the 16, 24 or 32 byte key in this file, raw or in hex");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("dedup-index");
+		OptionBuilder.withArgName("directory");
+		OptionBuilder.withDescription("split the input into content-defined chunks, and upload only those not already in this index of earlier uploads, as <archive-name>.chunks, with a recipe for putting it back together as <archive-name>.recipe");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("dedup-chunk-size");
+		OptionBuilder.withArgName("bytes");
+		OptionBuilder.withDescription("with --dedup-index, the average chunk size, a power of 2 between 4KB and 64MB (default: 256KB)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OPTIONS.addOption(null, "tar-index", false, "index the members of the tar archive on stdin as it's uploaded, and upload the index as <archive-name>.index, so one member can be restored with a range retrieval");
+		
+		OptionBuilder.withLongOpt("tar-index-file");
+		OptionBuilder.withArgName("path");
+		OptionBuilder.withDescription("like --tar-index, but write the index to this file instead of uploading it");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("job-id");
+		OptionBuilder.withArgName("id");
+		OptionBuilder.withDescription("with --download, download the output of this retrieval job, already started, rather than starting one");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("output");
+		OptionBuilder.withArgName("path");
+		OptionBuilder.withDescription("with --download, write the archive to this file, each range as it arrives, rather than to stdout");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("download-threads");
+		OptionBuilder.withArgName("count");
+		OptionBuilder.withDescription("with --download, how many ranges to download at once (default: 4)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("range-size");
+		OptionBuilder.withArgName("bytes");
+		OptionBuilder.withDescription("with --download, the size of each range, a power of 2 between 1MB and 1GB; writing to stdout, twice --download-threads of them can be held in memory (default: 16MB)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("inventory");
+		OptionBuilder.withArgName("path");
+		OptionBuilder.withDescription("with --verify, the vault inventory, in JSON, to check files against, rather than the catalog's archives in --vault at --endpoint (or every vault, or every endpoint); with --sync-catalog, the inventory to add archives from");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("description");
+		OptionBuilder.withArgName("regex");
+		OptionBuilder.withDescription("only use the archives in --inventory, or to --delete-from, whose whole description matches this regular expression");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("created-after");
+		OptionBuilder.withArgName("date");
+		OptionBuilder.withDescription("only use the archives in --inventory, or to --delete-from, created on or after this ISO 8601 date or time, in UTC unless it says otherwise");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("created-before");
+		OptionBuilder.withArgName("date");
+		OptionBuilder.withDescription("only use the archives in --inventory, or to --delete-from, created before this ISO 8601 date or time, in UTC unless it says otherwise");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("min-size");
+		OptionBuilder.withArgName("bytes");
+		OptionBuilder.withDescription("only use the archives in --inventory, or to --delete-from, at least this big");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("max-size");
+		OptionBuilder.withArgName("bytes");
+		OptionBuilder.withDescription("only use the archives in --inventory, or to --delete-from, at most this big");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("verify-files");
+		OptionBuilder.withArgName("count");
+		OptionBuilder.withDescription("with --verify, how many files to read at once; they're hashed on every processor either way (default: 4)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("delete-threads");
+		OptionBuilder.withArgName("count");
+		OptionBuilder.withDescription("with --delete-from, the most archives to delete at once; fewer are while Glacier's throttling requests (default: 8)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("delete-checkpoint");
+		OptionBuilder.withArgName("path");
+		OptionBuilder.withDescription("with --delete-from, the file archives are recorded in as they're deleted, so an interrupted run can be resumed; it's removed once they all are (default: the inventory or catalog's path, plus .deleted)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("catalog");
+		OptionBuilder.withArgName("path | none");
+		OptionBuilder.withDescription("the file every upload is recorded in (default: $HOME/.glacierpipe/catalog)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OPTIONS.addOption(null, "skip-if-unchanged", false, "when stdin is a file, hash it and don't upload it if the catalog has an archive with the same contents in this vault");
+		
+		OptionBuilder.withLongOpt("parallel-parts");
+		OptionBuilder.withArgName("count | automatic");
+		OptionBuilder.withDescription("the number of parts that can be buffered and uploading at once; each needs --partsize of memory.  automatic adds parts while it improves throughput (default: automatic)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("max-memory");
+		OptionBuilder.withArgName("bytes");
+		OptionBuilder.withDescription("with --parallel-parts automatic, the most memory to use for buffering parts (default: 256MB)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("retry-budget");
+		OptionBuilder.withArgName("count");
+		OptionBuilder.withDescription("the number of retries, across all parts, allowed beyond the tenth of one each successful upload earns back (default: 100)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("stall-timeout");
+		OptionBuilder.withArgName("seconds");
+		OptionBuilder.withDescription("abandon and immediately retry a part upload that's slower than --stall-min-rate, or has waited on its response, for this long; 0 disables (default: 60)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("stall-min-rate");
+		OptionBuilder.withArgName("Bps");
+		OptionBuilder.withDescription("the upload rate below which a part upload is considered stalled (default: 1)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OPTIONS.addOption(null, "hedge", false, "when a part upload is much slower than usual, start a duplicate request and keep whichever finishes first");
+		
+		OptionBuilder.withLongOpt("hedge-percentile");
+		OptionBuilder.withArgName("percentile");
+		OptionBuilder.withDescription("with --hedge, the percentile of recent part upload times to compare against (default: 95)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("hedge-multiplier");
+		OptionBuilder.withArgName("factor");
+		OptionBuilder.withDescription("with --hedge, how many times slower than --hedge-percentile an upload must be to hedge it (default: 2)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("upload-engine");
+		OptionBuilder.withArgName("sdk | nio");
+		OptionBuilder.withDescription("how parts are sent.  nio signs requests itself and sends them from a few threads with non-blocking I/O (default: sdk)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("io-threads");
+		OptionBuilder.withArgName("count");
+		OptionBuilder.withDescription("with --upload-engine nio, the number of threads doing network I/O (default: 2)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("send-buffer");
+		OptionBuilder.withArgName("bytes | auto");
+		OptionBuilder.withDescription("the socket send buffer size.  auto measures the round trip to the endpoint and sizes it to carry --max-upload-rate, or 1 Gbit/s, for that long (default: the OS's)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("receive-buffer");
+		OptionBuilder.withArgName("bytes | auto");
+		OptionBuilder.withDescription("the socket receive buffer size; auto sizes it to carry 1 Gbit/s for the measured round trip (default: the OS's)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("tcp-nodelay");
+		OptionBuilder.withArgName("yes | no");
+		OptionBuilder.withDescription("whether to send small writes without waiting to coalesce them (default: yes)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("connect-timeout");
+		OptionBuilder.withArgName("seconds");
+		OptionBuilder.withDescription("how long to wait for a connection to open (default: 10)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
+		OptionBuilder.withLongOpt("socket-timeout");
+		OptionBuilder.withArgName("seconds");
+		OptionBuilder.withDescription("how long a request can go without sending or receiving anything (default: 50)");
+		OptionBuilder.hasArg();
+		OPTIONS.addOption(OptionBuilder.create());
+		
 		OptionBuilder.withLongOpt("max-upload-rate");
 		OptionBuilder.withArgName("[Bps | automatic]");
 		OptionBuilder.withDescription("the maximum upload rate");
@@ -96,73 +381,300 @@ public class GlacierPipeMain {
 			}
 
 			System.exit(0);
-		} else if (cmd.hasOption("upload")) {
-			
-			// Turn the CommandLine into Properties
-			Properties cliProperties = new Properties();
-			for (Iterator<?> i = cmd.iterator(); i.hasNext(); ) {
-				Option o = (Option)i.next();
-				
-				String opt = o.getLongOpt();
-				opt = opt != null ? opt : o.getOpt();
-				
-				String value = o.getValue();
-				value = value != null ? value : "";
-				
-				cliProperties.setProperty(opt, value);
+		} else if (cmd.hasOption("decrypt")) {
+			if (!cmd.hasOption("key-file")) {
+				throw new ParseException("--decrypt needs --key-file");
 			}
 			
-			// Build up a configuration
-			ConfigBuilder configBuilder = new ConfigBuilder();
-			
-			// Archive name
-			List<?> archiveList = cmd.getArgList();
-			if (archiveList.size() > 1) {
-				throw new ParseException("Too many arguments");
-			} else if (archiveList.isEmpty()) {
-				throw new ParseException("No archive name provided");
-			}			
+			byte[] key = AesGcmBlockTransform.readKey(new File(cmd.getOptionValue("key-file")));
+			// Not System.out, which would swallow errors writing to it
+			try (
+					InputStream in = AesGcmBlockTransform.decrypt(new BufferedInputStream(System.in, 4096), key, Runtime.getRuntime().availableProcessors());
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out));
+			) {
+				byte[] buffer = new byte[4096];
+				int read;
+				while ((read = in.read(buffer)) >= 0) {
+					out.write(buffer, 0, read);
+				}
+			}
 			
-			configBuilder.setArchive(archiveList.get(0).toString());
+			System.exit(0);
+		} else if (cmd.hasOption("upload")) {
 			
-			// All other arguments on the command line
-			configBuilder.setFromProperties(cliProperties);
+			ConfigBuilder configBuilder = createConfigBuilder(cmd);
 			
-			// Load any config from the properties file
-			Properties fileProperties = new Properties();
-			try (InputStream in = new FileInputStream(configBuilder.propertiesFile)) {
-				fileProperties.load(in);
-			} catch (IOException e) {
-				System.err.printf("Warning: unable to read properties file %s; %s%n", configBuilder.propertiesFile, e);
+			// A file redirected to stdin has a size, even if a pipe doesn't
+			if (configBuilder.expectedSize < 0) {
+				configBuilder.expectedSize = getInputSize();
 			}
 			
-			configBuilder.setFromProperties(fileProperties);
-			
 			// ...
 			Config config = new Config(configBuilder);
-
-			IOBuffer buffer = new MemoryIOBuffer(config.partSize);			
 			
-			AmazonGlacierClient client = new AmazonGlacierClient(new BasicAWSCredentials(config.accessKey, config.secretKey));
-			client.setEndpoint(config.endpoint);
+			if (!config.rollover && config.expectedSize > Config.getMaxArchiveSize(config.partSize)) {
+				System.err.printf("Warning: %s won't fit in %d parts of %s; the upload will fail after %s%n",
+						StringFormat.toHumanReadableDataSize(config.expectedSize), GlacierPipe.MAX_PARTS,
+						StringFormat.toHumanReadableDataSize(config.partSize), StringFormat.toHumanReadableDataSize(Config.getMaxArchiveSize(config.partSize)));
+			}
+			
+			Catalog catalog = config.catalog != null ? new Catalog(config.catalog) : null;
+			if (config.skipIfUnchanged) {
+				Catalog.Entry uploaded = findUnchanged(config, catalog);
+				if (uploaded != null) {
+					System.err.printf("Unchanged since it was uploaded as %s on %tF %<tT; not uploading it again%n", uploaded.description, uploaded.timestamp);
+					System.err.printf("  Location: %s%n", uploaded.location);
+					System.exit(0);
+				}
+			}
 
+			// Buffers only take up memory once they're used, so automatic tuning can have as many as fit
+			ConcurrencyTuner concurrencyTuner = null;
+			int parallelParts = config.parallelParts;
+			if (parallelParts == 0) {
+				long maxMemory = Math.min(config.maxMemory, Runtime.getRuntime().maxMemory() / 4 * 3);
+				parallelParts = (int)Math.max(1, Math.min(maxMemory / config.partSize, 1024));
+				concurrencyTuner = new ConcurrencyTuner(Math.min(2, parallelParts), parallelParts);
+			}
+			
+			List<IOBuffer> buffers = new ArrayList<IOBuffer>(parallelParts);
+			for (int i = 0; i < parallelParts; i++) {
+				buffers.add(new MemoryIOBuffer(config.partSize));
+			}
+			
 			// Actual upload
+			TarIndex tarIndex = config.tarIndex ? new TarIndex(config.archive) : null;
 			try (
-					InputStream in = new BufferedInputStream(System.in, 4096);
+					InputStream in = createInputStream(config, new BufferedInputStream(System.in, 4096), tarIndex);
 					PrintWriter writer = new PrintWriter(System.err);
 					ObservableProperties configMonitor = config.reloadProperties ? new ObservableProperties(config.propertiesFile) : null;
 					ProxyingThrottlingStrategy throttlingStrategy = new ProxyingThrottlingStrategy(config);
+					StallWatchdog stallWatchdog = config.stallTimeout > 0 ? new StallWatchdog(config.stallTimeout, config.stallMinRate) : null;
+					RetryScheduler retryScheduler = new RetryScheduler(config.retryBudget);
+					ChunkIndex chunkIndex = config.dedupIndex != null ? new ChunkIndex(config.dedupIndex) : null;
 			) {
 				TerminalGlacierPipeObserver observer = new TerminalGlacierPipeObserver(writer);
 				
+				if (configBuilder.partSize == Config.AUTO_PART_SIZE) {
+					writer.printf("Part size: %s%n", StringFormat.toHumanReadableDataSize(config.partSize));
+				}
+				
 				if (configMonitor != null) {
 					configMonitor.registerObserver(throttlingStrategy);
 				}
 					
-				GlacierPipe pipe = new GlacierPipe(buffer, observer, config.maxRetries, throttlingStrategy);				
-				pipe.pipe(client, config.vault, config.archive, in);
+				HedgingPolicy hedgingPolicy = config.hedge ? new HedgingPolicy(config.hedgePercentile, config.hedgeMultiplier) : null;
+				
+				// Throttle what's written to the sockets, shared by every connection
+				Pacer pacer = new Pacer(throttlingStrategy);
+				
+				// Keep a connection alive for every request that can be in flight, plus one for initiating and completing
+				int maxConnections = parallelParts * (hedgingPolicy != null ? 2 : 1) + 1;
+				
+				// Spread connections across every address the endpoint resolves to, leaving out any that misbehave
+				URI endpointUri = URI.create(config.endpoint);
+				String endpointHost = endpointUri.getHost() != null ? endpointUri.getHost() : config.endpoint;
+				EndpointAddresses endpointAddresses = new EndpointAddresses(endpointHost);
+				
+				int endpointPort = endpointUri.getPort() >= 0 ? endpointUri.getPort() : ("http".equalsIgnoreCase(endpointUri.getScheme()) ? 80 : 443);
+				SocketTuning socketTuning = createSocketTuning(config, endpointHost, endpointPort, writer);
+				
+				AmazonGlacierClient client = createUploadClient(config, config.endpoint, endpointAddresses, socketTuning, pacer, maxConnections, "sdk", observer);
+				
+				GlacierPipe pipe = new GlacierPipe(buffers, observer, config.maxRetries, retryScheduler, concurrencyTuner, pacer, stallWatchdog, hedgingPolicy);
+				if (config.rollover) {
+					pipe.setRolloverParts(Config.getRolloverParts(config.rolloverSize, config.partSize));
+				}
+				
+				try (HttpEngine httpEngine = "nio".equals(config.uploadEngine) ? new HttpEngine(config.ioThreads, SSLContext.getDefault(), pacer, socketTuning, HttpEngine.DEFAULT_IDLE_TIMEOUT) : null) {
+					if (httpEngine != null) {
+						httpEngine.setMaxIdleConnections(maxConnections);
+						observer.addConnectionStats("nio", httpEngine.getConnectionStats());
+					}
+					
+					GlacierNioClient nioClient = httpEngine != null ? new GlacierNioClient(httpEngine, config.endpoint, config.accessKey, config.secretKey, endpointAddresses) : null;
+					if (chunkIndex != null) {
+						uploadDeduplicated(config, chunkIndex, in, pipe, catalog, writer, buffers, retryScheduler, client, nioClient);
+					} else {
+						String location;
+						if (config.tee.isEmpty()) {
+							location = pipe.pipe(client, nioClient, config.vault, config.archive, in);
+							record(catalog, config, pipe, location, writer);
+						} else {
+							location = uploadTee(config, in, pipe, client, nioClient, throttlingStrategy, maxConnections, catalog, observer, writer);
+						}
+						
+						if (tarIndex != null) {
+							uploadTarIndex(config, tarIndex, location, catalog, writer, buffers, retryScheduler, client, nioClient);
+						}
+					}
+				}
+			} catch (Exception e) {
+				e.printStackTrace(System.err);
+			}
+			
+			System.exit(0);
+		} else if (cmd.hasOption("download")) {
+			Config config = new Config(createConfigBuilder(cmd));
+			String archiveId = Manifest.getArchiveId(config.archive);
+			
+			try (
+					PrintWriter writer = new PrintWriter(System.err);
+					RetryScheduler retryScheduler = new RetryScheduler(config.retryBudget);
+			) {
+				ArchiveDownloader downloader = new ArchiveDownloader(createClient(config, config.downloadThreads, writer), config.vault,
+						new TerminalDownloadObserver(writer), config.downloadThreads, config.rangeSize, config.maxRetries, retryScheduler);
+				
+				String jobId = config.jobId != null ? config.jobId : downloader.initiateRetrieval(archiveId);
+				DescribeJobResult job = downloader.awaitJob(jobId, ArchiveDownloader.DEFAULT_POLL_INTERVAL);
+				if (!archiveId.equals(job.getArchiveId())) {
+					throw new IOException("Job " + jobId + " retrieves archive " + job.getArchiveId() + ", not " + archiveId);
+				}
+				
+				if (config.output != null) {
+					try (FileChannel channel = FileChannel.open(config.output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+						downloader.download(job, channel);
+						channel.truncate(job.getArchiveSizeInBytes());
+					}
+				} else {
+					// Not System.out, which would swallow errors writing to it
+					try (OutputStream out = new FileOutputStream(FileDescriptor.out)) {
+						downloader.download(job, out);
+					}
+				}
+			} catch (Exception e) {
+				e.printStackTrace(System.err);
+				System.exit(-1);
+			}
+			
+			System.exit(0);
+		} else if (cmd.hasOption("verify")) {
+			List<File> files = new ArrayList<File>();
+			for (Object path : cmd.getArgList()) {
+				listFiles(new File(path.toString()), files);
+			}
+			if (files.isEmpty()) {
+				throw new ParseException("No files to verify");
+			}
+			
+			int concurrentFiles = Verifier.DEFAULT_CONCURRENT_FILES;
+			if (cmd.hasOption("verify-files")) {
+				try {
+					concurrentFiles = Integer.parseInt(cmd.getOptionValue("verify-files"));
+				} catch (NumberFormatException e) {
+					throw new ParseException("Failed to parse verify-files: " + cmd.getOptionValue("verify-files"));
+				}
+			}
+			
+			Verifier verifier = new Verifier(concurrentFiles, Runtime.getRuntime().availableProcessors());
+			if (cmd.hasOption("inventory")) {
+				try (InventoryReader inventory = InventoryReader.open(new File(cmd.getOptionValue("inventory")), createInventoryFilter(cmd))) {
+					verifier.add(inventory, files);
+				}
+			} else {
+				File catalog = cmd.hasOption("catalog") ? new File(cmd.getOptionValue("catalog")) : new ConfigBuilder().catalog;
+				String region = cmd.hasOption("endpoint") ? Catalog.getRegion(cmd.getOptionValue("endpoint")) : null;
+				verifier.add(new Catalog(catalog), region, cmd.getOptionValue("vault"));
+			}
+			
+			final PrintWriter out = new PrintWriter(System.out);
+			final int[] failures = new int[1];
+			verifier.verify(files, new VerifyObserver() {
+				@Override
+				public synchronized void verified(Verifier.Result result) {
+					out.printf("%-8s %s %s%n", result.status, result.archiveId != null ? result.archiveId : "-", result.file);
+					out.flush();
+					if (result.status != Verifier.Status.MATCHED) {
+						failures[0]++;
+					}
+				}
+				
+				@Override
+				public synchronized void exceptionVerifying(File file, IOException e) {
+					System.err.printf("Error verifying %s: %s%n", file, e.getMessage());
+					failures[0]++;
+				}
+			});
+			
+			System.err.printf("%d of %d files verified%n", files.size() - failures[0], files.size());
+			System.exit(failures[0] == 0 ? 0 : 1);
+		} else if (cmd.hasOption("delete-from")) {
+			final InventoryFilter filter = createInventoryFilter(cmd);
+			if (filter == null) {
+				throw new ParseException("--delete-from deletes the archives picked by --description, --created-after, --created-before, --min-size or --max-size; give at least one");
+			}
+			
+			Config config = new Config(createConfigBuilder(cmd));
+			boolean fromCatalog = "catalog".equals(config.archive);
+			if (fromCatalog && config.catalog == null) {
+				throw new ParseException("--delete-from catalog needs a --catalog");
+			}
+			
+			File source = fromCatalog ? config.catalog : new File(config.archive);
+			File checkpointFile = config.deleteCheckpoint != null ? config.deleteCheckpoint : new File(source.getPath() + ".deleted");
+			
+			int failed = 0;
+			try (
+					PrintWriter writer = new PrintWriter(System.err);
+					RetryScheduler retryScheduler = new RetryScheduler(config.retryBudget);
+					DeleteCheckpoint checkpoint = new DeleteCheckpoint(checkpointFile);
+			) {
+				Catalog catalog = config.catalog != null ? new Catalog(config.catalog) : null;
+				ArchiveDeleter deleter = new ArchiveDeleter(createClient(config, config.deleteThreads, writer), config.vault,
+						new TerminalDeleteObserver(writer), config.deleteThreads, config.maxRetries, retryScheduler, checkpoint);
+				
+				try {
+					if (fromCatalog) {
+						// Only what was uploaded to this vault at this endpoint; a vault of the same name elsewhere
+						// would say the rest weren't there, and they'd be taken as deleted
+						String region = Catalog.getRegion(config.endpoint);
+						List<String> archiveIds = new ArrayList<String>();
+						for (Catalog.Entry entry : catalog.getEntries()) {
+							if (entry.isIn(region, config.vault) && filter.accept(entry)) {
+								archiveIds.add(entry.getArchiveId());
+							}
+						}
+						failed = deleter.delete(archiveIds);
+					} else {
+						try (InventoryReader inventory = InventoryReader.open(source, filter)) {
+							failed = deleter.delete(inventory);
+						}
+					}
+				} finally {
+					// Even if the run was cut short, what was deleted shouldn't be found by --skip-if-unchanged
+					if (catalog != null) {
+						checkpoint.sync();
+						int removed = catalog.remove(checkpoint.getArchiveIds());
+						if (removed > 0) {
+							writer.printf("Removed %d deleted archives from the catalog%n", removed);
+						}
+					}
+				}
 			} catch (Exception e) {
 				e.printStackTrace(System.err);
+				System.exit(-1);
+			}
+			
+			// Every archive picked is gone, so a later run, from a newer inventory, starts afresh
+			if (failed == 0) {
+				checkpointFile.delete();
+			}
+			
+			System.exit(failed == 0 ? 0 : 1);
+		} else if (cmd.hasOption("sync-catalog")) {
+			if (!cmd.hasOption("inventory")) {
+				throw new ParseException("--sync-catalog needs an --inventory to add archives from");
+			}
+			
+			if ("none".equals(cmd.getOptionValue("catalog"))) {
+				throw new ParseException("--sync-catalog needs a --catalog to add archives to");
+			}
+			
+			File file = cmd.hasOption("catalog") ? new File(cmd.getOptionValue("catalog")) : new ConfigBuilder().catalog;
+			Catalog catalog = new Catalog(file);
+			try (InventoryReader inventory = InventoryReader.open(new File(cmd.getOptionValue("inventory")), createInventoryFilter(cmd))) {
+				int added = catalog.sync(inventory);
+				System.err.printf("Added %d of %d archives to %s%n", added, inventory.getArchivesRead(), file);
 			}
 			
 			System.exit(0);
@@ -175,7 +687,401 @@ public class GlacierPipeMain {
 			System.exit(-1);
 		}
 	}
+
+	/**
+	 * Adds {@code file} to {@code files}, or if it's a directory, every file under it, in order.
+	 */
+	protected static void listFiles(File file, List<File> files) throws IOException {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children == null) {
+				throw new IOException("Unable to list " + file);
+			}
+			
+			Arrays.sort(children);
+			for (File child : children) {
+				listFiles(child, files);
+			}
+		} else if (file.isFile()) {
+			files.add(file);
+		} else {
+			throw new IOException("No such file: " + file);
+		}
+	}
+	
+	/**
+	 * @return a filter for the archives in an inventory, from the command line, or null to use all of them
+	 */
+	protected static InventoryFilter createInventoryFilter(CommandLine cmd) throws ParseException {
+		if (!cmd.hasOption("description") && !cmd.hasOption("created-after") && !cmd.hasOption("created-before")
+				&& !cmd.hasOption("min-size") && !cmd.hasOption("max-size")) {
+			return null;
+		}
+		
+		Pattern description = null;
+		if (cmd.hasOption("description")) {
+			try {
+				description = Pattern.compile(cmd.getOptionValue("description"));
+			} catch (PatternSyntaxException e) {
+				throw new ParseException("Failed to parse description: " + e.getMessage());
+			}
+		}
+		
+		long createdAfter = Long.MIN_VALUE;
+		long createdBefore = Long.MAX_VALUE;
+		try {
+			if (cmd.hasOption("created-after")) {
+				createdAfter = InventoryFilter.parseDate(cmd.getOptionValue("created-after"));
+			}
+			if (cmd.hasOption("created-before")) {
+				createdBefore = InventoryFilter.parseDate(cmd.getOptionValue("created-before"));
+			}
+		} catch (IllegalArgumentException e) {
+			throw new ParseException("Failed to parse date: " + e.getMessage());
+		}
+		
+		long minSize = 0;
+		long maxSize = Long.MAX_VALUE;
+		try {
+			if (cmd.hasOption("min-size")) {
+				minSize = StringFormat.parseBinarySuffixedLong(cmd.getOptionValue("min-size"));
+			}
+			if (cmd.hasOption("max-size")) {
+				maxSize = StringFormat.parseBinarySuffixedLong(cmd.getOptionValue("max-size"));
+			}
+		} catch (NumberFormatException e) {
+			throw new ParseException("Failed to parse size: " + e.getMessage());
+		}
+		
+		return new InventoryFilter(description, createdAfter, createdBefore, minSize, maxSize);
+	}
 	
+	/**
+	 * Builds up a configuration from the command line, then the properties file, which takes precedence.
+	 */
+	protected static ConfigBuilder createConfigBuilder(CommandLine cmd) throws ParseException {
+		// Turn the CommandLine into Properties
+		Properties cliProperties = new Properties();
+		for (Iterator<?> i = cmd.iterator(); i.hasNext(); ) {
+			Option o = (Option)i.next();
+			
+			String opt = o.getLongOpt();
+			opt = opt != null ? opt : o.getOpt();
+			
+			String value = o.getValue();
+			value = value != null ? value : "";
+			
+			cliProperties.setProperty(opt, value);
+		}
+		
+		// Build up a configuration
+		ConfigBuilder configBuilder = new ConfigBuilder();
+		
+		// Archive name
+		List<?> archiveList = cmd.getArgList();
+		if (archiveList.size() > 1) {
+			throw new ParseException("Too many arguments");
+		} else if (archiveList.isEmpty()) {
+			throw new ParseException("No archive name provided");
+		}			
+		
+		configBuilder.setArchive(archiveList.get(0).toString());
+		
+		// All other arguments on the command line
+		configBuilder.setFromProperties(cliProperties);
+		
+		// Load any config from the properties file
+		Properties fileProperties = new Properties();
+		try (InputStream in = new FileInputStream(configBuilder.propertiesFile)) {
+			fileProperties.load(in);
+		} catch (IOException e) {
+			System.err.printf("Warning: unable to read properties file %s; %s%n", configBuilder.propertiesFile, e);
+		}
+		
+		configBuilder.setFromProperties(fileProperties);
+		return configBuilder;
+	}
+	
+	/**
+	 * Creates a client for requests other than uploads, e.g. downloads and deletes, with a connection for each request
+	 * made at once.  Requests are all but empty, so there's nothing for --max-upload-rate to pace.
+	 */
+	protected static AmazonGlacierClient createClient(Config config, int connections, PrintWriter writer) throws NoSuchAlgorithmException {
+		URI endpointUri = URI.create(config.endpoint);
+		String endpointHost = endpointUri.getHost() != null ? endpointUri.getHost() : config.endpoint;
+		EndpointAddresses endpointAddresses = new EndpointAddresses(endpointHost);
+		
+		int endpointPort = endpointUri.getPort() >= 0 ? endpointUri.getPort() : ("http".equalsIgnoreCase(endpointUri.getScheme()) ? 80 : 443);
+		SocketTuning socketTuning = createSocketTuning(config, endpointHost, endpointPort, writer);
+		
+		Pacer pacer = new Pacer(new FixedThrottlingStrategy(Double.POSITIVE_INFINITY));
+		PacedSocketFactory socketFactory = new PacedSocketFactory(SSLContext.getDefault(), pacer, endpointAddresses, socketTuning);
+		
+		ClientConfiguration clientConfiguration = new ClientConfiguration();
+		clientConfiguration.setMaxConnections(connections + 1);
+		clientConfiguration.getApacheHttpClientConfig().setSslSocketFactory(socketFactory);
+		clientConfiguration.setDnsResolver(endpointAddresses);
+		socketTuning.configure(clientConfiguration);
+		
+		AmazonGlacierClient client = new AmazonGlacierClient(new BasicAWSCredentials(config.accessKey, config.secretKey), clientConfiguration);
+		client.setEndpoint(config.endpoint);
+		return client;
+	}
+	
+	/**
+	 * Creates the client parts are uploaded with, with a connection for each request that can be in flight, each
+	 * paced by {@code pacer}.
+	 * 
+	 * @param name what the client's connections are called in the status line
+	 */
+	protected static AmazonGlacierClient createUploadClient(Config config, String endpoint, EndpointAddresses endpointAddresses, SocketTuning socketTuning, Pacer pacer, int maxConnections, String name, TerminalGlacierPipeObserver observer) throws NoSuchAlgorithmException {
+		PacedSocketFactory socketFactory = new PacedSocketFactory(SSLContext.getDefault(), pacer, endpointAddresses, socketTuning);
+		final ConnectionStats stats = socketFactory.getConnectionStats();
+		observer.addConnectionStats(name, stats);
+		
+		ClientConfiguration clientConfiguration = new ClientConfiguration();
+		clientConfiguration.setMaxConnections(maxConnections);
+		clientConfiguration.getApacheHttpClientConfig().setSslSocketFactory(socketFactory);
+		clientConfiguration.setDnsResolver(endpointAddresses);
+		socketTuning.configure(clientConfiguration);
+		
+		// Every attempt's counted, retries included; the signing region's taken from the endpoint, as setEndpoint() does
+		return (AmazonGlacierClient)AmazonGlacierClientBuilder.standard().
+				withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials(config.accessKey, config.secretKey))).
+				withClientConfiguration(clientConfiguration).
+				withEndpointConfiguration(new EndpointConfiguration(endpoint, null)).
+				withRequestHandlers(new RequestHandler2() {
+					@Override
+					public void beforeAttempt(HandlerBeforeAttemptContext context) {
+						stats.requestSent();
+					}
+				}).
+				build();
+	}
+	
+	/**
+	 * Uploads stdin to --vault and every --tee destination at once, reading and hashing it once.  Each destination
+	 * other than --vault gets connections of its own, paced to --max-upload-rate, and a retry budget of its own, so
+	 * one that's throttled or failing doesn't use up the others'.  Every copy's recorded in the catalog.
+	 * 
+	 * @return where the archive was created in --vault
+	 */
+	protected static String uploadTee(Config config, InputStream in, GlacierPipe pipe, AmazonGlacierClient client, GlacierNioClient nioClient, ThrottlingStrategy throttlingStrategy, int maxConnections, Catalog catalog, TerminalGlacierPipeObserver observer, PrintWriter writer) throws IOException, NoSuchAlgorithmException {
+		List<GlacierPipe.Destination> destinations = new ArrayList<GlacierPipe.Destination>();
+		destinations.add(pipe.createDestination(client, nioClient, config.vault));
+		List<String> endpoints = new ArrayList<String>();
+		endpoints.add(config.endpoint);
+		
+		List<RetryScheduler> retrySchedulers = new ArrayList<RetryScheduler>();
+		try {
+			for (Config.TeeDestination tee : config.tee) {
+				URI endpointUri = URI.create(tee.endpoint);
+				String endpointHost = endpointUri.getHost() != null ? endpointUri.getHost() : tee.endpoint;
+				EndpointAddresses endpointAddresses = new EndpointAddresses(endpointHost);
+				
+				int endpointPort = endpointUri.getPort() >= 0 ? endpointUri.getPort() : ("http".equalsIgnoreCase(endpointUri.getScheme()) ? 80 : 443);
+				SocketTuning socketTuning = createSocketTuning(config, endpointHost, endpointPort, writer);
+				
+				Pacer pacer = new Pacer(throttlingStrategy);
+				AmazonGlacierClient teeClient = createUploadClient(config, tee.endpoint, endpointAddresses, socketTuning, pacer, maxConnections, "sdk " + tee.vault + "@" + endpointHost, observer);
+				
+				RetryScheduler retryScheduler = new RetryScheduler(config.retryBudget);
+				retrySchedulers.add(retryScheduler);
+				destinations.add(pipe.createDestination(teeClient, null, tee.vault, retryScheduler, pacer));
+				endpoints.add(tee.endpoint);
+			}
+			
+			List<String> locations = pipe.pipe(destinations, config.archive, in);
+			for (int i = 0; i < destinations.size(); i++) {
+				GlacierPipe.Destination destination = destinations.get(i);
+				record(catalog, config, endpoints.get(i), destination.getVaultName(), pipe.getArchiveDescription(), destination.getArchiveSize(), destination.getArchiveTreeHash(), locations.get(i), writer);
+			}
+			return locations.get(0);
+		} finally {
+			for (RetryScheduler retryScheduler : retrySchedulers) {
+				retryScheduler.close();
+			}
+		}
+	}
+	
+	/**
+	 * Wraps stdin in whatever's done to it before it's uploaded.  It's compressed before it's encrypted, since
+	 * encrypted data doesn't compress.
+	 * 
+	 * @param tarIndex if not null, indexes the tar archive on stdin
+	 */
+	protected static InputStream createInputStream(Config config, InputStream in, TarIndex tarIndex) throws IOException, GeneralSecurityException {
+		if (tarIndex != null) {
+			in = new TarIndexInputStream(in, tarIndex);
+		}
+		if (config.compress) {
+			in = new ParallelBlockInputStream(in, ParallelBlockInputStream.DEFAULT_BLOCK_SIZE, new GzipBlockTransform(config.compressLevel), config.compressThreads);
+		}
+		if (config.keyFile != null) {
+			AesGcmBlockTransform encryption = new AesGcmBlockTransform(AesGcmBlockTransform.readKey(config.keyFile), AesGcmBlockTransform.DEFAULT_SEGMENT_SIZE);
+			in = new ParallelBlockInputStream(in, encryption.getSegmentSize(), encryption, Runtime.getRuntime().availableProcessors());
+		}
+		return in;
+	}
+	
+	/**
+	 * @return how many bytes are left to read from stdin if it's a file, or -1 if it isn't or its size can't be told
+	 */
+	protected static long getInputSize() {
+		// Not closed, since that would close stdin
+		FileChannel channel = new FileInputStream(FileDescriptor.in).getChannel();
+		try {
+			// Pipes, terminals and devices report 0
+			long size = channel.size();
+			return size > 0 ? Math.max(0, size - channel.position()) : -1;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Writes the tar index to {@code config.tarIndexFile}, or if there isn't one, uploads it as an archive of its own
+	 * next to the one it indexes.
+	 */
+	protected static void uploadTarIndex(Config config, TarIndex tarIndex, String location, Catalog catalog, PrintWriter writer, List<IOBuffer> buffers, RetryScheduler retryScheduler, AmazonGlacierClient client, GlacierNioClient nioClient) throws IOException {
+		if (tarIndex.getMembers() == 0) {
+			writer.println("Warning: no tar members found on stdin; the index is empty");
+		}
+		tarIndex.finish(location);
+		
+		if (config.tarIndexFile != null) {
+			try (OutputStream out = new FileOutputStream(config.tarIndexFile)) {
+				tarIndex.write(out);
+			}
+			writer.printf("Wrote index of %d members to %s%n", tarIndex.getMembers(), config.tarIndexFile);
+			writer.flush();
+		} else {
+			writer.printf("Uploading index of %d members%n", tarIndex.getMembers());
+			uploadSidecar(config, config.archive + ".index", tarIndex.toByteArray(), catalog, writer, buffers, retryScheduler, client, nioClient);
+		}
+	}
+	
+	/**
+	 * Uploads only the chunks of stdin that aren't in {@code chunkIndex} already, as {@code <archive>.chunks}, then
+	 * the recipe for putting it back together as {@code <archive>.recipe}.  If every chunk's been uploaded before, only
+	 * the recipe is.
+	 */
+	protected static void uploadDeduplicated(Config config, ChunkIndex chunkIndex, InputStream in, GlacierPipe pipe, Catalog catalog, PrintWriter writer, List<IOBuffer> buffers, RetryScheduler retryScheduler, AmazonGlacierClient client, GlacierNioClient nioClient) throws IOException {
+		writer.printf("Deduplicating against %d chunks%n", chunkIndex.getCount());
+		writer.flush();
+		
+		Recipe recipe = new Recipe(config.archive);
+		
+		// Closing it closes stdin too, which is done with by then, and throws away the new chunks if they weren't uploaded
+		int archive = DedupInputStream.PENDING;
+		try (DedupInputStream dedup = new DedupInputStream(in, new FastCdcChunker(config.dedupChunkSize), chunkIndex, config.vault, recipe)) {
+			if (dedup.awaitNewChunk()) {
+				String description = config.archive + ".chunks";
+				String location = pipe.pipe(client, nioClient, config.vault, description, dedup);
+				record(catalog, config, pipe, location, writer);
+				
+				// The chunks are only indexed once they're safely uploaded
+				archive = chunkIndex.addArchive(config.vault, location, description);
+				dedup.commit(archive);
+			}
+			
+			writer.printf("Uploaded %d new chunks of %d, %s of %s%n", dedup.getNewChunks(), dedup.getChunks(),
+					StringFormat.toHumanReadableDataSize(dedup.getNewSize()), StringFormat.toHumanReadableDataSize(dedup.getSize()));
+			
+			recipe.finish(dedup.getSize(), dedup.getStreamDigest(), chunkIndex, archive);
+		}
+		uploadSidecar(config, config.archive + ".recipe", recipe.toByteArray(), catalog, writer, buffers, retryScheduler, client, nioClient);
+	}
+	
+	/**
+	 * Uploads something made along the way, like an index, as an archive of its own once the main one's done
+	 */
+	protected static String uploadSidecar(Config config, String description, byte[] bytes, Catalog catalog, PrintWriter writer, List<IOBuffer> buffers, RetryScheduler retryScheduler, AmazonGlacierClient client, GlacierNioClient nioClient) throws IOException {
+		GlacierPipe pipe = new GlacierPipe(buffers, new TerminalGlacierPipeObserver(writer), config.maxRetries, retryScheduler, null, null, null, null);
+		String location = pipe.pipe(client, nioClient, config.vault, description, new ByteArrayInputStream(bytes));
+		record(catalog, config, pipe, location, writer);
+		writer.flush();
+		return location;
+	}
+	
+	/**
+	 * Adds the archive {@code pipe} just uploaded to the catalog.  It's already uploaded, so failing to record it is
+	 * only a warning.
+	 */
+	protected static void record(Catalog catalog, Config config, GlacierPipe pipe, String location, PrintWriter writer) {
+		record(catalog, config, config.endpoint, config.vault, pipe.getArchiveDescription(), pipe.getArchiveSize(), pipe.getArchiveTreeHash(), location, writer);
+	}
+	
+	protected static void record(Catalog catalog, Config config, String endpoint, String vault, String description, long size, byte[] treeHash, String location, PrintWriter writer) {
+		if (catalog == null) {
+			return;
+		}
+		
+		try {
+			catalog.add(new Catalog.Entry(Catalog.getRegion(endpoint), vault, description, size,
+					BinaryUtils.toHex(treeHash), config.partSize, System.currentTimeMillis(), location));
+		} catch (IOException e) {
+			writer.printf("Warning: failed to record %s in catalog %s; %s%n", location, config.catalog, e);
+		}
+	}
+	
+	/**
+	 * Looks for an earlier upload of what's on stdin in the catalog, by its tree hash, if stdin's a file.  The file's
+	 * memory mapped and hashed on every processor, which doesn't move stdin's position, so it can still be uploaded
+	 * after.
+	 * 
+	 * @return the earlier upload, or null if there isn't one or stdin isn't a file
+	 */
+	protected static Catalog.Entry findUnchanged(Config config, Catalog catalog) throws IOException {
+		long size = getInputSize();
+		if (size < 0) {
+			System.err.println("Warning: --skip-if-unchanged needs a file on stdin; uploading it");
+			return null;
+		}
+		
+		// Not closed, since that would close stdin
+		FileChannel channel = new FileInputStream(FileDescriptor.in).getChannel();
+		
+		long start = System.currentTimeMillis();
+		byte[] treeHash = ParallelTreeHash.compute(channel, channel.position(), size, Runtime.getRuntime().availableProcessors());
+		System.err.printf("Tree hash: %s, of %s in %d ms%n", BinaryUtils.toHex(treeHash), StringFormat.toHumanReadableDataSize(size), System.currentTimeMillis() - start);
+		
+		return catalog.find(Catalog.getRegion(config.endpoint), config.vault, BinaryUtils.toHex(treeHash), size);
+	}
+	
+	/**
+	 * Builds the socket options from {@code config}.  Buffers set to auto are sized to the bandwidth-delay product,
+	 * using the round trip to the endpoint measured now: the send buffer for --max-upload-rate if there's a fixed one,
+	 * otherwise for {@link SocketTuning#DEFAULT_BANDWIDTH}.  If the endpoint can't be reached, they're left to the OS.
+	 */
+	protected static SocketTuning createSocketTuning(Config config, String host, int port, PrintWriter writer) {
+		int sendBufferSize = config.sendBufferSize;
+		int receiveBufferSize = config.receiveBufferSize;
+
+		if (sendBufferSize == SocketTuning.AUTO || receiveBufferSize == SocketTuning.AUTO) {
+			long roundTrip = SocketTuning.probeRoundTrip(host, port, 5, config.connectTimeout);
+			if (roundTrip < 0) {
+				writer.printf("Warning: unable to measure the round trip to %s; leaving socket buffers to the OS%n", host);
+				sendBufferSize = Math.max(sendBufferSize, 0);
+				receiveBufferSize = Math.max(receiveBufferSize, 0);
+			} else {
+				boolean fixedRate = config.maxUploadRate > 0.0 && !config.useQOS && !Double.isInfinite(config.maxUploadRate);
+				if (sendBufferSize == SocketTuning.AUTO) {
+					sendBufferSize = SocketTuning.getBufferSize(fixedRate ? config.maxUploadRate : SocketTuning.DEFAULT_BANDWIDTH, roundTrip);
+				}
+				if (receiveBufferSize == SocketTuning.AUTO) {
+					receiveBufferSize = SocketTuning.getBufferSize(SocketTuning.DEFAULT_BANDWIDTH, roundTrip);
+				}
+				writer.printf("Round trip to %s: %d ms; socket buffers: %s to send, %s to receive%n", host, roundTrip,
+						sendBufferSize > 0 ? StringFormat.toHumanReadableDataSize(sendBufferSize) : "default",
+						receiveBufferSize > 0 ? StringFormat.toHumanReadableDataSize(receiveBufferSize) : "default");
+			}
+			writer.flush();
+		}
+
+		return new SocketTuning(sendBufferSize, receiveBufferSize, config.tcpNoDelay, config.connectTimeout, config.socketTimeout);
+	}
+
 	public static void printHelp(PrintWriter writer) {
 		HelpFormatter formatter = new HelpFormatter();
 		formatter.printHelp(writer, HelpFormatter.DEFAULT_WIDTH,
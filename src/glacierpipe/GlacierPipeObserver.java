@@ -19,6 +19,9 @@
 
 package glacierpipe;
 
+/**
+ * Receives progress from {@link GlacierPipe}.  Parts are uploaded concurrently, so calls can come from several threads.
+ */
 public interface GlacierPipeObserver {
 
 	public void gotUploadId(String uploadId);
@@ -32,9 +35,17 @@ public interface GlacierPipeObserver {
 	public void startPartUpload(int partId);
 	public void partUploading(int partId, long dataUploaded);
 	public void endPartUpload(int partId);
+	public void hedgingPartUpload(int partId, long elapsed);
 	
 	public void exceptionUploadingPart(int partId, Exception e, int attempt, boolean retrying);
-	public void sleepingBeforeRetry(long sleepingFor);
+	public void sleepingBeforeRetry(int partId, long sleepingFor);
+	public void requestLimitsChanged(int concurrency, double requestsPerSecond);
+	public void parallelPartsChanged(int parallelParts, double goodput);
+	
+	public void approachingPartLimit(int partId, int maxParts, long partSize);
+	public void archiveCompleted(String description, long size, String location);
+	
+	public void profileUpdated(StageProfiler.Profile profile);
 	
 	public void done(byte[] finalTreeHash, String location);
 	public void fatalException(Exception e);
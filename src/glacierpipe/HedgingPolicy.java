@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe;
+
+import java.util.Arrays;
+
+/**
+ * Decides when a part upload is a straggler worth hedging with a duplicate request.  Keeps the per-byte upload times of
+ * recent parts and hedges once an upload has taken longer than {@code multiplier} times the given percentile of them.
+ */
+public class HedgingPolicy {
+
+	public static final int DEFAULT_HISTORY = 100;
+	public static final int DEFAULT_MIN_SAMPLES = 5;
+	
+	protected final double percentile;
+	protected final double multiplier;
+	protected final int minSamples;
+	
+	// Ring buffer of nanoseconds per byte for recent successful uploads
+	protected final double[] history;
+	protected int historyStart = 0;
+	protected int historySize = 0;
+	
+	public HedgingPolicy(double percentile, double multiplier) {
+		this(percentile, multiplier, DEFAULT_HISTORY, DEFAULT_MIN_SAMPLES);
+	}
+	
+	public HedgingPolicy(double percentile, double multiplier, int history, int minSamples) {
+		if (!(percentile > 0.0 && percentile <= 100.0)) {
+			throw new IllegalArgumentException("percentile must be in (0, 100]; percentile = " + percentile);
+		} else if (!(multiplier >= 1.0) || Double.isInfinite(multiplier)) {
+			throw new IllegalArgumentException("multiplier must be at least 1; multiplier = " + multiplier);
+		} else if (history < 1) {
+			throw new IllegalArgumentException("history must be positive");
+		} else if (minSamples < 1 || minSamples > history) {
+			throw new IllegalArgumentException("minSamples must be between 1 and history");
+		}
+		
+		this.percentile = percentile;
+		this.multiplier = multiplier;
+		this.history = new double[history];
+		this.minSamples = minSamples;
+	}
+	
+	public double getPercentile() {
+		return this.percentile;
+	}
+	
+	public double getMultiplier() {
+		return this.multiplier;
+	}
+	
+	/**
+	 * Records how long a successful upload took.
+	 */
+	public synchronized void record(long bytes, long nanos) {
+		if (bytes <= 0 || nanos < 0) {
+			return;
+		}
+		
+		this.history[(this.historyStart + this.historySize) % this.history.length] = (double)nanos / bytes;
+		if (this.historySize < this.history.length) {
+			this.historySize++;
+		} else {
+			this.historyStart = (this.historyStart + 1) % this.history.length;
+		}
+	}
+	
+	/**
+	 * @return how long an upload of {@code bytes} can run before it should be hedged, or -1 if there isn't enough
+	 * history to tell yet
+	 */
+	public synchronized long getHedgeDelay(long bytes) {
+		if (this.historySize < this.minSamples) {
+			return -1;
+		}
+		
+		double[] sorted = new double[this.historySize];
+		for (int i = 0; i < this.historySize; i++) {
+			sorted[i] = this.history[(this.historyStart + i) % this.history.length];
+		}
+		Arrays.sort(sorted);
+		
+		// Nearest-rank percentile
+		int rank = (int)Math.ceil(this.percentile / 100.0 * sorted.length);
+		double nanosPerByte = sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+		
+		return Math.round(nanosPerByte * bytes * this.multiplier);
+	}
+}
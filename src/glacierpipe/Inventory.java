@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package glacierpipe;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A vault inventory, the output of an inventory-retrieval job in JSON: the vault's ARN, when the inventory was taken,
+ * and an {@code ArchiveList} of every archive in it.
+ */
+public class Inventory {
+
+	protected final String vaultArn;
+	protected final String inventoryDate;
+	protected final List<Archive> archives;
+	
+	public Inventory(String vaultArn, String inventoryDate, List<Archive> archives) {
+		this.vaultArn = vaultArn;
+		this.inventoryDate = inventoryDate;
+		this.archives = Collections.unmodifiableList(new ArrayList<Archive>(archives));
+	}
+	
+	public String getVaultArn() {
+		return this.vaultArn;
+	}
+	
+	public String getInventoryDate() {
+		return this.inventoryDate;
+	}
+	
+	public List<Archive> getArchives() {
+		return this.archives;
+	}
+	
+	/**
+	 * Reads a whole inventory into memory; for big ones, see {@link InventoryReader}
+	 */
+	public static Inventory read(File file) throws IOException {
+		try (InventoryReader reader = InventoryReader.open(file, null)) {
+			List<Archive> archives = new ArrayList<Archive>();
+			Archive archive;
+			while ((archive = reader.read()) != null) {
+				archives.add(archive);
+			}
+			return new Inventory(reader.getVaultArn(), reader.getInventoryDate(), archives);
+		}
+	}
+	
+	/**
+	 * @param vaultArn e.g. {@code arn:aws:glacier:us-east-1:012345678901:vaults/examplevault}
+	 * @return the vault's name, e.g. {@code examplevault}
+	 */
+	public static String getVaultName(String vaultArn) {
+		return vaultArn.substring(vaultArn.lastIndexOf('/') + 1);
+	}
+	
+	/**
+	 * @return the vault's region, e.g. {@code us-east-1}
+	 */
+	public static String getRegion(String vaultArn) {
+		String[] parts = vaultArn.split(":", 6);
+		if (parts.length != 6) {
+			throw new IllegalArgumentException("Not a vault ARN: " + vaultArn);
+		}
+		return parts[3];
+	}
+	
+	/**
+	 * @return where an archive in the vault is, as Glacier gives it when it's uploaded,
+	 * {@code /<account>/vaults/<vault>/archives/<archive ID>}
+	 */
+	public static String getLocation(String vaultArn, String archiveId) {
+		String[] parts = vaultArn.split(":", 6);
+		if (parts.length != 6 || !parts[5].startsWith("vaults/")) {
+			throw new IllegalArgumentException("Not a vault ARN: " + vaultArn);
+		}
+		return "/" + parts[4] + "/" + parts[5] + "/archives/" + archiveId;
+	}
+	
+	public static class Archive {
+		
+		public final String archiveId;
+		public final String description;
+		
+		/**
+		 * When the archive was uploaded, in ISO 8601
+		 */
+		public final String creationDate;
+		public final long size;
+		public final String treeHash;
+		
+		public Archive(String archiveId, String description, String creationDate, long size, String treeHash) {
+			this.archiveId = archiveId;
+			this.description = description;
+			this.creationDate = creationDate;
+			this.size = size;
+			this.treeHash = treeHash.toLowerCase();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package glacierpipe;
+
+import java.util.regex.Pattern;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Picks out archives in a vault inventory by description, creation date and size.
+ */
+public class InventoryFilter {
+
+	protected static final DateTimeFormatter DATE_PARSER = ISODateTimeFormat.dateTimeParser().withZoneUTC();
+	protected static final DateTimeFormatter DATE_PRINTER = ISODateTimeFormat.dateTime().withZoneUTC();
+	
+	protected final Pattern description;
+	protected final long createdAfter;
+	protected final long createdBefore;
+	protected final long minSize;
+	protected final long maxSize;
+	
+	/**
+	 * @param description a regular expression the whole description has to match, or null for any
+	 * @param createdAfter the earliest creation date accepted, in milliseconds since the epoch
+	 * @param createdBefore the first creation date that's too late, in milliseconds since the epoch
+	 * @param minSize the smallest size accepted
+	 * @param maxSize the largest size accepted
+	 */
+	public InventoryFilter(Pattern description, long createdAfter, long createdBefore, long minSize, long maxSize) {
+		this.description = description;
+		this.createdAfter = createdAfter;
+		this.createdBefore = createdBefore;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+	}
+	
+	public boolean accept(Inventory.Archive archive) {
+		if (archive.size < this.minSize || archive.size > this.maxSize) {
+			return false;
+		} else if (this.description != null && (archive.description == null || !this.description.matcher(archive.description).matches())) {
+			return false;
+		}
+		
+		if (this.createdAfter != Long.MIN_VALUE || this.createdBefore != Long.MAX_VALUE) {
+			// An archive of unknown age is neither before nor after anything
+			if (archive.creationDate == null) {
+				return false;
+			}
+			
+			long created = parseDate(archive.creationDate);
+			if (created < this.createdAfter || created >= this.createdBefore) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Applies the filter to an archive in the catalog, taking when it was uploaded as when it was created.
+	 */
+	public boolean accept(Catalog.Entry entry) {
+		return this.accept(new Inventory.Archive(entry.getArchiveId(), entry.description, DATE_PRINTER.print(entry.timestamp), entry.size, entry.treeHash));
+	}
+	
+	/**
+	 * @param date in ISO 8601, e.g. {@code 2014-01-31} or {@code 2014-01-31T12:00:00Z}; a date without a time zone is
+	 * UTC
+	 * @return milliseconds since the epoch
+	 */
+	public static long parseDate(String date) {
+		return DATE_PARSER.parseMillis(date);
+	}
+}
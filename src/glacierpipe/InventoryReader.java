@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package glacierpipe;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads a vault inventory an archive at a time, straight off Jackson's token stream.  Inventories of big vaults run to
+ * gigabytes, with millions of archives, and as a tree of {@code JsonNode}s take several times that in memory; this
+ * only ever holds the archive it's reading.  Fields outside the {@code ArchiveList} are picked up as they're passed;
+ * Glacier puts {@code VaultARN} and {@code InventoryDate} first, so they're known before the first archive's read.
+ */
+public class InventoryReader implements Closeable {
+
+	protected final JsonParser parser;
+	protected final InventoryFilter filter;
+	
+	protected String vaultArn;
+	protected String inventoryDate;
+	
+	protected boolean inArchiveList = false;
+	protected long archivesRead = 0;
+	
+	/**
+	 * @param filter which archives to return, or null for all of them
+	 */
+	public InventoryReader(InputStream in, InventoryFilter filter) throws IOException {
+		this.parser = Manifest.JSON_FACTORY.createParser(in);
+		this.filter = filter;
+		
+		if (this.parser.nextToken() != JsonToken.START_OBJECT) {
+			throw new JsonParseException("A vault inventory is a JSON object", this.parser.getCurrentLocation());
+		}
+	}
+	
+	public static InventoryReader open(File file, InventoryFilter filter) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+		try {
+			return new InventoryReader(in, filter);
+		} catch (IOException | RuntimeException e) {
+			in.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return the vault's ARN, or null if it hasn't been read yet
+	 */
+	public String getVaultArn() {
+		return this.vaultArn;
+	}
+	
+	public String getInventoryDate() {
+		return this.inventoryDate;
+	}
+	
+	/**
+	 * @return how many archives have been read so far, including any the filter left out
+	 */
+	public long getArchivesRead() {
+		return this.archivesRead;
+	}
+	
+	/**
+	 * @return the next archive the filter accepts, or null if there are no more
+	 */
+	public Inventory.Archive read() throws IOException {
+		while (this.inArchiveList || this.findArchiveList()) {
+			JsonToken token = this.parser.nextToken();
+			if (token == JsonToken.END_ARRAY) {
+				this.inArchiveList = false;
+				continue;
+			} else if (token != JsonToken.START_OBJECT) {
+				throw new JsonParseException("Expected an archive, but found " + token, this.parser.getCurrentLocation());
+			}
+			
+			Inventory.Archive archive = this.readArchive();
+			this.archivesRead++;
+			if (this.filter == null || this.filter.accept(archive)) {
+				return archive;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Reads top level fields up to the start of the {@code ArchiveList}.
+	 * 
+	 * @return false if the inventory ended first
+	 */
+	protected boolean findArchiveList() throws IOException {
+		while (this.parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = this.parser.getCurrentName();
+			JsonToken value = this.parser.nextToken();
+			
+			if ("ArchiveList".equals(field)) {
+				if (value != JsonToken.START_ARRAY) {
+					throw new JsonParseException("ArchiveList isn't an array", this.parser.getCurrentLocation());
+				}
+				this.inArchiveList = true;
+				return true;
+			} else if ("VaultARN".equals(field)) {
+				this.vaultArn = this.parser.getText();
+			} else if ("InventoryDate".equals(field)) {
+				this.inventoryDate = this.parser.getText();
+			} else {
+				this.parser.skipChildren();
+			}
+		}
+		return false;
+	}
+	
+	protected Inventory.Archive readArchive() throws IOException {
+		String archiveId = null;
+		String description = null;
+		String creationDate = null;
+		long size = -1;
+		String treeHash = null;
+		
+		while (this.parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = this.parser.getCurrentName();
+			this.parser.nextToken();
+			
+			switch (field) {
+			case "ArchiveId":
+				archiveId = this.parser.getText();
+				break;
+			case "ArchiveDescription":
+				description = this.parser.getText();
+				break;
+			case "CreationDate":
+				creationDate = this.parser.getText();
+				break;
+			case "Size":
+				size = this.parser.getLongValue();
+				break;
+			case "SHA256TreeHash":
+				treeHash = this.parser.getText();
+				break;
+			default:
+				this.parser.skipChildren();
+				break;
+			}
+		}
+		
+		if (archiveId == null || size < 0 || treeHash == null) {
+			throw new JsonParseException("Archive " + this.archivesRead + " needs an ArchiveId, Size and SHA256TreeHash", this.parser.getCurrentLocation());
+		}
+		return new Inventory.Archive(archiveId, description, creationDate, size, treeHash);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		this.parser.close();
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Lists the archives a stream was split into when it rolled over, in order.  Concatenating them gives back the
+ * stream.  It's uploaded as an archive of its own, as JSON, once the others are complete.
+ */
+public class Manifest {
+
+	public static final int VERSION = 1;
+	
+	protected static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+	
+	protected final String description;
+	protected final long partSize;
+	protected final List<Entry> archives = new ArrayList<Entry>();
+	
+	public Manifest(String description, long partSize) {
+		this.description = description;
+		this.partSize = partSize;
+	}
+	
+	public void add(String description, String location, long offset, long size, String treeHash) {
+		this.archives.add(new Entry(description, location, offset, size, treeHash));
+	}
+	
+	public String getDescription() {
+		return this.description;
+	}
+	
+	public long getPartSize() {
+		return this.partSize;
+	}
+	
+	public List<Entry> getArchives() {
+		return Collections.unmodifiableList(this.archives);
+	}
+	
+	/**
+	 * @return the size of the whole stream
+	 */
+	public long getSize() {
+		long size = 0;
+		for (Entry entry : this.archives) {
+			size += entry.size;
+		}
+		return size;
+	}
+	
+	public void write(OutputStream out) throws IOException {
+		try (JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+			generator.useDefaultPrettyPrinter();
+			generator.writeStartObject();
+			generator.writeNumberField("version", VERSION);
+			generator.writeStringField("description", this.description);
+			generator.writeNumberField("size", this.getSize());
+			generator.writeNumberField("partSize", this.partSize);
+			
+			generator.writeArrayFieldStart("archives");
+			for (Entry entry : this.archives) {
+				generator.writeStartObject();
+				generator.writeStringField("description", entry.description);
+				generator.writeStringField("archiveId", entry.getArchiveId());
+				generator.writeStringField("location", entry.location);
+				generator.writeNumberField("offset", entry.offset);
+				generator.writeNumberField("size", entry.size);
+				generator.writeStringField("treeHash", entry.treeHash);
+				generator.writeEndObject();
+			}
+			generator.writeEndArray();
+			
+			generator.writeEndObject();
+		}
+	}
+	
+	/**
+	 * @return the archive ID at the end of a location, {@code /<account>/vaults/<vault>/archives/<archive ID>}
+	 */
+	public static String getArchiveId(String location) {
+		return location != null ? location.substring(location.lastIndexOf('/') + 1) : null;
+	}
+	
+	public static class Entry {
+		
+		public final String description;
+		public final String location;
+		public final long offset;
+		public final long size;
+		public final String treeHash;
+		
+		public Entry(String description, String location, long offset, long size, String treeHash) {
+			this.description = description;
+			this.location = location;
+			this.offset = offset;
+			this.size = size;
+			this.treeHash = treeHash;
+		}
+		
+		public String getArchiveId() {
+			return Manifest.getArchiveId(this.location);
+		}
+	}
+}
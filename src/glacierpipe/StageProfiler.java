@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accounts for where the wall time of {@link GlacierPipe#pipe} goes, so it's possible to tell whether an upload is
+ * limited by whatever is writing to stdin, by the CPU, by throttling or by the network.
+ */
+public class StageProfiler {
+
+	public enum Stage {
+		UPSTREAM("upstream-bound", "blocked reading input"),
+		HASHING("hash-bound", "computing checksums"),
+		BUFFERING("buffer-bound", "copying into the buffer"),
+		THROTTLING("throttle-bound", "waiting on the throttle"),
+		UPLOADING("network-bound", "waiting on uploads"),
+		RETRY_SLEEP("retry-bound", "waiting on retries");
+		
+		public final String bound;
+		public final String description;
+		
+		private Stage(String bound, String description) {
+			this.bound = bound;
+			this.description = description;
+		}
+	}
+	
+	protected final AtomicLongArray nanos = new AtomicLongArray(Stage.values().length);
+	protected volatile long start = System.nanoTime();
+	
+	public void reset() {
+		for (int i = 0; i < this.nanos.length(); i++) {
+			this.nanos.set(i, 0);
+		}
+		this.start = System.nanoTime();
+	}
+	
+	public void add(Stage stage, long nanos) {
+		if (nanos > 0) {
+			this.nanos.addAndGet(stage.ordinal(), nanos);
+		}
+	}
+	
+	public long getNanos(Stage stage) {
+		return this.nanos.get(stage.ordinal());
+	}
+	
+	public Profile getProfile() {
+		long[] nanos = new long[this.nanos.length()];
+		for (int i = 0; i < nanos.length; i++) {
+			nanos[i] = this.nanos.get(i);
+		}
+		
+		return new Profile(System.nanoTime() - this.start, nanos);
+	}
+	
+	public static class Profile {
+		
+		public final long wallNanos;
+		protected final long[] nanos;
+		
+		public Profile(long wallNanos, long[] nanos) {
+			if (nanos.length != Stage.values().length) {
+				throw new IllegalArgumentException("expected " + Stage.values().length + " stages; got " + nanos.length);
+			}
+			
+			this.wallNanos = wallNanos;
+			this.nanos = nanos.clone();
+		}
+		
+		public long getNanos(Stage stage) {
+			return this.nanos[stage.ordinal()];
+		}
+		
+		public double getFraction(Stage stage) {
+			return this.wallNanos > 0 ? (double)this.nanos[stage.ordinal()] / this.wallNanos : 0.0;
+		}
+		
+		public long getUnaccountedNanos() {
+			long accounted = 0;
+			for (long n : this.nanos) {
+				accounted += n;
+			}
+			return Math.max(0, this.wallNanos - accounted);
+		}
+		
+		public Stage getBottleneck() {
+			Stage bottleneck = null;
+			for (Stage stage : Stage.values()) {
+				if (this.getNanos(stage) > 0 && (bottleneck == null || this.getNanos(stage) > this.getNanos(bottleneck))) {
+					bottleneck = stage;
+				}
+			}
+			return bottleneck;
+		}
+		
+		/**
+		 * @return stages sorted by time spent in them, largest first, omitting those where no time was spent
+		 */
+		public List<Stage> getStagesByTime() {
+			List<Stage> stages = new ArrayList<Stage>();
+			for (Stage stage : Stage.values()) {
+				if (this.getNanos(stage) > 0) {
+					stages.add(stage);
+				}
+			}
+			
+			Collections.sort(stages, new Comparator<Stage>() {
+				@Override
+				public int compare(Stage a, Stage b) {
+					return Long.compare(Profile.this.getNanos(b), Profile.this.getNanos(a));
+				}
+			});
+			
+			return stages;
+		}
+		
+		/**
+		 * @return e.g. "upstream-bound 62%, network-bound 30%", listing stages that account for at least 1% of wall time
+		 */
+		public String getSummary() {
+			StringBuilder summary = new StringBuilder();
+			for (Stage stage : this.getStagesByTime()) {
+				long percent = Math.round(100.0 * this.getFraction(stage));
+				if (percent >= 1) {
+					if (summary.length() > 0) {
+						summary.append(", ");
+					}
+					summary.append(stage.bound).append(' ').append(percent).append('%');
+				}
+			}
+			
+			return summary.length() > 0 ? summary.toString() : "-";
+		}
+
+		@Override
+		public String toString() {
+			return this.getSummary();
+		}
+	}
+}
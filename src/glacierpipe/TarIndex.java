@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe;
+
+import glacierpipe.io.TarEntryObserver;
+import glacierpipe.io.TarIndexInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Lists where each member of a tar archive is in it, so one member can be restored with a range retrieval rather than
+ * retrieving the whole archive.  It's filled in by {@link TarIndexInputStream} as the archive's uploaded, and kept
+ * gzipped JSON from the start, so it only needs a few bytes of memory per member:
+ * 
+ * <pre>
+ * {"version":1,"description":"...","members":[{"name":"...","type":"0","offset":0,"dataOffset":512,"size":100},...],
+ *  "location":"...","archiveId":"..."}
+ * </pre>
+ * 
+ * Offsets are into the stream as uploaded; if it rolled over, the {@link Manifest} at the location gives the archive
+ * each one's in.
+ */
+public class TarIndex implements TarEntryObserver {
+
+	public static final int VERSION = 1;
+	
+	/**
+	 * Glacier's range retrievals have to start and end on a megabyte
+	 */
+	public static final long RETRIEVAL_ALIGNMENT = 1024 * 1024;
+	
+	protected final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	protected final GZIPOutputStream gzipOut;
+	protected final JsonGenerator generator;
+	protected int members = 0;
+	protected boolean finished = false;
+	
+	public TarIndex(String description) throws IOException {
+		this.gzipOut = new GZIPOutputStream(this.bytes);
+		this.generator = Manifest.JSON_FACTORY.createGenerator(this.gzipOut, JsonEncoding.UTF8);
+		this.generator.writeStartObject();
+		this.generator.writeNumberField("version", VERSION);
+		this.generator.writeStringField("description", description);
+		this.generator.writeArrayFieldStart("members");
+	}
+	
+	@Override
+	public void entry(String name, char type, long offset, long dataOffset, long size) {
+		if (this.finished) {
+			throw new IllegalStateException("index already finished");
+		}
+		
+		try {
+			this.generator.writeStartObject();
+			this.generator.writeStringField("name", name);
+			this.generator.writeStringField("type", String.valueOf(type));
+			this.generator.writeNumberField("offset", offset);
+			this.generator.writeNumberField("dataOffset", dataOffset);
+			this.generator.writeNumberField("size", size);
+				this.generator.writeEndObject();
+			this.members++;
+		} catch (IOException e) {
+			// It's all in memory
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	public int getMembers() {
+		return this.members;
+	}
+	
+	/**
+	 * Records where the archive ended up, once it's uploaded.  Nothing can be added after.
+	 */
+	public void finish(String location) throws IOException {
+		if (this.finished) {
+			throw new IllegalStateException("index already finished");
+		}
+		this.finished = true;
+		
+		this.generator.writeEndArray();
+		this.generator.writeStringField("location", location);
+		this.generator.writeStringField("archiveId", Manifest.getArchiveId(location));
+		this.generator.writeEndObject();
+		this.generator.close();
+		this.gzipOut.close();
+	}
+	
+	/**
+	 * @return the gzipped index, once it's finished
+	 */
+	public byte[] toByteArray() {
+		if (!this.finished) {
+			throw new IllegalStateException("index not finished");
+		}
+		return this.bytes.toByteArray();
+	}
+	
+	public void write(OutputStream out) throws IOException {
+		out.write(this.toByteArray());
+	}
+	
+	/**
+	 * @param offset where the range starts
+	 * @param length how long it is
+	 * @param size the size of the archive
+	 * @return the smallest range, as {@code [start, end]} inclusive, that covers {@code [offset, offset + length)}
+	 * and can be retrieved
+	 */
+	public static long[] getRetrievalRange(long offset, long length, long size) {
+		if (offset < 0 || length < 0 || offset + length > size) {
+			throw new IllegalArgumentException("range outside the archive; offset = " + offset + "; length = " + length + "; size = " + size);
+		}
+		
+		long start = offset / RETRIEVAL_ALIGNMENT * RETRIEVAL_ALIGNMENT;
+		long end = (offset + length + RETRIEVAL_ALIGNMENT - 1) / RETRIEVAL_ALIGNMENT * RETRIEVAL_ALIGNMENT;
+		return new long[] { start, Math.min(end, size) - 1 };
+	}
+}
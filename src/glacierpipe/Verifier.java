@@ -0,0 +1,252 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package glacierpipe;
+
+import glacierpipe.security.ParallelTreeHash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Checks that local files are in Glacier, by their tree hashes, against the archives a vault inventory or the
+ * {@link Catalog} says are there.  A file matches an archive with the same tree hash and size, whatever it's called;
+ * failing that, one whose description is the file's path or name means the file's changed since it was uploaded.
+ * <p>
+ * Files are memory mapped and hashed with {@link ParallelTreeHash}.  A few are read at once, so the disks are kept
+ * busy without being made to seek between dozens of files, and their segments are all hashed on one pool of threads,
+ * one per processor, so a big file uses every processor and small ones don't take any more threads.
+ */
+public class Verifier {
+
+	public static final int DEFAULT_CONCURRENT_FILES = 4;
+	
+	public enum Status {
+		MATCHED,
+		CHANGED,
+		MISSING
+	}
+	
+	protected final int concurrentFiles;
+	protected final int hashThreads;
+	
+	protected final Map<String, List<Archive>> byTreeHash = new HashMap<String, List<Archive>>();
+	protected final Map<String, Archive> byDescription = new HashMap<String, Archive>();
+	
+	/**
+	 * @param concurrentFiles how many files to read at once
+	 * @param hashThreads how many threads to hash them on
+	 */
+	public Verifier(int concurrentFiles, int hashThreads) {
+		if (concurrentFiles < 1 || hashThreads < 1) {
+			throw new IllegalArgumentException("concurrentFiles and hashThreads must be at least 1; concurrentFiles = " + concurrentFiles + "; hashThreads = " + hashThreads);
+		}
+		
+		this.concurrentFiles = concurrentFiles;
+		this.hashThreads = hashThreads;
+	}
+	
+	/**
+	 * Adds an archive that's in Glacier.  Of archives with the same description, the last added is the one files are
+	 * compared with.
+	 * 
+	 * @param treeHash in hex
+	 */
+	public void add(String archiveId, String description, long size, String treeHash) {
+		Archive archive = new Archive(archiveId, description, size, treeHash.toLowerCase());
+		
+		List<Archive> archives = this.byTreeHash.get(archive.treeHash);
+		if (archives == null) {
+			archives = new ArrayList<Archive>(1);
+			this.byTreeHash.put(archive.treeHash, archives);
+		}
+		archives.add(archive);
+		
+		if (description != null) {
+			this.byDescription.put(description, archive);
+		}
+	}
+	
+	/**
+	 * Adds the archives in an inventory that could have anything to do with {@code files}: the ones the same size as
+	 * one of them, or described by one's path or name.  Only they're kept in memory, however big the inventory is.
+	 * 
+	 * @return how many were added
+	 */
+	public int add(InventoryReader inventory, List<File> files) throws IOException {
+		Set<Long> sizes = new HashSet<Long>();
+		Set<String> names = new HashSet<String>();
+		for (File file : files) {
+			sizes.add(file.length());
+			names.add(file.getPath());
+			names.add(file.getName());
+		}
+		
+		int added = 0;
+		Inventory.Archive archive;
+		while ((archive = inventory.read()) != null) {
+			if (sizes.contains(archive.size) || names.contains(archive.description)) {
+				this.add(archive.archiveId, archive.description, archive.size, archive.treeHash);
+				added++;
+			}
+		}
+		return added;
+	}
+	
+	/**
+	 * @param region only archives in this region are added, or those in every region if null
+	 * @param vault only archives in this vault are added, or those in every vault if null
+	 */
+	public void add(Catalog catalog, String region, String vault) {
+		for (Catalog.Entry entry : catalog.getEntries()) {
+			if ((region == null || region.equals(entry.region)) && (vault == null || vault.equals(entry.vault))) {
+				this.add(entry.getArchiveId(), entry.description, entry.size, entry.treeHash);
+			}
+		}
+	}
+	
+	/**
+	 * Verifies every file, reporting each to {@code observer} as it's done, in no particular order.
+	 */
+	public void verify(List<File> files, final VerifyObserver observer) throws IOException {
+		final ExecutorService hashExecutor = ParallelTreeHash.newExecutor(this.hashThreads);
+		ExecutorService fileExecutor = Executors.newFixedThreadPool(this.concurrentFiles, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "glacierpipe-verify");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		try {
+			List<Future<?>> verifications = new ArrayList<Future<?>>(files.size());
+			for (final File file : files) {
+				verifications.add(fileExecutor.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							observer.verified(Verifier.this.verify(file, hashExecutor));
+						} catch (IOException e) {
+							observer.exceptionVerifying(file, e);
+						}
+					}
+				}));
+			}
+			
+			for (Future<?> verification : verifications) {
+				verification.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Verification interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			fileExecutor.shutdownNow();
+			hashExecutor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * @param hashExecutor what to hash the file's segments on
+	 */
+	public Result verify(File file, ExecutorService hashExecutor) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			String treeHash = BinaryUtils.toHex(ParallelTreeHash.compute(channel, 0, size, hashExecutor));
+			return this.match(file, size, treeHash);
+		}
+	}
+	
+	protected Result match(File file, long size, String treeHash) {
+		Archive described = this.byDescription.get(file.getPath());
+		if (described == null) {
+			described = this.byDescription.get(file.getName());
+		}
+		
+		// The same contents under any name will do, though one with the file's name is the better answer
+		List<Archive> archives = this.byTreeHash.get(treeHash);
+		if (archives != null) {
+			Archive matched = null;
+			for (Archive archive : archives) {
+				if (archive.size == size && (matched == null || archive == described)) {
+					matched = archive;
+				}
+			}
+			if (matched != null) {
+				return new Result(file, size, treeHash, Status.MATCHED, matched.archiveId);
+			}
+		}
+		
+		if (described != null) {
+			return new Result(file, size, treeHash, Status.CHANGED, described.archiveId);
+		}
+		return new Result(file, size, treeHash, Status.MISSING, null);
+	}
+	
+	protected static class Archive {
+		
+		public final String archiveId;
+		public final String description;
+		public final long size;
+		public final String treeHash;
+		
+		public Archive(String archiveId, String description, long size, String treeHash) {
+			this.archiveId = archiveId;
+			this.description = description;
+			this.size = size;
+			this.treeHash = treeHash;
+		}
+	}
+	
+	public static class Result {
+		
+		public final File file;
+		public final long size;
+		public final String treeHash;
+		public final Status status;
+		
+		/**
+		 * The archive the file matched, or, if it's changed, the one with its name; null if it's missing
+		 */
+		public final String archiveId;
+		
+		public Result(File file, long size, String treeHash, Status status, String archiveId) {
+			this.file = file;
+			this.size = size;
+			this.treeHash = treeHash;
+			this.status = status;
+			this.archiveId = archiveId;
+		}
+	}
+}
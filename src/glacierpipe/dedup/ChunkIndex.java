@@ -0,0 +1,457 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.dedup;
+
+import glacierpipe.Manifest;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where every chunk uploaded so far is, kept on disk so later uploads can refer to it rather than upload it again.
+ * It's a directory of:
+ * 
+ * <ul>
+ * <li>{@code chunks}, an open addressing hash table of chunk hashes, memory mapped so it lives off the heap and only
+ * the parts in use need to be in memory.  Each 32 byte slot holds the first 16 bytes of a chunk's SHA-256, the archive
+ * it's in, and its offset and size there.  The table doubles once it's 70% full, so hundreds of millions of chunks
+ * take a few tens of gigabytes of mostly untouched disk.</li>
+ * <li>{@code archives}, the archives chunks are in, one per line, appended to as they're uploaded</li>
+ * <li>{@code pending}, while an upload's going on, an index of its own of the new chunks being uploaded; see
+ * {@link #openPending}</li>
+ * </ul>
+ * 
+ * Only one process can use an index at a time.
+ */
+public class ChunkIndex implements Closeable {
+
+	public static final byte[] MAGIC = "GPCHUNK1".getBytes(StandardCharsets.US_ASCII);
+	
+	/**
+	 * How much of a chunk's hash is kept.  A collision among a billion chunks is about a 1 in 10^21 chance.
+	 */
+	public static final int KEY_LENGTH = 16;
+	
+	protected static final String TABLE = "chunks";
+	protected static final String ARCHIVES = "archives";
+	protected static final String LOCK = "lock";
+	protected static final String PENDING = "pending";
+	
+	protected static final int HEADER_SIZE = 32;
+	protected static final int SLOT_SIZE = 32;
+	protected static final long INITIAL_SLOTS = 1 << 16;
+	protected static final double MAX_LOAD = 0.7;
+	
+	/**
+	 * A mapping can't be bigger than 2 GB, so the table's mapped in pieces.  Slots never straddle them.
+	 */
+	protected static final long SEGMENT_SIZE = 1L << 30;
+	
+	protected final File directory;
+	protected final FileChannel lockChannel;
+	protected final FileLock lock;
+	protected final List<Archive> archives = new ArrayList<Archive>();
+	
+	protected MappedByteBuffer[] segments;
+	protected long slots;
+	protected long count;
+	
+	public ChunkIndex(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create chunk index directory " + directory);
+		}
+		this.directory = directory;
+		
+		// Another process's lock means no lock; another of this process's, an exception
+		this.lockChannel = new RandomAccessFile(new File(directory, LOCK), "rw").getChannel();
+		FileLock lock;
+		try {
+			lock = this.lockChannel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			lock = null;
+		}
+		if (lock == null) {
+			this.lockChannel.close();
+			throw new IOException("chunk index " + directory + " is in use");
+		}
+		this.lock = lock;
+		
+		try {
+			this.readArchives();
+			
+			File table = new File(directory, TABLE);
+			if (table.exists()) {
+				this.map(table);
+			} else {
+				File created = this.createTable(INITIAL_SLOTS);
+				Files.move(created.toPath(), table.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				this.map(table);
+			}
+		} catch (IOException e) {
+			this.lock.release();
+			this.lockChannel.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return how many chunks are indexed
+	 */
+	public long getCount() {
+		return this.count;
+	}
+	
+	public Archive getArchive(int archive) {
+		return this.archives.get(archive);
+	}
+	
+	public List<Archive> getArchives() {
+		return Collections.unmodifiableList(this.archives);
+	}
+	
+	/**
+	 * Records an archive, once it's uploaded, so chunks can be added in it.
+	 * 
+	 * @return the archive's number, for {@link #add}
+	 */
+	public int addArchive(String vault, String location, String description) throws IOException {
+		Archive archive = new Archive(vault, location, description);
+		
+		String line = clean(vault) + "\t" + clean(location) + "\t" + clean(description) + "\n";
+		try (FileOutputStream out = new FileOutputStream(new File(this.directory, ARCHIVES), true)) {
+			out.write(line.getBytes(StandardCharsets.UTF_8));
+			out.getFD().sync();
+		}
+		
+		this.archives.add(archive);
+		return this.archives.size() - 1;
+	}
+	
+	/**
+	 * @param hash the chunk's SHA-256
+	 * @return where the chunk is, or null if it isn't indexed
+	 */
+	public Location lookup(byte[] hash) {
+		ByteBuffer key = ByteBuffer.wrap(hash);
+		long key0 = key.getLong(0);
+		long key1 = key.getLong(8);
+		
+		for (long slot = key0 & (this.slots - 1); ; slot = (slot + 1) & (this.slots - 1)) {
+			MappedByteBuffer segment = getSegment(this.segments, slot);
+			int position = getPosition(slot);
+			
+			int size = segment.getInt(position + 20);
+			if (size == 0) {
+				return null;
+			} else if (segment.getLong(position) == key0 && segment.getLong(position + 8) == key1) {
+				return new Location(segment.getInt(position + 16), segment.getLong(position + 24), size);
+			}
+		}
+	}
+	
+	/**
+	 * Indexes a chunk, unless it already is
+	 * 
+	 * @param archive a number from {@link #addArchive}
+	 */
+	public void add(byte[] hash, int archive, long offset, int size) throws IOException {
+		if (archive < 0 || archive >= this.archives.size()) {
+			throw new IllegalArgumentException("no archive " + archive);
+		} else if (size <= 0) {
+			throw new IllegalArgumentException("size must be positive; size = " + size);
+		}
+		
+		if (this.count + 1 > this.slots * MAX_LOAD) {
+			this.grow();
+		}
+		
+		if (insert(this.segments, this.slots, hash, archive, offset, size)) {
+			this.count++;
+			this.segments[0].putLong(16, this.count);
+		}
+	}
+	
+	/**
+	 * Adds every chunk in another index, e.g. one from {@link #openPending}, as being in one archive of this one
+	 * 
+	 * @param archive a number from {@link #addArchive}
+	 */
+	public void addAll(ChunkIndex other, int archive) throws IOException {
+		for (long slot = 0; slot < other.slots; slot++) {
+			MappedByteBuffer segment = getSegment(other.segments, slot);
+			int position = getPosition(slot);
+			
+			int size = segment.getInt(position + 20);
+			if (size != 0) {
+				byte[] hash = ByteBuffer.allocate(KEY_LENGTH).putLong(segment.getLong(position)).putLong(segment.getLong(position + 8)).array();
+				this.add(hash, archive, segment.getLong(position + 24), size);
+			}
+		}
+	}
+	
+	/**
+	 * Opens an empty index, in a directory of its own in this one, for the new chunks of an upload that's going on.
+	 * They're kept off the heap like the rest, however many there are, and {@link #addAll added} here once they're
+	 * uploaded.  What's left of one from an upload that was cut short is thrown away first.
+	 * 
+	 * @return an index with one archive, 0, for the upload; {@link #discard} it when it's done with
+	 */
+	public ChunkIndex openPending() throws IOException {
+		File directory = new File(this.directory, PENDING);
+		deleteFiles(directory);
+		
+		ChunkIndex pending = new ChunkIndex(directory);
+		try {
+			pending.addArchive("", "", PENDING);
+		} catch (IOException e) {
+			pending.discard();
+			throw e;
+		}
+		return pending;
+	}
+	
+	/**
+	 * Closes the index and deletes it, without bothering to flush it first
+	 */
+	public void discard() throws IOException {
+		try {
+			this.lock.release();
+			this.lockChannel.close();
+		} finally {
+			deleteFiles(this.directory);
+		}
+	}
+	
+	/**
+	 * Flushes the table to disk and lets another process use the index
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			for (MappedByteBuffer segment : this.segments) {
+				segment.force();
+			}
+		} finally {
+			this.lock.release();
+			this.lockChannel.close();
+		}
+	}
+	
+	/**
+	 * Rebuilds the table at twice the size, next to the old one, then replaces it
+	 */
+	protected void grow() throws IOException {
+		long slots = this.slots * 2;
+		File created = this.createTable(slots);
+		MappedByteBuffer[] segments = mapTable(created, slots);
+		
+		long count = 0;
+		for (long slot = 0; slot < this.slots; slot++) {
+			MappedByteBuffer segment = getSegment(this.segments, slot);
+			int position = getPosition(slot);
+			
+			int size = segment.getInt(position + 20);
+			if (size != 0) {
+				byte[] hash = ByteBuffer.allocate(KEY_LENGTH).putLong(segment.getLong(position)).putLong(segment.getLong(position + 8)).array();
+				insert(segments, slots, hash, segment.getInt(position + 16), segment.getLong(position + 24), size);
+				count++;
+			}
+		}
+		
+		segments[0].putLong(16, count);
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+		
+		Files.move(created.toPath(), new File(this.directory, TABLE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.segments = segments;
+		this.slots = slots;
+		this.count = count;
+	}
+	
+	protected static boolean insert(MappedByteBuffer[] segments, long slots, byte[] hash, int archive, long offset, int size) {
+		ByteBuffer key = ByteBuffer.wrap(hash);
+		long key0 = key.getLong(0);
+		long key1 = key.getLong(8);
+		
+		for (long slot = key0 & (slots - 1); ; slot = (slot + 1) & (slots - 1)) {
+			MappedByteBuffer segment = getSegment(segments, slot);
+			int position = getPosition(slot);
+			
+			if (segment.getInt(position + 20) == 0) {
+				segment.putLong(position, key0);
+				segment.putLong(position + 8, key1);
+				segment.putInt(position + 16, archive);
+				segment.putLong(position + 24, offset);
+				
+				// The size goes last; a slot with one is in use
+				segment.putInt(position + 20, size);
+				return true;
+			} else if (segment.getLong(position) == key0 && segment.getLong(position + 8) == key1) {
+				return false;
+			}
+		}
+	}
+	
+	protected static MappedByteBuffer getSegment(MappedByteBuffer[] segments, long slot) {
+		return segments[(int)((HEADER_SIZE + slot * SLOT_SIZE) / SEGMENT_SIZE)];
+	}
+	
+	protected static int getPosition(long slot) {
+		return (int)((HEADER_SIZE + slot * SLOT_SIZE) % SEGMENT_SIZE);
+	}
+	
+	/**
+	 * Creates an empty table with a temporary name.  The file's sparse, so empty slots don't take up disk.
+	 */
+	protected File createTable(long slots) throws IOException {
+		File file = new File(this.directory, TABLE + ".tmp");
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			out.setLength(0);
+			out.setLength(HEADER_SIZE + slots * SLOT_SIZE);
+			out.write(MAGIC);
+			out.writeLong(slots);
+			out.writeLong(0);
+		}
+		return file;
+	}
+	
+	protected void map(File table) throws IOException {
+		long slots;
+		try (RandomAccessFile in = new RandomAccessFile(table, "r")) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			slots = in.readLong();
+			
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException(table + " isn't a chunk index");
+			} else if (slots <= 0 || Long.bitCount(slots) != 1 || in.length() != HEADER_SIZE + slots * SLOT_SIZE) {
+				throw new IOException(table + " is corrupt; it has " + in.length() + " bytes for " + slots + " slots");
+			}
+		}
+		
+		this.segments = mapTable(table, slots);
+		this.slots = slots;
+		this.count = this.segments[0].getLong(16);
+	}
+	
+	protected static MappedByteBuffer[] mapTable(File table, long slots) throws IOException {
+		long length = HEADER_SIZE + slots * SLOT_SIZE;
+		MappedByteBuffer[] segments = new MappedByteBuffer[(int)((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+		
+		// The mappings stay valid once the channel's closed
+		try (FileChannel channel = new RandomAccessFile(table, "rw").getChannel()) {
+			for (int i = 0; i < segments.length; i++) {
+				long position = i * SEGMENT_SIZE;
+				segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(SEGMENT_SIZE, length - position));
+			}
+		}
+		return segments;
+	}
+	
+	protected void readArchives() throws IOException {
+		File file = new File(this.directory, ARCHIVES);
+		if (!file.exists()) {
+			return;
+		}
+		
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 3) {
+					throw new IOException(file + " is corrupt at archive " + this.archives.size());
+				}
+				this.archives.add(new Archive(fields[0], fields[1], fields[2]));
+			}
+		}
+	}
+	
+	protected static void deleteFiles(File directory) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		
+		for (File file : files) {
+			if (!file.delete()) {
+				throw new IOException("Failed to delete " + file);
+			}
+		}
+		if (!directory.delete()) {
+			throw new IOException("Failed to delete " + directory);
+		}
+	}
+	
+	protected static String clean(String field) {
+		return field.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+	}
+	
+	public static class Archive {
+		
+		public final String vault;
+		public final String location;
+		public final String description;
+		
+		public Archive(String vault, String location, String description) {
+			this.vault = vault;
+			this.location = location;
+			this.description = description;
+		}
+		
+		public String getArchiveId() {
+			return Manifest.getArchiveId(this.location);
+		}
+	}
+	
+	/**
+	 * Where a chunk is
+	 */
+	public static class Location {
+		
+		public final int archive;
+		public final long offset;
+		public final int size;
+		
+		public Location(int archive, long offset, int size) {
+			this.archive = archive;
+			this.offset = offset;
+			this.size = size;
+		}
+	}
+}
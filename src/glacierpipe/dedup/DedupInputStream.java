@@ -0,0 +1,278 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.dedup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+
+/**
+ * Splits a stream into chunks with a {@link FastCdcChunker}, and passes on only the chunks that aren't already in the
+ * {@link ChunkIndex}, or earlier in the stream.  Every chunk, new or not, is added to a {@link Recipe}.  New chunks
+ * are at their offset in what's read from here, in an archive numbered {@link #PENDING} until it's uploaded and
+ * they're {@link #commit committed} to the index under its real number; until then, the index doesn't know about them,
+ * so a failed upload doesn't leave it pointing at chunks that aren't anywhere.  They're kept in the meantime in an
+ * index of their own, from {@link ChunkIndex#openPending}, so a stream of millions of new chunks doesn't fill the heap.
+ */
+public class DedupInputStream extends InputStream {
+
+	/**
+	 * The archive number of chunks that are new, and being uploaded
+	 */
+	public static final int PENDING = -1;
+	
+	protected final InputStream in;
+	protected final FastCdcChunker chunker;
+	protected final ChunkIndex index;
+	protected final String vault;
+	protected final Recipe recipe;
+	
+	protected final MessageDigest chunkHash;
+	protected final MessageDigest streamHash;
+	protected byte[] streamDigest;
+	
+	/**
+	 * New chunks, as in archive 0 at their offset in what's read from here; opened with the first one
+	 */
+	protected ChunkIndex pending;
+	
+	/**
+	 * Room for a whole chunk past one that's still being passed on
+	 */
+	protected final byte[] buffer;
+	protected int start = 0;
+	protected int end = 0;
+	protected boolean eof = false;
+	
+	/**
+	 * The new chunk being passed on
+	 */
+	protected int passOffset = 0;
+	protected int passEnd = 0;
+	
+	protected long size = 0;
+	protected long newSize = 0;
+	protected long chunks = 0;
+	protected long newChunks = 0;
+	
+	/**
+	 * @param vault chunks in other vaults' archives aren't any use, so they count as new
+	 */
+	public DedupInputStream(InputStream in, FastCdcChunker chunker, ChunkIndex index, String vault, Recipe recipe) {
+		this.in = Objects.requireNonNull(in, "in was null");
+		this.chunker = Objects.requireNonNull(chunker, "chunker was null");
+		this.index = Objects.requireNonNull(index, "index was null");
+		this.vault = Objects.requireNonNull(vault, "vault was null");
+		this.recipe = Objects.requireNonNull(recipe, "recipe was null");
+		this.buffer = new byte[chunker.getMaxSize() * 2];
+		
+		try {
+			this.chunkHash = MessageDigest.getInstance("SHA-256");
+			this.streamHash = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 not available", e);
+		}
+	}
+	
+	@Override
+	public int read() throws IOException {
+		if (!this.awaitNewChunk()) {
+			return -1;
+		}
+		return this.buffer[this.passOffset++] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		} else if (!this.awaitNewChunk()) {
+			return -1;
+		}
+		
+		int read = Math.min(len, this.passEnd - this.passOffset);
+		System.arraycopy(this.buffer, this.passOffset, b, off, read);
+		this.passOffset += read;
+		return read;
+	}
+	
+	/**
+	 * Closes the stream, and throws away the new chunks if they haven't been committed
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			this.discardPending();
+		} finally {
+			this.in.close();
+		}
+	}
+	
+	/**
+	 * Reads past chunks that are already indexed until there's a new one to pass on, or the stream ends.
+	 * 
+	 * @return false if the stream ended without another new chunk
+	 */
+	public boolean awaitNewChunk() throws IOException {
+		while (this.passOffset == this.passEnd) {
+			if (!this.nextChunk()) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Indexes the new chunks, once they're uploaded
+	 * 
+	 * @param archive the number {@link ChunkIndex#addArchive} gave the archive they were uploaded to
+	 */
+	public void commit(int archive) throws IOException {
+		if (this.pending != null) {
+			this.index.addAll(this.pending, archive);
+		}
+		this.discardPending();
+	}
+	
+	/**
+	 * @return the size of the whole stream read so far
+	 */
+	public long getSize() {
+		return this.size;
+	}
+	
+	/**
+	 * @return how much of it was new, and passed on
+	 */
+	public long getNewSize() {
+		return this.newSize;
+	}
+	
+	public long getChunks() {
+		return this.chunks;
+	}
+	
+	public long getNewChunks() {
+		return this.newChunks;
+	}
+	
+	/**
+	 * @return the SHA-256 of the whole stream, once it's been read to the end
+	 */
+	public byte[] getStreamDigest() {
+		if (this.streamDigest == null) {
+			throw new IllegalStateException("stream not read to the end");
+		}
+		return this.streamDigest.clone();
+	}
+	
+	/**
+	 * Finds the next chunk, and if it's new, passes it on
+	 * 
+	 * @return false if there are no chunks left
+	 */
+	protected boolean nextChunk() throws IOException {
+		int maxSize = this.chunker.getMaxSize();
+		
+		// Keep a whole chunk's worth ahead, so there's always enough to find the next boundary in
+		if (this.end - this.start < maxSize && !this.eof) {
+			System.arraycopy(this.buffer, this.start, this.buffer, 0, this.end - this.start);
+			this.end -= this.start;
+			this.passOffset = this.passEnd = this.start = 0;
+			
+			while (this.end < maxSize) {
+				int read = this.in.read(this.buffer, this.end, this.buffer.length - this.end);
+				if (read < 0) {
+					this.eof = true;
+					break;
+				}
+				this.end += read;
+			}
+		}
+		
+		if (this.start == this.end) {
+			if (this.streamDigest == null) {
+				this.streamDigest = this.streamHash.digest();
+			}
+			return false;
+		}
+		
+		int length = this.chunker.findBoundary(this.buffer, this.start, this.end - this.start);
+		if (length < 0) {
+			// Only at the end of the stream, where the last chunk is whatever's left
+			length = this.end - this.start;
+		}
+		
+		int offset = this.start;
+		this.start += length;
+		if (this.addChunk(offset, length)) {
+			this.passOffset = offset;
+			this.passEnd = offset + length;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return whether the chunk's new
+	 */
+	protected boolean addChunk(int offset, int length) throws IOException {
+		this.streamHash.update(this.buffer, offset, length);
+		this.chunkHash.update(this.buffer, offset, length);
+		byte[] hash = this.chunkHash.digest();
+		
+		this.size += length;
+		this.chunks++;
+		
+		ChunkIndex.Location location = this.index.lookup(hash);
+		if (location != null && !this.vault.equals(this.index.getArchive(location.archive).vault)) {
+			location = null;
+		}
+		if (location == null && this.pending != null) {
+			location = this.pending.lookup(hash);
+			if (location != null) {
+				location = new ChunkIndex.Location(PENDING, location.offset, location.size);
+			}
+		}
+		
+		if (location != null) {
+			this.recipe.add(location.archive, location.offset, location.size);
+			return false;
+		}
+		
+		if (this.pending == null) {
+			this.pending = this.index.openPending();
+		}
+		this.pending.add(hash, 0, this.newSize, length);
+		this.recipe.add(PENDING, this.newSize, length);
+		this.newSize += length;
+		this.newChunks++;
+		return true;
+	}
+	
+	protected void discardPending() throws IOException {
+		if (this.pending != null) {
+			ChunkIndex pending = this.pending;
+			this.pending = null;
+			pending.discard();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.dedup;
+
+import java.util.Random;
+
+/**
+ * Finds content-defined chunk boundaries with FastCDC: a gear hash rolls over the bytes, and a chunk ends where the
+ * hash's top bits are all zero.  Since the hash only depends on the last 64 bytes, boundaries depend on the content
+ * around them, not on where they are, so an insertion or deletion only changes the chunks it's in, and the rest of
+ * the stream still deduplicates.  Cutting is harder before the average size and easier after, which keeps chunk sizes
+ * close to it; chunks are between a quarter of it and four times it.
+ */
+public class FastCdcChunker {
+
+	public static final int DEFAULT_AVERAGE_SIZE = 256 * 1024;
+	public static final int MIN_AVERAGE_SIZE = 4 * 1024;
+	public static final int MAX_AVERAGE_SIZE = 64 * 1024 * 1024;
+	
+	/**
+	 * A random value for each byte.  These can't change without changing every chunk boundary, so they come from a
+	 * fixed seed.
+	 */
+	protected static final long[] GEAR = new long[256];
+	
+	static {
+		Random random = new Random(0x676c616369657270L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+	
+	protected final int minSize;
+	protected final int averageSize;
+	protected final int maxSize;
+	
+	/**
+	 * Before the average size, two more bits must be zero than the average needs; after it, two fewer
+	 */
+	protected final long smallMask;
+	protected final long largeMask;
+	
+	public FastCdcChunker() {
+		this(DEFAULT_AVERAGE_SIZE);
+	}
+	
+	/**
+	 * @param averageSize a power of two between {@link #MIN_AVERAGE_SIZE} and {@link #MAX_AVERAGE_SIZE}
+	 */
+	public FastCdcChunker(int averageSize) {
+		if (averageSize < MIN_AVERAGE_SIZE || averageSize > MAX_AVERAGE_SIZE || Integer.bitCount(averageSize) != 1) {
+			throw new IllegalArgumentException("averageSize must be a power of two between " + MIN_AVERAGE_SIZE + " and " + MAX_AVERAGE_SIZE + "; averageSize = " + averageSize);
+		}
+		
+		int bits = Integer.numberOfTrailingZeros(averageSize);
+		this.minSize = averageSize / 4;
+		this.averageSize = averageSize;
+		this.maxSize = averageSize * 4;
+		this.smallMask = topBits(bits + 2);
+		this.largeMask = topBits(bits - 2);
+	}
+	
+	public int getMinSize() {
+		return this.minSize;
+	}
+	
+	public int getAverageSize() {
+		return this.averageSize;
+	}
+	
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+	
+	/**
+	 * @param data a chunk's worth of data, starting where the last chunk ended
+	 * @return the length of the chunk that starts at {@code offset}, or -1 if there's no boundary in {@code length}
+	 * bytes and it's less than {@link #getMaxSize}, in which case the chunk either needs more data or, at the end of the
+	 * stream, is all of it
+	 */
+	public int findBoundary(byte[] data, int offset, int length) {
+		if (length <= this.minSize) {
+			return -1;
+		}
+		
+		int end = Math.min(length, this.maxSize);
+		int normal = Math.min(end, this.averageSize);
+		
+		// Bytes before the minimum size can't be a boundary, so they aren't hashed
+		long hash = 0;
+		int i = this.minSize;
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+			if ((hash & this.smallMask) == 0) {
+				return i + 1;
+			}
+		}
+		for (; i < end; i++) {
+			hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+			if ((hash & this.largeMask) == 0) {
+				return i + 1;
+			}
+		}
+		
+		return end == this.maxSize ? this.maxSize : -1;
+	}
+	
+	/**
+	 * The low bits of a gear hash only depend on the last few bytes, so the mask's on the high ones
+	 */
+	protected static long topBits(int bits) {
+		return -1L << (64 - bits);
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.dedup;
+
+import glacierpipe.Manifest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import com.amazonaws.util.BinaryUtils;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * How to put a deduplicated stream back together: the runs of chunks it's made of, in order, each as the archive it's
+ * in, its offset there and its size.  Chunks that follow on from each other in the same archive are one run, so a
+ * stream that's mostly unchanged takes a few runs rather than a line per chunk.  It's kept as gzipped JSON from the
+ * start:
+ * 
+ * <pre>
+ * {"version":1,"description":"...","runs":[[0,0,1048576],[1,0,262144],...],"size":...,"sha256":"...",
+ *  "archives":[{"description":"...","archiveId":"...","location":"..."},...]}
+ * </pre>
+ * 
+ * where each run's first number is an index into {@code archives}, and {@code sha256} is the whole stream's, to check
+ * it once it's put back together.  Offsets are into archives as uploaded; if one rolled over, the {@link Manifest} at
+ * its location gives the archive each one's in.
+ */
+public class Recipe {
+
+	public static final int VERSION = 1;
+	
+	protected static final JsonFactory JSON_FACTORY = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+	
+	protected final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	protected final GZIPOutputStream gzipOut;
+	protected final JsonGenerator generator;
+	
+	/**
+	 * {@link ChunkIndex} archive numbers, or {@link DedupInputStream#PENDING}, to their index in this recipe
+	 */
+	protected final Map<Integer, Integer> archives = new LinkedHashMap<Integer, Integer>();
+	
+	protected int runArchive;
+	protected long runOffset;
+	protected long runSize = 0;
+	protected long runs = 0;
+	protected boolean finished = false;
+	
+	public Recipe(String description) throws IOException {
+		this.gzipOut = new GZIPOutputStream(this.bytes);
+		this.generator = JSON_FACTORY.createGenerator(this.gzipOut, JsonEncoding.UTF8);
+		this.generator.writeStartObject();
+		this.generator.writeNumberField("version", VERSION);
+		this.generator.writeStringField("description", description);
+		this.generator.writeArrayFieldStart("runs");
+	}
+	
+	/**
+	 * Adds the stream's next chunk
+	 * 
+	 * @param archive a {@link ChunkIndex} archive number, or {@link DedupInputStream#PENDING} for the one being uploaded
+	 */
+	public void add(int archive, long offset, long size) throws IOException {
+		if (this.finished) {
+			throw new IllegalStateException("recipe already finished");
+		}
+		
+		if (this.runSize > 0 && archive == this.runArchive && offset == this.runOffset + this.runSize) {
+			this.runSize += size;
+		} else {
+			this.writeRun();
+			this.runArchive = archive;
+			this.runOffset = offset;
+			this.runSize = size;
+		}
+	}
+	
+	/**
+	 * @return how many runs have been written, not counting the one still growing
+	 */
+	public long getRuns() {
+		return this.runs;
+	}
+	
+	/**
+	 * Writes the archives the runs are in, once the stream's uploaded.  Nothing can be added after.
+	 * 
+	 * @param size the size of the whole stream
+	 * @param sha256 the whole stream's SHA-256
+	 * @param newArchive the number {@link DedupInputStream#PENDING} chunks were given, if there were any
+	 */
+	public void finish(long size, byte[] sha256, ChunkIndex index, int newArchive) throws IOException {
+		if (this.finished) {
+			throw new IllegalStateException("recipe already finished");
+		}
+		this.writeRun();
+		this.finished = true;
+		
+		this.generator.writeEndArray();
+		this.generator.writeNumberField("size", size);
+		this.generator.writeStringField("sha256", BinaryUtils.toHex(sha256));
+		
+		this.generator.writeArrayFieldStart("archives");
+		for (int archive : this.archives.keySet()) {
+			ChunkIndex.Archive entry = index.getArchive(archive == DedupInputStream.PENDING ? newArchive : archive);
+			this.generator.writeStartObject();
+			this.generator.writeStringField("description", entry.description);
+			this.generator.writeStringField("archiveId", entry.getArchiveId());
+			this.generator.writeStringField("location", entry.location);
+			this.generator.writeEndObject();
+		}
+		this.generator.writeEndArray();
+		
+		this.generator.writeEndObject();
+		this.generator.close();
+		this.gzipOut.close();
+	}
+	
+	/**
+	 * @return the gzipped recipe, once it's finished
+	 */
+	public byte[] toByteArray() {
+		if (!this.finished) {
+			throw new IllegalStateException("recipe not finished");
+		}
+		return this.bytes.toByteArray();
+	}
+	
+	public void write(OutputStream out) throws IOException {
+		out.write(this.toByteArray());
+	}
+	
+	protected void writeRun() throws IOException {
+		if (this.runSize == 0) {
+			return;
+		}
+		
+		Integer archive = this.archives.get(this.runArchive);
+		if (archive == null) {
+			archive = this.archives.size();
+			this.archives.put(this.runArchive, archive);
+		}
+		
+		this.generator.writeStartArray();
+		this.generator.writeNumber(archive);
+		this.generator.writeNumber(this.runOffset);
+		this.generator.writeNumber(this.runSize);
+		this.generator.writeEndArray();
+		
+		this.runSize = 0;
+		this.runs++;
+	}
+}
@@ -0,0 +1,37 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.io;
+
+import java.io.IOException;
+
+/**
+ * Turns one block of a stream into another, independently of every other block, so blocks can be transformed in
+ * parallel by {@link ParallelBlockInputStream}.  Must be thread safe.
+ */
+public interface BlockTransform {
+
+	/**
+	 * @param index the block's position in the stream, from 0
+	 * @param last whether it's the stream's last block.  Every stream has one, even if it's empty.
+	 * @return the transformed block, which may be {@code block} itself
+	 */
+	public byte[] transform(long index, boolean last, byte[] block, int offset, int length) throws IOException;
+	
+}
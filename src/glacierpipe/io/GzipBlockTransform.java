@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses each block into a gzip member of its own.  Concatenated members are a valid gzip stream, so the output
+ * can be decompressed by {@code gunzip}, or {@link java.util.zip.GZIPInputStream}, as if it was compressed in one go.
+ * Even empty input becomes an empty member, which is still valid gzip.
+ * Blocks don't share a dictionary, which costs a little compression, a fraction of a percent with 1 MB blocks.
+ */
+public class GzipBlockTransform implements BlockTransform {
+
+	/**
+	 * Deflate, no flags, no modification time, unknown OS
+	 */
+	protected static final byte[] HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte)0xff };
+	protected static final int TRAILER_LENGTH = 8;
+	
+	protected final int level;
+	
+	// Deflaters hold native memory, so each thread keeps one rather than making one per block
+	protected final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(GzipBlockTransform.this.level, true);
+		}
+	};
+	
+	/**
+	 * @param level 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+	 */
+	public GzipBlockTransform(int level) {
+		if ((level < 0 || level > 9) && level != Deflater.DEFAULT_COMPRESSION) {
+			throw new IllegalArgumentException("invalid compression level: " + level);
+		}
+		this.level = level;
+	}
+	
+	public int getLevel() {
+		return this.level;
+	}
+	
+	@Override
+	public byte[] transform(long index, boolean last, byte[] block, int offset, int length) throws IOException {
+		Deflater deflater = this.deflaters.get();
+		deflater.reset();
+		deflater.setInput(block, offset, length);
+		deflater.finish();
+		
+		// Incompressible data grows by 5 bytes per 16 KB stored block
+		byte[] out = new byte[HEADER.length + length + (length >> 12) + 64 + TRAILER_LENGTH];
+		System.arraycopy(HEADER, 0, out, 0, HEADER.length);
+		int size = HEADER.length;
+		
+		while (!deflater.finished()) {
+			if (size == out.length) {
+				out = Arrays.copyOf(out, out.length * 2);
+			}
+			size += deflater.deflate(out, size, out.length - size);
+		}
+		
+		if (out.length - size < TRAILER_LENGTH) {
+			out = Arrays.copyOf(out, size + TRAILER_LENGTH);
+		}
+		
+		CRC32 crc = new CRC32();
+		crc.update(block, offset, length);
+		size = writeIntLE(out, size, (int)crc.getValue());
+		size = writeIntLE(out, size, length);
+		
+		return size == out.length ? out : Arrays.copyOf(out, size);
+	}
+	
+	protected static int writeIntLE(byte[] out, int offset, int value) {
+		out[offset] = (byte)value;
+		out[offset + 1] = (byte)(value >>> 8);
+		out[offset + 2] = (byte)(value >>> 16);
+		out[offset + 3] = (byte)(value >>> 24);
+		return offset + 4;
+	}
+}
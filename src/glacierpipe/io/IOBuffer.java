@@ -21,6 +21,7 @@ package glacierpipe.io;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public interface IOBuffer {
 
@@ -31,4 +32,10 @@ public interface IOBuffer {
 	public OutputStream getOutputStream();
 	public InputStream getInputStream(); 
 	
+	/**
+	 * Returns read-only views of the buffer's contents, in order, so they can be written to a channel without
+	 * copying.  The views are only valid until the buffer is next written to.
+	 */
+	public ByteBuffer[] getByteBuffers();
+	
 }
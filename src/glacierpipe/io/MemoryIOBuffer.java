@@ -22,12 +22,15 @@ package glacierpipe.io;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class MemoryIOBuffer implements IOBuffer {
 
 	protected static final int DEFAULT_ARRAY_SIZE = 1024 * 1024;
 	
+	// Arrays are allocated as they're first written to, so unused capacity costs nothing
 	protected final byte[][] buffer;
+	protected final int arraySize;
 	protected final long capacity;
 	
 	protected int streamCount = 0;
@@ -38,7 +41,8 @@ public class MemoryIOBuffer implements IOBuffer {
 			throw new IllegalArgumentException("size too big for given arraySize");
 		}
 		
-		buffer = new byte[(int)(1 + ((capacity - 1) / arraySize))][arraySize];
+		buffer = new byte[(int)(1 + ((capacity - 1) / arraySize))][];
+		this.arraySize = arraySize;
 		this.capacity = capacity;
 	}
 	
@@ -62,7 +66,21 @@ public class MemoryIOBuffer implements IOBuffer {
 	}
 	
 	@Override
-	public OutputStream getOutputStream() {
+	public synchronized ByteBuffer[] getByteBuffers() {
+		if (this.streamCount < 0) {
+			throw new IllegalStateException("An OutputStream is already open");
+		}
+		
+		ByteBuffer[] buffers = new ByteBuffer[(int)((this.length + this.arraySize - 1) / this.arraySize)];
+		for (int i = 0; i < buffers.length; i++) {
+			int length = (int)Math.min(this.arraySize, this.length - (long)i * this.arraySize);
+			buffers[i] = ByteBuffer.wrap(this.buffer[i], 0, length).asReadOnlyBuffer();
+		}
+		return buffers;
+	}
+	
+	@Override
+	public synchronized OutputStream getOutputStream() {
 		if (this.streamCount == 0) {
 			this.streamCount = -1;
 			return new MemoryOutputStream();
@@ -74,7 +92,7 @@ public class MemoryIOBuffer implements IOBuffer {
 	}
 
 	@Override
-	public InputStream getInputStream() {
+	public synchronized InputStream getInputStream() {
 		if (this.streamCount >= 0) {
 			this.streamCount++;
 			return new MemoryInputStream();
@@ -113,6 +131,7 @@ public class MemoryIOBuffer implements IOBuffer {
 			
 			MemoryIOBuffer.this.length++;
 			
+			this.allocate();
 			MemoryIOBuffer.this.buffer[currentBuffer][currentIndex] = (byte)b;
 			this.position++;
 			if (++currentIndex >= MemoryIOBuffer.this.buffer[currentBuffer].length) {
@@ -143,6 +162,7 @@ public class MemoryIOBuffer implements IOBuffer {
 			MemoryIOBuffer.this.length += len;
 			
 			while (len > 0) {
+				this.allocate();
 				MemoryIOBuffer.this.buffer[currentBuffer][currentIndex] = buf[off];
 				
 				if (++currentIndex >= MemoryIOBuffer.this.buffer[currentBuffer].length) {
@@ -155,11 +175,19 @@ public class MemoryIOBuffer implements IOBuffer {
 			}
 		}
 
+		protected void allocate() {
+			if (MemoryIOBuffer.this.buffer[currentBuffer] == null) {
+				MemoryIOBuffer.this.buffer[currentBuffer] = new byte[MemoryIOBuffer.this.arraySize];
+			}
+		}
+
 		@Override
 		public void close() throws IOException {
-			if (!this.closed) {
-				MemoryIOBuffer.this.streamCount++;
-				this.closed = true;
+			synchronized (MemoryIOBuffer.this) {
+				if (!this.closed) {
+					MemoryIOBuffer.this.streamCount++;
+					this.closed = true;
+				}
 			}
 		}
 	}
@@ -186,9 +214,11 @@ public class MemoryIOBuffer implements IOBuffer {
 		
 		@Override
 		public void close() throws IOException {
-			if (!this.closed) {
-				MemoryIOBuffer.this.streamCount--;
-				this.closed = true;
+			synchronized (MemoryIOBuffer.this) {
+				if (!this.closed) {
+					MemoryIOBuffer.this.streamCount--;
+					this.closed = true;
+				}
 			}
 		}
 
@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Objects;
+
+/**
+ * Writes no faster than a {@link Pacer} allows, splitting large writes as needed.
+ */
+public class PacedOutputStream extends FilterOutputStream {
+
+	protected final Pacer pacer;
+	
+	public PacedOutputStream(OutputStream out, Pacer pacer) {
+		super(out);
+		this.pacer = Objects.requireNonNull(pacer, "pacer was null");
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.acquire(1);
+		this.out.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int granted = this.acquire(len);
+			this.out.write(b, off, granted);
+			off += granted;
+			len -= granted;
+		}
+	}
+	
+	protected int acquire(int wanted) throws InterruptedIOException {
+		try {
+			return this.pacer.acquire(wanted);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while pacing writes");
+		}
+	}
+}
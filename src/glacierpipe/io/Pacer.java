@@ -0,0 +1,195 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.io;
+
+import glacierpipe.io.ThrottledInputStream.ThrottlingStrategy;
+import glacierpipe.jfr.ThrottleSleepEvent;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces writes to the rate set by a {@link ThrottlingStrategy}.  One pacer is shared by every connection, so the
+ * limit applies to their total rather than to each one.  Allowance accrues continuously and is handed out a 20th of
+ * a second's worth at a time, rather than a few bytes whenever a writer asks.  It's capped at a 10th of a second's
+ * worth, so what's written can't burst far past the limit after a pause.  The strategy is consulted at most once per
+ * 20th of a second; a rate that isn't positive and finite means writes aren't limited.
+ */
+public class Pacer {
+
+	protected static final int QUANTA_PER_SECOND = 20;
+	protected static final long QUANTUM = TimeUnit.SECONDS.toNanos(1) / QUANTA_PER_SECOND;
+	
+	protected final ThrottlingStrategy throttlingStrategy;
+	
+	protected double bytesPerSecond = Double.POSITIVE_INFINITY;
+	protected double allowance = 0;
+	protected long lastUpdate;
+	protected long lastRefill;
+	protected int waiting = 0;
+	
+	public Pacer(ThrottlingStrategy throttlingStrategy) {
+		this.throttlingStrategy = Objects.requireNonNull(throttlingStrategy, "throttlingStrategy was null");
+		this.lastRefill = System.nanoTime();
+		this.lastUpdate = this.lastRefill - QUANTUM;
+	}
+	
+	/**
+	 * @return how many of {@code wanted} bytes can be written right now.  This is 0 until a 20th of a second's worth,
+	 * or {@code wanted} if that's less, has accrued.
+	 */
+	public synchronized int tryAcquire(int wanted) {
+		return this.tryAcquire(wanted, System.nanoTime());
+	}
+	
+	/**
+	 * Waits until some bytes can be written.
+	 * 
+	 * @return how many of {@code wanted} bytes can be written, at least 1 unless {@code wanted} was 0
+	 */
+	public synchronized int acquire(int wanted) throws InterruptedException {
+		if (wanted <= 0) {
+			return 0;
+		}
+		
+		while (true) {
+			long now = System.nanoTime();
+			int granted = this.tryAcquire(wanted, now);
+			if (granted > 0) {
+				return granted;
+			}
+			
+			ThrottleSleepEvent event = new ThrottleSleepEvent();
+			event.begin();
+			
+			this.waiting++;
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, this.getDelay(wanted, now));
+			} finally {
+				this.waiting--;
+				
+				if (event.shouldCommit()) {
+					event.budget = (long)this.getQuantum();
+					event.quantaPerSecond = QUANTA_PER_SECOND;
+					event.commit();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Gives back bytes that were acquired but couldn't be written.
+	 */
+	public synchronized void release(int unused) {
+		if (!Double.isInfinite(this.bytesPerSecond)) {
+			this.allowance = Math.min(this.getMaxAllowance(), this.allowance + unused);
+		}
+	}
+	
+	/**
+	 * @return nanoseconds until {@link #tryAcquire} will allow some of {@code wanted} to be written
+	 */
+	public synchronized long getDelay(int wanted) {
+		return this.getDelay(wanted, System.nanoTime());
+	}
+	
+	/**
+	 * Counts a writer that's waiting without blocking in {@link #acquire}, e.g. a connection on a selector.
+	 */
+	public synchronized void startWaiting() {
+		this.waiting++;
+	}
+	
+	public synchronized void stopWaiting() {
+		this.waiting--;
+	}
+	
+	/**
+	 * @return how many writers are waiting for allowance
+	 */
+	public synchronized int getWaiting() {
+		return this.waiting;
+	}
+	
+	public synchronized double getBytesPerSecond() {
+		this.refill(System.nanoTime());
+		return this.bytesPerSecond;
+	}
+	
+	protected int tryAcquire(int wanted, long now) {
+		this.refill(now);
+		
+		if (Double.isInfinite(this.bytesPerSecond)) {
+			return wanted;
+		}
+		
+		if (this.allowance < Math.min(wanted, this.getQuantum())) {
+			return 0;
+		}
+		
+		int granted = (int)Math.min(wanted, (long)this.allowance);
+		this.allowance -= granted;
+		return granted;
+	}
+	
+	protected long getDelay(int wanted, long now) {
+		this.refill(now);
+		
+		if (Double.isInfinite(this.bytesPerSecond)) {
+			return 0;
+		}
+		
+		double needed = Math.min(wanted, this.getQuantum()) - this.allowance;
+		return needed > 0 ? (long)Math.ceil(needed * 1000000000.0 / this.bytesPerSecond) : 0;
+	}
+	
+	protected void refill(long now) {
+		if (now - this.lastUpdate >= QUANTUM) {
+			double bytesPerSecond = this.throttlingStrategy.getBytesPerSecond();
+			if (bytesPerSecond <= 0 || Double.isInfinite(bytesPerSecond) || Double.isNaN(bytesPerSecond)) {
+				this.bytesPerSecond = Double.POSITIVE_INFINITY;
+			} else {
+				this.bytesPerSecond = bytesPerSecond;
+			}
+			this.lastUpdate = now;
+		}
+		
+		if (Double.isInfinite(this.bytesPerSecond)) {
+			this.allowance = 0;
+		} else if (now - this.lastRefill > 0) {
+			this.allowance = Math.min(this.getMaxAllowance(), this.allowance + (now - this.lastRefill) * this.bytesPerSecond / 1000000000.0);
+		}
+		this.lastRefill = now;
+	}
+	
+	/**
+	 * @return how much must accrue before any is handed out
+	 */
+	protected double getQuantum() {
+		return Math.max(1.0, this.bytesPerSecond / QUANTA_PER_SECOND);
+	}
+	
+	/**
+	 * @return the most that can accrue; more than a quantum, so waking up late doesn't cost throughput
+	 */
+	protected double getMaxAllowance() {
+		return 2 * this.getQuantum();
+	}
+}
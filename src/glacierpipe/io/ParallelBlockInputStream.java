@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads a stream in blocks and transforms them on a pool of threads, e.g. compressing them with
+ * {@link GzipBlockTransform}, while returning the results in order.  Blocks are read from the underlying stream by
+ * whichever thread reads this one, a few ahead of what's been returned, so transforming overlaps both reading the
+ * input and whatever's done with the output.
+ */
+public class ParallelBlockInputStream extends InputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+	
+	protected final InputStream in;
+	protected final int blockSize;
+	protected final BlockTransform transform;
+	protected final int maxPending;
+	protected final ExecutorService executor;
+	
+	protected final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	protected byte[] current = new byte[0];
+	protected int position = 0;
+	protected boolean eof = false;
+	protected long blockIndex = 0;
+	
+	/**
+	 * The byte read after a full block to tell whether it was the last, or -1
+	 */
+	protected int lookahead = -1;
+	
+	/**
+	 * @param threads how many blocks can be transformed at once.  Twice as many are read ahead, so there's another
+	 * ready for each thread when it finishes one.
+	 */
+	public ParallelBlockInputStream(InputStream in, int blockSize, BlockTransform transform, int threads) {
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException("blockSize must be positive; blockSize = " + blockSize);
+		} else if (threads <= 0) {
+			throw new IllegalArgumentException("threads must be positive; threads = " + threads);
+		}
+		
+		this.in = Objects.requireNonNull(in, "in was null");
+		this.blockSize = blockSize;
+		this.transform = Objects.requireNonNull(transform, "transform was null");
+		this.maxPending = threads * 2;
+		this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "glacierpipe-block");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		
+		while (this.position == this.current.length) {
+			if (!this.nextBlock()) {
+				return -1;
+			}
+		}
+		
+		int read = Math.min(len, this.current.length - this.position);
+		System.arraycopy(this.current, this.position, b, off, read);
+		this.position += read;
+		return read;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		return this.current.length - this.position;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		this.executor.shutdownNow();
+		this.in.close();
+	}
+	
+	/**
+	 * Moves on to the next transformed block, reading ahead while it's not ready.
+	 * 
+	 * @return false at the end of the stream
+	 */
+	protected boolean nextBlock() throws IOException {
+		do {
+			if (!this.readBlock()) {
+				break;
+			}
+		} while (this.pending.size() < this.maxPending && !this.pending.peek().isDone());
+		
+		Future<byte[]> next = this.pending.poll();
+		if (next == null) {
+			return false;
+		}
+		
+		try {
+			this.current = next.get();
+			this.position = 0;
+			return true;
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted transforming a block");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException("failed to transform a block", e.getCause());
+		}
+	}
+	
+	/**
+	 * Reads a block and starts transforming it, unless the stream's ended or enough are pending.  A block's known to
+	 * be the last when it isn't full, or when nothing follows it.
+	 * 
+	 * @return whether a block was read
+	 */
+	protected boolean readBlock() throws IOException {
+		if (this.eof || this.pending.size() >= this.maxPending) {
+			return false;
+		}
+		
+		final byte[] block = new byte[this.blockSize];
+		int length = 0;
+		if (this.lookahead >= 0) {
+			block[length++] = (byte)this.lookahead;
+			this.lookahead = -1;
+		}
+		
+		int read;
+		while (length < block.length && (read = this.in.read(block, length, block.length - length)) >= 0) {
+			length += read;
+		}
+		
+		final boolean last = length < block.length || (this.lookahead = this.in.read()) < 0;
+		this.eof = last;
+		
+		final long index = this.blockIndex++;
+		final int blockLength = length;
+		this.pending.add(this.executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				return ParallelBlockInputStream.this.transform.transform(index, last, block, 0, blockLength);
+			}
+		}));
+		return true;
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.io;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the progress of requests being sent over the network and gives up on any that send fewer than
+ * {@code minBytesPerSecond} over a window of {@code timeoutMillis}.  A request is watched until it's closed, once its
+ * response arrives, not just until its body has been read.  Nothing more can be seen of its progress after that, since
+ * the end of the body can sit in the socket's send buffer, so from then on its response must arrive within
+ * {@code timeoutMillis}.  A stalled stream throws a {@link StalledException} from every subsequent read and the stall
+ * callback passed to {@link #watch} is run so the caller can abandon the request and retry it right away, rather than
+ * waiting for socket timeouts.
+ */
+public class StallWatchdog implements AutoCloseable {
+
+	protected final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "stall-watchdog");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	protected final long timeoutMillis;
+	protected final double minBytesPerSecond;
+	protected final Set<Watch> watched = new LinkedHashSet<Watch>();
+	
+	public StallWatchdog(long timeoutMillis, double minBytesPerSecond) {
+		if (timeoutMillis <= 0) {
+			throw new IllegalArgumentException("timeoutMillis must be positive");
+		} else if (minBytesPerSecond < 0 || Double.isNaN(minBytesPerSecond) || Double.isInfinite(minBytesPerSecond)) {
+			throw new IllegalArgumentException("invalid minBytesPerSecond: " + minBytesPerSecond);
+		}
+		
+		this.timeoutMillis = timeoutMillis;
+		this.minBytesPerSecond = minBytesPerSecond;
+		
+		long period = Math.max(50, Math.min(1000, timeoutMillis / 10));
+		this.executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				StallWatchdog.this.check(System.currentTimeMillis());
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	public long getTimeoutMillis() {
+		return this.timeoutMillis;
+	}
+	
+	public double getMinBytesPerSecond() {
+		return this.minBytesPerSecond;
+	}
+	
+	/**
+	 * Starts watching a transfer, until the watch is closed.  Its progress is reported through {@link Watch#progress},
+	 * or by reading a stream wrapped with {@link Watch#wrap}.
+	 * 
+	 * @param onStall run on the watchdog's thread if the transfer stalls
+	 */
+	public Watch watch(Runnable onStall) {
+		Watch watch = new Watch(onStall, System.currentTimeMillis());
+		synchronized (this.watched) {
+			this.watched.add(watch);
+		}
+		return watch;
+	}
+	
+	@Override
+	public void close() {
+		this.executor.shutdownNow();
+		synchronized (this.watched) {
+			this.watched.clear();
+		}
+	}
+	
+	protected void check(long now) {
+		Watch[] watched;
+		synchronized (this.watched) {
+			watched = this.watched.toArray(new Watch[this.watched.size()]);
+		}
+		
+		for (Watch watch : watched) {
+			if (watch.isStalled(now)) {
+				watch.close();
+				watch.stalled = true;
+				watch.onStall.run();
+			}
+		}
+	}
+	
+	public static class StalledException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public StalledException(double minBytesPerSecond, long timeoutMillis) {
+			super(String.format("Stalled; less than %.0f B/s for %d ms", minBytesPerSecond, timeoutMillis));
+		}
+		
+	}
+	
+	public class Watch implements Closeable {
+		
+		protected final Runnable onStall;
+		protected final long start;
+		protected volatile long bytes = 0;
+		protected volatile boolean stalled = false;
+		
+		// When the request's body was read, after which its response has timeoutMillis to arrive; -1 until then
+		protected volatile long sent = -1;
+		
+		// (time, bytes) samples covering the last timeoutMillis; only touched by the watchdog thread
+		protected final ArrayDeque<long[]> samples = new ArrayDeque<long[]>();
+		
+		protected Watch(Runnable onStall, long start) {
+			this.onStall = Objects.requireNonNull(onStall, "onStall was null");
+			this.start = start;
+			this.samples.add(new long[] { start, 0 });
+		}
+		
+		/**
+		 * Records {@code bytes} more having been transferred.  Only one thread may report progress.
+		 */
+		public void progress(long bytes) {
+			this.bytes += bytes;
+		}
+		
+		/**
+		 * Wraps {@code in}, the request's body, so what's read from it is the watch's progress.  Reaching the end of
+		 * the stream doesn't end the watch, but starts the wait for the response, until the watch is closed or the
+		 * stream is rewound.
+		 */
+		public InputStream wrap(InputStream in) {
+			return new WatchedInputStream(in, this);
+		}
+		
+		public boolean isStalled() {
+			return this.stalled;
+		}
+		
+		public void checkStalled() throws StalledException {
+			if (this.stalled) {
+				throw new StalledException(StallWatchdog.this.minBytesPerSecond, StallWatchdog.this.timeoutMillis);
+			}
+		}
+		
+		/**
+		 * Starts watching again after {@link #close}, e.g. when a stream is rewound.
+		 */
+		public void resume() {
+			synchronized (StallWatchdog.this.watched) {
+				StallWatchdog.this.watched.add(this);
+			}
+		}
+		
+		/**
+		 * Marks the request's body as having been read, so its response is waited for from {@code now}.
+		 */
+		protected void sent(long now) {
+			if (this.sent == -1) {
+				this.sent = now;
+			}
+		}
+		
+		/**
+		 * Goes back to measuring progress by what's read.
+		 */
+		protected void rewound() {
+			this.sent = -1;
+		}
+		
+		protected boolean isStalled(long now) {
+			long sent = this.sent;
+			if (sent != -1) {
+				return now - sent >= StallWatchdog.this.timeoutMillis;
+			}
+			
+			long bytes = this.bytes;
+			
+			// Drop samples until the oldest is the newest one that's at least timeoutMillis old
+			while (this.samples.size() > 1 && now - this.samples.peekFirst()[0] >= StallWatchdog.this.timeoutMillis) {
+				long[] oldest = this.samples.pollFirst();
+				if (now - this.samples.peekFirst()[0] < StallWatchdog.this.timeoutMillis) {
+					this.samples.addFirst(oldest);
+					break;
+				}
+			}
+			
+			this.samples.addLast(new long[] { now, bytes });
+			
+			long[] oldest = this.samples.peekFirst();
+			long window = now - oldest[0];
+			
+			return window >= StallWatchdog.this.timeoutMillis &&
+					bytes - oldest[1] < StallWatchdog.this.minBytesPerSecond * window / 1000.0;
+		}
+
+		@Override
+		public void close() {
+			synchronized (StallWatchdog.this.watched) {
+				StallWatchdog.this.watched.remove(this);
+			}
+		}
+	}
+	
+	protected static class WatchedInputStream extends FilterInputStream {
+
+		protected final Watch watch;
+		
+		protected WatchedInputStream(InputStream in, Watch watch) {
+			super(in);
+			this.watch = watch;
+		}
+
+		@Override
+		public int read() throws IOException {
+			this.watch.checkStalled();
+			int read = super.read();
+			if (read >= 0) {
+				this.watch.progress(1);
+			} else {
+				this.watch.sent(System.currentTimeMillis());
+			}
+			return read;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			this.watch.checkStalled();
+			int read = super.read(b, off, len);
+			if (read >= 0) {
+				this.watch.progress(read);
+			} else {
+				this.watch.sent(System.currentTimeMillis());
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			this.watch.checkStalled();
+			long skipped = super.skip(n);
+			this.watch.progress(skipped);
+			return skipped;
+		}
+
+		@Override
+		public synchronized void reset() throws IOException {
+			this.watch.checkStalled();
+			super.reset();
+			
+			// Stream was rewound for a retry or after a checksum pass; keep watching what's read
+			this.watch.rewound();
+			this.watch.resume();
+		}
+	}
+}
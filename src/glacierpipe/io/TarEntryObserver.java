@@ -0,0 +1,36 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.io;
+
+/**
+ * Told about each member of a tar stream as {@link TarIndexInputStream} reads past its header.
+ */
+public interface TarEntryObserver {
+
+	/**
+	 * @param name the member's full name, from a GNU long name or pax header if it had one
+	 * @param type the header's type flag, e.g. {@code '0'} for a file or {@code '5'} for a directory
+	 * @param offset where the member's first header starts, including any long name or pax headers before it
+	 * @param dataOffset where its data starts
+	 * @param size how much data it has
+	 */
+	public void entry(String name, char type, long offset, long dataOffset, long size);
+	
+}
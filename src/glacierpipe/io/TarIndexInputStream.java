@@ -0,0 +1,323 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Passes a stream through unchanged, picking out the headers of the tar archive in it as they go by.  Only headers are
+ * looked at; members' data is counted past without being copied.  GNU long names and pax paths and sizes are
+ * understood.  If the stream stops looking like a tar archive, indexing stops and the rest passes through as usual.
+ */
+public class TarIndexInputStream extends FilterInputStream {
+
+	protected static final int BLOCK_SIZE = 512;
+	
+	/**
+	 * The most long name or pax header data that's kept; anything longer is skipped
+	 */
+	protected static final int MAX_EXTENDED_HEADER = 1024 * 1024;
+	
+	protected final TarEntryObserver observer;
+	
+	protected final byte[] header = new byte[BLOCK_SIZE];
+	protected int headerLength = 0;
+	
+	/**
+	 * Bytes of the current member's data, and its padding, still to pass
+	 */
+	protected long remaining = 0;
+	
+	/**
+	 * The data of a long name or pax header being read, or null for a regular member's
+	 */
+	protected ByteArrayOutputStream extended;
+	protected char extendedType;
+	
+	protected String pendingName;
+	protected long pendingSize = -1;
+	protected long memberOffset = -1;
+	
+	protected long position = 0;
+	protected boolean ended = false;
+	protected boolean valid = true;
+	
+	public TarIndexInputStream(InputStream in, TarEntryObserver observer) {
+		super(in);
+		this.observer = Objects.requireNonNull(observer, "observer was null");
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int read = this.in.read();
+		if (read >= 0) {
+			this.update(new byte[] { (byte)read }, 0, 1);
+		}
+		return read;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = this.in.read(b, off, len);
+		if (read > 0) {
+			this.update(b, off, read);
+		}
+		return read;
+	}
+	
+	/**
+	 * Reads through what's skipped, since its headers need to be seen
+	 */
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] buffer = new byte[(int)Math.min(n, 4096)];
+		long skipped = 0;
+		int read;
+		while (skipped < n && (read = this.read(buffer, 0, (int)Math.min(n - skipped, buffer.length))) >= 0) {
+			skipped += read;
+		}
+		return skipped;
+	}
+	
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+	
+	@Override
+	public synchronized void mark(int readlimit) {
+	}
+	
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+	
+	protected void update(byte[] b, int off, int len) {
+		int end = off + len;
+		while (off < end && this.valid && !this.ended) {
+			if (this.remaining > 0) {
+				int length = (int)Math.min(this.remaining, end - off);
+				if (this.extended != null && this.extended.size() < MAX_EXTENDED_HEADER) {
+					this.extended.write(b, off, Math.min(length, MAX_EXTENDED_HEADER - this.extended.size()));
+				}
+				
+				off += length;
+				this.position += length;
+				this.remaining -= length;
+				if (this.remaining == 0 && this.extended != null) {
+					this.extendedHeaderRead();
+				}
+			} else {
+				int length = Math.min(BLOCK_SIZE - this.headerLength, end - off);
+				System.arraycopy(b, off, this.header, this.headerLength, length);
+				
+				off += length;
+				this.position += length;
+				this.headerLength += length;
+				if (this.headerLength == BLOCK_SIZE) {
+					this.headerLength = 0;
+					this.headerRead(this.position - BLOCK_SIZE);
+				}
+			}
+		}
+		
+		this.position += end - off;
+	}
+	
+	protected void headerRead(long offset) {
+		if (isZero(this.header)) {
+			// The end of the archive; whatever follows is padding
+			this.ended = true;
+			return;
+		} else if (!checksumMatches(this.header)) {
+			this.valid = false;
+			return;
+		}
+		
+		char type = (char)(this.header[156] & 0xff);
+		long size = parseNumber(this.header, 124, 12);
+		if (size < 0) {
+			this.valid = false;
+			return;
+		}
+		
+		if (this.memberOffset < 0) {
+			this.memberOffset = offset;
+		}
+		
+		if (type == 'L' || type == 'K' || type == 'x' || type == 'g') {
+			this.extended = new ByteArrayOutputStream();
+			this.extendedType = type;
+		} else {
+			String name = this.pendingName != null ? this.pendingName : getName(this.header);
+			if (this.pendingSize >= 0) {
+				size = this.pendingSize;
+			}
+			
+			this.observer.entry(name, type, this.memberOffset, offset + BLOCK_SIZE, size);
+			
+			this.pendingName = null;
+			this.pendingSize = -1;
+			this.memberOffset = -1;
+			
+			// Links and directories have no data, whatever their size says
+			if (type == '1' || type == '2' || type == '3' || type == '4' || type == '5' || type == '6') {
+				size = 0;
+			}
+		}
+		
+		this.remaining = (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+		if (this.remaining == 0 && this.extended != null) {
+			this.extendedHeaderRead();
+		}
+	}
+	
+	protected void extendedHeaderRead() {
+		byte[] data = this.extended.toByteArray();
+		char type = this.extendedType;
+		this.extended = null;
+		
+		if (data.length >= MAX_EXTENDED_HEADER) {
+			return;
+		}
+		
+		if (type == 'L') {
+			this.pendingName = trim(new String(data, StandardCharsets.UTF_8));
+		} else if (type == 'x') {
+			this.parsePaxHeader(new String(data, StandardCharsets.UTF_8));
+		} else if (type == 'g') {
+			// Global headers aren't part of a member
+			this.memberOffset = -1;
+		}
+	}
+	
+	/**
+	 * Pax records are {@code "<length> <key>=<value>\n"}, where the length counts the whole record
+	 */
+	protected void parsePaxHeader(String data) {
+		for (String record : data.split("\n")) {
+			int space = record.indexOf(' ');
+			int equals = record.indexOf('=', space + 1);
+			if (space < 0 || equals < 0) {
+				continue;
+			}
+			
+			String key = record.substring(space + 1, equals);
+			String value = record.substring(equals + 1);
+			if (key.equals("path")) {
+				this.pendingName = value;
+			} else if (key.equals("size")) {
+				try {
+					this.pendingSize = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					this.valid = false;
+				}
+			}
+		}
+	}
+	
+	protected static String getName(byte[] header) {
+		String name = getString(header, 0, 100);
+		
+		// ustar splits long names between the name and a prefix
+		if (getString(header, 257, 5).equals("ustar")) {
+			String prefix = getString(header, 345, 155);
+			if (!prefix.isEmpty()) {
+				name = prefix + "/" + name;
+			}
+		}
+		return name;
+	}
+	
+	protected static String getString(byte[] header, int offset, int length) {
+		return trim(new String(header, offset, length, StandardCharsets.UTF_8));
+	}
+	
+	protected static String trim(String value) {
+		int nul = value.indexOf('\0');
+		return nul >= 0 ? value.substring(0, nul) : value;
+	}
+	
+	/**
+	 * Numbers are octal, padded with spaces or NULs, or for big ones, base-256 with the top bit of the first byte set
+	 * 
+	 * @return the number, or -1 if it isn't one
+	 */
+	protected static long parseNumber(byte[] header, int offset, int length) {
+		long value = 0;
+		if ((header[offset] & 0x80) != 0) {
+			value = header[offset] & 0x7f;
+			for (int i = offset + 1; i < offset + length; i++) {
+				if (value > (Long.MAX_VALUE >> 8)) {
+					return -1;
+				}
+				value = (value << 8) | (header[i] & 0xff);
+			}
+			return value;
+		}
+		
+		boolean digits = false;
+		for (int i = offset; i < offset + length; i++) {
+			byte b = header[i];
+			if (b >= '0' && b <= '7') {
+				value = value * 8 + (b - '0');
+				digits = true;
+			} else if (b == ' ' || b == 0) {
+				if (digits) {
+					break;
+				}
+			} else {
+				return -1;
+			}
+		}
+		return value;
+	}
+	
+	/**
+	 * The checksum's the sum of the header's bytes, with the checksum itself taken as spaces.  Some old tars summed
+	 * them as signed bytes.
+	 */
+	protected static boolean checksumMatches(byte[] header) {
+		long expected = parseNumber(header, 148, 8);
+		long unsigned = 0;
+		long signed = 0;
+		for (int i = 0; i < header.length; i++) {
+			byte b = (i >= 148 && i < 156) ? (byte)' ' : header[i];
+			unsigned += b & 0xff;
+			signed += b;
+		}
+		return expected == unsigned || expected == signed;
+	}
+	
+	protected static boolean isZero(byte[] header) {
+		for (byte b : header) {
+			if (b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
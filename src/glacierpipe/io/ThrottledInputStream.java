@@ -1,5 +1,7 @@
 package glacierpipe.io;
 
+import glacierpipe.jfr.ThrottleSleepEvent;
+
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -128,10 +130,19 @@ public class ThrottledInputStream extends FilterInputStream {
 		int currentQuantum = ((int)positionInQuantum * quantaPerSecond) / 1000;
 		long nextQuantumStart = ((currentQuantum + 1) * 1000) / quantaPerSecond;
 		
+		ThrottleSleepEvent event = new ThrottleSleepEvent();
+		event.begin();
+		
 		try {
 			Thread.sleep(nextQuantumStart - positionInQuantum);
 		} catch (InterruptedException e) {
 			throw new IOException(e);
+		} finally {
+			if (event.shouldCommit()) {
+				event.budget = this.budget;
+				event.quantaPerSecond = this.quantaPerSecond;
+				event.commit();
+			}
 		}
 	}
 	
@@ -0,0 +1,138 @@
+package glacierpipe.net;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Signs requests with AWS Signature Version 4, for requests that are sent without the SDK.  The payload hash is
+ * passed in rather than computed, so bodies can be hashed while they're buffered and streamed afterwards.
+ */
+public class AwsSigner {
+
+	protected static final Charset UTF_8 = Charset.forName("UTF-8");
+	protected static final String ALGORITHM = "AWS4-HMAC-SHA256";
+	protected static final String TERMINATOR = "aws4_request";
+
+	protected final String accessKey;
+	protected final String secretKey;
+	protected final String region;
+	protected final String service;
+
+	public AwsSigner(String accessKey, String secretKey, String region, String service) {
+		this.accessKey = Objects.requireNonNull(accessKey, "accessKey was null");
+		this.secretKey = Objects.requireNonNull(secretKey, "secretKey was null");
+		this.region = Objects.requireNonNull(region, "region was null");
+		this.service = Objects.requireNonNull(service, "service was null");
+	}
+
+	public String getRegion() {
+		return this.region;
+	}
+
+	/**
+	 * Adds {@code X-Amz-Date} and {@code Authorization} headers to {@code headers}.  Every other header is signed, so
+	 * {@code Host} and anything else that will be sent must already be there.
+	 *
+	 * @param path the URI-encoded path
+	 * @param query the canonical query string, with parameters sorted and encoded
+	 * @param payloadHash the hex SHA-256 of the body
+	 */
+	public void sign(String method, String path, String query, Map<String, String> headers, String payloadHash, Date time) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		String amzDate = format.format(time);
+		String date = amzDate.substring(0, 8);
+
+		headers.put("X-Amz-Date", amzDate);
+
+		Map<String, String> canonicalHeaders = new TreeMap<String, String>();
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			String name = header.getKey().toLowerCase();
+			if (!name.equals("authorization")) {
+				canonicalHeaders.put(name, header.getValue().trim().replaceAll("\\s+", " "));
+			}
+		}
+
+		StringBuilder canonicalRequest = new StringBuilder();
+		canonicalRequest.append(method).append('\n');
+		canonicalRequest.append(path).append('\n');
+		canonicalRequest.append(query).append('\n');
+
+		StringBuilder signedHeaders = new StringBuilder();
+		for (Map.Entry<String, String> header : canonicalHeaders.entrySet()) {
+			canonicalRequest.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+			if (signedHeaders.length() > 0) {
+				signedHeaders.append(';');
+			}
+			signedHeaders.append(header.getKey());
+		}
+
+		canonicalRequest.append('\n');
+		canonicalRequest.append(signedHeaders).append('\n');
+		canonicalRequest.append(payloadHash);
+
+		String scope = date + "/" + this.region + "/" + this.service + "/" + TERMINATOR;
+		String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" + sha256Hex(canonicalRequest.toString());
+		String signature = BinaryUtils.toHex(hmac(this.getSigningKey(date), stringToSign));
+
+		headers.put("Authorization", ALGORITHM + " Credential=" + this.accessKey + "/" + scope +
+				", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+	}
+
+	/**
+	 * @param date the date in {@code yyyyMMdd} form
+	 */
+	public byte[] getSigningKey(String date) {
+		byte[] key = hmac(("AWS4" + this.secretKey).getBytes(UTF_8), date);
+		key = hmac(key, this.region);
+		key = hmac(key, this.service);
+		return hmac(key, TERMINATOR);
+	}
+
+	/**
+	 * Percent-encodes everything but RFC 3986 unreserved characters, which is what SigV4 expects of path segments.
+	 */
+	public static String uriEncode(String value) {
+		StringBuilder encoded = new StringBuilder();
+		for (byte b : value.getBytes(UTF_8)) {
+			char c = (char)(b & 0xff);
+			if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+					c == '-' || c == '_' || c == '.' || c == '~') {
+				encoded.append(c);
+			} else {
+				encoded.append(String.format("%%%02X", b & 0xff));
+			}
+		}
+		return encoded.toString();
+	}
+
+	protected static byte[] hmac(byte[] key, String data) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			return mac.doFinal(data.getBytes(UTF_8));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	protected static String sha256Hex(String data) {
+		try {
+			return BinaryUtils.toHex(MessageDigest.getInstance("SHA-256").digest(data.getBytes(UTF_8)));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
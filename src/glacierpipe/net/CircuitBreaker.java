@@ -0,0 +1,113 @@
+package glacierpipe.net;
+
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops all requests for a while after too many consecutive failures, so that an outage isn't met with a retry from
+ * every part at once.  After a jittered cooldown, one probe request is let through; if it succeeds the breaker closes,
+ * otherwise it opens again with twice the cooldown.
+ */
+public class CircuitBreaker {
+
+	protected static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+	
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_COOLDOWN = 5 * 1000;
+	public static final long DEFAULT_MAX_COOLDOWN = 5 * 60 * 1000;
+	
+	public enum State {
+		CLOSED,
+		OPEN,
+		HALF_OPEN,
+	}
+	
+	protected final int failureThreshold;
+	protected final long baseCooldown;
+	protected final long maxCooldown;
+	protected final Random random;
+	
+	protected State state = State.CLOSED;
+	protected int consecutiveFailures = 0;
+	protected long cooldown;
+	protected long openUntil = 0;
+	
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_COOLDOWN, DEFAULT_MAX_COOLDOWN, new Random());
+	}
+	
+	public CircuitBreaker(int failureThreshold, long baseCooldown, long maxCooldown, Random random) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("failureThreshold must be at least 1");
+		} else if (baseCooldown < 1 || maxCooldown < baseCooldown) {
+			throw new IllegalArgumentException("invalid cooldown; baseCooldown = " + baseCooldown + "; maxCooldown = " + maxCooldown);
+		}
+		
+		this.failureThreshold = failureThreshold;
+		this.baseCooldown = baseCooldown;
+		this.maxCooldown = maxCooldown;
+		this.cooldown = baseCooldown;
+		this.random = random;
+	}
+	
+	public synchronized State getState() {
+		return this.state;
+	}
+	
+	/**
+	 * @return 0 if a request can be made now, otherwise how many milliseconds to wait before asking again
+	 */
+	public synchronized long admit(long now) {
+		switch (this.state) {
+		case CLOSED:
+			return 0;
+			
+		case OPEN:
+			if (now < this.openUntil) {
+				return this.openUntil - now;
+			}
+			
+			// This request is the probe; everyone else waits on its result
+			this.state = State.HALF_OPEN;
+			LOGGER.debug("{} half-open; probing", System.identityHashCode(this));
+			return 0;
+			
+		case HALF_OPEN:
+		default:
+			return this.jitter(this.baseCooldown);
+		}
+	}
+	
+	public synchronized void recordSuccess() {
+		if (this.state != State.CLOSED) {
+			LOGGER.info("{} closed", System.identityHashCode(this));
+		}
+		
+		this.state = State.CLOSED;
+		this.consecutiveFailures = 0;
+		this.cooldown = this.baseCooldown;
+	}
+	
+	public synchronized void recordFailure(long now) {
+		this.consecutiveFailures++;
+		
+		// Requests that were already in flight when the breaker opened don't extend the cooldown
+		if (this.state == State.HALF_OPEN || (this.state == State.CLOSED && this.consecutiveFailures >= this.failureThreshold)) {
+			long cooldown = this.jitter(this.cooldown);
+			this.openUntil = now + cooldown;
+			this.cooldown = Math.min(this.maxCooldown, this.cooldown * 2);
+			this.state = State.OPEN;
+			
+			LOGGER.warn("{} opened for {} ms after {} consecutive failures", System.identityHashCode(this), cooldown, this.consecutiveFailures);
+		}
+	}
+	
+	/**
+	 * @return a random time between half and all of {@code millis}, so independent processes don't act in lockstep
+	 */
+	protected long jitter(long millis) {
+		return millis / 2 + (long)(this.random.nextDouble() * (millis - millis / 2));
+	}
+}
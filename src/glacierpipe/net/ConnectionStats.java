@@ -0,0 +1,93 @@
+package glacierpipe.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Counts connections opened and requests sent over them, to show how much keeping connections alive, pre-warming them
+ * and resuming TLS sessions is saving.  A request is counted as reusing a connection if it didn't have to wait for
+ * one to be opened for it.
+ */
+public class ConnectionStats {
+
+	protected final AtomicLong opened = new AtomicLong();
+	protected final AtomicLong prewarmed = new AtomicLong();
+	protected final AtomicLong handshakes = new AtomicLong();
+	protected final AtomicLong resumed = new AtomicLong();
+	protected final AtomicLong requests = new AtomicLong();
+
+	/**
+	 * @param prewarm whether the connection was opened ahead of any request for it
+	 */
+	public void connectionOpened(boolean prewarm) {
+		this.opened.incrementAndGet();
+		if (prewarm) {
+			this.prewarmed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param started when the connection was started, in milliseconds since the epoch.  A session created before
+	 * then was resumed rather than negotiated from scratch.
+	 */
+	public void handshakeFinished(SSLSession session, long started) {
+		this.handshakes.incrementAndGet();
+		if (session.getCreationTime() < started) {
+			this.resumed.incrementAndGet();
+		}
+	}
+
+	public void requestSent() {
+		this.requests.incrementAndGet();
+	}
+
+	public long getConnectionsOpened() {
+		return this.opened.get();
+	}
+
+	public long getConnectionsPrewarmed() {
+		return this.prewarmed.get();
+	}
+
+	public long getHandshakes() {
+		return this.handshakes.get();
+	}
+
+	public long getSessionsResumed() {
+		return this.resumed.get();
+	}
+
+	public long getRequests() {
+		return this.requests.get();
+	}
+
+	/**
+	 * @return how many requests were sent on a connection that was already open, or -1 if that can't be told because
+	 * requests were sent but no connections were counted, e.g. plain HTTP ones, which the SDK opens without
+	 * {@link PacedSocketFactory}
+	 */
+	public long getReusedRequests() {
+		if (this.getConnectionsOpened() == 0) {
+			return this.getRequests() > 0 ? -1 : 0;
+		}
+		return Math.max(0, this.getRequests() - (this.getConnectionsOpened() - this.getConnectionsPrewarmed()));
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		if (this.getReusedRequests() < 0) {
+			return sb.append(this.getRequests()).append(" requests; connections not counted").toString();
+		}
+		sb.append(this.getRequests()).append(" requests, ").append(this.getReusedRequests()).append(" on reused connections; ");
+		sb.append(this.getConnectionsOpened()).append(" connections opened");
+		if (this.getConnectionsPrewarmed() > 0) {
+			sb.append(" (").append(this.getConnectionsPrewarmed()).append(" pre-warmed)");
+		}
+		if (this.getHandshakes() > 0) {
+			sb.append("; ").append(this.getSessionsResumed()).append(" of ").append(this.getHandshakes()).append(" TLS sessions resumed");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,327 @@
+package glacierpipe.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.DnsResolver;
+
+/**
+ * Spreads requests across every address an endpoint's host name resolves to, rather than sending them all to the
+ * first one.  Each request goes to the address with the fewest requests in flight.  An address is quarantined for a
+ * while after several consecutive failures, or once its average latency is well above the other addresses', unless
+ * it's the only one left.  The host name is looked up again every so often, so the list follows DNS.
+ * <p>
+ * As a {@link DnsResolver}, it gives the SDK's HTTP client the healthy addresses first, in a different order each
+ * time, so new connections are spread out too.
+ */
+public class EndpointAddresses implements DnsResolver {
+
+	protected static final Logger LOGGER = LoggerFactory.getLogger(EndpointAddresses.class);
+
+	public static final long DEFAULT_REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+	public static final long DEFAULT_QUARANTINE = TimeUnit.MINUTES.toMillis(2);
+
+	protected static final int FAILURE_THRESHOLD = 3;
+	protected static final int MIN_LATENCY_SAMPLES = 5;
+	protected static final double LATENCY_FACTOR = 2.0;
+	protected static final double LATENCY_WEIGHT = 0.2;
+
+	protected final String host;
+	protected final long refreshInterval;
+	protected final long quarantine;
+
+	protected final Map<InetAddress, Endpoint> endpoints = new LinkedHashMap<InetAddress, Endpoint>();
+	protected long lastRefresh = 0;
+	protected boolean resolved = false;
+	protected int rotation = 0;
+
+	public EndpointAddresses(String host) {
+		this(host, DEFAULT_REFRESH_INTERVAL, DEFAULT_QUARANTINE);
+	}
+
+	/**
+	 * @param refreshInterval how often to look {@code host} up again, in milliseconds
+	 * @param quarantine how long a misbehaving address is left out, in milliseconds
+	 */
+	public EndpointAddresses(String host, long refreshInterval, long quarantine) {
+		if (refreshInterval < 1) {
+			throw new IllegalArgumentException("refreshInterval must be positive");
+		} else if (quarantine < 1) {
+			throw new IllegalArgumentException("quarantine must be positive");
+		}
+
+		this.host = Objects.requireNonNull(host, "host was null");
+		this.refreshInterval = refreshInterval;
+		this.quarantine = quarantine;
+	}
+
+	public String getHost() {
+		return this.host;
+	}
+
+	/**
+	 * Picks an address for a request.
+	 *
+	 * @return an address to pass to {@link #release} once the request finishes
+	 * @throws UnknownHostException if the host has never resolved
+	 */
+	public InetAddress acquire() throws UnknownHostException {
+		return this.acquire(System.currentTimeMillis());
+	}
+
+	protected synchronized InetAddress acquire(long now) throws UnknownHostException {
+		this.refresh(now);
+
+		Endpoint best = this.getByPreference(now).get(0);
+		best.inFlight++;
+		best.requests++;
+		return best.address;
+	}
+
+	/**
+	 * @param latency how long the request took, in milliseconds
+	 * @param failed whether the request failed in a way that could be the address's fault
+	 */
+	public void release(InetAddress address, long latency, boolean failed) {
+		this.release(address, latency, failed, System.currentTimeMillis());
+	}
+
+	protected synchronized void release(InetAddress address, long latency, boolean failed, long now) {
+		Endpoint endpoint = this.endpoints.get(address);
+		if (endpoint == null) {
+			// Dropped from DNS while the request was in flight
+			return;
+		}
+
+		endpoint.inFlight = Math.max(0, endpoint.inFlight - 1);
+		if (failed) {
+			this.failed(endpoint, now);
+		} else if (latency >= 0) {
+			endpoint.consecutiveFailures = 0;
+			endpoint.latency = (endpoint.samples == 0) ? latency : (1 - LATENCY_WEIGHT) * endpoint.latency + LATENCY_WEIGHT * latency;
+			endpoint.samples++;
+
+			double typical = this.getTypicalLatency(endpoint, now);
+			if (endpoint.samples >= MIN_LATENCY_SAMPLES && endpoint.latency > LATENCY_FACTOR * typical) {
+				this.quarantine(endpoint, now, String.format("average latency of %.0f ms; others average %.0f ms", endpoint.latency, typical));
+			}
+		}
+	}
+
+	/**
+	 * Records a failure to connect to {@code address}, for connections that weren't opened through {@link #acquire}.
+	 */
+	public synchronized void failed(InetAddress address) {
+		Endpoint endpoint = this.endpoints.get(address);
+		if (endpoint != null) {
+			this.failed(endpoint, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * @return the healthy addresses, with the least loaded first, then any quarantined ones
+	 */
+	public synchronized List<InetAddress> getAddresses() throws UnknownHostException {
+		long now = System.currentTimeMillis();
+		this.refresh(now);
+
+		List<InetAddress> addresses = new ArrayList<InetAddress>();
+		for (Endpoint endpoint : this.getByPreference(now)) {
+			addresses.add(endpoint.address);
+		}
+		return addresses;
+	}
+
+	/**
+	 * @return how many addresses aren't quarantined
+	 */
+	public synchronized int getHealthyCount() {
+		long now = System.currentTimeMillis();
+		int healthy = 0;
+		for (Endpoint endpoint : this.endpoints.values()) {
+			if (!endpoint.isQuarantined(now)) {
+				healthy++;
+			}
+		}
+		return healthy;
+	}
+
+	@Override
+	public InetAddress[] resolve(String host) throws UnknownHostException {
+		if (!this.host.equalsIgnoreCase(host)) {
+			return InetAddress.getAllByName(host);
+		}
+
+		List<InetAddress> addresses;
+		synchronized (this) {
+			addresses = this.getAddresses();
+
+			// Rotate the healthy ones, so each new connection starts with a different address
+			int healthy = this.getHealthyCount();
+			if (healthy > 1) {
+				Collections.rotate(addresses.subList(0, healthy), -(this.rotation++ % healthy));
+			}
+		}
+		return addresses.toArray(new InetAddress[addresses.size()]);
+	}
+
+	/**
+	 * @return the host's addresses; overridden by tests
+	 */
+	protected InetAddress[] lookup(String host) throws UnknownHostException {
+		return InetAddress.getAllByName(host);
+	}
+
+	protected void refresh(long now) throws UnknownHostException {
+		if (this.resolved && now - this.lastRefresh < this.refreshInterval) {
+			return;
+		}
+
+		InetAddress[] addresses;
+		try {
+			addresses = this.lookup(this.host);
+		} catch (UnknownHostException e) {
+			if (!this.resolved) {
+				throw e;
+			}
+
+			// Keep using what we had, and try again later
+			LOGGER.warn("Error looking up " + this.host + "; still using " + this.endpoints.keySet(), e);
+			this.lastRefresh = now;
+			return;
+		}
+
+		Map<InetAddress, Endpoint> previous = new LinkedHashMap<InetAddress, Endpoint>(this.endpoints);
+		this.endpoints.clear();
+		for (InetAddress address : addresses) {
+			Endpoint endpoint = previous.get(address);
+			this.endpoints.put(address, (endpoint != null) ? endpoint : new Endpoint(address));
+		}
+
+		if (!this.resolved || !previous.keySet().equals(this.endpoints.keySet())) {
+			LOGGER.debug("{} resolved to {}", this.host, Arrays.toString(addresses));
+		}
+
+		this.resolved = true;
+		this.lastRefresh = now;
+	}
+
+	protected List<Endpoint> getByPreference(long now) {
+		List<Endpoint> healthy = new ArrayList<Endpoint>();
+		List<Endpoint> quarantined = new ArrayList<Endpoint>();
+		for (Endpoint endpoint : this.endpoints.values()) {
+			(endpoint.isQuarantined(now) ? quarantined : healthy).add(endpoint);
+		}
+
+		// Least loaded first, then least used, so idle addresses share the work evenly
+		Collections.sort(healthy, new Comparator<Endpoint>() {
+			@Override
+			public int compare(Endpoint a, Endpoint b) {
+				if (a.inFlight != b.inFlight) {
+					return Integer.compare(a.inFlight, b.inFlight);
+				}
+				return Long.compare(a.requests, b.requests);
+			}
+		});
+
+		// The one that's been out longest is the first to try if nothing else works
+		Collections.sort(quarantined, new Comparator<Endpoint>() {
+			@Override
+			public int compare(Endpoint a, Endpoint b) {
+				return Long.compare(a.quarantinedUntil, b.quarantinedUntil);
+			}
+		});
+
+		healthy.addAll(quarantined);
+		return healthy;
+	}
+
+	/**
+	 * @return the median average latency of the other healthy addresses with enough samples, or infinity if there are
+	 * none to compare with
+	 */
+	protected double getTypicalLatency(Endpoint except, long now) {
+		List<Double> latencies = new ArrayList<Double>();
+		for (Endpoint endpoint : this.endpoints.values()) {
+			if (endpoint != except && !endpoint.isQuarantined(now) && endpoint.samples >= MIN_LATENCY_SAMPLES) {
+				latencies.add(endpoint.latency);
+			}
+		}
+
+		if (latencies.isEmpty()) {
+			return Double.POSITIVE_INFINITY;
+		}
+
+		Collections.sort(latencies);
+		int middle = latencies.size() / 2;
+		return (latencies.size() % 2 == 1) ? latencies.get(middle) : (latencies.get(middle - 1) + latencies.get(middle)) / 2;
+	}
+
+	protected void failed(Endpoint endpoint, long now) {
+		endpoint.consecutiveFailures++;
+		if (endpoint.consecutiveFailures >= FAILURE_THRESHOLD) {
+			this.quarantine(endpoint, now, endpoint.consecutiveFailures + " consecutive failures");
+		}
+	}
+
+	protected void quarantine(Endpoint endpoint, long now, String reason) {
+		if (endpoint.isQuarantined(now)) {
+			return;
+		}
+
+		for (Endpoint other : this.endpoints.values()) {
+			if (other != endpoint && !other.isQuarantined(now)) {
+				LOGGER.warn("Not using {} for {} ms after {}", endpoint.address.getHostAddress(), this.quarantine, reason);
+
+				// It starts over when it comes back
+				endpoint.quarantinedUntil = now + this.quarantine;
+				endpoint.consecutiveFailures = 0;
+				endpoint.samples = 0;
+				return;
+			}
+		}
+
+		LOGGER.debug("Still using {} after {}; it's the only address left", endpoint.address.getHostAddress(), reason);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return this.host + " " + this.endpoints.values();
+	}
+
+	protected static class Endpoint {
+
+		protected final InetAddress address;
+		protected int inFlight = 0;
+		protected long requests = 0;
+		protected int consecutiveFailures = 0;
+		protected double latency;
+		protected int samples = 0;
+		protected long quarantinedUntil = 0;
+
+		protected Endpoint(InetAddress address) {
+			this.address = address;
+		}
+
+		protected boolean isQuarantined(long now) {
+			return now < this.quarantinedUntil;
+		}
+
+		@Override
+		public String toString() {
+			return this.address.getHostAddress() + " (" + this.inFlight + " in flight, " + this.requests + " requests)";
+		}
+	}
+}
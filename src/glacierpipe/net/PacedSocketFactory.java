@@ -0,0 +1,104 @@
+package glacierpipe.net;
+
+import glacierpipe.io.PacedOutputStream;
+import glacierpipe.io.Pacer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Objects;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Opens TLS connections for the SDK's HTTP client whose writes are paced by a {@link Pacer}.  The pacing happens
+ * beneath TLS, on the bytes actually written to the socket, so it doesn't depend on how the client reads request
+ * bodies.  The connections opened, and how many resumed a TLS session, are counted in {@link #getConnectionStats()}.
+ * Failures to connect are reported to {@link EndpointAddresses}, if there is one, so it stops handing out the address.
+ * {@link SocketTuning} is applied just before connecting, after the HTTP client's own socket settings.
+ */
+public class PacedSocketFactory extends SSLConnectionSocketFactory {
+
+	protected final Pacer pacer;
+	protected final EndpointAddresses addresses;
+	protected final SocketTuning tuning;
+	protected final ConnectionStats stats = new ConnectionStats();
+	
+	public PacedSocketFactory(SSLContext sslContext, Pacer pacer) {
+		this(sslContext, pacer, null);
+	}
+	
+	/**
+	 * @param addresses if not null, told about connections that couldn't be opened
+	 */
+	public PacedSocketFactory(SSLContext sslContext, Pacer pacer, EndpointAddresses addresses) {
+		this(sslContext, pacer, addresses, null);
+	}
+	
+	/**
+	 * @param tuning if not null, options for every socket
+	 */
+	public PacedSocketFactory(SSLContext sslContext, Pacer pacer, EndpointAddresses addresses, SocketTuning tuning) {
+		super(sslContext);
+		this.pacer = Objects.requireNonNull(pacer, "pacer was null");
+		this.addresses = addresses;
+		this.tuning = tuning;
+	}
+
+	@Override
+	public Socket createSocket(HttpContext context) throws IOException {
+		return new PacedSocket(this.pacer);
+	}
+	
+	@Override
+	public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress, InetSocketAddress localAddress, HttpContext context) throws IOException {
+		if (this.tuning != null && socket != null && !socket.isConnected()) {
+			this.tuning.configure(socket);
+		}
+		
+		long started = System.currentTimeMillis();
+		Socket connected;
+		try {
+			connected = super.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+		} catch (IOException e) {
+			if (this.addresses != null && remoteAddress.getAddress() != null) {
+				this.addresses.failed(remoteAddress.getAddress());
+			}
+			throw e;
+		}
+		
+		this.stats.connectionOpened(false);
+		if (connected instanceof SSLSocket) {
+			this.stats.handshakeFinished(((SSLSocket)connected).getSession(), started);
+		}
+		return connected;
+	}
+	
+	public ConnectionStats getConnectionStats() {
+		return this.stats;
+	}
+	
+	public static class PacedSocket extends Socket {
+		
+		protected final Pacer pacer;
+		protected OutputStream out;
+		
+		public PacedSocket(Pacer pacer) {
+			this.pacer = Objects.requireNonNull(pacer, "pacer was null");
+		}
+		
+		@Override
+		public synchronized OutputStream getOutputStream() throws IOException {
+			if (this.out == null) {
+				this.out = new PacedOutputStream(super.getOutputStream(), this.pacer);
+			}
+			return this.out;
+		}
+	}
+}
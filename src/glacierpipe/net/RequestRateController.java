@@ -0,0 +1,189 @@
+package glacierpipe.net;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts how many requests can be in flight, and how quickly new ones can start, to throttling responses.  Both
+ * limits grow additively while requests succeed and are halved when one is throttled (AIMD), so they settle just under
+ * what the service will accept.  Throttling responses to requests started before the last decrease are ignored, since
+ * they were sent under the old limits.
+ */
+public class RequestRateController {
+
+	public static final double MIN_REQUESTS_PER_SECOND = 0.05;
+	
+	protected static final double DECREASE_FACTOR = 0.5;
+	protected static final double RATE_INCREASE = 0.05;
+	protected static final double MAX_REQUESTS_PER_SECOND = 100.0;
+	protected static final long RATE_WINDOW = TimeUnit.SECONDS.toNanos(10);
+	
+	protected int maxConcurrency;
+	protected double concurrencyLimit;
+	protected double requestsPerSecond = Double.POSITIVE_INFINITY;
+	
+	protected int inFlight = 0;
+	protected int waiting = 0;
+	protected long nextStart;
+	protected long lastDecrease;
+	protected final Deque<Long> recentStarts = new ArrayDeque<Long>();
+	
+	public RequestRateController(int maxConcurrency) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency must be at least 1");
+		}
+		
+		this.maxConcurrency = maxConcurrency;
+		this.concurrencyLimit = maxConcurrency;
+		this.nextStart = this.lastDecrease = System.nanoTime();
+	}
+	
+	/**
+	 * Waits until a request can be started.
+	 * 
+	 * @return a permit to pass to {@link #succeeded}, {@link #throttled} or {@link #failed} once the request finishes
+	 */
+	public synchronized long acquire() throws InterruptedException {
+		this.waiting++;
+		
+		try {
+			while (true) {
+				long now = System.nanoTime();
+				
+				if (this.inFlight >= this.getConcurrencyLimit()) {
+					this.wait();
+				} else if (this.nextStart - now > 0) {
+					TimeUnit.NANOSECONDS.timedWait(this, this.nextStart - now);
+				} else {
+					return this.start(now);
+				}
+			}
+		} finally {
+			this.waiting--;
+		}
+	}
+	
+	/**
+	 * @return a permit, or -1 if a request can't be started right now
+	 */
+	public synchronized long tryAcquire() {
+		long now = System.nanoTime();
+		if (this.inFlight < this.getConcurrencyLimit() && this.nextStart - now <= 0) {
+			return this.start(now);
+		} else {
+			return -1;
+		}
+	}
+	
+	protected long start(long now) {
+		this.inFlight++;
+		
+		if (!Double.isInfinite(this.requestsPerSecond)) {
+			this.nextStart = now + Math.round(1000000000.0 / this.requestsPerSecond);
+		}
+		
+		this.recentStarts.addLast(now);
+		this.trimRecentStarts(now);
+		
+		// Permits must be distinct from -1, which tryAcquire() uses for failure
+		return now != -1 ? now : now + 1;
+	}
+	
+	/**
+	 * @return true if the concurrency limit changed
+	 */
+	public synchronized boolean succeeded(long permit) {
+		int previousLimit = this.getConcurrencyLimit();
+		
+		this.release();
+		this.concurrencyLimit = Math.min(this.maxConcurrency, this.concurrencyLimit + 1.0 / this.concurrencyLimit);
+		
+		if (!Double.isInfinite(this.requestsPerSecond)) {
+			this.requestsPerSecond += RATE_INCREASE;
+			if (this.requestsPerSecond >= MAX_REQUESTS_PER_SECOND) {
+				this.requestsPerSecond = Double.POSITIVE_INFINITY;
+			}
+		}
+		
+		return this.getConcurrencyLimit() != previousLimit;
+	}
+	
+	/**
+	 * @return true if the limits were decreased
+	 */
+	public synchronized boolean throttled(long permit) {
+		this.release();
+		
+		if (permit - this.lastDecrease < 0) {
+			return false;
+		}
+		
+		long now = System.nanoTime();
+		
+		// Until now, starts weren't limited; begin from the rate that was just too fast.  Starts from before a lull
+		// would make it look faster than it was.
+		if (Double.isInfinite(this.requestsPerSecond)) {
+			this.trimRecentStarts(now);
+			this.requestsPerSecond = (double)Math.max(1, this.recentStarts.size()) * 1000000000.0 / RATE_WINDOW;
+		}
+		
+		this.requestsPerSecond = Math.max(MIN_REQUESTS_PER_SECOND, this.requestsPerSecond * DECREASE_FACTOR);
+		this.concurrencyLimit = Math.max(1.0, this.concurrencyLimit * DECREASE_FACTOR);
+		this.lastDecrease = now;
+		
+		return true;
+	}
+	
+	/**
+	 * Forgets starts older than {@link #RATE_WINDOW}.
+	 */
+	protected void trimRecentStarts(long now) {
+		while (!this.recentStarts.isEmpty() && now - this.recentStarts.getFirst() > RATE_WINDOW) {
+			this.recentStarts.removeFirst();
+		}
+	}
+	
+	/**
+	 * Releases a permit for a request that failed for some reason other than throttling, or was abandoned.
+	 */
+	public synchronized void failed(long permit) {
+		this.release();
+	}
+	
+	protected void release() {
+		if (this.inFlight <= 0) {
+			throw new IllegalStateException("no requests in flight");
+		}
+		
+		this.inFlight--;
+		this.notifyAll();
+	}
+	
+	public synchronized int getConcurrencyLimit() {
+		return Math.max(1, (int)this.concurrencyLimit);
+	}
+	
+	public synchronized double getRequestsPerSecond() {
+		return this.requestsPerSecond;
+	}
+	
+	/**
+	 * Counts a request that's waiting without blocking in {@link #acquire}, e.g. one that polls {@link #tryAcquire}.
+	 */
+	public synchronized void startWaiting() {
+		this.waiting++;
+	}
+	
+	public synchronized void stopWaiting() {
+		this.waiting--;
+	}
+	
+	public synchronized int getWaiting() {
+		return this.waiting;
+	}
+	
+	public synchronized int getInFlight() {
+		return this.inFlight;
+	}
+}
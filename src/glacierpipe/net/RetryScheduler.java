@@ -0,0 +1,170 @@
+package glacierpipe.net;
+
+import glacierpipe.io.StallWatchdog.StalledException;
+
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Decides whether and when failed requests are retried.  Delays use decorrelated jitter, so retries from many hosts
+ * spread out rather than arriving together.  Retries are limited by a budget shared by all parts: each one spends a
+ * token and each success earns back a fraction of one, so a sustained failure rate drains it.  A
+ * {@link CircuitBreaker} holds back all requests during outages.
+ */
+public class RetryScheduler implements AutoCloseable {
+
+	public static final long DEFAULT_BASE_DELAY = 1000;
+	public static final long DEFAULT_MAX_DELAY = 5 * 60 * 1000;
+	public static final double DEFAULT_BUDGET = 100.0;
+	
+	// Kept in tenths of a retry, which is what a success earns back, so the arithmetic is exact
+	protected static final long SUCCESS_REFUND = 1;
+	protected static final long RETRY_COST = 10;
+	
+	public enum ErrorType {
+		THROTTLING(true),
+		SERVER(true),
+		NETWORK(true),
+		STALLED(true),
+		CLIENT(false);
+		
+		public final boolean retryable;
+		
+		private ErrorType(boolean retryable) {
+			this.retryable = retryable;
+		}
+	}
+	
+	protected final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "retry-scheduler");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	protected final long baseDelay;
+	protected final long maxDelay;
+	protected final long maxBudget;
+	protected final CircuitBreaker circuitBreaker;
+	protected final Random random;
+	
+	protected long budget;
+	
+	public RetryScheduler() {
+		this(DEFAULT_BUDGET);
+	}
+	
+	public RetryScheduler(double budget) {
+		this(DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, budget, new CircuitBreaker(), new Random());
+	}
+	
+	public RetryScheduler(long baseDelay, long maxDelay, double budget, CircuitBreaker circuitBreaker, Random random) {
+		if (baseDelay < 0 || maxDelay < baseDelay) {
+			throw new IllegalArgumentException("invalid delays; baseDelay = " + baseDelay + "; maxDelay = " + maxDelay);
+		} else if (!(budget >= 0.0)) {
+			throw new IllegalArgumentException("budget was negative");
+		}
+		
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.maxBudget = Math.round(budget * RETRY_COST);
+		this.budget = this.maxBudget;
+		this.circuitBreaker = Objects.requireNonNull(circuitBreaker, "circuitBreaker was null");
+		this.random = Objects.requireNonNull(random, "random was null");
+	}
+	
+	public static ErrorType classify(Throwable t) {
+		if (t instanceof StalledException) {
+			return ErrorType.STALLED;
+		} else if (t instanceof AmazonServiceException) {
+			AmazonServiceException e = (AmazonServiceException)t;
+			String errorCode = e.getErrorCode();
+			int status = e.getStatusCode();
+			
+			if (status == 429 ||
+					"ThrottlingException".equals(errorCode) ||
+					"Throttling".equals(errorCode) ||
+					"RequestLimitExceeded".equals(errorCode) ||
+					"SlowDown".equals(errorCode)) {
+				return ErrorType.THROTTLING;
+			} else if (status >= 500) {
+				return ErrorType.SERVER;
+			} else if (status == 408 || "RequestTimeoutException".equals(errorCode)) {
+				return ErrorType.NETWORK;
+			} else if (status >= 400) {
+				return ErrorType.CLIENT;
+			}
+		}
+		
+		// No response; connection failures, timeouts, checksum mismatches and the like
+		return ErrorType.NETWORK;
+	}
+	
+	/**
+	 * @return a decorrelated jitter delay; random between the base delay and three times {@code previousDelay}, capped
+	 */
+	public long nextDelay(long previousDelay) {
+		long upper = Math.max(this.baseDelay, Math.min(this.maxDelay, previousDelay * 3));
+		return this.baseDelay + (long)(this.random.nextDouble() * (upper - this.baseDelay));
+	}
+	
+	/**
+	 * Spends one token from the retry budget.
+	 * 
+	 * @return false if the budget is exhausted and the request shouldn't be retried
+	 */
+	public synchronized boolean tryAcquireRetry() {
+		if (this.budget >= RETRY_COST) {
+			this.budget -= RETRY_COST;
+			return true;
+		} else {
+			return false;
+		}
+	}
+	
+	public synchronized double getBudget() {
+		return (double)this.budget / RETRY_COST;
+	}
+	
+	public CircuitBreaker getCircuitBreaker() {
+		return this.circuitBreaker;
+	}
+	
+	public void recordSuccess() {
+		synchronized (this) {
+			this.budget = Math.min(this.maxBudget, this.budget + SUCCESS_REFUND);
+		}
+		this.circuitBreaker.recordSuccess();
+	}
+	
+	public void recordFailure(ErrorType errorType) {
+		// A request the service rejected says nothing about its health
+		if (errorType != ErrorType.CLIENT) {
+			this.circuitBreaker.recordFailure(System.currentTimeMillis());
+		}
+	}
+	
+	/**
+	 * @return 0 if a request can be made now, otherwise how many milliseconds to wait before asking again
+	 */
+	public long admit() {
+		return this.circuitBreaker.admit(System.currentTimeMillis());
+	}
+	
+	public void schedule(Runnable task, long delay) {
+		this.executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void close() {
+		this.executor.shutdownNow();
+	}
+}
@@ -0,0 +1,185 @@
+package glacierpipe.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.ClientConfiguration;
+
+/**
+ * Socket options applied to every connection, by both upload engines.  Buffer sizes of 0 leave them to the OS, which
+ * on most systems grows them as needed, but only up to a limit that can be far below what a long, fast link needs: a
+ * connection can't have more unacknowledged data in flight than its send buffer holds, so it's limited to the buffer
+ * size per round trip.  {@link #getBufferSize} sizes a buffer to the bandwidth-delay product instead.
+ */
+public class SocketTuning {
+
+	protected static final Logger LOGGER = LoggerFactory.getLogger(SocketTuning.class);
+
+	/**
+	 * A buffer size that asks for the buffer to be sized to the bandwidth-delay product
+	 */
+	public static final int AUTO = -1;
+
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+	public static final int DEFAULT_SOCKET_TIMEOUT = 50 * 1000;
+
+	/**
+	 * What a link is assumed to carry when there's no upload rate to size buffers for; 1 Gbit/s
+	 */
+	public static final double DEFAULT_BANDWIDTH = 1000.0 * 1000.0 * 1000.0 / 8.0;
+
+	protected static final int MIN_AUTO_BUFFER_SIZE = 64 * 1024;
+	protected static final int MAX_AUTO_BUFFER_SIZE = 32 * 1024 * 1024;
+
+	protected final int sendBufferSize;
+	protected final int receiveBufferSize;
+	protected final boolean tcpNoDelay;
+	protected final int connectTimeout;
+	protected final int socketTimeout;
+
+	protected final AtomicBoolean warned = new AtomicBoolean(false);
+
+	public SocketTuning() {
+		this(0, 0, true, DEFAULT_CONNECT_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+	}
+
+	/**
+	 * @param sendBufferSize {@code SO_SNDBUF} in bytes, or 0 to leave it to the OS
+	 * @param receiveBufferSize {@code SO_RCVBUF} in bytes, or 0 to leave it to the OS
+	 * @param connectTimeout how long to wait for a connection to open, in milliseconds
+	 * @param socketTimeout how long a request can go without sending or receiving anything, in milliseconds
+	 */
+	public SocketTuning(int sendBufferSize, int receiveBufferSize, boolean tcpNoDelay, int connectTimeout, int socketTimeout) {
+		if (sendBufferSize < 0 || receiveBufferSize < 0) {
+			throw new IllegalArgumentException("buffer sizes can't be negative; sendBufferSize = " + sendBufferSize + "; receiveBufferSize = " + receiveBufferSize);
+		} else if (connectTimeout <= 0 || socketTimeout <= 0) {
+			throw new IllegalArgumentException("timeouts must be positive; connectTimeout = " + connectTimeout + "; socketTimeout = " + socketTimeout);
+		}
+
+		this.sendBufferSize = sendBufferSize;
+		this.receiveBufferSize = receiveBufferSize;
+		this.tcpNoDelay = tcpNoDelay;
+		this.connectTimeout = connectTimeout;
+		this.socketTimeout = socketTimeout;
+	}
+
+	public int getSendBufferSize() {
+		return this.sendBufferSize;
+	}
+
+	public int getReceiveBufferSize() {
+		return this.receiveBufferSize;
+	}
+
+	public boolean isTcpNoDelay() {
+		return this.tcpNoDelay;
+	}
+
+	public int getConnectTimeout() {
+		return this.connectTimeout;
+	}
+
+	public int getSocketTimeout() {
+		return this.socketTimeout;
+	}
+
+	/**
+	 * Applies the options to a socket before it's connected; the receive buffer has to be set by then for TCP to
+	 * advertise a window that large.
+	 */
+	public void configure(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(this.tcpNoDelay);
+		if (this.sendBufferSize > 0) {
+			socket.setSendBufferSize(this.sendBufferSize);
+		}
+		if (this.receiveBufferSize > 0) {
+			socket.setReceiveBufferSize(this.receiveBufferSize);
+		}
+		this.checkBufferSizes(socket.getSendBufferSize(), socket.getReceiveBufferSize());
+	}
+
+	public void configure(SocketChannel channel) throws IOException {
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, this.tcpNoDelay);
+		if (this.sendBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, this.sendBufferSize);
+		}
+		if (this.receiveBufferSize > 0) {
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, this.receiveBufferSize);
+		}
+		this.checkBufferSizes(channel.getOption(StandardSocketOptions.SO_SNDBUF), channel.getOption(StandardSocketOptions.SO_RCVBUF));
+	}
+
+	/**
+	 * Sets the SDK's timeouts.  Its sockets are opened by {@link PacedSocketFactory}, which applies the rest.
+	 */
+	public void configure(ClientConfiguration clientConfiguration) {
+		clientConfiguration.setConnectionTimeout(this.connectTimeout);
+		clientConfiguration.setSocketTimeout(this.socketTimeout);
+	}
+
+	/**
+	 * Warns, once, if the OS gave a socket smaller buffers than were asked for.
+	 */
+	protected void checkBufferSizes(int sendBufferSize, int receiveBufferSize) {
+		if ((sendBufferSize < this.sendBufferSize || receiveBufferSize < this.receiveBufferSize) && this.warned.compareAndSet(false, true)) {
+			LOGGER.warn("Asked for socket buffers of {} bytes to send and {} to receive, but the OS allowed {} and {}; "
+					+ "its limits (e.g. net.core.wmem_max and net.core.rmem_max on Linux) may need raising",
+					this.sendBufferSize, this.receiveBufferSize, sendBufferSize, receiveBufferSize);
+		}
+	}
+
+	/**
+	 * @param bytesPerSecond how fast one connection might send
+	 * @param roundTrip the round-trip time, in milliseconds
+	 * @return a buffer size that holds a round trip's worth of data at that rate, within sensible limits
+	 */
+	public static int getBufferSize(double bytesPerSecond, long roundTrip) {
+		double product = bytesPerSecond * roundTrip / 1000.0;
+		if (!(product >= MIN_AUTO_BUFFER_SIZE)) {
+			return MIN_AUTO_BUFFER_SIZE;
+		} else if (product >= MAX_AUTO_BUFFER_SIZE) {
+			return MAX_AUTO_BUFFER_SIZE;
+		}
+
+		// Whole kilobytes; there's nothing to gain from more precision
+		return (int)Math.ceil(product / 1024.0) * 1024;
+	}
+
+	/**
+	 * Estimates the round-trip time to a host by timing TCP connections to it.  Opening a connection takes one round
+	 * trip, and unlike a request, doesn't wait on the server.  The fastest of several is taken, since the others
+	 * include time spent queued somewhere along the way.
+	 *
+	 * @return the round-trip time in milliseconds, or -1 if no connection could be opened
+	 */
+	public static long probeRoundTrip(String host, int port, int samples, int timeout) {
+		long best = -1;
+		for (int i = 0; i < samples; i++) {
+			try (Socket socket = new Socket()) {
+				long start = System.nanoTime();
+				socket.connect(new InetSocketAddress(host, port), timeout);
+				long time = (System.nanoTime() - start) / 1000000;
+				best = (best < 0) ? time : Math.min(best, time);
+			} catch (IOException e) {
+				LOGGER.debug("Error probing round trip to " + host + ":" + port, e);
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public String toString() {
+		return "send buffer " + (this.sendBufferSize > 0 ? this.sendBufferSize + " bytes" : "default")
+				+ ", receive buffer " + (this.receiveBufferSize > 0 ? this.receiveBufferSize + " bytes" : "default")
+				+ ", TCP_NODELAY " + (this.tcpNoDelay ? "on" : "off")
+				+ ", connect timeout " + this.connectTimeout + " ms, socket timeout " + this.socketTimeout + " ms";
+	}
+}
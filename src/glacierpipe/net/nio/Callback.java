@@ -0,0 +1,19 @@
+package glacierpipe.net.nio;
+
+/**
+ * Receives the outcome of an asynchronous request.  Methods are called on the engine's I/O threads, so they must
+ * return quickly.  Exactly one of {@link #completed} and {@link #failed} is called.
+ */
+public interface Callback<T> {
+
+	/**
+	 * Called as body bytes are written to the connection.  {@code bytes} is negative if the request is being resent
+	 * on a new connection.
+	 */
+	public void bytesSent(long bytes);
+	
+	public void completed(T result);
+	
+	public void failed(Exception e);
+	
+}
@@ -0,0 +1,288 @@
+package glacierpipe.net.nio;
+
+import glacierpipe.net.AwsSigner;
+import glacierpipe.net.EndpointAddresses;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.services.glacier.model.UploadArchiveResult;
+import com.amazonaws.services.glacier.model.UploadMultipartPartResult;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Sends Glacier requests on an {@link HttpEngine} rather than through the SDK.  Requests are signed before they're
+ * sent, using hashes computed while the body was buffered, so the body is only read once, as it's written.  With
+ * {@link EndpointAddresses}, parts are spread across the endpoint's addresses, and each part's outcome is reported
+ * back so slow or failing addresses are left out.
+ */
+public class GlacierNioClient {
+
+	protected static final String SERVICE_NAME = "glacier";
+	protected static final String API_VERSION = "2012-06-01";
+	protected static final String DEFAULT_REGION = "us-east-1";
+
+	protected final HttpEngine engine;
+	protected final String scheme;
+	protected final String host;
+	protected final int port;
+	protected final String hostHeader;
+	protected final AwsSigner signer;
+	protected final EndpointAddresses addresses;
+	protected final ObjectMapper mapper = new ObjectMapper();
+
+	/**
+	 * @param endpoint a Glacier endpoint URL; the region is taken from its host name
+	 */
+	public GlacierNioClient(HttpEngine engine, String endpoint, String accessKey, String secretKey) {
+		this(engine, endpoint, accessKey, secretKey, null);
+	}
+
+	/**
+	 * @param addresses if not null, the endpoint host's addresses to spread requests across
+	 */
+	public GlacierNioClient(HttpEngine engine, String endpoint, String accessKey, String secretKey, EndpointAddresses addresses) {
+		this.engine = Objects.requireNonNull(engine, "engine was null");
+
+		URI uri = URI.create(Objects.requireNonNull(endpoint, "endpoint was null"));
+		if (uri.getHost() == null) {
+			throw new IllegalArgumentException("endpoint has no host: " + endpoint);
+		}
+
+		this.scheme = (uri.getScheme() != null) ? uri.getScheme().toLowerCase() : "https";
+		this.host = uri.getHost();
+
+		int defaultPort = "https".equals(this.scheme) ? 443 : 80;
+		this.port = (uri.getPort() >= 0) ? uri.getPort() : defaultPort;
+		this.hostHeader = (this.port == defaultPort) ? this.host : this.host + ":" + this.port;
+
+		this.signer = new AwsSigner(accessKey, secretKey, getRegion(this.host), SERVICE_NAME);
+
+		if (addresses != null && !addresses.getHost().equalsIgnoreCase(this.host)) {
+			throw new IllegalArgumentException("addresses are for " + addresses.getHost() + ", not " + this.host);
+		}
+		this.addresses = addresses;
+	}
+
+	/**
+	 * Opens connections to the endpoint ahead of the requests that will use them, shared between its healthy
+	 * addresses.
+	 */
+	public void prewarm(int connections) {
+		if (this.addresses == null) {
+			this.engine.prewarm(this.scheme, this.host, this.port, connections);
+			return;
+		}
+
+		List<InetAddress> healthy;
+		try {
+			healthy = this.addresses.getAddresses().subList(0, this.addresses.getHealthyCount());
+		} catch (UnknownHostException e) {
+			// The first request will fail with this
+			return;
+		}
+
+		for (int i = 0; i < healthy.size(); i++) {
+			this.engine.prewarm(this.scheme, this.host, this.port, healthy.get(i), (connections + healthy.size() - i - 1) / healthy.size());
+		}
+	}
+
+	/**
+	 * Uploads a part of a multipart upload.
+	 *
+	 * @param range the part's range, formatted for {@code Content-Range}
+	 * @param treeHash the hex SHA-256 tree hash of the body
+	 * @param linearHash the hex SHA-256 of the body, needed for signing
+	 * @param body the part's contents; the buffers' positions aren't changed
+	 */
+	public HttpEngine.Exchange uploadMultipartPart(String vaultName, String uploadId, String range, String treeHash, String linearHash,
+			ByteBuffer[] body, final Callback<UploadMultipartPartResult> callback) {
+
+		String path = "/-/vaults/" + AwsSigner.uriEncode(vaultName) + "/multipart-uploads/" + AwsSigner.uriEncode(uploadId);
+
+		long length = 0;
+		for (ByteBuffer buffer : body) {
+			length += buffer.remaining();
+		}
+
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("Host", this.hostHeader);
+		headers.put("x-amz-glacier-version", API_VERSION);
+		headers.put("Content-Range", range);
+		headers.put("x-amz-sha256-tree-hash", treeHash);
+		headers.put("x-amz-content-sha256", linearHash);
+		headers.put("Content-Type", "application/octet-stream");
+		headers.put("Content-Length", Long.toString(length));
+		this.signer.sign("PUT", path, "", headers, linearHash, new Date());
+
+		HttpRequest request = new HttpRequest("PUT", this.scheme, this.host, this.port, path, headers, body);
+		return this.execute(request, new Callback<HttpResponse>() {
+			@Override
+			public void bytesSent(long bytes) {
+				callback.bytesSent(bytes);
+			}
+
+			@Override
+			public void completed(HttpResponse response) {
+				if (response.isSuccessful()) {
+					callback.completed(new UploadMultipartPartResult().withChecksum(response.getHeader("x-amz-sha256-tree-hash")));
+				} else {
+					callback.failed(GlacierNioClient.this.toException(response));
+				}
+			}
+
+			@Override
+			public void failed(Exception e) {
+				callback.failed(e);
+			}
+		});
+	}
+
+	/**
+	 * Uploads a whole archive in a single request.
+	 *
+	 * @param treeHash the hex SHA-256 tree hash of the body
+	 * @param linearHash the hex SHA-256 of the body, needed for signing
+	 * @param body the archive's contents; the buffers' positions aren't changed
+	 */
+	public HttpEngine.Exchange uploadArchive(String vaultName, String archiveDescription, String treeHash, String linearHash,
+			ByteBuffer[] body, final Callback<UploadArchiveResult> callback) {
+
+		String path = "/-/vaults/" + AwsSigner.uriEncode(vaultName) + "/archives";
+
+		long length = 0;
+		for (ByteBuffer buffer : body) {
+			length += buffer.remaining();
+		}
+
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("Host", this.hostHeader);
+		headers.put("x-amz-glacier-version", API_VERSION);
+		if (archiveDescription != null) {
+			headers.put("x-amz-archive-description", archiveDescription);
+		}
+		headers.put("x-amz-sha256-tree-hash", treeHash);
+		headers.put("x-amz-content-sha256", linearHash);
+		headers.put("Content-Type", "application/octet-stream");
+		headers.put("Content-Length", Long.toString(length));
+		this.signer.sign("POST", path, "", headers, linearHash, new Date());
+
+		HttpRequest request = new HttpRequest("POST", this.scheme, this.host, this.port, path, headers, body);
+		return this.execute(request, new Callback<HttpResponse>() {
+			@Override
+			public void bytesSent(long bytes) {
+				callback.bytesSent(bytes);
+			}
+
+			@Override
+			public void completed(HttpResponse response) {
+				if (response.isSuccessful()) {
+					callback.completed(new UploadArchiveResult().
+							withLocation(response.getHeader("Location")).
+							withChecksum(response.getHeader("x-amz-sha256-tree-hash")).
+							withArchiveId(response.getHeader("x-amz-archive-id")));
+				} else {
+					callback.failed(GlacierNioClient.this.toException(response));
+				}
+			}
+
+			@Override
+			public void failed(Exception e) {
+				callback.failed(e);
+			}
+		});
+	}
+
+	/**
+	 * Sends {@code request} to the least loaded of the endpoint's addresses, and tells {@link #addresses} how it went.
+	 * Error responses from the service only count against the address if they're server errors.
+	 */
+	protected HttpEngine.Exchange execute(HttpRequest request, final Callback<HttpResponse> callback) {
+		if (this.addresses == null) {
+			return this.engine.execute(request, callback);
+		}
+
+		final InetAddress address;
+		try {
+			address = this.addresses.acquire();
+		} catch (UnknownHostException e) {
+			// Let the engine fail it the same way it would have
+			return this.engine.execute(request, callback);
+		}
+
+		final long started = System.currentTimeMillis();
+		final AtomicReference<HttpEngine.Exchange> exchange = new AtomicReference<HttpEngine.Exchange>();
+		exchange.set(this.engine.execute(request, address, new Callback<HttpResponse>() {
+			@Override
+			public void bytesSent(long bytes) {
+				callback.bytesSent(bytes);
+			}
+
+			@Override
+			public void completed(HttpResponse response) {
+				GlacierNioClient.this.addresses.release(address, System.currentTimeMillis() - started, response.getStatusCode() >= 500);
+				callback.completed(response);
+			}
+
+			@Override
+			public void failed(Exception e) {
+				// A cancelled request says nothing about the address, and took however long it was allowed
+				boolean cancelled = exchange.get() != null && exchange.get().isCancelled();
+				GlacierNioClient.this.addresses.release(address, -1, !cancelled);
+				callback.failed(e);
+			}
+		}));
+		return exchange.get();
+	}
+
+	/**
+	 * Turns an error response into the exception the SDK would have thrown, so it's handled the same way.
+	 */
+	protected AmazonServiceException toException(HttpResponse response) {
+		String code = null;
+		String message = null;
+		String type = null;
+
+		try {
+			JsonNode error = this.mapper.readTree(response.getBody());
+			if (error != null) {
+				code = error.path("code").textValue();
+				message = error.path("message").textValue();
+				type = error.path("type").textValue();
+			}
+		} catch (IOException e) {
+			// Not JSON; fall back on the status line
+		}
+
+		AmazonServiceException e = new AmazonServiceException((message != null) ? message : response.toString());
+		e.setStatusCode(response.getStatusCode());
+		e.setErrorCode((code != null) ? code : response.getReasonPhrase());
+		e.setErrorType("Client".equals(type) || (type == null && response.getStatusCode() < 500) ? ErrorType.Client : ErrorType.Service);
+		e.setRequestId(response.getHeader("x-amzn-RequestId"));
+		e.setServiceName("AmazonGlacier");
+		return e;
+	}
+
+	/**
+	 * @return the region in a {@code glacier.<region>.amazonaws.com} host name
+	 */
+	protected static String getRegion(String host) {
+		String[] labels = host.split("\\.");
+		if (labels.length >= 3 && labels[0].equals(SERVICE_NAME)) {
+			return labels[1];
+		}
+		return DEFAULT_REGION;
+	}
+}
@@ -0,0 +1,795 @@
+package glacierpipe.net.nio;
+
+import glacierpipe.io.Pacer;
+import glacierpipe.net.ConnectionStats;
+import glacierpipe.net.SocketTuning;
+import glacierpipe.net.nio.Transport.PlainTransport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A non-blocking HTTP/1.1 client.  A few I/O threads, each running a selector, drive every request, so the number
+ * of requests in flight isn't tied to the number of threads.  Request bodies are written straight from the
+ * caller's buffers.  Connections are kept alive and reused by later requests to the same host.  With a {@link Pacer},
+ * writes to every connection are paced together; a connection waiting on it just stops asking to write until the
+ * pacer allows more, so no thread sleeps.  Connections can be opened ahead of time with {@link #prewarm}, so the
+ * first requests don't wait on TCP and TLS handshakes.  Connections are pooled by the address they're connected to,
+ * so a caller can choose which of a host's addresses each request goes to.
+ */
+public class HttpEngine implements AutoCloseable {
+
+	protected static final Logger LOGGER = LoggerFactory.getLogger(HttpEngine.class);
+
+	public static final int DEFAULT_IO_THREADS = 2;
+	public static final long DEFAULT_SOCKET_TIMEOUT = 50 * 1000;
+	public static final long DEFAULT_IDLE_TIMEOUT = 20 * 1000;
+
+	protected static final int READ_BUFFER_SIZE = 16 * 1024;
+
+	protected final SSLContext sslContext;
+	protected final Pacer pacer;
+	protected final SocketTuning tuning;
+	protected final long idleTimeout;
+	protected final Reactor[] reactors;
+	protected final AtomicInteger nextReactor = new AtomicInteger();
+	protected final ConnectionStats stats = new ConnectionStats();
+	protected volatile int maxIdleConnections = Integer.MAX_VALUE;
+
+	public HttpEngine(int ioThreads, SSLContext sslContext) throws IOException {
+		this(ioThreads, sslContext, null);
+	}
+
+	public HttpEngine(int ioThreads, SSLContext sslContext, Pacer pacer) throws IOException {
+		this(ioThreads, sslContext, pacer, DEFAULT_SOCKET_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	/**
+	 * @param pacer if not null, paces what's written to every connection
+	 * @param socketTimeout fail requests that send or receive nothing for this long
+	 * @param idleTimeout close pooled connections that go unused for this long
+	 */
+	public HttpEngine(int ioThreads, SSLContext sslContext, Pacer pacer, long socketTimeout, long idleTimeout) throws IOException {
+		this(ioThreads, sslContext, pacer, new SocketTuning(0, 0, true, SocketTuning.DEFAULT_CONNECT_TIMEOUT, (int)Math.min(socketTimeout, Integer.MAX_VALUE)), idleTimeout);
+	}
+
+	/**
+	 * @param tuning options for every connection's socket, including how long to wait for it to connect and how long
+	 * a request can go without sending or receiving anything
+	 * @param idleTimeout close pooled connections that go unused for this long
+	 */
+	public HttpEngine(int ioThreads, SSLContext sslContext, Pacer pacer, SocketTuning tuning, long idleTimeout) throws IOException {
+		if (ioThreads <= 0) {
+			throw new IllegalArgumentException("ioThreads must be positive");
+		} else if (idleTimeout <= 0) {
+			throw new IllegalArgumentException("idleTimeout must be positive");
+		}
+
+		this.sslContext = Objects.requireNonNull(sslContext, "sslContext was null");
+		this.pacer = pacer;
+		this.tuning = Objects.requireNonNull(tuning, "tuning was null");
+		this.idleTimeout = idleTimeout;
+
+		this.reactors = new Reactor[ioThreads];
+		try {
+			for (int i = 0; i < ioThreads; i++) {
+				this.reactors[i] = new Reactor("http-engine-" + i);
+			}
+		} catch (IOException e) {
+			this.close();
+			throw e;
+		}
+
+		for (Reactor reactor : this.reactors) {
+			reactor.thread.start();
+		}
+	}
+
+	/**
+	 * Sends {@code request}.  Its outcome is passed to {@code callback} on one of the engine's threads.
+	 */
+	public Exchange execute(HttpRequest request, Callback<HttpResponse> callback) {
+		return this.execute(request, null, callback);
+	}
+
+	/**
+	 * Sends {@code request} to one of its host's addresses, on a connection to that address.
+	 *
+	 * @param address if null, the host name's resolved as usual
+	 */
+	public Exchange execute(HttpRequest request, InetAddress address, Callback<HttpResponse> callback) {
+		final Reactor reactor = this.nextReactor();
+		final Exchange exchange = new Exchange(reactor, request, callback);
+
+		InetSocketAddress socketAddress = (address != null) ? new InetSocketAddress(address, request.getPort()) : new InetSocketAddress(request.getHost(), request.getPort());
+		if (socketAddress.isUnresolved()) {
+			exchange.fail(new UnknownHostException(request.getHost()));
+			return exchange;
+		}
+		exchange.address = socketAddress;
+
+		reactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				reactor.start(exchange);
+			}
+		});
+
+		return exchange;
+	}
+
+	/**
+	 * Opens connections to a host in the background and adds them to the pool, so they're ready for the requests
+	 * that follow.  Nothing's opened past {@link #setMaxIdleConnections the pool's size}.
+	 */
+	public void prewarm(String scheme, String host, int port, int connections) {
+		InetSocketAddress address = new InetSocketAddress(host, port);
+		if (address.isUnresolved()) {
+			LOGGER.debug("Not pre-warming connections to unresolved host " + host);
+			return;
+		}
+		this.prewarm(scheme, host, port, address.getAddress(), connections);
+	}
+
+	/**
+	 * Opens connections to one of a host's addresses, for requests {@link #execute(HttpRequest, InetAddress, Callback)
+	 * sent to that address}.
+	 */
+	public void prewarm(final String scheme, final String host, final int port, InetAddress address, final int connections) {
+		if (connections <= 0) {
+			return;
+		}
+
+		final InetSocketAddress socketAddress = new InetSocketAddress(Objects.requireNonNull(address, "address was null"), port);
+
+		// Open one first, so the rest can resume its TLS session rather than each negotiating their own
+		this.prewarm(scheme, host, port, socketAddress, new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 1; i < connections; i++) {
+					HttpEngine.this.prewarm(scheme, host, port, socketAddress, null);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param whenReady if not null, run on the reactor's thread once the connection's ready for requests and its
+	 * TLS session can be resumed
+	 */
+	protected void prewarm(final String scheme, final String host, final int port, final InetSocketAddress address, final Runnable whenReady) {
+		final Reactor reactor = this.nextReactor();
+		reactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				reactor.prewarm(scheme, host, port, address, whenReady);
+			}
+		});
+	}
+
+	protected Reactor nextReactor() {
+		return this.reactors[(this.nextReactor.getAndIncrement() & Integer.MAX_VALUE) % this.reactors.length];
+	}
+
+	/**
+	 * Limits how many idle connections are kept alive for each of a host's addresses.  Connections released past that are closed.
+	 */
+	public void setMaxIdleConnections(int maxIdleConnections) {
+		if (maxIdleConnections < 0) {
+			throw new IllegalArgumentException("maxIdleConnections can't be negative");
+		}
+		this.maxIdleConnections = maxIdleConnections;
+	}
+
+	public ConnectionStats getConnectionStats() {
+		return this.stats;
+	}
+
+	/**
+	 * @return the key connections to {@code address} for requests with {@code connectionKey} are pooled under
+	 */
+	protected static String getPoolKey(String connectionKey, InetSocketAddress address) {
+		return connectionKey + "@" + address.getAddress().getHostAddress();
+	}
+
+	@Override
+	public void close() {
+		for (Reactor reactor : this.reactors) {
+			if (reactor != null) {
+				reactor.closed = true;
+				reactor.selector.wakeup();
+			}
+		}
+
+		for (Reactor reactor : this.reactors) {
+			if (reactor != null && reactor.thread.isAlive()) {
+				try {
+					reactor.thread.join(1000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+	}
+
+	public class Exchange {
+
+		protected final Reactor reactor;
+		protected final HttpRequest request;
+		protected final Callback<HttpResponse> callback;
+		protected final AtomicBoolean done = new AtomicBoolean(false);
+		protected volatile boolean cancelled = false;
+		protected InetSocketAddress address;
+
+		// Only touched on the reactor's thread
+		protected Connection connection;
+		protected ByteBuffer head;
+		protected ByteBuffer[] buffers;
+		protected HttpResponseParser parser;
+		protected boolean written;
+		protected long sent;
+		protected boolean resent = false;
+
+		protected Exchange(Reactor reactor, HttpRequest request, Callback<HttpResponse> callback) {
+			this.reactor = reactor;
+			this.request = Objects.requireNonNull(request, "request was null");
+			this.callback = Objects.requireNonNull(callback, "callback was null");
+		}
+
+		public HttpRequest getRequest() {
+			return this.request;
+		}
+
+		public boolean isDone() {
+			return this.done.get();
+		}
+
+		/**
+		 * @return whether the request failed because it was {@link #cancel cancelled}
+		 */
+		public boolean isCancelled() {
+			return this.cancelled;
+		}
+
+		/**
+		 * Abandons the request, closing its connection.  The callback's {@link Callback#failed} is called if the
+		 * request hadn't already finished.
+		 */
+		public void cancel() {
+			if (this.done.compareAndSet(false, true)) {
+				this.cancelled = true;
+				this.callback.failed(new IOException("Request cancelled"));
+				this.reactor.execute(new Runnable() {
+					@Override
+					public void run() {
+						if (Exchange.this.connection != null) {
+							Exchange.this.connection.close();
+						}
+					}
+				});
+			}
+		}
+
+		protected void reset() {
+			this.head = this.request.encodeHead();
+			ByteBuffer[] body = this.request.duplicateBody();
+			this.buffers = new ByteBuffer[body.length + 1];
+			this.buffers[0] = this.head;
+			System.arraycopy(body, 0, this.buffers, 1, body.length);
+			this.parser = new HttpResponseParser();
+			this.written = false;
+			this.sent = 0;
+		}
+
+		protected void complete(HttpResponse response) {
+			if (this.done.compareAndSet(false, true)) {
+				this.callback.completed(response);
+			}
+		}
+
+		protected void fail(Exception e) {
+			if (this.done.compareAndSet(false, true)) {
+				this.callback.failed(e);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return this.request.toString();
+		}
+	}
+
+	protected class Reactor implements Runnable {
+
+		protected final Thread thread;
+		protected final Selector selector;
+		protected final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		protected final Map<String, Deque<Connection>> idle = new HashMap<String, Deque<Connection>>();
+		protected final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		protected final Set<Connection> paced = new LinkedHashSet<Connection>();
+		protected volatile boolean closed = false;
+		protected long lastTimeoutCheck = 0;
+
+		protected Reactor(String name) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, name);
+			this.thread.setDaemon(true);
+		}
+
+		protected void execute(Runnable task) {
+			this.tasks.add(task);
+			this.selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (!this.closed) {
+				try {
+					this.selector.select(this.getSelectTimeout());
+
+					Runnable task;
+					while ((task = this.tasks.poll()) != null) {
+						task.run();
+					}
+
+					Iterator<SelectionKey> i = this.selector.selectedKeys().iterator();
+					while (i.hasNext()) {
+						SelectionKey key = i.next();
+						i.remove();
+						if (key.isValid()) {
+							((Connection)key.attachment()).process();
+						}
+					}
+
+					this.resumePaced();
+
+					long now = System.currentTimeMillis();
+					if (now - this.lastTimeoutCheck >= 1000) {
+						this.checkTimeouts(now);
+						this.lastTimeoutCheck = now;
+					}
+				} catch (IOException | RuntimeException e) {
+					LOGGER.error("Unexpected error in " + this.thread.getName(), e);
+				}
+			}
+
+			// Requests submitted after closing fail in start()
+			Runnable task;
+			while ((task = this.tasks.poll()) != null) {
+				task.run();
+			}
+
+			for (Connection connection : this.getConnections()) {
+				connection.failed(new IOException("HTTP engine closed"));
+			}
+
+			try {
+				this.selector.close();
+			} catch (IOException e) {
+				LOGGER.warn("Error closing selector", e);
+			}
+		}
+
+		protected void start(Exchange exchange) {
+			if (exchange.isDone()) {
+				return;
+			} else if (this.closed) {
+				exchange.fail(new IOException("HTTP engine closed"));
+				return;
+			}
+
+			Deque<Connection> connections = this.idle.get(getPoolKey(exchange.request.getConnectionKey(), exchange.address));
+			Connection connection = (connections != null) ? connections.pollFirst() : null;
+
+			try {
+				if (connection == null) {
+					HttpRequest request = exchange.request;
+					connection = this.open(request.getScheme(), request.getHost(), request.getPort(), exchange.address, false);
+				}
+			} catch (IOException | RuntimeException e) {
+				exchange.fail(e);
+				return;
+			}
+
+			connection.start(exchange);
+		}
+
+		protected void prewarm(String scheme, String host, int port, InetSocketAddress address, Runnable whenReady) {
+			if (this.closed) {
+				return;
+			}
+
+			String key = getPoolKey(HttpRequest.getConnectionKey(scheme, host, port), address);
+			Deque<Connection> connections = this.idle.get(key);
+			if (connections != null && connections.size() >= this.getMaxIdleConnections()) {
+				return;
+			}
+
+			Connection connection;
+			try {
+				connection = this.open(scheme, host, port, address, true);
+			} catch (IOException | RuntimeException e) {
+				LOGGER.debug("Error pre-warming a connection to " + key, e);
+				return;
+			}
+
+			// Pooled right away; a request can take it over before it's finished connecting
+			connection.whenReady = whenReady;
+			this.release(connection);
+			connection.process();
+		}
+
+		/**
+		 * @param address {@code host} and {@code port}, resolved
+		 * @param prewarm whether the connection's being opened ahead of any request for it
+		 */
+		protected Connection open(String scheme, String host, int port, InetSocketAddress address, boolean prewarm) throws IOException {
+			SocketChannel channel = SocketChannel.open();
+			try {
+				channel.configureBlocking(false);
+				HttpEngine.this.tuning.configure(channel);
+
+				Transport transport;
+				if ("https".equals(scheme)) {
+					SSLEngine engine = HttpEngine.this.sslContext.createSSLEngine(host, port);
+					SSLParameters parameters = engine.getSSLParameters();
+					parameters.setEndpointIdentificationAlgorithm("HTTPS");
+					engine.setSSLParameters(parameters);
+					transport = new TlsTransport(channel, engine);
+				} else {
+					transport = new PlainTransport(channel);
+				}
+				transport.setPacer(HttpEngine.this.pacer);
+
+				Connection connection = new Connection(this, getPoolKey(HttpRequest.getConnectionKey(scheme, host, port), address), channel, transport);
+				connection.connected = channel.connect(address);
+				connection.key = channel.register(this.selector, 0, connection);
+				HttpEngine.this.stats.connectionOpened(prewarm);
+				return connection;
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return how long to wait for I/O before a paced connection can write again, in milliseconds
+		 */
+		protected long getSelectTimeout() {
+			long timeout = 1000;
+			long now = System.nanoTime();
+			for (Connection connection : this.paced) {
+				long wait = TimeUnit.NANOSECONDS.toMillis(connection.transport.getResumeTime() - now + 999999);
+				timeout = Math.min(timeout, Math.max(1, wait));
+			}
+			return timeout;
+		}
+
+		protected void pause(Connection connection) {
+			if (this.paced.add(connection)) {
+				HttpEngine.this.pacer.startWaiting();
+			}
+		}
+
+		protected void unpause(Connection connection) {
+			if (this.paced.remove(connection)) {
+				HttpEngine.this.pacer.stopWaiting();
+			}
+		}
+
+		protected void resumePaced() {
+			if (this.paced.isEmpty()) {
+				return;
+			}
+
+			long now = System.nanoTime();
+			for (Connection connection : new ArrayList<Connection>(this.paced)) {
+				if (now - connection.transport.getResumeTime() >= 0) {
+					connection.process();
+				}
+			}
+		}
+
+		protected void release(Connection connection) {
+			Deque<Connection> connections = this.idle.get(connection.poolKey);
+			if (connections == null) {
+				connections = new ArrayDeque<Connection>();
+				this.idle.put(connection.poolKey, connections);
+			} else if (connections.size() >= this.getMaxIdleConnections()) {
+				connection.close();
+				return;
+			}
+
+			// Most recently used first, so extra connections age out
+			connections.addFirst(connection);
+			connection.lastActivity = System.currentTimeMillis();
+			connection.interest(SelectionKey.OP_READ);
+		}
+
+		/**
+		 * @return this reactor's share of the idle connections to keep for each address
+		 */
+		protected int getMaxIdleConnections() {
+			int max = HttpEngine.this.maxIdleConnections;
+			int reactors = HttpEngine.this.reactors.length;
+			return (max == Integer.MAX_VALUE) ? max : (max + reactors - 1) / reactors;
+		}
+
+		protected void checkTimeouts(long now) {
+			for (Connection connection : this.getConnections()) {
+				long idleFor = now - connection.lastActivity;
+				if (!connection.connected && now - connection.started >= HttpEngine.this.tuning.getConnectTimeout()) {
+					connection.failed(new SocketTimeoutException("Connection not opened after " + (now - connection.started) + " ms"));
+				} else if (connection.exchange != null && idleFor >= HttpEngine.this.tuning.getSocketTimeout()) {
+					connection.failed(new SocketTimeoutException("Nothing sent or received for " + idleFor + " ms"));
+				} else if (connection.exchange == null && idleFor >= HttpEngine.this.idleTimeout) {
+					connection.close();
+				}
+			}
+		}
+
+		protected List<Connection> getConnections() {
+			List<Connection> connections = new ArrayList<Connection>();
+			for (SelectionKey key : this.selector.keys()) {
+				if (key.isValid()) {
+					connections.add((Connection)key.attachment());
+				}
+			}
+			return connections;
+		}
+	}
+
+	protected class Connection {
+
+		protected final Reactor reactor;
+		protected final String poolKey;
+		protected final SocketChannel channel;
+		protected final Transport transport;
+		protected SelectionKey key;
+
+		protected boolean connected = false;
+		protected boolean ready = false;
+		protected boolean reused = false;
+		protected boolean closed = false;
+		protected Exchange exchange;
+		protected final long started = System.currentTimeMillis();
+		protected long lastActivity = this.started;
+		protected Runnable whenReady;
+
+		protected Connection(Reactor reactor, String poolKey, SocketChannel channel, Transport transport) {
+			this.reactor = reactor;
+			this.poolKey = poolKey;
+			this.channel = channel;
+			this.transport = transport;
+		}
+
+		protected void runWhenReady() {
+			if (this.whenReady != null) {
+				Runnable whenReady = this.whenReady;
+				this.whenReady = null;
+				whenReady.run();
+			}
+		}
+
+		protected void start(Exchange exchange) {
+			// Don't hold up anything waiting on this connection now that it's in use
+			this.runWhenReady();
+			HttpEngine.this.stats.requestSent();
+			this.exchange = exchange;
+			this.lastActivity = System.currentTimeMillis();
+			exchange.connection = this;
+			exchange.reset();
+			this.process();
+		}
+
+		protected void process() {
+			this.reactor.unpause(this);
+
+			try {
+				if (!this.connected) {
+					if (!this.channel.finishConnect()) {
+						this.interest(SelectionKey.OP_CONNECT);
+						return;
+					}
+					this.connected = true;
+					this.lastActivity = System.currentTimeMillis();
+				}
+
+				if (!this.ready) {
+					if (!this.transport.handshake()) {
+						this.interest(this.transport.getInterestOps());
+						this.pauseIfPaced();
+						return;
+					}
+					this.ready = true;
+
+					if (this.transport instanceof TlsTransport) {
+						HttpEngine.this.stats.handshakeFinished(((TlsTransport)this.transport).getEngine().getSession(), this.started);
+					}
+
+					// A TLS 1.3 session can't be resumed until the server sends a ticket for it
+					if (!(this.transport instanceof TlsTransport) || !"TLSv1.3".equals(((TlsTransport)this.transport).getEngine().getSession().getProtocol())) {
+						this.runWhenReady();
+					}
+				}
+
+				if (this.exchange == null) {
+					this.processIdle();
+				} else {
+					this.processExchange();
+				}
+			} catch (IOException | RuntimeException e) {
+				this.failed(e);
+			}
+		}
+
+		protected void processIdle() throws IOException {
+			ByteBuffer buffer = this.reactor.readBuffer;
+			buffer.clear();
+			if (this.transport.read(buffer) != 0) {
+				// The server closed the connection, or sent something nobody asked for
+				this.close();
+			} else {
+				this.interest(SelectionKey.OP_READ);
+				if (this.transport instanceof TlsTransport && ((TlsTransport)this.transport).hasPostHandshakeRecords()) {
+					this.runWhenReady();
+				}
+			}
+		}
+
+		protected void processExchange() throws IOException {
+			Exchange exchange = this.exchange;
+
+			if (!exchange.written) {
+				int headBefore = exchange.head.remaining();
+				long written = this.transport.write(exchange.buffers);
+				if (written > 0) {
+					this.lastActivity = System.currentTimeMillis();
+
+					long body = written - (headBefore - exchange.head.remaining());
+					if (body > 0) {
+						exchange.sent += body;
+						exchange.callback.bytesSent(body);
+					}
+				}
+
+				if (!TlsTransport.hasRemaining(exchange.buffers) && this.transport.flush()) {
+					exchange.written = true;
+				}
+			}
+
+			// Read even while writing; the server can answer early, e.g. to reject the request
+			ByteBuffer buffer = this.reactor.readBuffer;
+			while (true) {
+				buffer.clear();
+				int read = this.transport.read(buffer);
+				if (read < 0) {
+					exchange.parser.endOfStream();
+					this.completed(false);
+					return;
+				} else if (read == 0) {
+					break;
+				}
+
+				this.lastActivity = System.currentTimeMillis();
+				buffer.flip();
+				if (exchange.parser.parse(buffer)) {
+					this.completed(exchange.written && exchange.parser.isKeepAlive() && !buffer.hasRemaining());
+					return;
+				}
+			}
+
+			int writeOps = exchange.written ? (this.transport.getInterestOps() & SelectionKey.OP_WRITE) : SelectionKey.OP_WRITE;
+			if (this.transport.getResumeTime() != 0) {
+				// The socket's writable, but the pacer won't allow it yet
+				writeOps = 0;
+			}
+			this.interest(SelectionKey.OP_READ | writeOps);
+			this.pauseIfPaced();
+		}
+
+		protected void pauseIfPaced() {
+			if (this.transport.getResumeTime() != 0) {
+				this.reactor.pause(this);
+			}
+		}
+
+		protected void completed(boolean keepAlive) {
+			Exchange exchange = this.exchange;
+			this.exchange = null;
+			exchange.connection = null;
+
+			if (keepAlive && !this.closed) {
+				this.reused = true;
+				this.reactor.release(this);
+			} else {
+				this.close();
+			}
+
+			exchange.complete(exchange.parser.getResponse());
+		}
+
+		protected void failed(Exception e) {
+			Exchange exchange = this.exchange;
+			this.close();
+
+			if (exchange == null || exchange.isDone()) {
+				return;
+			} else if (this.reused && !exchange.resent && !exchange.parser.isStarted()) {
+				// The server probably closed the pooled connection as it was reused; try once on a new one
+				LOGGER.debug("Resending " + exchange + " after failure on a reused connection", e);
+				exchange.resent = true;
+				if (exchange.sent > 0) {
+					exchange.callback.bytesSent(-exchange.sent);
+				}
+				this.reactor.start(exchange);
+			} else {
+				exchange.fail(e);
+			}
+		}
+
+		protected void interest(int ops) {
+			if (this.key.isValid()) {
+				this.key.interestOps(ops);
+			}
+		}
+
+		protected void close() {
+			if (this.closed) {
+				return;
+			}
+
+			this.closed = true;
+			this.reactor.unpause(this);
+			if (this.exchange != null) {
+				this.exchange.connection = null;
+				this.exchange = null;
+			}
+
+			Deque<Connection> connections = this.reactor.idle.get(this.poolKey);
+			if (connections != null) {
+				connections.remove(this);
+			}
+
+			if (this.key != null) {
+				this.key.cancel();
+			}
+
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				LOGGER.debug("Error closing connection", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package glacierpipe.net.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A request whose body is sent straight from the given buffers.  The buffers are duplicated for each attempt to
+ * send the request, so their positions are never changed.
+ */
+public class HttpRequest {
+
+	protected final String method;
+	protected final String scheme;
+	protected final String host;
+	protected final int port;
+	protected final String path;
+	protected final Map<String, String> headers;
+	protected final ByteBuffer[] body;
+	
+	/**
+	 * @param path the encoded path, including any query string
+	 * @param headers headers in the order they're sent; they should include {@code Host} and {@code Content-Length}
+	 */
+	public HttpRequest(String method, String scheme, String host, int port, String path, Map<String, String> headers, ByteBuffer[] body) {
+		if (!"http".equals(scheme) && !"https".equals(scheme)) {
+			throw new IllegalArgumentException("unsupported scheme: " + scheme);
+		} else if (port <= 0 || port > 65535) {
+			throw new IllegalArgumentException("invalid port: " + port);
+		}
+		
+		this.method = Objects.requireNonNull(method, "method was null");
+		this.scheme = scheme;
+		this.host = Objects.requireNonNull(host, "host was null");
+		this.port = port;
+		this.path = Objects.requireNonNull(path, "path was null");
+		this.headers = Collections.unmodifiableMap(new LinkedHashMap<String, String>(headers));
+		this.body = body.clone();
+	}
+	
+	public String getMethod() {
+		return this.method;
+	}
+	
+	public String getScheme() {
+		return this.scheme;
+	}
+	
+	public String getHost() {
+		return this.host;
+	}
+	
+	public int getPort() {
+		return this.port;
+	}
+	
+	public String getPath() {
+		return this.path;
+	}
+	
+	public Map<String, String> getHeaders() {
+		return this.headers;
+	}
+	
+	public boolean isSecure() {
+		return "https".equals(this.scheme);
+	}
+	
+	public long getContentLength() {
+		long length = 0;
+		for (ByteBuffer buffer : this.body) {
+			length += buffer.remaining();
+		}
+		return length;
+	}
+	
+	/**
+	 * @return connections can be reused by requests with the same key
+	 */
+	protected String getConnectionKey() {
+		return getConnectionKey(this.scheme, this.host, this.port);
+	}
+	
+	protected static String getConnectionKey(String scheme, String host, int port) {
+		return scheme + "://" + host + ":" + port;
+	}
+	
+	protected ByteBuffer encodeHead() {
+		StringBuilder head = new StringBuilder();
+		head.append(this.method).append(' ').append(this.path).append(" HTTP/1.1\r\n");
+		for (Map.Entry<String, String> header : this.headers.entrySet()) {
+			head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		head.append("\r\n");
+		return ByteBuffer.wrap(head.toString().getBytes(Charset.forName("ISO-8859-1")));
+	}
+	
+	protected ByteBuffer[] duplicateBody() {
+		ByteBuffer[] body = new ByteBuffer[this.body.length];
+		for (int i = 0; i < body.length; i++) {
+			body[i] = this.body[i].duplicate();
+		}
+		return body;
+	}
+	
+	@Override
+	public String toString() {
+		return this.method + " " + this.getConnectionKey() + this.path;
+	}
+}
@@ -0,0 +1,62 @@
+package glacierpipe.net.nio;
+
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+public class HttpResponse {
+
+	protected final int statusCode;
+	protected final String reasonPhrase;
+	protected final Map<String, String> headers;
+	protected final byte[] body;
+	
+	public HttpResponse(int statusCode, String reasonPhrase, Map<String, String> headers, byte[] body) {
+		this.statusCode = statusCode;
+		this.reasonPhrase = Objects.requireNonNull(reasonPhrase, "reasonPhrase was null");
+		
+		Map<String, String> copy = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		copy.putAll(headers);
+		this.headers = Collections.unmodifiableMap(copy);
+		
+		this.body = Objects.requireNonNull(body, "body was null");
+	}
+	
+	public int getStatusCode() {
+		return this.statusCode;
+	}
+	
+	public String getReasonPhrase() {
+		return this.reasonPhrase;
+	}
+	
+	/**
+	 * @return the headers, with case-insensitive names
+	 */
+	public Map<String, String> getHeaders() {
+		return this.headers;
+	}
+	
+	public String getHeader(String name) {
+		return this.headers.get(name);
+	}
+	
+	public byte[] getBody() {
+		return this.body;
+	}
+	
+	public String getBodyAsString() {
+		return new String(this.body, Charset.forName("UTF-8"));
+	}
+	
+	public boolean isSuccessful() {
+		return this.statusCode >= 200 && this.statusCode < 300;
+	}
+	
+	@Override
+	public String toString() {
+		return this.statusCode + " " + this.reasonPhrase;
+	}
+}
@@ -0,0 +1,264 @@
+package glacierpipe.net.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Incrementally parses an HTTP/1.1 response as it arrives.  Bodies can be delimited by {@code Content-Length},
+ * chunked encoding, or the end of the connection.  Interim (1xx) responses are skipped.
+ */
+public class HttpResponseParser {
+
+	protected static final int MAX_LINE_LENGTH = 64 * 1024;
+
+	protected enum State {
+		STATUS_LINE,
+		HEADERS,
+		BODY,
+		BODY_UNTIL_EOF,
+		CHUNK_SIZE,
+		CHUNK_DATA,
+		CHUNK_END,
+		TRAILERS,
+		DONE
+	}
+
+	protected State state = State.STATUS_LINE;
+	protected final StringBuilder line = new StringBuilder();
+
+	protected String version;
+	protected int statusCode;
+	protected String reasonPhrase;
+	protected Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+	protected final ByteArrayOutputStream body = new ByteArrayOutputStream();
+	protected long remaining;
+	protected long received = 0;
+
+	/**
+	 * Consumes bytes from {@code in} up to the end of the response.
+	 *
+	 * @return true once the response is complete
+	 */
+	public boolean parse(ByteBuffer in) throws IOException {
+		this.received += in.remaining();
+
+		while (in.hasRemaining() && this.state != State.DONE) {
+			switch (this.state) {
+			case STATUS_LINE:
+				if (this.readLine(in)) {
+					this.parseStatusLine(this.line.toString());
+					this.line.setLength(0);
+					this.state = State.HEADERS;
+				}
+				break;
+			case HEADERS:
+				if (this.readLine(in)) {
+					if (this.line.length() == 0) {
+						this.endHeaders();
+					} else {
+						this.parseHeader(this.line.toString());
+					}
+					this.line.setLength(0);
+				}
+				break;
+			case BODY:
+			case CHUNK_DATA:
+				int length = (int)Math.min(in.remaining(), this.remaining);
+				this.readBody(in, length);
+				this.remaining -= length;
+				if (this.remaining == 0) {
+					this.state = (this.state == State.BODY) ? State.DONE : State.CHUNK_END;
+				}
+				break;
+			case BODY_UNTIL_EOF:
+				this.readBody(in, in.remaining());
+				break;
+			case CHUNK_SIZE:
+				if (this.readLine(in)) {
+					this.remaining = this.parseChunkSize(this.line.toString());
+					this.line.setLength(0);
+					this.state = (this.remaining == 0) ? State.TRAILERS : State.CHUNK_DATA;
+				}
+				break;
+			case CHUNK_END:
+				if (this.readLine(in)) {
+					if (this.line.length() != 0) {
+						throw new IOException("Malformed chunk; expected CRLF");
+					}
+					this.state = State.CHUNK_SIZE;
+				}
+				break;
+			case TRAILERS:
+				if (this.readLine(in)) {
+					if (this.line.length() == 0) {
+						this.state = State.DONE;
+					}
+					this.line.setLength(0);
+				}
+				break;
+			default:
+				throw new IllegalStateException();
+			}
+		}
+
+		// Anything left over doesn't belong to this response
+		this.received -= in.remaining();
+
+		return this.state == State.DONE;
+	}
+
+	/**
+	 * Called when the connection is closed by the server.
+	 *
+	 * @throws EOFException if the response wasn't complete
+	 */
+	public void endOfStream() throws EOFException {
+		if (this.state == State.BODY_UNTIL_EOF) {
+			this.state = State.DONE;
+		} else if (this.state != State.DONE) {
+			throw new EOFException("Connection closed " + (this.received == 0 ? "before a response was received" : "before the response was complete"));
+		}
+	}
+
+	public boolean isComplete() {
+		return this.state == State.DONE;
+	}
+
+	/**
+	 * @return whether any part of a response has been received
+	 */
+	public boolean isStarted() {
+		return this.received > 0;
+	}
+
+	/**
+	 * @return whether the connection can be used for another request once this response is complete
+	 */
+	public boolean isKeepAlive() {
+		if (this.state != State.DONE || this.version == null) {
+			return false;
+		}
+
+		String connection = this.headers.get("Connection");
+		if ("HTTP/1.0".equals(this.version)) {
+			return "keep-alive".equalsIgnoreCase(connection) && this.headers.containsKey("Content-Length");
+		} else {
+			return !"close".equalsIgnoreCase(connection) && (this.headers.containsKey("Content-Length") || this.isChunked() || !this.hasBody());
+		}
+	}
+
+	public HttpResponse getResponse() {
+		if (this.state != State.DONE) {
+			throw new IllegalStateException("response isn't complete");
+		}
+		return new HttpResponse(this.statusCode, this.reasonPhrase, this.headers, this.body.toByteArray());
+	}
+
+	protected boolean readLine(ByteBuffer in) throws IOException {
+		while (in.hasRemaining()) {
+			char c = (char)(in.get() & 0xff);
+			if (c == '\n') {
+				int last = this.line.length() - 1;
+				if (last >= 0 && this.line.charAt(last) == '\r') {
+					this.line.setLength(last);
+				}
+				return true;
+			} else if (this.line.length() >= MAX_LINE_LENGTH) {
+				throw new IOException("Response line too long");
+			}
+			this.line.append(c);
+		}
+		return false;
+	}
+
+	protected void readBody(ByteBuffer in, int length) {
+		if (in.hasArray()) {
+			this.body.write(in.array(), in.arrayOffset() + in.position(), length);
+			in.position(in.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			this.body.write(bytes, 0, length);
+		}
+	}
+
+	protected void parseStatusLine(String line) throws IOException {
+		String[] parts = line.split(" ", 3);
+		if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+			throw new IOException("Malformed status line: " + line);
+		}
+
+		this.version = parts[0];
+		try {
+			this.statusCode = Integer.parseInt(parts[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed status line: " + line);
+		}
+		this.reasonPhrase = (parts.length > 2) ? parts[2] : "";
+	}
+
+	protected void parseHeader(String line) throws IOException {
+		int colon = line.indexOf(':');
+		if (colon <= 0) {
+			throw new IOException("Malformed header: " + line);
+		}
+
+		String name = line.substring(0, colon).trim();
+		String value = line.substring(colon + 1).trim();
+
+		String previous = this.headers.get(name);
+		this.headers.put(name, (previous == null) ? value : previous + ", " + value);
+	}
+
+	protected void endHeaders() throws IOException {
+		if (this.statusCode >= 100 && this.statusCode < 200) {
+			// Interim response; the real one follows
+			this.headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+			this.state = State.STATUS_LINE;
+		} else if (!this.hasBody()) {
+			this.state = State.DONE;
+		} else if (this.isChunked()) {
+			this.state = State.CHUNK_SIZE;
+		} else if (this.headers.containsKey("Content-Length")) {
+			try {
+				this.remaining = Long.parseLong(this.headers.get("Content-Length"));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid Content-Length: " + this.headers.get("Content-Length"));
+			}
+
+			if (this.remaining < 0) {
+				throw new IOException("Invalid Content-Length: " + this.remaining);
+			}
+			this.state = (this.remaining == 0) ? State.DONE : State.BODY;
+		} else {
+			this.state = State.BODY_UNTIL_EOF;
+		}
+	}
+
+	protected long parseChunkSize(String line) throws IOException {
+		int extension = line.indexOf(';');
+		String size = ((extension >= 0) ? line.substring(0, extension) : line).trim();
+		try {
+			long length = Long.parseLong(size, 16);
+			if (length < 0) {
+				throw new IOException("Invalid chunk size: " + line);
+			}
+			return length;
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid chunk size: " + line);
+		}
+	}
+
+	protected boolean isChunked() {
+		String transferEncoding = this.headers.get("Transfer-Encoding");
+		return transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+	}
+
+	protected boolean hasBody() {
+		return this.statusCode != 204 && this.statusCode != 304;
+	}
+}
@@ -0,0 +1,253 @@
+package glacierpipe.net.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * Runs TLS over a non-blocking channel with an {@link SSLEngine}.  Body bytes are encrypted straight from the
+ * caller's buffers into a single outgoing record buffer.
+ */
+public class TlsTransport extends Transport {
+
+	protected static final ByteBuffer[] EMPTY = new ByteBuffer[] { ByteBuffer.allocate(0) };
+	
+	protected final SSLEngine engine;
+	
+	// Encrypted bytes waiting to be written, kept ready for reading
+	protected ByteBuffer netOut;
+	
+	// Encrypted bytes read but not yet unwrapped, kept ready for writing
+	protected ByteBuffer netIn;
+	
+	// Decrypted bytes not yet returned, kept ready for reading
+	protected ByteBuffer appIn;
+	
+	protected boolean eof = false;
+	protected boolean closed = false;
+	
+	// Records received after the handshake that weren't application data, e.g. TLS 1.3 session tickets
+	protected long postHandshakeRecords = 0;
+	
+	public TlsTransport(SocketChannel channel, SSLEngine engine) throws SSLException {
+		super(channel);
+		this.engine = engine;
+		
+		int packetSize = engine.getSession().getPacketBufferSize();
+		this.netOut = ByteBuffer.allocate(packetSize);
+		this.netOut.flip();
+		this.netIn = ByteBuffer.allocate(packetSize);
+		this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		this.appIn.flip();
+		
+		engine.setUseClientMode(true);
+		engine.beginHandshake();
+	}
+	
+	public SSLEngine getEngine() {
+		return this.engine;
+	}
+	
+	/**
+	 * @return whether anything other than application data has arrived since the handshake.  TLS 1.3 servers send
+	 * the tickets needed to resume a session this way.
+	 */
+	public boolean hasPostHandshakeRecords() {
+		return this.postHandshakeRecords > 0;
+	}
+
+	@Override
+	public boolean handshake() throws IOException {
+		while (true) {
+			if (!this.flush()) {
+				return false;
+			}
+			
+			HandshakeStatus status = this.engine.getHandshakeStatus();
+			if (status == HandshakeStatus.FINISHED || status == HandshakeStatus.NOT_HANDSHAKING) {
+				return true;
+			} else if (status == HandshakeStatus.NEED_WRAP) {
+				this.wrap(EMPTY);
+			} else if (status == HandshakeStatus.NEED_TASK) {
+				this.runDelegatedTasks();
+			} else if (!this.unwrap()) {
+				// NEED_UNWRAP and, on newer JDKs, NEED_UNWRAP_AGAIN
+				this.interestOps = SelectionKey.OP_READ;
+				return false;
+			} else if (this.eof) {
+				throw new EOFException("Connection closed during TLS handshake");
+			} else if (this.closed) {
+				throw new SSLException("TLS engine closed during handshake");
+			}
+		}
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		long consumed = 0;
+		while (this.flush() && hasRemaining(srcs)) {
+			SSLEngineResult result = this.wrap(srcs);
+			consumed += result.bytesConsumed();
+			
+			if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+				this.runDelegatedTasks();
+			} else if (result.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING && !this.handshake()) {
+				break;
+			}
+		}
+		return consumed;
+	}
+
+	@Override
+	public boolean flush() throws IOException {
+		while (this.netOut.hasRemaining()) {
+			if (this.writeChannel(this.netOut) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		while (!this.appIn.hasRemaining()) {
+			if (this.eof || this.closed) {
+				return -1;
+			} else if (!this.unwrap()) {
+				this.interestOps = SelectionKey.OP_READ;
+				return 0;
+			} else if (!this.appIn.hasRemaining()) {
+				this.postHandshakeRecords++;
+			}
+			
+			// Post-handshake messages, like key updates, can need a reply
+			HandshakeStatus status = this.engine.getHandshakeStatus();
+			if (status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED && !this.handshake()) {
+				if (!this.appIn.hasRemaining()) {
+					return 0;
+				}
+			}
+		}
+		
+		int length = Math.min(this.appIn.remaining(), dst.remaining());
+		ByteBuffer slice = this.appIn.duplicate();
+		slice.limit(slice.position() + length);
+		dst.put(slice);
+		this.appIn.position(this.appIn.position() + length);
+		return length;
+	}
+	
+	protected SSLEngineResult wrap(ByteBuffer[] srcs) throws SSLException {
+		this.netOut.compact();
+		try {
+			SSLEngineResult result = this.engine.wrap(srcs, this.netOut);
+			if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+				throw new SSLException("TLS engine closed");
+			} else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				// Only wrapped once netOut is flushed, so the packet size must have grown
+				ByteBuffer larger = ByteBuffer.allocate(this.engine.getSession().getPacketBufferSize() + this.netOut.position());
+				this.netOut.flip();
+				larger.put(this.netOut);
+				this.netOut = larger;
+			}
+			return result;
+		} finally {
+			this.netOut.flip();
+		}
+	}
+	
+	/**
+	 * Unwraps what's buffered, reading from the channel when that isn't a whole record.
+	 * 
+	 * @return false if no progress could be made without waiting for the channel
+	 */
+	protected boolean unwrap() throws IOException {
+		while (true) {
+			SSLEngineResult result;
+			this.netIn.flip();
+			this.appIn.compact();
+			try {
+				result = this.engine.unwrap(this.netIn, this.appIn);
+			} finally {
+				this.netIn.compact();
+				this.appIn.flip();
+			}
+			
+			switch (result.getStatus()) {
+			case OK:
+				if (result.bytesConsumed() > 0 || result.bytesProduced() > 0) {
+					if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+						this.runDelegatedTasks();
+					}
+					return true;
+				}
+				
+				// Nothing to unwrap yet; read more
+				if (!this.readNetIn()) {
+					return this.eof;
+				}
+				break;
+			case BUFFER_UNDERFLOW:
+				if (!this.readNetIn()) {
+					return this.eof;
+				}
+				break;
+			case BUFFER_OVERFLOW:
+				if (this.appIn.hasRemaining()) {
+					// Let the caller drain appIn first
+					return true;
+				}
+				this.appIn = ByteBuffer.allocate(this.engine.getSession().getApplicationBufferSize());
+				this.appIn.flip();
+				break;
+			case CLOSED:
+				this.closed = true;
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Reads from the channel into {@link #netIn}, growing it first if it's full.
+	 * 
+	 * @return false if nothing was read, either because the channel had nothing or because it reached the end of the
+	 * stream, in which case {@link #eof} is set
+	 */
+	protected boolean readNetIn() throws IOException {
+		if (!this.netIn.hasRemaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(this.netIn.capacity() * 2, this.engine.getSession().getPacketBufferSize()));
+			this.netIn.flip();
+			larger.put(this.netIn);
+			this.netIn = larger;
+		}
+		
+		int read = this.channel.read(this.netIn);
+		if (read < 0) {
+			this.eof = true;
+		}
+		return read > 0;
+	}
+	
+	protected void runDelegatedTasks() {
+		Runnable task;
+		while ((task = this.engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+	
+	protected static boolean hasRemaining(ByteBuffer[] buffers) {
+		for (ByteBuffer buffer : buffers) {
+			if (buffer.hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
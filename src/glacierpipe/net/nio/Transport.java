@@ -0,0 +1,150 @@
+package glacierpipe.net.nio;
+
+import glacierpipe.io.Pacer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Moves application bytes over a non-blocking channel.  Methods return rather than block when the channel isn't
+ * ready, leaving {@link #getInterestOps} set to what they're waiting for.
+ */
+public abstract class Transport {
+
+	protected final SocketChannel channel;
+	protected int interestOps = 0;
+	
+	protected Pacer pacer;
+	protected long resumeTime = 0;
+	
+	protected Transport(SocketChannel channel) {
+		this.channel = channel;
+	}
+	
+	/**
+	 * Paces writes to the channel with {@code pacer}, or stops pacing them if it's null.
+	 */
+	public void setPacer(Pacer pacer) {
+		this.pacer = pacer;
+	}
+	
+	/**
+	 * @return true once the transport is ready for application data
+	 */
+	public abstract boolean handshake() throws IOException;
+	
+	/**
+	 * @return the number of application bytes consumed from {@code srcs}
+	 */
+	public abstract long write(ByteBuffer[] srcs) throws IOException;
+	
+	/**
+	 * Writes out anything the transport has buffered.
+	 * 
+	 * @return true if nothing is left to write
+	 */
+	public abstract boolean flush() throws IOException;
+	
+	/**
+	 * @return the number of application bytes read into {@code dst}, or -1 at the end of the stream
+	 */
+	public abstract int read(ByteBuffer dst) throws IOException;
+	
+	public int getInterestOps() {
+		return this.interestOps;
+	}
+	
+	/**
+	 * @return if the last write was held back by the pacer, the {@link System#nanoTime} to try again at; otherwise 0
+	 */
+	public long getResumeTime() {
+		return this.resumeTime;
+	}
+	
+	/**
+	 * Writes to the channel as much of {@code src} as it and the pacer allow.  When nothing is written, the interest
+	 * ops are left waiting for the channel, or cleared if it's the pacer that's waited on.
+	 */
+	protected int writeChannel(ByteBuffer src) throws IOException {
+		this.resumeTime = 0;
+		
+		if (this.pacer == null) {
+			int written = this.channel.write(src);
+			if (written == 0) {
+				this.interestOps = SelectionKey.OP_WRITE;
+			}
+			return written;
+		}
+		
+		int allowed = this.pacer.tryAcquire(src.remaining());
+		if (allowed == 0) {
+			// A nanoTime of 0 means not waiting
+			long resumeTime = System.nanoTime() + this.pacer.getDelay(src.remaining());
+			this.resumeTime = (resumeTime != 0) ? resumeTime : 1;
+			this.interestOps = 0;
+			return 0;
+		}
+		
+		ByteBuffer chunk = src.duplicate();
+		chunk.limit(chunk.position() + allowed);
+		int written = this.channel.write(chunk);
+		src.position(chunk.position());
+		
+		if (written < allowed) {
+			this.pacer.release(allowed - written);
+		}
+		if (written == 0) {
+			this.interestOps = SelectionKey.OP_WRITE;
+		}
+		return written;
+	}
+	
+	public static class PlainTransport extends Transport {
+		
+		// The JDK copies heap buffers through a temporary direct buffer as big as what's written, so bound each write
+		protected static final int MAX_WRITE = 256 * 1024;
+		
+		public PlainTransport(SocketChannel channel) {
+			super(channel);
+		}
+
+		@Override
+		public boolean handshake() {
+			return true;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs) throws IOException {
+			long total = 0;
+			for (ByteBuffer src : srcs) {
+				while (src.hasRemaining()) {
+					ByteBuffer chunk = src.duplicate();
+					chunk.limit(chunk.position() + Math.min(chunk.remaining(), MAX_WRITE));
+					
+					int written = this.writeChannel(chunk);
+					src.position(src.position() + written);
+					total += written;
+					
+					if (written == 0) {
+						return total;
+					}
+				}
+			}
+			return total;
+		}
+
+		@Override
+		public boolean flush() {
+			return true;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			int read = this.channel.read(dst);
+			this.interestOps = SelectionKey.OP_READ;
+			return read;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.security;
+
+import glacierpipe.io.BlockTransform;
+import glacierpipe.io.ParallelBlockInputStream;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts a stream with AES-GCM in independent segments, so they can be encrypted, and decrypted, on several threads
+ * at once by {@link ParallelBlockInputStream}.  The stream starts with a header holding everything but the key needed
+ * to decrypt it:
+ * 
+ * <pre>
+ * "GPCRYPT1"               8 bytes
+ * segment size             4 bytes, big-endian; the plaintext in each segment but the last
+ * salt                     16 bytes
+ * nonce prefix             7 bytes
+ * </pre>
+ * 
+ * followed by the segments, each the ciphertext and a 16 byte tag.  Each stream is encrypted with its own key, the
+ * HMAC-SHA256 of the salt under the given key, and each segment's nonce is the prefix, the segment's index as 4 bytes,
+ * and a byte that's 1 for the last segment.  Segments can't be reordered, dropped or cut off without decryption
+ * failing, as in the STREAM construction.
+ */
+public class AesGcmBlockTransform implements BlockTransform {
+
+	public static final byte[] MAGIC = "GPCRYPT1".getBytes(StandardCharsets.US_ASCII);
+	
+	public static final int DEFAULT_SEGMENT_SIZE = ParallelBlockInputStream.DEFAULT_BLOCK_SIZE;
+	
+	/**
+	 * The largest segment a stream may use, so a corrupt or hostile header can't make decryption allocate gigabytes
+	 */
+	public static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+	
+	protected static final int SALT_LENGTH = 16;
+	protected static final int NONCE_PREFIX_LENGTH = 7;
+	protected static final int HEADER_LENGTH = MAGIC.length + 4 + SALT_LENGTH + NONCE_PREFIX_LENGTH;
+	protected static final int TAG_LENGTH = 16;
+	
+	protected final int segmentSize;
+	protected final byte[] header;
+	protected final byte[] noncePrefix;
+	protected final SecretKey streamKey;
+	
+	protected final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			return newCipher();
+		}
+	};
+	
+	/**
+	 * @param key an AES key of 16, 24 or 32 bytes, e.g. from {@link #readKey}
+	 * @param segmentSize how much plaintext goes in each segment; the blocks given to {@link #transform} must be this
+	 * size, except the last
+	 */
+	public AesGcmBlockTransform(byte[] key, int segmentSize) throws GeneralSecurityException {
+		checkKey(key);
+		if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+			throw new IllegalArgumentException("segmentSize must be positive and at most " + MAX_SEGMENT_SIZE + "; segmentSize = " + segmentSize);
+		}
+		
+		SecureRandom random = new SecureRandom();
+		byte[] salt = new byte[SALT_LENGTH];
+		random.nextBytes(salt);
+		this.noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+		random.nextBytes(this.noncePrefix);
+		
+		this.segmentSize = segmentSize;
+		this.streamKey = deriveKey(key, salt);
+		this.header = ByteBuffer.allocate(HEADER_LENGTH).put(MAGIC).putInt(segmentSize).put(salt).put(this.noncePrefix).array();
+	}
+	
+	public int getSegmentSize() {
+		return this.segmentSize;
+	}
+	
+	/**
+	 * Encrypts a segment.  The first is preceded by the header.
+	 */
+	@Override
+	public byte[] transform(long index, boolean last, byte[] block, int offset, int length) throws IOException {
+		if (length > this.segmentSize || (!last && length != this.segmentSize)) {
+			throw new IOException("segment " + index + " is " + length + " bytes; segments are " + this.segmentSize);
+		}
+		
+		int headerLength = index == 0 ? HEADER_LENGTH : 0;
+		byte[] out = new byte[headerLength + length + TAG_LENGTH];
+		System.arraycopy(this.header, 0, out, 0, headerLength);
+		
+		try {
+			Cipher cipher = this.ciphers.get();
+			cipher.init(Cipher.ENCRYPT_MODE, this.streamKey, getNonce(this.noncePrefix, index, last));
+			cipher.doFinal(block, offset, length, out, headerLength);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("failed to encrypt segment " + index, e);
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * Decrypts a stream written by this transform.  The header's read before this returns; the segments are
+	 * decrypted as they're read.
+	 * 
+	 * @param threads how many segments to decrypt at once
+	 */
+	public static InputStream decrypt(InputStream in, byte[] key, int threads) throws IOException {
+		checkKey(key);
+		
+		byte[] header = new byte[HEADER_LENGTH];
+		try {
+			new DataInputStream(in).readFully(header);
+		} catch (EOFException e) {
+			throw new IOException("not an encrypted stream; it's too short", e);
+		}
+		
+		ByteBuffer buffer = ByteBuffer.wrap(header);
+		byte[] magic = new byte[MAGIC.length];
+		buffer.get(magic);
+		if (!Arrays.equals(magic, MAGIC)) {
+			throw new IOException("not an encrypted stream, or an unsupported version");
+		}
+		
+		int segmentSize = buffer.getInt();
+		if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+			throw new IOException("invalid segment size: " + segmentSize);
+		}
+		
+		byte[] salt = new byte[SALT_LENGTH];
+		buffer.get(salt);
+		byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+		buffer.get(noncePrefix);
+		
+		SecretKey streamKey;
+		try {
+			streamKey = deriveKey(key, salt);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("failed to derive the stream's key", e);
+		}
+		
+		return new ParallelBlockInputStream(in, segmentSize + TAG_LENGTH, new Decrypt(streamKey, noncePrefix), threads);
+	}
+	
+	/**
+	 * Reads a key from a file holding either the key itself, or the key in hex.
+	 */
+	public static byte[] readKey(File file) throws IOException {
+		byte[] key = Files.readAllBytes(file.toPath());
+		
+		String text = new String(key, StandardCharsets.US_ASCII).trim();
+		if (text.matches("([0-9a-fA-F]{2}){16}|([0-9a-fA-F]{2}){24}|([0-9a-fA-F]{2}){32}")) {
+			key = new byte[text.length() / 2];
+			for (int i = 0; i < key.length; i++) {
+				key[i] = (byte)Integer.parseInt(text.substring(i * 2, i * 2 + 2), 16);
+			}
+		}
+		
+		try {
+			checkKey(key);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(file + " doesn't hold a key: " + e.getMessage());
+		}
+		return key;
+	}
+	
+	protected static void checkKey(byte[] key) {
+		if (key.length != 16 && key.length != 24 && key.length != 32) {
+			throw new IllegalArgumentException("AES keys are 16, 24 or 32 bytes; this one's " + key.length);
+		}
+	}
+	
+	protected static SecretKey deriveKey(byte[] key, byte[] salt) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		return new SecretKeySpec(Arrays.copyOf(mac.doFinal(salt), key.length), "AES");
+	}
+	
+	protected static GCMParameterSpec getNonce(byte[] noncePrefix, long index, boolean last) throws IOException {
+		if (index > 0xffffffffL) {
+			throw new IOException("too many segments");
+		}
+		
+		byte[] nonce = ByteBuffer.allocate(NONCE_PREFIX_LENGTH + 5).put(noncePrefix).putInt((int)index).put((byte)(last ? 1 : 0)).array();
+		return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+	}
+	
+	protected static Cipher newCipher() {
+		try {
+			return Cipher.getInstance("AES/GCM/NoPadding");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("AES-GCM not available", e);
+		}
+	}
+	
+	/**
+	 * Decrypts the segments after the header.  Blocks are whole segments, tag included.
+	 */
+	protected static class Decrypt implements BlockTransform {
+		
+		protected final SecretKey streamKey;
+		protected final byte[] noncePrefix;
+		
+		protected final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+			@Override
+			protected Cipher initialValue() {
+				return newCipher();
+			}
+		};
+		
+		protected Decrypt(SecretKey streamKey, byte[] noncePrefix) {
+			this.streamKey = streamKey;
+			this.noncePrefix = noncePrefix;
+		}
+		
+		@Override
+		public byte[] transform(long index, boolean last, byte[] block, int offset, int length) throws IOException {
+			if (length < TAG_LENGTH) {
+				throw new IOException("segment " + index + " is cut off");
+			}
+			
+			try {
+				Cipher cipher = this.ciphers.get();
+				cipher.init(Cipher.DECRYPT_MODE, this.streamKey, getNonce(this.noncePrefix, index, last));
+				return cipher.doFinal(block, offset, length);
+			} catch (AEADBadTagException e) {
+				throw new IOException("segment " + index + " failed authentication; the stream's been modified or cut off, or the key's wrong", e);
+			} catch (GeneralSecurityException e) {
+				throw new IOException("failed to decrypt segment " + index, e);
+			}
+		}
+	}
+}
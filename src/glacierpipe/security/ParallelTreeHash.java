@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package glacierpipe.security;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computes the tree hash of a file without reading it through a stream.  Each megabyte's hash is independent of the
+ * others, so the file's memory mapped a segment at a time and segments are hashed on several threads, with only the
+ * last step, combining the hashes, done on one.
+ */
+public class ParallelTreeHash {
+
+	protected static final int CHUNK_SIZE = 1024 * 1024;
+	
+	/**
+	 * How much each thread maps and hashes at once; a whole number of chunks
+	 */
+	protected static final int SEGMENT_SIZE = 64 * CHUNK_SIZE;
+	
+	/**
+	 * @param position where to start, e.g. stdin's position if it's a file
+	 * @param size how much to hash
+	 */
+	public static byte[] compute(FileChannel channel, long position, long size, int threads) throws IOException {
+		ExecutorService executor = newExecutor(threads);
+		try {
+			return compute(channel, position, size, executor);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Hashes with a thread pool shared by several files, so hashing them at once doesn't take more threads.
+	 * 
+	 * @param executor runs the segments; not one that's waiting on this, which could leave nothing to run them
+	 */
+	public static byte[] compute(final FileChannel channel, long position, long size, ExecutorService executor) throws IOException {
+		if (position < 0 || size < 0) {
+			throw new IllegalArgumentException("position and size can't be negative; position = " + position + "; size = " + size);
+		}
+		
+		List<Future<List<byte[]>>> segments = new ArrayList<Future<List<byte[]>>>();
+		try {
+			for (long offset = 0; offset < size; offset += SEGMENT_SIZE) {
+				final long segmentPosition = position + offset;
+				final long segmentSize = Math.min(SEGMENT_SIZE, size - offset);
+				segments.add(executor.submit(new Callable<List<byte[]>>() {
+					@Override
+					public List<byte[]> call() throws IOException {
+						return hashSegment(channel, segmentPosition, segmentSize);
+					}
+				}));
+			}
+			
+			List<byte[]> chunkHashes = new ArrayList<byte[]>((int)(size / CHUNK_SIZE) + 1);
+			for (Future<List<byte[]>> segment : segments) {
+				chunkHashes.addAll(segment.get());
+			}
+			
+			MessageDigest digest = newDigest();
+			if (chunkHashes.isEmpty()) {
+				return digest.digest();
+			}
+			return TreeHashMessageDigest.combine(chunkHashes, digest);
+		} catch (InterruptedException e) {
+			throw new IOException("Tree hash interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			// Don't leave the rest of a failed file's segments taking up the pool
+			for (Future<List<byte[]>> segment : segments) {
+				segment.cancel(false);
+			}
+		}
+	}
+	
+	/**
+	 * @return a pool of daemon threads for hashing segments
+	 */
+	public static ExecutorService newExecutor(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1; threads = " + threads);
+		}
+		
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "glacierpipe-treehash");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+	
+	protected static List<byte[]> hashSegment(FileChannel channel, long position, long size) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		MessageDigest digest = newDigest();
+		
+		List<byte[]> chunkHashes = new ArrayList<byte[]>((int)(size / CHUNK_SIZE) + 1);
+		for (int offset = 0; offset < size; offset += CHUNK_SIZE) {
+			buffer.limit((int)Math.min(offset + CHUNK_SIZE, size));
+			buffer.position(offset);
+			digest.update(buffer);
+			chunkHashes.add(digest.digest());
+		}
+		return chunkHashes;
+	}
+	
+	protected static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 not available", e);
+		}
+	}
+}
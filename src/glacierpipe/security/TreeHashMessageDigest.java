@@ -45,8 +45,18 @@ public class TreeHashMessageDigest extends MessageDigest {
 			this.hashChunks.add(this.digest.digest());
 		}
 		
-		List<byte[]> active = this.hashChunks;
-		List<byte[]> replacement = new ArrayList<byte[]>(hashChunks.size() / 2 + 1);
+		byte[] result = combine(this.hashChunks, this.digest);
+		this.engineReset();
+		return result;
+	}
+	
+	/**
+	 * Combines the hashes of each megabyte, pairwise, level by level, into the tree hash.  {@code chunkHashes} is
+	 * left as it is.
+	 */
+	public static byte[] combine(List<byte[]> chunkHashes, MessageDigest digest) {
+		List<byte[]> active = new ArrayList<byte[]>(chunkHashes);
+		List<byte[]> replacement = new ArrayList<byte[]>(chunkHashes.size() / 2 + 1);
 		
 		while (active.size() > 1) {
 			replacement.clear();
@@ -58,10 +68,10 @@ public class TreeHashMessageDigest extends MessageDigest {
 				if (iterator.hasNext()) {
 					byte[] right = iterator.next();
 					
-					this.digest.update(left);
-					this.digest.update(right);
+					digest.update(left);
+					digest.update(right);
 					
-					replacement.add(this.digest.digest());
+					replacement.add(digest.digest());
 				} else {
 					replacement.add(left);
 				}
@@ -72,9 +82,7 @@ public class TreeHashMessageDigest extends MessageDigest {
 			replacement = temp;
 		}
 		
-		byte[] result = active.get(0);
-		this.engineReset();
-		return result;
+		return active.get(0);
 	}
 
 	@Override
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package glacierpipe.terminal;
+
+import glacierpipe.DeleteObserver;
+import glacierpipe.format.PrintWriterFormat;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+
+public class TerminalDeleteObserver implements DeleteObserver {
+
+	/**
+	 * Archives can be deleted dozens of times a second; the status line needn't be redrawn for every one
+	 */
+	protected static final long STATUS_INTERVAL = 250;
+	
+	protected final PrintWriter writer;
+	
+	protected long startTime = System.currentTimeMillis();
+	protected long lastStatus = 0;
+	
+	protected int deleted = 0;
+	protected int skipped = 0;
+	protected int failed = 0;
+	protected boolean statusShown = false;
+	
+	public TerminalDeleteObserver(Writer writer) {
+		this.writer = new PrintWriter(writer, true);
+	}
+	
+	@Override
+	public synchronized void startDeleting(String vaultName, int alreadyDeleted) {
+		clearStatus();
+		writer.printf("Deleting archives from %s...%n", vaultName);
+		if (alreadyDeleted > 0) {
+			writer.printf("  %d already deleted by an earlier run; skipping them%n", alreadyDeleted);
+		}
+		
+		startTime = System.currentTimeMillis();
+		printStatus();
+	}
+	
+	@Override
+	public synchronized void archiveDeleted(String archiveId, boolean alreadyGone) {
+		deleted++;
+		maybePrintStatus();
+	}
+	
+	@Override
+	public synchronized void archiveSkipped(String archiveId) {
+		skipped++;
+		maybePrintStatus();
+	}
+	
+	@Override
+	public synchronized void exceptionDeleting(String archiveId, Exception e, int attempt, boolean retrying) {
+		clearStatus();
+		writer.printf("  Error deleting archive %s: %s%n", archiveId, e.getMessage());
+		if (retrying) {
+			writer.printf("  Attempt %d.  Retrying...%n", attempt);
+		} else {
+			failed++;
+			writer.printf("  Attempt %d.  Giving up on it...%n", attempt);
+		}
+		printStatus();
+	}
+	
+	@Override
+	public synchronized void sleepingBeforeRetry(String archiveId, long sleepingFor) {
+		clearStatus();
+		writer.printf("  Retrying archive %s in ", archiveId);
+		PrintWriterFormat.printTime(writer, sleepingFor, false);
+		writer.println("...");
+		printStatus();
+	}
+	
+	@Override
+	public synchronized void requestLimitsChanged(int concurrency, double requestsPerSecond) {
+		clearStatus();
+		writer.printf("  Request limits: %d at once, ", concurrency);
+		if (Double.isInfinite(requestsPerSecond)) {
+			writer.println("no rate limit");
+		} else {
+			writer.printf("%.2f/s%n", requestsPerSecond);
+		}
+		printStatus();
+	}
+	
+	@Override
+	public synchronized void done(int deleted, int failed) {
+		long duration = System.currentTimeMillis() - startTime;
+		
+		clearStatus();
+		
+		writer.print("Done.");
+		
+		writer.printf("  Deleted %d archives in ", deleted);
+		PrintWriterFormat.printTime(writer, duration, false);
+		writer.printf(" (%.1f/s)%n", deleted / (Math.max(duration, 1) / 1000.0));
+		
+		if (skipped > 0) {
+			writer.printf("  Skipped %d deleted by an earlier run%n", skipped);
+		}
+		if (failed > 0) {
+			writer.printf("  Glacier wouldn't delete %d%n", failed);
+		}
+	}
+	
+	/**
+	 * Erases the status line so something else can be printed in its place.
+	 */
+	protected void clearStatus() {
+		if (statusShown) {
+			writer.print('\r');
+			for (int i = 0; i < 80; i++) {
+				writer.print(' ');
+			}
+			writer.print('\r');
+			statusShown = false;
+		}
+	}
+	
+	protected void maybePrintStatus() {
+		if (System.currentTimeMillis() - lastStatus >= STATUS_INTERVAL) {
+			printStatus();
+		}
+	}
+	
+	protected void printStatus() {
+		long now = System.currentTimeMillis();
+		long elapsed = now - startTime;
+		
+		writer.printf("\r  %d deleted, %d skipped, %d failed; %.1f/s, ", deleted, skipped, failed, deleted / (Math.max(elapsed, 1) / 1000.0));
+		PrintWriterFormat.printTime(writer, elapsed, false);
+		writer.flush();
+		
+		lastStatus = now;
+		statusShown = true;
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package glacierpipe.terminal;
+
+import glacierpipe.DownloadObserver;
+import glacierpipe.format.PrintWriterFormat;
+import glacierpipe.format.StringFormat;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+
+public class TerminalDownloadObserver implements DownloadObserver {
+
+	protected final PrintWriter writer;
+	
+	protected long startTime = System.currentTimeMillis();
+	
+	protected ProgressPrinter printer;
+	protected boolean statusShown = false;
+	
+	public TerminalDownloadObserver(Writer writer) {
+		this.writer = new PrintWriter(writer, true);
+	}
+	
+	@Override
+	public synchronized void jobInitiated(String jobId) {
+		clearStatus();
+		writer.printf("Job ID: %s%n", jobId);
+	}
+	
+	@Override
+	public synchronized void waitingForJob(String jobId, String status, long waitingFor) {
+		clearStatus();
+		writer.printf("  Job %s, after ", status);
+		PrintWriterFormat.printTime(writer, waitingFor, false);
+		writer.println("; waiting...");
+	}
+	
+	@Override
+	public synchronized void startDownload(String jobId, long size, int ranges) {
+		clearStatus();
+		writer.printf("Downloading %s in %d ranges...%n", StringFormat.toHumanReadableDataSize(size), ranges);
+		
+		startTime = System.currentTimeMillis();
+		printer = new ProgressPrinter(size);
+		printStatus();
+	}
+	
+	@Override
+	public synchronized void downloading(long offset, long dataRead) {
+		if (printer != null) {
+			printer.addCurrent(dataRead);
+			printStatus();
+		}
+	}
+	
+	@Override
+	public synchronized void rangeDownloaded(long offset, long length, byte[] treeHash) {
+	}
+	
+	@Override
+	public synchronized void exceptionDownloadingRange(long offset, Exception e, int attempt, boolean retrying) {
+		clearStatus();
+		writer.printf("  Error downloading the range at %d: %s%n", offset, e.getMessage());
+		writer.printf("  Attempt %d.  %s...%n", attempt, retrying ? "Retrying" : "Aborting");
+		printStatus();
+	}
+	
+	@Override
+	public synchronized void sleepingBeforeRetry(long offset, long sleepingFor) {
+		clearStatus();
+		writer.printf("  Retrying the range at %d in ", offset);
+		PrintWriterFormat.printTime(writer, sleepingFor, false);
+		writer.println("...");
+		printStatus();
+	}
+	
+	@Override
+	public synchronized void done(byte[] finalTreeHash, long size) {
+		long duration = System.currentTimeMillis() - startTime;
+		
+		clearStatus();
+		printer = null;
+		
+		writer.print("Done.");
+		
+		writer.print("  Downloaded ");
+		writer.print(StringFormat.toHumanReadableDataSize(size));
+		writer.print(" in ");
+		PrintWriterFormat.printTime(writer, duration, false);
+		
+		writer.print(" (");
+		writer.print(StringFormat.toHumanReadableDataSize(Math.round(size / (Math.max(duration, 1) / 1000.0))));
+		writer.println(")/s");
+		
+		writer.print("  Tree Hash: 0x");
+		PrintWriterFormat.printHex(writer, finalTreeHash);
+		writer.println();
+	}
+	
+	/**
+	 * Erases the status line so something else can be printed in its place.
+	 */
+	protected void clearStatus() {
+		if (statusShown) {
+			writer.print('\r');
+			for (int i = 0; i < 80; i++) {
+				writer.print(' ');
+			}
+			writer.print('\r');
+			statusShown = false;
+		}
+	}
+	
+	protected void printStatus() {
+		if (printer == null) {
+			return;
+		}
+		
+		writer.print("\r  ");
+		printer.print(writer);
+		writer.flush();
+		statusShown = true;
+	}
+}
@@ -20,12 +20,23 @@
 package glacierpipe.terminal;
 
 import glacierpipe.GlacierPipeObserver;
+import glacierpipe.StageProfiler;
+import glacierpipe.StageProfiler.Stage;
 import glacierpipe.format.PrintWriterFormat;
 import glacierpipe.format.StringFormat;
+import glacierpipe.net.ConnectionStats;
 
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
+/**
+ * Prints a section for each part as it's buffered and uploaded.  Since several parts can be uploading while the next
+ * one is buffered, progress bars share a single status line at the bottom, and everything else is printed above it.
+ */
 public class TerminalGlacierPipeObserver implements GlacierPipeObserver {
 
 	protected final PrintWriter writer;
@@ -33,114 +44,211 @@ public class TerminalGlacierPipeObserver implements GlacierPipeObserver {
 	protected long startTime = System.currentTimeMillis();
 	protected long totalBytes = 0;
 	
-	protected ProgressPrinter progressPrinter;
+	protected ProgressPrinter bufferingPrinter;
 	protected long bytesInPart = 0;
 	
+	protected final Map<Integer, Long> partSizes = new HashMap<Integer, Long>();
+	protected final Map<Integer, ProgressPrinter> uploadPrinters = new TreeMap<Integer, ProgressPrinter>();
+	protected int lastUploading = -1;
+	protected boolean statusShown = false;
+	
+	protected StageProfiler.Profile profile;
+	protected final Map<String, ConnectionStats> connectionStats = new LinkedHashMap<String, ConnectionStats>();
+	
 	public TerminalGlacierPipeObserver(Writer writer) {
 		this.writer = new PrintWriter(writer, true);
 	}
 	
+	/**
+	 * Adds connection counts to print when the upload's done.
+	 * 
+	 * @param client what made the connections, e.g. "sdk"
+	 */
+	public synchronized void addConnectionStats(String client, ConnectionStats stats) {
+		this.connectionStats.put(client, stats);
+	}
+	
 	@Override
-	public void gotUploadId(String uploadId) {
+	public synchronized void gotUploadId(String uploadId) {
+		clearStatus();
 		writer.printf("Upload ID: %s%n", uploadId);
 	}
 
 	@Override
-	public void startBuffering(int partId) {
+	public synchronized void startBuffering(int partId) {
 		bytesInPart = 0;
 		
-		writer.printf("Part %d, %s - ?%n", partId, StringFormat.toHumanReadableDataSize(this.totalBytes));
+		clearStatus();
+		writer.printf("Part %d, %s - ?", partId, StringFormat.toHumanReadableDataSize(this.totalBytes));
+		if (this.profile != null) {
+			writer.printf(" (%s)", this.profile.getSummary());
+		}
+		writer.println();
 		writer.println("  Buffering...");
 		
-		progressPrinter = new ProgressPrinter(-1);
-		writer.print("  ");
-		progressPrinter.print(writer);
+		bufferingPrinter = new ProgressPrinter(-1);
+		printStatus();
 	}
 
 	@Override
-	public void buffering(int partId, long dataRead) {
+	public synchronized void buffering(int partId, long dataRead) {
 		bytesInPart += dataRead;
-		
-		writer.print('\r');
-		writer.print("  ");
-		progressPrinter.addCurrent(dataRead);
-		progressPrinter.print(writer);
-		writer.flush();
+		bufferingPrinter.addCurrent(dataRead);
+		printStatus();
 	}
 
 	@Override
-	public void endBuffering(int partId) {
-		writer.print('\r');
+	public synchronized void endBuffering(int partId) {
+		clearStatus();
 		writer.print("  ");
-		progressPrinter.done();
-		progressPrinter.print(writer);
+		bufferingPrinter.done();
+		bufferingPrinter.print(writer);
 		writer.println();
 		writer.println();
+		bufferingPrinter = null;
 		
+		partSizes.put(partId, bytesInPart);
 		totalBytes += bytesInPart;
+		printStatus();
 	}
 
 	@Override
-	public void computedTreeHash(int partId, byte[] treeHash) {
+	public synchronized void computedTreeHash(int partId, byte[] treeHash) {
+		clearStatus();
 		writer.print("  Tree Hash: 0x");
 		PrintWriterFormat.printHex(writer, treeHash);
 		writer.println();
 		writer.println();
+		printStatus();
 	}
 
 	@Override
-	public void startPartUpload(int partId) {
-		writer.println("  Uploading...");
+	public synchronized void startPartUpload(int partId) {
+		clearStatus();
+		writer.printf("  Uploading part %d...%n", partId);
 		
-		progressPrinter = new ProgressPrinter(bytesInPart);
-		writer.print("  ");
-		progressPrinter.print(writer);
+		// Narrower than usual to leave room for the part number
+		Long bytes = partSizes.get(partId);
+		ProgressPrinter printer = new ProgressPrinter(bytes != null ? bytes : -1);
+		printer.width = 70;
+		uploadPrinters.put(partId, printer);
+		lastUploading = partId;
+		printStatus();
 	}
 
 	@Override
-	public void partUploading(int partId, long dataUploaded) {
-		writer.print('\r');
-		writer.print("  ");
-		progressPrinter.addCurrent(dataUploaded);
-		progressPrinter.print(writer);
-		writer.flush();
+	public synchronized void partUploading(int partId, long dataUploaded) {
+		ProgressPrinter printer = uploadPrinters.get(partId);
+		if (printer == null) {
+			return;
+		}
+		
+		// An abandoned request can still report a few bytes after its replacement has started
+		long addend = dataUploaded;
+		if (printer.total >= 0) {
+			addend = Math.min(addend, printer.total - printer.current);
+		}
+		printer.addCurrent(Math.max(addend, -printer.current));
+		
+		lastUploading = partId;
+		printStatus();
 	}
 
 	@Override
-	public void endPartUpload(int partId) {
-		writer.print('\r');
-		writer.print("  ");
-		progressPrinter.done();
-		progressPrinter.print(writer);
+	public synchronized void endPartUpload(int partId) {
+		ProgressPrinter printer = uploadPrinters.remove(partId);
+		if (printer == null) {
+			return;
+		}
+		
+		clearStatus();
+		writer.printf("  Part %d: ", partId);
+		printer.done();
+		printer.print(writer);
 		writer.println();
 		writer.println();
+		printStatus();
 	}
 
 	@Override
-	public void exceptionUploadingPart(int partId, Exception e, int attempt, boolean retrying) {
-		writer.println();
-		writer.printf("  Error uploading: %s%n", e.getMessage());
+	public synchronized void hedgingPartUpload(int partId, long elapsed) {
+		clearStatus();
+		writer.printf("  Slow upload of part %d after ", partId);
+		PrintWriterFormat.printTime(writer, elapsed, false);
+		writer.println("; starting a duplicate request...");
+		printStatus();
+	}
+
+	@Override
+	public synchronized void exceptionUploadingPart(int partId, Exception e, int attempt, boolean retrying) {
+		clearStatus();
+		writer.printf("  Error uploading part %d: %s%n", partId, e.getMessage());
 		writer.printf("  Attempt %d.  %s...%n", attempt + 1, retrying ? "Retrying" : "Aborting");
+		printStatus();
 	}
 
 	@Override
-	public void sleepingBeforeRetry(long sleepingFor) {
-		writer.print("  Sleeping for ");
+	public synchronized void sleepingBeforeRetry(int partId, long sleepingFor) {
+		clearStatus();
+		writer.printf("  Retrying part %d in ", partId);
 		PrintWriterFormat.printTime(writer, sleepingFor, false);
 		writer.println("...");
+		printStatus();
+	}
+
+	@Override
+	public synchronized void requestLimitsChanged(int concurrency, double requestsPerSecond) {
+		clearStatus();
+		writer.printf("  Request limits: %d at once, ", concurrency);
+		if (Double.isInfinite(requestsPerSecond)) {
+			writer.println("no rate limit");
+		} else {
+			writer.printf("%.2f/s%n", requestsPerSecond);
+		}
+		printStatus();
+	}
+
+	@Override
+	public synchronized void parallelPartsChanged(int parallelParts, double goodput) {
+		clearStatus();
+		writer.printf("  Parallel parts: %d (after %s/s)%n", parallelParts, StringFormat.toHumanReadableDataSize(Math.round(goodput)));
+		printStatus();
+	}
+
+	@Override
+	public synchronized void approachingPartLimit(int partId, int maxParts, long partSize) {
+		clearStatus();
+		writer.printf("  Warning: part %d of at most %d; with %s parts, the archive can't be larger than %s%n",
+				partId, maxParts, StringFormat.toHumanReadableDataSize(partSize), StringFormat.toHumanReadableDataSize(partSize * maxParts));
+		printStatus();
+	}
+
+	@Override
+	public synchronized void archiveCompleted(String description, long size, String location) {
+		clearStatus();
+		writer.printf("  Completed archive %s, %s: %s%n", description, StringFormat.toHumanReadableDataSize(size), location);
+		printStatus();
+	}
+
+	@Override
+	public synchronized void profileUpdated(StageProfiler.Profile profile) {
+		this.profile = profile;
 	}
 
 	@Override
-	public void done(byte[] finalTreeHash, String location) {
+	public synchronized void done(byte[] finalTreeHash, String location) {
+		long duration = System.currentTimeMillis() - startTime;
+		
+		clearStatus();
 		writer.print("Done.");
 		
 		writer.print("  Uploaded ");
 		writer.print(StringFormat.toHumanReadableDataSize(totalBytes));
 		writer.print(" in ");
-		PrintWriterFormat.printTime(writer, System.currentTimeMillis() - startTime, false);
+		PrintWriterFormat.printTime(writer, duration, false);
 		
 		writer.print(" (");
-		writer.print(StringFormat.toHumanReadableDataSize(totalBytes / ((System.currentTimeMillis() - startTime) / 1000)));
+		writer.print(StringFormat.toHumanReadableDataSize(Math.round(totalBytes / (Math.max(duration, 1) / 1000.0))));
 		writer.println(")/s");
 		
 		writer.print("  Tree Hash: 0x");
@@ -148,13 +256,69 @@ public class TerminalGlacierPipeObserver implements GlacierPipeObserver {
 		writer.println();
 		
 		writer.printf("  Location: %s%n", location);
+		
+		if (this.profile != null) {
+			writer.printf("  Time: %s%n", this.profile.getSummary());
+			
+			for (Stage stage : this.profile.getStagesByTime()) {
+				writer.printf("    %-26s ", stage.description);
+				PrintWriterFormat.printTime(writer, this.profile.getNanos(stage) / 1000000, false);
+				writer.printf(" %3d%%%n", Math.round(100.0 * this.profile.getFraction(stage)));
+			}
+		}
+		
+		for (Map.Entry<String, ConnectionStats> entry : this.connectionStats.entrySet()) {
+			if (entry.getValue().getRequests() > 0) {
+				writer.printf("  Connections (%s): %s%n", entry.getKey(), entry.getValue());
+			}
+		}
 	}
 
 	@Override
-	public void fatalException(Exception e) {
-		writer.println();
+	public synchronized void fatalException(Exception e) {
+		clearStatus();
 		writer.printf("Fatal Exception: %s%n", e.getMessage());
 		writer.println("Aborting.");
 	}
+	
+	/**
+	 * Erases the status line so something else can be printed in its place.
+	 */
+	protected void clearStatus() {
+		if (statusShown) {
+			writer.print('\r');
+			for (int i = 0; i < 80; i++) {
+				writer.print(' ');
+			}
+			writer.print('\r');
+			statusShown = false;
+		}
+	}
+	
+	/**
+	 * Redraws the status line.  Uploads take precedence over buffering, and the upload that last made progress over
+	 * the others.
+	 */
+	protected void printStatus() {
+		ProgressPrinter printer = uploadPrinters.get(lastUploading);
+		if (printer == null && !uploadPrinters.isEmpty()) {
+			lastUploading = uploadPrinters.keySet().iterator().next();
+			printer = uploadPrinters.get(lastUploading);
+		}
+		
+		writer.print('\r');
+		if (printer != null) {
+			writer.printf("  Part %d: ", lastUploading);
+			printer.print(writer);
+		} else if (bufferingPrinter != null) {
+			writer.print("  ");
+			bufferingPrinter.print(writer);
+		} else {
+			return;
+		}
+		
+		writer.flush();
+		statusShown = true;
+	}
 
 }
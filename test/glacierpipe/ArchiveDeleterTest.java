@@ -0,0 +1,196 @@
+package glacierpipe;
+
+import glacierpipe.net.CircuitBreaker;
+import glacierpipe.net.RetryScheduler;
+import glacierpipe.terminal.TerminalDeleteObserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+
+public class ArchiveDeleterTest {
+
+	protected File file;
+	
+	@Before
+	public void setUp() throws IOException {
+		this.file = File.createTempFile("checkpoint", null);
+		this.file.delete();
+	}
+	
+	@After
+	public void tearDown() {
+		this.file.delete();
+	}
+	
+	@Test
+	public void testDelete() throws IOException {
+		StandInGlacier glacier = newGlacier(archiveIds(50));
+		glacier.rejectDeletes.add("archive-7");
+		
+		List<String> archiveIds = archiveIds(50);
+		archiveIds.add("archive-3");
+		archiveIds.add("gone");
+		
+		int failed;
+		try (
+				RetryScheduler retryScheduler = newRetryScheduler();
+				DeleteCheckpoint checkpoint = new DeleteCheckpoint(this.file);
+		) {
+			failed = newDeleter(glacier, retryScheduler, checkpoint).delete(archiveIds);
+		}
+		
+		Assert.assertEquals(1, failed);
+		Assert.assertEquals(1, glacier.archives.size());
+		Assert.assertTrue(glacier.archives.containsKey("archive-7"));
+		
+		// Already gone is as good as deleted, but rejected isn't
+		DeleteCheckpoint checkpoint = new DeleteCheckpoint(this.file);
+		Assert.assertEquals(50, checkpoint.size());
+		Assert.assertTrue(checkpoint.contains("gone"));
+		Assert.assertFalse(checkpoint.contains("archive-7"));
+	}
+	
+	@Test
+	public void testThrottled() throws IOException {
+		StandInGlacier glacier = newGlacier(archiveIds(1));
+		glacier.throttleDeletes = 1;
+		
+		try (
+				RetryScheduler retryScheduler = newRetryScheduler();
+				DeleteCheckpoint checkpoint = new DeleteCheckpoint(this.file);
+		) {
+			ArchiveDeleter deleter = newDeleter(glacier, retryScheduler, checkpoint);
+			Assert.assertEquals(0, deleter.delete(archiveIds(1)));
+			
+			Assert.assertEquals(2, deleter.getRequestRateController().getConcurrencyLimit());
+			Assert.assertFalse(Double.isInfinite(deleter.getRequestRateController().getRequestsPerSecond()));
+		}
+		
+		Assert.assertTrue(glacier.archives.isEmpty());
+		Assert.assertEquals(2, glacier.deletes);
+	}
+	
+	@Test
+	public void testResume() throws IOException {
+		StandInGlacier glacier = newGlacier(archiveIds(20));
+		glacier.failDeletesAfter = 10;
+		
+		try (
+				RetryScheduler retryScheduler = newRetryScheduler();
+				DeleteCheckpoint checkpoint = new DeleteCheckpoint(this.file);
+		) {
+			newDeleter(glacier, retryScheduler, checkpoint).delete(archiveIds(20));
+			Assert.fail("Expected the run to stop");
+		} catch (IOException e) {
+			// Expected
+		}
+		
+		int deleted = 20 - glacier.archives.size();
+		Assert.assertTrue(deleted >= 10);
+		
+		glacier.failDeletesAfter = Integer.MAX_VALUE;
+		glacier.deletes = 0;
+		try (
+				RetryScheduler retryScheduler = newRetryScheduler();
+				DeleteCheckpoint checkpoint = new DeleteCheckpoint(this.file);
+		) {
+			Assert.assertEquals(deleted, checkpoint.size());
+			Assert.assertEquals(0, newDeleter(glacier, retryScheduler, checkpoint).delete(archiveIds(20)));
+		}
+		
+		Assert.assertTrue(glacier.archives.isEmpty());
+		Assert.assertEquals(20 - deleted, glacier.deletes);
+	}
+	
+	@Test
+	public void testNoSuchVault() throws IOException {
+		StandInGlacier glacier = newGlacier(archiveIds(5));
+		glacier.vault = "other";
+		
+		try (
+				RetryScheduler retryScheduler = newRetryScheduler();
+				DeleteCheckpoint checkpoint = new DeleteCheckpoint(this.file);
+		) {
+			newDeleter(glacier, retryScheduler, checkpoint).delete(archiveIds(5));
+			Assert.fail("Expected the run to stop");
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("no vault vault"));
+		}
+		
+		Assert.assertEquals(0, glacier.deletes);
+		Assert.assertEquals(0, new DeleteCheckpoint(this.file).size());
+	}
+	
+	@Test
+	public void testNoSuchVaultNotDescribed() throws IOException {
+		StandInGlacier glacier = newGlacier(archiveIds(5));
+		glacier.vault = "other";
+		glacier.describeDenied = true;
+		
+		try (
+				RetryScheduler retryScheduler = newRetryScheduler();
+				DeleteCheckpoint checkpoint = new DeleteCheckpoint(this.file);
+		) {
+			newDeleter(glacier, retryScheduler, checkpoint).delete(archiveIds(5));
+			Assert.fail("Expected the run to stop");
+		} catch (IOException e) {
+			// Expected
+		}
+		
+		// The deletes got as far as Glacier, but none of them count
+		Assert.assertTrue(glacier.deletes > 0);
+		Assert.assertEquals(0, new DeleteCheckpoint(this.file).size());
+	}
+	
+	@Test(expected = IOException.class)
+	public void testWrongVault() throws IOException {
+		String json = "{\"VaultARN\":\"arn:aws:glacier:us-east-1:123:vaults/other\",\"ArchiveList\":["
+				+ "{\"ArchiveId\":\"archive-0\",\"Size\":10,\"SHA256TreeHash\":\"abcd\"}]}";
+		
+		try (
+				RetryScheduler retryScheduler = newRetryScheduler();
+				DeleteCheckpoint checkpoint = new DeleteCheckpoint(this.file);
+				InventoryReader inventory = InventoryReaderTest.open(json, null);
+		) {
+			newDeleter(newGlacier(archiveIds(1)), retryScheduler, checkpoint).delete(inventory);
+		}
+	}
+	
+	protected static ArchiveDeleter newDeleter(AmazonGlacierClient client, RetryScheduler retryScheduler, DeleteCheckpoint checkpoint) {
+		return new ArchiveDeleter(client, "vault", new TerminalDeleteObserver(new StringWriter()), 4, 5, retryScheduler, checkpoint);
+	}
+	
+	protected static RetryScheduler newRetryScheduler() {
+		return new RetryScheduler(1, 10, 1000, new CircuitBreaker(5, 10, 100, new Random(0)), new Random(0));
+	}
+	
+	protected static List<String> archiveIds(int count) {
+		List<String> archiveIds = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			archiveIds.add("archive-" + i);
+		}
+		return archiveIds;
+	}
+	
+	/**
+	 * @return a stand-in Glacier whose vault has these archives
+	 */
+	protected static StandInGlacier newGlacier(List<String> archiveIds) {
+		StandInGlacier glacier = new StandInGlacier("us-east-1");
+		for (String archiveId : archiveIds) {
+			glacier.addArchive(archiveId, new byte[0]);
+		}
+		return glacier;
+	}
+}
@@ -0,0 +1,120 @@
+package glacierpipe;
+
+import glacierpipe.net.CircuitBreaker;
+import glacierpipe.net.RetryScheduler;
+import glacierpipe.terminal.TerminalDownloadObserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.TreeHashGenerator;
+import com.amazonaws.util.BinaryUtils;
+
+public class ArchiveDownloaderTest {
+
+	protected static final int MB = 1024 * 1024;
+	
+	@Test
+	public void testDownloadToStream() throws IOException {
+		byte[] data = randomBytes(5 * MB + 12345);
+		StandInGlacier glacier = newGlacier(data);
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] treeHash;
+		try (RetryScheduler retryScheduler = newRetryScheduler()) {
+			ArchiveDownloader downloader = newDownloader(glacier, retryScheduler);
+			String jobId = downloader.initiateRetrieval("archive");
+			treeHash = downloader.download(downloader.awaitJob(jobId, 1), out);
+		}
+		
+		Assert.assertArrayEquals(data, out.toByteArray());
+		Assert.assertEquals(TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(data)), BinaryUtils.toHex(treeHash));
+		Assert.assertEquals(6, glacier.rangeRequests);
+		Assert.assertTrue(glacier.polls > 1);
+	}
+	
+	@Test
+	public void testDownloadToFile() throws IOException {
+		byte[] data = randomBytes(4 * MB);
+		StandInGlacier glacier = newGlacier(data);
+		
+		File file = File.createTempFile("download", null);
+		try (RetryScheduler retryScheduler = newRetryScheduler()) {
+			ArchiveDownloader downloader = newDownloader(glacier, retryScheduler);
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				downloader.download(downloader.awaitJob(downloader.initiateRetrieval("archive"), 1), channel);
+			}
+			
+			Assert.assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testCorruptRangeRetried() throws IOException {
+		byte[] data = randomBytes(3 * MB);
+		StandInGlacier glacier = newGlacier(data);
+		glacier.corruptRanges.add(1L * MB);
+		glacier.corruptRanges.add(2L * MB);
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (RetryScheduler retryScheduler = newRetryScheduler()) {
+			ArchiveDownloader downloader = newDownloader(glacier, retryScheduler);
+			downloader.download(downloader.awaitJob(downloader.initiateRetrieval("archive"), 1), out);
+		}
+		
+		Assert.assertArrayEquals(data, out.toByteArray());
+		Assert.assertEquals(5, glacier.rangeRequests);
+	}
+	
+	@Test(expected = IOException.class)
+	public void testWrongArchiveTreeHash() throws IOException {
+		StandInGlacier glacier = newGlacier(randomBytes(2 * MB));
+		glacier.archiveTreeHash = TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(new byte[2 * MB]));
+		
+		try (RetryScheduler retryScheduler = newRetryScheduler()) {
+			ArchiveDownloader downloader = newDownloader(glacier, retryScheduler);
+			downloader.download(downloader.awaitJob(downloader.initiateRetrieval("archive"), 1), new ByteArrayOutputStream());
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnalignedRangeSize() {
+		new ArchiveDownloader(newGlacier(new byte[0]), "vault", new TerminalDownloadObserver(new StringWriter()), 1, 3 * MB, 3, new RetryScheduler());
+	}
+	
+	protected static ArchiveDownloader newDownloader(AmazonGlacierClient client, RetryScheduler retryScheduler) {
+		return new ArchiveDownloader(client, "vault", new TerminalDownloadObserver(new StringWriter()), 3, MB, 3, retryScheduler);
+	}
+	
+	protected static RetryScheduler newRetryScheduler() {
+		return new RetryScheduler(1, 10, 10, new CircuitBreaker(), new Random(0));
+	}
+	
+	protected static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * @return a stand-in Glacier with one archive, {@code archive}
+	 */
+	protected static StandInGlacier newGlacier(byte[] data) {
+		StandInGlacier glacier = new StandInGlacier("us-east-1");
+		glacier.addArchive("archive", data);
+		return glacier;
+	}
+}
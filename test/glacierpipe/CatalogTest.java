@@ -0,0 +1,175 @@
+package glacierpipe;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CatalogTest {
+
+	protected File directory;
+	protected File file;
+	
+	@Before
+	public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("catalog").toFile();
+		this.file = new File(new File(this.directory, "sub"), "catalog");
+	}
+	
+	protected File createFile() {
+		this.file.getParentFile().mkdirs();
+		return this.file;
+	}
+	
+	@After
+	public void tearDown() {
+		this.file.delete();
+		this.file.getParentFile().delete();
+		this.directory.delete();
+	}
+	
+	@Test
+	public void testAddAndReopen() throws IOException {
+		Catalog catalog = new Catalog(this.file);
+		Assert.assertTrue(catalog.getEntries().isEmpty());
+		Assert.assertNull(catalog.find("us-east-1", "v", "abcd", 10));
+		
+		catalog.add(new Catalog.Entry("us-east-1", "v", "backup-1", 10, "ABCD", 1024 * 1024, 1000, "/1/vaults/v/archives/first"));
+		catalog.add(new Catalog.Entry("us-east-1", "w", "backup-1", 10, "abcd", 1024 * 1024, 2000, "/1/vaults/w/archives/other"));
+		catalog.add(new Catalog.Entry("us-east-1", "v", "backup-2", 10, "abcd", 1024 * 1024, 3000, "/1/vaults/v/archives/second"));
+		catalog.add(new Catalog.Entry("us-east-1", "v", "backup-3", 20, "ef01", 1024 * 1024, 4000, "/1/vaults/v/archives/third"));
+		
+		catalog = new Catalog(this.file);
+		Assert.assertEquals(4, catalog.getEntries().size());
+		
+		// The latest in the vault wins
+		Catalog.Entry entry = catalog.find("us-east-1", "v", "AbCd", 10);
+		Assert.assertEquals("backup-2", entry.description);
+		Assert.assertEquals("second", entry.getArchiveId());
+		Assert.assertEquals(3000, entry.timestamp);
+		Assert.assertEquals(1024 * 1024, entry.partSize);
+		
+		Assert.assertEquals("other", catalog.find("us-east-1", "w", "abcd", 10).getArchiveId());
+		Assert.assertNull(catalog.find("us-east-1", "v", "abcd", 11));
+		Assert.assertNull(catalog.find("us-east-1", "x", "abcd", 10));
+		Assert.assertNull(catalog.find("us-east-1", "v", "0000", 10));
+	}
+	
+	@Test
+	public void testRegions() throws IOException {
+		Catalog catalog = new Catalog(this.file);
+		catalog.add(new Catalog.Entry("us-east-1", "v", "backup-1", 10, "abcd", 1024 * 1024, 1000, "/1/vaults/v/archives/east"));
+		catalog.add(new Catalog.Entry("eu-west-1", "v", "backup-1", 10, "abcd", 1024 * 1024, 2000, "/1/vaults/v/archives/west"));
+		
+		catalog = new Catalog(this.file);
+		Assert.assertEquals("east", catalog.find("us-east-1", "v", "abcd", 10).getArchiveId());
+		Assert.assertEquals("west", catalog.find("eu-west-1", "v", "abcd", 10).getArchiveId());
+		Assert.assertNull(catalog.find("us-west-2", "v", "abcd", 10));
+	}
+	
+	@Test
+	public void testNoRegion() throws IOException {
+		Files.write(this.createFile().toPath(), ("{\"vault\":\"photos\",\"description\":\"2013/jan.tar\",\"size\":10,\"treeHash\":\"abcd\","
+				+ "\"partSize\":1048576,\"timestamp\":1000,\"location\":\"/123/vaults/photos/archives/a\"}\n").getBytes(StandardCharsets.UTF_8));
+		
+		// It could be in any region, so it isn't found in one
+		Catalog catalog = new Catalog(this.file);
+		Assert.assertNull(catalog.getEntries().get(0).region);
+		Assert.assertNull(catalog.find("us-east-1", "photos", "abcd", 10));
+		
+		try (InventoryReader inventory = InventoryReaderTest.open(InventoryReaderTest.INVENTORY, null)) {
+			Assert.assertEquals(3, catalog.sync(inventory));
+		}
+		
+		catalog = new Catalog(this.file);
+		Assert.assertEquals("a", catalog.find("us-east-1", "photos", "abcd", 10).getArchiveId());
+		
+		// Once it has one, there's nothing more to add
+		try (InventoryReader inventory = InventoryReaderTest.open(InventoryReaderTest.INVENTORY, null)) {
+			Assert.assertEquals(0, catalog.sync(inventory));
+		}
+	}
+	
+	@Test
+	public void testGetRegion() {
+		Assert.assertEquals("us-east-1", Catalog.getRegion("https://glacier.us-east-1.amazonaws.com/"));
+		Assert.assertEquals("eu-west-1", Catalog.getRegion("glacier.eu-west-1.amazonaws.com"));
+		Assert.assertEquals("us-east-1", Catalog.getRegion("us-east-1"));
+		Assert.assertEquals("http://localhost:8080", Catalog.getRegion("http://localhost:8080/"));
+	}
+	
+	@Test
+	public void testTornLine() throws IOException {
+		new Catalog(this.file).add(new Catalog.Entry("us-east-1", "v", "backup-1", 10, "abcd", 1024 * 1024, 1000, "/1/vaults/v/archives/first"));
+		try (FileOutputStream out = new FileOutputStream(this.file, true)) {
+			out.write("{\"vault\":\"v\",\"descr".getBytes(StandardCharsets.UTF_8));
+		}
+		
+		Catalog catalog = new Catalog(this.file);
+		Assert.assertEquals(1, catalog.getEntries().size());
+		
+		// Later entries don't run on from the torn one
+		catalog.add(new Catalog.Entry("us-east-1", "v", "backup-2", 20, "ef01", 1024 * 1024, 2000, "/1/vaults/v/archives/second"));
+		catalog = new Catalog(this.file);
+		Assert.assertEquals(2, catalog.getEntries().size());
+		Assert.assertEquals("second", catalog.find("us-east-1", "v", "ef01", 20).getArchiveId());
+	}
+	
+	@Test
+	public void testSync() throws IOException {
+		Catalog catalog = new Catalog(this.file);
+		catalog.add(new Catalog.Entry("us-east-1", "photos", "2013/jan.tar", 10, "abcd", 1024 * 1024, 1000, "/123/vaults/photos/archives/a"));
+		
+		try (InventoryReader inventory = InventoryReaderTest.open(InventoryReaderTest.INVENTORY, null)) {
+			Assert.assertEquals(2, catalog.sync(inventory));
+		}
+		
+		catalog = new Catalog(this.file);
+		Assert.assertEquals(3, catalog.getEntries().size());
+		
+		// What was recorded on upload is kept
+		Assert.assertEquals(1024 * 1024, catalog.find("us-east-1", "photos", "abcd", 10).partSize);
+		
+		Catalog.Entry entry = catalog.find("us-east-1", "photos", "ef01", 2048);
+		Assert.assertEquals("b", entry.getArchiveId());
+		Assert.assertEquals("2013/jun.tar", entry.description);
+		Assert.assertEquals("/123/vaults/photos/archives/b", entry.location);
+		Assert.assertEquals(InventoryFilter.parseDate("2013-06-01"), entry.timestamp);
+		Assert.assertEquals(0, entry.partSize);
+		
+		// Nothing new the second time
+		try (InventoryReader inventory = InventoryReaderTest.open(InventoryReaderTest.INVENTORY, null)) {
+			Assert.assertEquals(0, catalog.sync(inventory));
+		}
+	}
+	
+	@Test
+	public void testRemove() throws IOException {
+		Catalog catalog = new Catalog(this.file);
+		catalog.add(new Catalog.Entry("us-east-1", "v", "backup-1", 10, "abcd", 1024 * 1024, 1000, "/1/vaults/v/archives/first"));
+		catalog.add(new Catalog.Entry("us-east-1", "v", "backup-2", 20, "ef01", 1024 * 1024, 2000, "/1/vaults/v/archives/second"));
+		
+		Assert.assertEquals(1, catalog.remove(Arrays.asList("first", "unknown")));
+		Assert.assertNull(catalog.find("us-east-1", "v", "abcd", 10));
+		
+		catalog = new Catalog(this.file);
+		Assert.assertEquals(1, catalog.getEntries().size());
+		Assert.assertNull(catalog.find("us-east-1", "v", "abcd", 10));
+		Assert.assertEquals("second", catalog.find("us-east-1", "v", "ef01", 20).getArchiveId());
+		Assert.assertEquals(0, catalog.remove(Arrays.asList("first")));
+		
+		// An inventory from before it was deleted doesn't bring it back
+		String json = "{\"VaultARN\":\"arn:aws:glacier:us-east-1:1:vaults/v\",\"ArchiveList\":["
+				+ "{\"ArchiveId\":\"first\",\"Size\":10,\"SHA256TreeHash\":\"abcd\"}]}";
+		try (InventoryReader inventory = InventoryReaderTest.open(json, null)) {
+			Assert.assertEquals(0, catalog.sync(inventory));
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package glacierpipe;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrencyTunerTest {
+
+	private static final long PART_SIZE = 1024 * 1024;
+	
+	@Test
+	public void testConvergesOnDiminishingReturns() {
+		// Each part gets 1 MB/s until the link saturates at five of them
+		ConcurrencyTuner tuner = new ConcurrencyTuner(1, 64);
+		simulate(tuner, 5, 1000);
+		
+		Assert.assertTrue("parts = " + tuner.getParts(), tuner.getParts() >= 4 && tuner.getParts() <= 6);
+		Assert.assertEquals(5.0 * PART_SIZE, tuner.getGoodput(), PART_SIZE);
+	}
+	
+	@Test
+	public void testBoundedByMaxParts() {
+		ConcurrencyTuner tuner = new ConcurrencyTuner(2, 3);
+		simulate(tuner, 100, 1000);
+		
+		Assert.assertEquals(3, tuner.getParts());
+	}
+	
+	@Test
+	public void testStaysSmallWhenNothingHelps() {
+		ConcurrencyTuner tuner = new ConcurrencyTuner(1, 64);
+		simulate(tuner, 1, 1000);
+		
+		Assert.assertTrue("parts = " + tuner.getParts(), tuner.getParts() <= 2);
+	}
+	
+	private static void simulate(ConcurrencyTuner tuner, int saturation, int parts) {
+		long now = System.nanoTime();
+		for (int i = 0; i < parts; i++) {
+			double goodput = Math.min(tuner.getParts(), saturation) * (double)PART_SIZE;
+			now += Math.round(PART_SIZE / goodput * 1000000000.0);
+			tuner.partUploaded(PART_SIZE, now);
+		}
+	}
+}
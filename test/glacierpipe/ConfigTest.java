@@ -0,0 +1,114 @@
+package glacierpipe;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConfigTest {
+
+	private static final long MB = 1024L * 1024L;
+	private static final long GB = 1024L * MB;
+
+	@Test
+	public void testChoosePartSizeUnknown() {
+		// As big as the memory allows with four parts buffered
+		Assert.assertEquals(64 * MB, Config.choosePartSize(-1, 256 * MB));
+		Assert.assertEquals(32 * MB, Config.choosePartSize(-1, 200 * MB));
+		Assert.assertEquals(Config.MIN_PART_SIZE, Config.choosePartSize(-1, 2 * MB));
+		Assert.assertEquals(Config.MAX_PART_SIZE, Config.choosePartSize(-1, 1024 * GB));
+	}
+
+	@Test
+	public void testChoosePartSizeSmall() {
+		// Small archives are still split up enough to upload in parallel
+		Assert.assertEquals(Config.MIN_PART_SIZE, Config.choosePartSize(0, 256 * MB));
+		Assert.assertEquals(Config.MIN_PART_SIZE, Config.choosePartSize(100 * 1024, 256 * MB));
+		Assert.assertEquals(32 * MB, Config.choosePartSize(100 * MB, 256 * MB));
+		Assert.assertEquals(64 * MB, Config.choosePartSize(10 * GB, 256 * MB));
+	}
+
+	@Test
+	public void testChoosePartSizeLarge() {
+		// Fitting in 10,000 parts beats the memory budget
+		Assert.assertEquals(128 * MB, Config.choosePartSize(1024 * GB, 256 * MB));
+		Assert.assertTrue(1024 * GB <= Config.getMaxArchiveSize(128 * MB));
+		Assert.assertEquals(Config.MAX_PART_SIZE, Config.choosePartSize(50 * 1024 * GB, 256 * MB));
+
+		// Right at the edge of the headroom
+		Assert.assertEquals(16 * MB, Config.choosePartSize(9000 * 16 * MB, 16 * MB));
+		Assert.assertEquals(32 * MB, Config.choosePartSize(9000 * 16 * MB + 1, 16 * MB));
+	}
+
+	@Test
+	public void testRolloverParts() {
+		Assert.assertEquals(GlacierPipe.MAX_PARTS, Config.getRolloverParts(0, 16 * MB));
+		Assert.assertEquals(64, Config.getRolloverParts(GB, 16 * MB));
+		Assert.assertEquals(1, Config.getRolloverParts(MB, 16 * MB));
+		Assert.assertEquals(GlacierPipe.MAX_PARTS, Config.getRolloverParts(1024 * 1024 * GB, 16 * MB));
+	}
+
+	@Test
+	public void testPartSizeProperty() {
+		Properties properties = new Properties();
+		properties.setProperty("partsize", "8M");
+		properties.setProperty("expected-size", "2G");
+
+		ConfigBuilder builder = new ConfigBuilder().setFromProperties(properties);
+		Assert.assertEquals(8 * MB, builder.partSize);
+		Assert.assertEquals(2 * GB, builder.expectedSize);
+
+		properties.setProperty("partsize", "auto");
+		Assert.assertEquals(Config.AUTO_PART_SIZE, builder.setFromProperties(properties).partSize);
+	}
+
+	@Test
+	public void testTee() {
+		Properties properties = new Properties();
+		properties.setProperty("endpoint", "us-east-1");
+		properties.setProperty("vault", "backups");
+		properties.setProperty("tee", "backups@eu-west-1, copies ,backups@https://glacier.example.com/");
+
+		ConfigBuilder builder = newBuilder().setFromProperties(properties);
+		Assert.assertEquals(3, builder.tee.size());
+		Assert.assertEquals("https://glacier.eu-west-1.amazonaws.com/", builder.tee.get(0).endpoint);
+		Assert.assertNull(builder.tee.get(1).endpoint);
+
+		// Without an endpoint, a destination's in the upload's own region
+		Config config = new Config(builder);
+		Assert.assertEquals("copies", config.tee.get(1).vault);
+		Assert.assertEquals("https://glacier.us-east-1.amazonaws.com/", config.tee.get(1).endpoint);
+		Assert.assertEquals("https://glacier.example.com/", config.tee.get(2).endpoint);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTeeToItself() {
+		Properties properties = new Properties();
+		properties.setProperty("endpoint", "us-east-1");
+		properties.setProperty("vault", "backups");
+		properties.setProperty("tee", "backups@us-east-1");
+
+		new Config(newBuilder().setFromProperties(properties));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDedupRollover() {
+		ConfigBuilder builder = newBuilder();
+		builder.endpoint = "https://glacier.us-east-1.amazonaws.com/";
+		builder.vault = "backups";
+		builder.dedupIndex = new File("chunks");
+		builder.rollover = true;
+
+		new Config(builder);
+	}
+
+	protected static ConfigBuilder newBuilder() {
+		ConfigBuilder builder = new ConfigBuilder();
+		builder.archive = "archive";
+		builder.accessKey = "access";
+		builder.secretKey = "secret";
+		builder.maxUploadRate = Double.POSITIVE_INFINITY;
+		return builder;
+	}
+}
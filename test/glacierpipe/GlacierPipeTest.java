@@ -0,0 +1,260 @@
+package glacierpipe;
+
+import glacierpipe.io.IOBuffer;
+import glacierpipe.io.MemoryIOBuffer;
+import glacierpipe.net.CircuitBreaker;
+import glacierpipe.net.RetryScheduler;
+import glacierpipe.terminal.TerminalGlacierPipeObserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.util.BinaryUtils;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class GlacierPipeTest {
+	
+	protected static final int MB = 1024 * 1024;
+	
+	protected RetryScheduler first;
+	protected RetryScheduler second;
+	
+	@Before
+	public void setUp() {
+		this.first = newRetryScheduler();
+		this.second = newRetryScheduler();
+	}
+	
+	@After
+	public void tearDown() {
+		this.first.close();
+		this.second.close();
+	}
+	
+	@Test
+	public void testWholeArchive() throws IOException {
+		byte[] data = randomBytes(MB / 4);
+		StandInGlacier glacier = new StandInGlacier("east");
+		
+		GlacierPipe pipe = newPipe(2);
+		String location = pipe.pipe(glacier, null, "vault", "archive", new ByteArrayInputStream(data));
+		
+		// Too small to be worth initiating a multipart upload for
+		Assert.assertArrayEquals(data, glacier.getArchive(location));
+		Assert.assertEquals(0, glacier.uploads);
+		Assert.assertArrayEquals(treeHash(data), pipe.getArchiveTreeHash());
+	}
+	
+	@Test
+	public void testWholeArchiveInitiated() throws IOException {
+		byte[] data = randomBytes(MB * 3 / 4);
+		StandInGlacier glacier = new StandInGlacier("east");
+		
+		GlacierPipe pipe = newPipe(2);
+		String location = pipe.pipe(glacier, null, "vault", "archive", new ByteArrayInputStream(data));
+		
+		// Past half a part the multipart upload's initiated, then aborted once the input turns out to fit in one
+		Assert.assertArrayEquals(data, glacier.getArchive(location));
+		Assert.assertEquals(1, glacier.uploads);
+		Assert.assertEquals(1, glacier.aborts);
+		Assert.assertTrue(glacier.parts.isEmpty());
+	}
+	
+	@Test
+	public void testMultipart() throws IOException {
+		byte[] data = randomBytes(5 * MB / 2);
+		StandInGlacier glacier = new StandInGlacier("east");
+		
+		GlacierPipe pipe = newPipe(2);
+		String location = pipe.pipe(glacier, null, "vault", "archive", new ByteArrayInputStream(data));
+		
+		Assert.assertArrayEquals(data, glacier.getArchive(location));
+		Assert.assertEquals(1, glacier.uploads);
+		Assert.assertEquals(0, glacier.aborts);
+		Assert.assertEquals(data.length, pipe.getArchiveSize());
+	}
+	
+	@Test
+	public void testInitiateFails() throws IOException {
+		StandInGlacier glacier = new StandInGlacier("east");
+		glacier.vault = "other";
+		
+		GlacierPipe pipe = newPipe(2);
+		try {
+			pipe.pipe(glacier, null, "vault", "archive", new ByteArrayInputStream(randomBytes(2 * MB)));
+			Assert.fail("Expected the upload to fail");
+		} catch (AmazonServiceException e) {
+			Assert.assertEquals(404, e.getStatusCode());
+		}
+	}
+	
+	@Test
+	public void testRollover() throws IOException {
+		byte[] data = randomBytes(5 * MB + 1000);
+		StandInGlacier glacier = new StandInGlacier("east");
+		
+		GlacierPipe pipe = newPipe(3);
+		pipe.setRolloverParts(2);
+		String location = pipe.pipe(glacier, null, "vault", "archive", new ByteArrayInputStream(data));
+		
+		// Three archives of two parts, and the last of one, then the manifest
+		Assert.assertEquals(4, glacier.archives.size());
+		Assert.assertEquals(3, glacier.uploads);
+		Assert.assertEquals("archive.manifest", pipe.getArchiveDescription());
+		
+		JsonNode manifest = new ObjectMapper().readTree(glacier.getArchive(location));
+		Assert.assertEquals(data.length, manifest.get("size").longValue());
+		Assert.assertEquals(MB, manifest.get("partSize").longValue());
+		Assert.assertEquals(3, manifest.get("archives").size());
+		
+		// Put back together, the archives are the input
+		ByteArrayOutputStream restored = new ByteArrayOutputStream();
+		for (JsonNode entry : manifest.get("archives")) {
+			byte[] archive = glacier.getArchive(entry.get("location").textValue());
+			Assert.assertEquals(restored.size(), entry.get("offset").longValue());
+			Assert.assertEquals(archive.length, entry.get("size").longValue());
+			Assert.assertEquals(BinaryUtils.toHex(treeHash(archive)), entry.get("treeHash").textValue());
+			restored.write(archive);
+		}
+		Assert.assertArrayEquals(data, restored.toByteArray());
+		Assert.assertEquals("archive.1", manifest.get("archives").get(1).get("description").textValue());
+	}
+	
+	@Test
+	public void testRolloverAtBoundary() throws IOException {
+		byte[] data = randomBytes(4 * MB);
+		StandInGlacier glacier = new StandInGlacier("east");
+		
+		GlacierPipe pipe = newPipe(3);
+		pipe.setRolloverParts(2);
+		String location = pipe.pipe(glacier, null, "vault", "archive", new ByteArrayInputStream(data));
+		
+		// Ending right where an archive fills up doesn't start an empty one
+		JsonNode manifest = new ObjectMapper().readTree(glacier.getArchive(location));
+		Assert.assertEquals(2, manifest.get("archives").size());
+		Assert.assertEquals(2, glacier.uploads);
+		Assert.assertEquals(0, glacier.aborts);
+	}
+	
+	@Test
+	public void testTee() throws IOException {
+		byte[] data = randomBytes(5 * MB + 1000);
+		StandInGlacier east = new StandInGlacier("east");
+		StandInGlacier west = new StandInGlacier("west");
+		west.failParts = 2;
+		
+		GlacierPipe pipe = newPipe(3);
+		List<String> locations = pipe.pipe(Arrays.asList(
+				pipe.createDestination(east, null, "vault", this.first, null),
+				pipe.createDestination(west, null, "vault", this.second, null)), "archive", new ByteArrayInputStream(data));
+		
+		Assert.assertEquals(2, locations.size());
+		Assert.assertArrayEquals(data, east.getArchive(locations.get(0)));
+		Assert.assertArrayEquals(data, west.getArchive(locations.get(1)));
+		Assert.assertEquals(1, east.archives.size());
+		Assert.assertEquals(1, west.archives.size());
+		
+		Assert.assertEquals(data.length, pipe.getArchiveSize());
+		Assert.assertArrayEquals(treeHash(data), pipe.getArchiveTreeHash());
+	}
+	
+	@Test
+	public void testTeeWholeArchive() throws IOException {
+		byte[] data = randomBytes(1000);
+		StandInGlacier east = new StandInGlacier("east");
+		StandInGlacier west = new StandInGlacier("west");
+		
+		GlacierPipe pipe = newPipe(2);
+		GlacierPipe.Destination destination = pipe.createDestination(west, null, "vault", this.second, null);
+		List<String> locations = pipe.pipe(Arrays.asList(
+				pipe.createDestination(east, null, "vault", this.first, null), destination), "archive", new ByteArrayInputStream(data));
+		
+		Assert.assertArrayEquals(data, east.getArchive(locations.get(0)));
+		Assert.assertArrayEquals(data, west.getArchive(locations.get(1)));
+		Assert.assertEquals(0, east.uploads);
+		
+		Assert.assertEquals(locations.get(1), destination.getLocation());
+		Assert.assertArrayEquals(treeHash(data), destination.getArchiveTreeHash());
+	}
+	
+	@Test
+	public void testTeeRollover() throws IOException {
+		byte[] data = randomBytes(5 * MB);
+		StandInGlacier east = new StandInGlacier("east");
+		StandInGlacier west = new StandInGlacier("west");
+		
+		GlacierPipe pipe = newPipe(3);
+		pipe.setRolloverParts(2);
+		GlacierPipe.Destination eastDestination = pipe.createDestination(east, null, "vault", this.first, null);
+		GlacierPipe.Destination westDestination = pipe.createDestination(west, null, "vault", this.second, null);
+		pipe.pipe(Arrays.asList(eastDestination, westDestination), "archive", new ByteArrayInputStream(data));
+		
+		// Three archives, and a manifest listing each destination's own locations
+		Assert.assertEquals(4, east.archives.size());
+		Assert.assertEquals(4, west.archives.size());
+		
+		String manifest = new String(west.getArchive(westDestination.getLocation()), "UTF-8");
+		Assert.assertTrue(manifest.contains("/west/vaults/vault/archives/archive-2"));
+		Assert.assertFalse(manifest.contains("/east/"));
+		
+		Assert.assertFalse(Arrays.equals(eastDestination.getArchiveTreeHash(), westDestination.getArchiveTreeHash()));
+		Assert.assertArrayEquals(eastDestination.getArchiveTreeHash(), pipe.getArchiveTreeHash());
+	}
+	
+	@Test
+	public void testTeeFailure() throws IOException {
+		StandInGlacier east = new StandInGlacier("east");
+		east.vault = "east-vault";
+		StandInGlacier west = new StandInGlacier("west");
+		west.vault = "west-vault";
+		west.rejectParts = true;
+		
+		GlacierPipe pipe = newPipe(2);
+		try {
+			pipe.pipe(Arrays.asList(
+					pipe.createDestination(east, null, "east-vault", this.first, null),
+					pipe.createDestination(west, null, "west-vault", this.second, null)), "archive", new ByteArrayInputStream(randomBytes(4 * MB)));
+			Assert.fail("Expected the upload to fail");
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("west-vault"));
+		}
+		
+		Assert.assertTrue(east.archives.isEmpty());
+	}
+	
+	protected GlacierPipe newPipe(int buffers) {
+		List<IOBuffer> ioBuffers = new ArrayList<IOBuffer>();
+		for (int i = 0; i < buffers; i++) {
+			ioBuffers.add(new MemoryIOBuffer(MB));
+		}
+		return new GlacierPipe(ioBuffers, new TerminalGlacierPipeObserver(new PrintWriter(new StringWriter())), 5, this.first, null, null, null, null);
+	}
+	
+	protected static RetryScheduler newRetryScheduler() {
+		return new RetryScheduler(1, 10, 1000, new CircuitBreaker(5, 10, 100, new Random(0)), new Random(0));
+	}
+	
+	protected static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+	
+	protected static byte[] treeHash(byte[] bytes) {
+		return StandInGlacier.treeHash(bytes);
+	}
+}
@@ -0,0 +1,47 @@
+package glacierpipe;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HedgingPolicyTest {
+
+	@Test
+	public void testNotEnoughHistory() {
+		HedgingPolicy policy = new HedgingPolicy(95.0, 2.0, 10, 3);
+		
+		Assert.assertEquals(-1, policy.getHedgeDelay(1024));
+		policy.record(1024, 1000);
+		policy.record(1024, 1000);
+		Assert.assertEquals(-1, policy.getHedgeDelay(1024));
+		policy.record(1024, 1000);
+		Assert.assertEquals(2000, policy.getHedgeDelay(1024));
+	}
+	
+	@Test
+	public void testPercentileScalesWithSize() {
+		HedgingPolicy policy = new HedgingPolicy(50.0, 2.0, 10, 1);
+		
+		// 1, 2, 3, 4 and 100 ns/byte; the median is 3
+		policy.record(100, 100);
+		policy.record(100, 200);
+		policy.record(100, 10000);
+		policy.record(100, 300);
+		policy.record(100, 400);
+		
+		Assert.assertEquals(600, policy.getHedgeDelay(100));
+		Assert.assertEquals(6000, policy.getHedgeDelay(1000));
+	}
+	
+	@Test
+	public void testHistoryIsBounded() {
+		HedgingPolicy policy = new HedgingPolicy(100.0, 1.0, 3, 1);
+		
+		policy.record(1, 1000);
+		Assert.assertEquals(1000, policy.getHedgeDelay(1));
+		
+		policy.record(1, 10);
+		policy.record(1, 10);
+		policy.record(1, 10);
+		Assert.assertEquals(10, policy.getHedgeDelay(1));
+	}
+}
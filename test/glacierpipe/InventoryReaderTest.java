@@ -0,0 +1,84 @@
+package glacierpipe;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonParseException;
+
+public class InventoryReaderTest {
+
+	protected static final String INVENTORY = "{\"VaultARN\":\"arn:aws:glacier:us-east-1:123:vaults/photos\","
+			+ "\"Extra\":{\"ArchiveList\":[{\"ArchiveId\":\"not-an-archive\"}]},"
+			+ "\"InventoryDate\":\"2014-02-01T00:00:00Z\",\"ArchiveList\":["
+			+ "{\"ArchiveId\":\"a\",\"ArchiveDescription\":\"2013/jan.tar\",\"CreationDate\":\"2013-01-31T12:00:00Z\",\"Size\":10,\"SHA256TreeHash\":\"ABCD\"},"
+			+ "{\"SHA256TreeHash\":\"ef01\",\"Tags\":[1,{\"x\":2}],\"Size\":2048,\"ArchiveId\":\"b\",\"CreationDate\":\"2013-06-01T00:00:00Z\",\"ArchiveDescription\":\"2013/jun.tar\"},"
+			+ "{\"ArchiveId\":\"c\",\"ArchiveDescription\":\"notes\",\"Size\":30,\"SHA256TreeHash\":\"2345\"}"
+			+ "],\"Trailer\":true}";
+	
+	@Test
+	public void testRead() throws IOException {
+		try (InventoryReader reader = open(INVENTORY, null)) {
+			Inventory.Archive archive = reader.read();
+			Assert.assertEquals("arn:aws:glacier:us-east-1:123:vaults/photos", reader.getVaultArn());
+			Assert.assertEquals("2014-02-01T00:00:00Z", reader.getInventoryDate());
+			Assert.assertEquals("a", archive.archiveId);
+			Assert.assertEquals("abcd", archive.treeHash);
+			
+			// Fields in any order, with ones it doesn't know about skipped
+			archive = reader.read();
+			Assert.assertEquals("b", archive.archiveId);
+			Assert.assertEquals("2013/jun.tar", archive.description);
+			Assert.assertEquals(2048, archive.size);
+			Assert.assertEquals("2013-06-01T00:00:00Z", archive.creationDate);
+			
+			archive = reader.read();
+			Assert.assertEquals("c", archive.archiveId);
+			Assert.assertNull(archive.creationDate);
+			
+			Assert.assertNull(reader.read());
+			Assert.assertNull(reader.read());
+			Assert.assertEquals(3, reader.getArchivesRead());
+		}
+	}
+	
+	@Test
+	public void testFilter() throws IOException {
+		Assert.assertEquals("ab", readIds(new InventoryFilter(Pattern.compile("2013/.*"), Long.MIN_VALUE, Long.MAX_VALUE, 0, Long.MAX_VALUE)));
+		Assert.assertEquals("", readIds(new InventoryFilter(Pattern.compile("2013"), Long.MIN_VALUE, Long.MAX_VALUE, 0, Long.MAX_VALUE)));
+		
+		// After is inclusive, before exclusive, and an archive with no date is neither
+		Assert.assertEquals("b", readIds(new InventoryFilter(null, InventoryFilter.parseDate("2013-06-01T00:00:00Z"), Long.MAX_VALUE, 0, Long.MAX_VALUE)));
+		Assert.assertEquals("a", readIds(new InventoryFilter(null, Long.MIN_VALUE, InventoryFilter.parseDate("2013-06-01"), 0, Long.MAX_VALUE)));
+		
+		Assert.assertEquals("bc", readIds(new InventoryFilter(null, Long.MIN_VALUE, Long.MAX_VALUE, 11, Long.MAX_VALUE)));
+		Assert.assertEquals("ac", readIds(new InventoryFilter(null, Long.MIN_VALUE, Long.MAX_VALUE, 0, 30)));
+	}
+	
+	@Test(expected = JsonParseException.class)
+	public void testMissingField() throws IOException {
+		try (InventoryReader reader = open("{\"ArchiveList\":[{\"ArchiveId\":\"a\",\"Size\":10}]}", null)) {
+			reader.read();
+		}
+	}
+	
+	protected static String readIds(InventoryFilter filter) throws IOException {
+		StringBuilder ids = new StringBuilder();
+		try (InventoryReader reader = open(INVENTORY, filter)) {
+			Inventory.Archive archive;
+			while ((archive = reader.read()) != null) {
+				ids.append(archive.archiveId);
+			}
+			Assert.assertEquals(3, reader.getArchivesRead());
+		}
+		return ids.toString();
+	}
+	
+	protected static InventoryReader open(String json, InventoryFilter filter) throws IOException {
+		return new InventoryReader(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), filter);
+	}
+}
@@ -0,0 +1,45 @@
+package glacierpipe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class ManifestTest {
+
+	@Test
+	public void testWrite() throws IOException {
+		Manifest manifest = new Manifest("backup.tar", 1024 * 1024);
+		manifest.add("backup.tar", "/123/vaults/v/archives/abc", 0, 2048, "00ff");
+		manifest.add("backup.tar.1", "/123/vaults/v/archives/def", 2048, 100, "ff00");
+		Assert.assertEquals(2148, manifest.getSize());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		manifest.write(out);
+
+		JsonNode root = new ObjectMapper().readTree(out.toByteArray());
+		Assert.assertEquals(Manifest.VERSION, root.get("version").intValue());
+		Assert.assertEquals("backup.tar", root.get("description").textValue());
+		Assert.assertEquals(2148, root.get("size").longValue());
+		Assert.assertEquals(1024 * 1024, root.get("partSize").longValue());
+
+		JsonNode archives = root.get("archives");
+		Assert.assertEquals(2, archives.size());
+		Assert.assertEquals("backup.tar.1", archives.get(1).get("description").textValue());
+		Assert.assertEquals("def", archives.get(1).get("archiveId").textValue());
+		Assert.assertEquals(2048, archives.get(1).get("offset").longValue());
+		Assert.assertEquals(100, archives.get(1).get("size").longValue());
+		Assert.assertEquals("ff00", archives.get(1).get("treeHash").textValue());
+	}
+
+	@Test
+	public void testArchiveId() {
+		Assert.assertEquals("abc", Manifest.getArchiveId("/123/vaults/v/archives/abc"));
+		Assert.assertEquals("abc", Manifest.getArchiveId("abc"));
+		Assert.assertNull(Manifest.getArchiveId(null));
+	}
+}
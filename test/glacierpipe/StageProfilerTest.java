@@ -0,0 +1,49 @@
+package glacierpipe;
+
+import glacierpipe.StageProfiler.Profile;
+import glacierpipe.StageProfiler.Stage;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StageProfilerTest {
+
+	@Test
+	public void testSummary() {
+		long[] nanos = new long[Stage.values().length];
+		nanos[Stage.UPSTREAM.ordinal()] = 620;
+		nanos[Stage.UPLOADING.ordinal()] = 300;
+		nanos[Stage.HASHING.ordinal()] = 4;
+		
+		Profile profile = new Profile(1000, nanos);
+		
+		Assert.assertEquals(Stage.UPSTREAM, profile.getBottleneck());
+		Assert.assertEquals(Arrays.asList(Stage.UPSTREAM, Stage.UPLOADING, Stage.HASHING), profile.getStagesByTime());
+		Assert.assertEquals("upstream-bound 62%, network-bound 30%", profile.getSummary());
+		Assert.assertEquals(76, profile.getUnaccountedNanos());
+	}
+	
+	@Test
+	public void testEmpty() {
+		Profile profile = new StageProfiler().getProfile();
+		
+		Assert.assertNull(profile.getBottleneck());
+		Assert.assertEquals("-", profile.getSummary());
+	}
+	
+	@Test
+	public void testAdd() {
+		StageProfiler profiler = new StageProfiler();
+		profiler.add(Stage.RETRY_SLEEP, 10);
+		profiler.add(Stage.RETRY_SLEEP, 5);
+		profiler.add(Stage.RETRY_SLEEP, -3);
+		
+		Assert.assertEquals(15, profiler.getNanos(Stage.RETRY_SLEEP));
+		Assert.assertEquals(15, profiler.getProfile().getNanos(Stage.RETRY_SLEEP));
+		
+		profiler.reset();
+		Assert.assertEquals(0, profiler.getNanos(Stage.RETRY_SLEEP));
+	}
+}
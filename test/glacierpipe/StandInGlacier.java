@@ -0,0 +1,315 @@
+package glacierpipe;
+
+import glacierpipe.security.TreeHashMessageDigest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.AbortMultipartUploadResult;
+import com.amazonaws.services.glacier.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.glacier.model.DeleteArchiveRequest;
+import com.amazonaws.services.glacier.model.DeleteArchiveResult;
+import com.amazonaws.services.glacier.model.DescribeJobRequest;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.DescribeVaultRequest;
+import com.amazonaws.services.glacier.model.DescribeVaultResult;
+import com.amazonaws.services.glacier.model.GetJobOutputRequest;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+import com.amazonaws.services.glacier.model.InitiateJobRequest;
+import com.amazonaws.services.glacier.model.InitiateJobResult;
+import com.amazonaws.services.glacier.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.glacier.model.UploadArchiveRequest;
+import com.amazonaws.services.glacier.model.UploadArchiveResult;
+import com.amazonaws.services.glacier.model.UploadMultipartPartRequest;
+import com.amazonaws.services.glacier.model.UploadMultipartPartResult;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Stands in for Glacier in one region, with one vault, {@code vault}, of archives kept in memory by archive ID.
+ * Multipart uploads are put together and their tree hashes checked; retrievals take a couple of polls to finish, and
+ * their ranges are answered after random delays, so they finish out of order.  Ways for it to go wrong are fields
+ * tests set:
+ *
+ * <ul>
+ * <li>{@code failParts}: the first part uploads fail as though the connection dropped</li>
+ * <li>{@code rejectParts}: every part upload is rejected</li>
+ * <li>{@code corruptRanges}: ranges starting here are sent with a byte flipped, once each</li>
+ * <li>{@code throttleDeletes}: the first deletes are throttled</li>
+ * <li>{@code failDeletesAfter}: deletes after this many fail as though it were down</li>
+ * <li>{@code rejectDeletes}: these archives can't be deleted</li>
+ * <li>{@code describeDenied}: describing the vault isn't allowed</li>
+ * </ul>
+ */
+public class StandInGlacier extends AmazonGlacierClient {
+	
+	protected final String region;
+	protected String vault = "vault";
+	protected final Map<String, byte[]> archives = new LinkedHashMap<String, byte[]>();
+	protected final Map<String, TreeMap<Long, byte[]>> parts = new HashMap<String, TreeMap<Long, byte[]>>();
+	protected final Random random = new Random(0);
+	
+	protected int failParts = 0;
+	protected boolean rejectParts = false;
+	protected final Set<Long> corruptRanges = new HashSet<Long>();
+	protected int throttleDeletes = 0;
+	protected int failDeletesAfter = Integer.MAX_VALUE;
+	protected final Set<String> rejectDeletes = new HashSet<String>();
+	protected boolean describeDenied = false;
+	
+	/**
+	 * Overrides the tree hash a retrieval job gives its archive
+	 */
+	protected String archiveTreeHash;
+	
+	protected int uploads = 0;
+	protected int aborts = 0;
+	protected int polls = 0;
+	protected int rangeRequests = 0;
+	protected int deletes = 0;
+	protected int archivesStored = 0;
+	
+	public StandInGlacier(String region) {
+		super(new BasicAWSCredentials("access", "secret"));
+		this.region = region;
+	}
+	
+	/**
+	 * Puts an archive in the vault, as though it had been uploaded before
+	 */
+	public synchronized void addArchive(String archiveId, byte[] bytes) {
+		this.archives.put(archiveId, bytes);
+	}
+	
+	/**
+	 * @return the archive at a location an upload gave, or null if there isn't one
+	 */
+	public synchronized byte[] getArchive(String location) {
+		Assert.assertTrue(location, location.startsWith("/" + this.region + "/vaults/" + this.vault + "/archives/"));
+		return this.archives.get(Manifest.getArchiveId(location));
+	}
+	
+	@Override
+	public DescribeVaultResult describeVault(DescribeVaultRequest request) {
+		if (this.describeDenied) {
+			throw newServiceException(403, "AccessDeniedException");
+		}
+		
+		this.checkVault(request.getVaultName());
+		return new DescribeVaultResult().withVaultName(this.vault);
+	}
+	
+	@Override
+	public synchronized InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+		this.checkVault(request.getVaultName());
+		
+		String uploadId = this.region + "-upload-" + (++this.uploads);
+		this.parts.put(uploadId, new TreeMap<Long, byte[]>());
+		return new InitiateMultipartUploadResult().withUploadId(uploadId);
+	}
+	
+	@Override
+	public UploadMultipartPartResult uploadMultipartPart(UploadMultipartPartRequest request) {
+		byte[] body = readFully(request.getBody());
+		
+		synchronized (this) {
+			if (this.rejectParts) {
+				throw newServiceException(400, "InvalidParameterValueException");
+			} else if (this.failParts > 0) {
+				this.failParts--;
+				throw new AmazonClientException("Connection reset");
+			}
+			
+			long start = Long.parseLong(request.getRange().split("[ -]")[1]);
+			this.parts.get(request.getUploadId()).put(start, body);
+		}
+		
+		return new UploadMultipartPartResult().withChecksum(BinaryUtils.toHex(treeHash(body)));
+	}
+	
+	@Override
+	public synchronized CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		for (byte[] part : this.parts.remove(request.getUploadId()).values()) {
+			archive.write(part, 0, part.length);
+		}
+		
+		byte[] bytes = archive.toByteArray();
+		Assert.assertEquals(BinaryUtils.toHex(treeHash(bytes)), request.getChecksum());
+		Assert.assertEquals(Long.toString(bytes.length), request.getArchiveSize());
+		
+		return new CompleteMultipartUploadResult().withLocation(this.store(bytes));
+	}
+	
+	@Override
+	public synchronized AbortMultipartUploadResult abortMultipartUpload(AbortMultipartUploadRequest request) {
+		this.checkVault(request.getVaultName());
+		Assert.assertNotNull(request.getUploadId(), this.parts.remove(request.getUploadId()));
+		
+		this.aborts++;
+		return new AbortMultipartUploadResult();
+	}
+	
+	@Override
+	public UploadArchiveResult uploadArchive(UploadArchiveRequest request) {
+		this.checkVault(request.getVaultName());
+		
+		byte[] bytes = readFully(request.getBody());
+		Assert.assertEquals(BinaryUtils.toHex(treeHash(bytes)), request.getChecksum());
+		
+		synchronized (this) {
+			return new UploadArchiveResult().withChecksum(request.getChecksum()).withLocation(this.store(bytes));
+		}
+	}
+	
+	@Override
+	public InitiateJobResult initiateJob(InitiateJobRequest request) {
+		this.checkVault(request.getVaultName());
+		Assert.assertEquals("archive-retrieval", request.getJobParameters().getType());
+		return new InitiateJobResult().withJobId("job-" + request.getJobParameters().getArchiveId());
+	}
+	
+	@Override
+	public synchronized DescribeJobResult describeJob(DescribeJobRequest request) {
+		byte[] bytes = this.getJobArchive(request.getJobId());
+		
+		boolean completed = ++this.polls > 2;
+		return new DescribeJobResult()
+				.withJobId(request.getJobId())
+				.withArchiveId(request.getJobId().substring("job-".length()))
+				.withCompleted(completed)
+				.withStatusCode(completed ? "Succeeded" : "InProgress")
+				.withArchiveSizeInBytes((long)bytes.length)
+				.withArchiveSHA256TreeHash(this.archiveTreeHash != null ? this.archiveTreeHash : (bytes.length > 0 ? BinaryUtils.toHex(treeHash(bytes)) : null));
+	}
+	
+	@Override
+	public GetJobOutputResult getJobOutput(GetJobOutputRequest request) {
+		String[] range = request.getRange().substring("bytes=".length()).split("-");
+		int start = Integer.parseInt(range[0]);
+		int end = Integer.parseInt(range[1]) + 1;
+		
+		long delay;
+		byte[] body;
+		String checksum;
+		synchronized (this) {
+			body = Arrays.copyOfRange(this.getJobArchive(request.getJobId()), start, end);
+			checksum = BinaryUtils.toHex(treeHash(body));
+			
+			this.rangeRequests++;
+			delay = this.random.nextInt(20);
+			if (this.corruptRanges.remove((long)start)) {
+				body[body.length / 2] ^= 1;
+			}
+		}
+		
+		sleep(delay);
+		return new GetJobOutputResult().withBody(new ByteArrayInputStream(body)).withChecksum(checksum);
+	}
+	
+	@Override
+	public DeleteArchiveResult deleteArchive(DeleteArchiveRequest request) {
+		synchronized (this) {
+			this.deletes++;
+			this.checkVault(request.getVaultName());
+			if (this.deletes > this.failDeletesAfter) {
+				throw newServiceException(500, "ServiceUnavailableException");
+			} else if (this.throttleDeletes > 0) {
+				this.throttleDeletes--;
+				throw newServiceException(400, "ThrottlingException");
+			}
+		}
+		
+		sleep(5);
+		
+		synchronized (this) {
+			if (this.rejectDeletes.contains(request.getArchiveId())) {
+				throw newServiceException(400, "InvalidParameterValueException");
+			} else if (this.archives.remove(request.getArchiveId()) == null) {
+				throw newServiceException(404, "ResourceNotFoundException", "Archive not found: " + request.getArchiveId());
+			}
+		}
+		return new DeleteArchiveResult();
+	}
+	
+	protected String store(byte[] bytes) {
+		String archiveId = "archive-" + (this.archivesStored++);
+		this.archives.put(archiveId, bytes);
+		return "/" + this.region + "/vaults/" + this.vault + "/archives/" + archiveId;
+	}
+	
+	protected byte[] getJobArchive(String jobId) {
+		byte[] bytes = this.archives.get(jobId.substring("job-".length()));
+		if (bytes == null) {
+			throw newServiceException(404, "ResourceNotFoundException", "Job not found: " + jobId);
+		}
+		return bytes;
+	}
+	
+	protected void checkVault(String vaultName) {
+		if (!this.vault.equals(vaultName)) {
+			throw newServiceException(404, "ResourceNotFoundException", "Vault not found for ARN: arn:aws:glacier:" + this.region + ":123:vaults/" + vaultName);
+		}
+	}
+	
+	public static AmazonServiceException newServiceException(int status, String errorCode) {
+		return newServiceException(status, errorCode, errorCode);
+	}
+	
+	public static AmazonServiceException newServiceException(int status, String errorCode, String message) {
+		AmazonServiceException e = new AmazonServiceException(message);
+		e.setStatusCode(status);
+		e.setErrorCode(errorCode);
+		return e;
+	}
+	
+	public static byte[] treeHash(byte[] bytes) {
+		try {
+			return new TreeHashMessageDigest(MessageDigest.getInstance("SHA-256")).digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public static byte[] readFully(InputStream in) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	protected static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package glacierpipe;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class TarIndexTest {
+
+	@Test
+	public void testWrite() throws IOException {
+		TarIndex index = new TarIndex("backup.tar");
+		index.entry("a.txt", '0', 0, 512, 100);
+		index.entry("dir/b.bin", '0', 1024, 1536, 4096);
+		index.finish("/123/vaults/v/archives/abc");
+		Assert.assertEquals(2, index.getMembers());
+
+		JsonNode root = new ObjectMapper().readTree(new GZIPInputStream(new ByteArrayInputStream(index.toByteArray())));
+		Assert.assertEquals(TarIndex.VERSION, root.get("version").intValue());
+		Assert.assertEquals("backup.tar", root.get("description").textValue());
+		Assert.assertEquals("/123/vaults/v/archives/abc", root.get("location").textValue());
+		Assert.assertEquals("abc", root.get("archiveId").textValue());
+
+		JsonNode members = root.get("members");
+		Assert.assertEquals(2, members.size());
+		Assert.assertEquals("dir/b.bin", members.get(1).get("name").textValue());
+		Assert.assertEquals("0", members.get(1).get("type").textValue());
+		Assert.assertEquals(1024, members.get(1).get("offset").longValue());
+		Assert.assertEquals(1536, members.get(1).get("dataOffset").longValue());
+		Assert.assertEquals(4096, members.get(1).get("size").longValue());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testNotFinished() throws IOException {
+		new TarIndex("backup.tar").toByteArray();
+	}
+
+	@Test
+	public void testRetrievalRange() {
+		long mb = 1024 * 1024;
+		Assert.assertArrayEquals(new long[] { 0, mb - 1 }, TarIndex.getRetrievalRange(512, 100, 10 * mb));
+		Assert.assertArrayEquals(new long[] { mb, 3 * mb - 1 }, TarIndex.getRetrievalRange(mb + 10, mb, 10 * mb));
+		Assert.assertArrayEquals(new long[] { 2 * mb, 3 * mb - 1 }, TarIndex.getRetrievalRange(2 * mb, mb, 10 * mb));
+
+		// The end of the archive needn't be aligned
+		Assert.assertArrayEquals(new long[] { 9 * mb, 9 * mb + 99 }, TarIndex.getRetrievalRange(9 * mb + 50, 50, 9 * mb + 100));
+	}
+}
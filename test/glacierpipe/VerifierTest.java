@@ -0,0 +1,107 @@
+package glacierpipe;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.glacier.TreeHashGenerator;
+
+public class VerifierTest {
+
+	protected File directory;
+	
+	@Before
+	public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("verify").toFile();
+	}
+	
+	@After
+	public void tearDown() {
+		for (File file : this.directory.listFiles()) {
+			file.delete();
+		}
+		this.directory.delete();
+	}
+	
+	@Test
+	public void testVerify() throws IOException {
+		File matched = this.write("matched.bin", 3 * 1024 * 1024 + 17);
+		File renamed = this.write("renamed.bin", 1024);
+		File changed = this.write("changed.bin", 2048);
+		File missing = this.write("missing.bin", 10);
+		
+		Verifier verifier = new Verifier(2, 2);
+		verifier.add("id-matched", "matched.bin", matched.length(), treeHash(matched));
+		verifier.add("id-renamed", "old-name.bin", renamed.length(), treeHash(renamed).toUpperCase());
+		verifier.add("id-changed", changed.getPath(), changed.length(), treeHash(missing));
+		
+		final Map<File, Verifier.Result> results = new HashMap<File, Verifier.Result>();
+		verifier.verify(Arrays.asList(matched, renamed, changed, missing), new VerifyObserver() {
+			@Override
+			public synchronized void verified(Verifier.Result result) {
+				results.put(result.file, result);
+			}
+			
+			@Override
+			public void exceptionVerifying(File file, IOException e) {
+				Assert.fail(e.toString());
+			}
+		});
+		
+		Assert.assertEquals(Verifier.Status.MATCHED, results.get(matched).status);
+		Assert.assertEquals("id-matched", results.get(matched).archiveId);
+		Assert.assertEquals(treeHash(matched), results.get(matched).treeHash);
+		
+		Assert.assertEquals(Verifier.Status.MATCHED, results.get(renamed).status);
+		Assert.assertEquals("id-renamed", results.get(renamed).archiveId);
+		
+		Assert.assertEquals(Verifier.Status.CHANGED, results.get(changed).status);
+		Assert.assertEquals("id-changed", results.get(changed).archiveId);
+		
+		// Same tree hash as an archive, but not the same size
+		Assert.assertEquals(Verifier.Status.MISSING, results.get(missing).status);
+		Assert.assertNull(results.get(missing).archiveId);
+	}
+	
+	@Test
+	public void testReadInventory() throws IOException {
+		File file = new File(this.directory, "inventory.json");
+		Files.write(file.toPath(), ("{\"VaultARN\":\"arn:aws:glacier:us-east-1:1:vaults/v\",\"InventoryDate\":\"2014-01-01T00:00:00Z\",\"ArchiveList\":["
+				+ "{\"ArchiveId\":\"a\",\"ArchiveDescription\":\"backup\",\"CreationDate\":\"2013-12-01T00:00:00Z\",\"Size\":10,\"SHA256TreeHash\":\"ABCD\"},"
+				+ "{\"ArchiveId\":\"b\",\"ArchiveDescription\":\"\",\"CreationDate\":\"2013-12-02T00:00:00Z\",\"Size\":20,\"SHA256TreeHash\":\"ef01\"}]}").getBytes(StandardCharsets.UTF_8));
+		
+		Inventory inventory = Inventory.read(file);
+		Assert.assertEquals("arn:aws:glacier:us-east-1:1:vaults/v", inventory.getVaultArn());
+		Assert.assertEquals(2, inventory.getArchives().size());
+		
+		Inventory.Archive archive = inventory.getArchives().get(0);
+		Assert.assertEquals("a", archive.archiveId);
+		Assert.assertEquals("backup", archive.description);
+		Assert.assertEquals(10, archive.size);
+		Assert.assertEquals("abcd", archive.treeHash);
+	}
+	
+	protected File write(String name, int size) throws IOException {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		
+		File file = new File(this.directory, name);
+		Files.write(file.toPath(), data);
+		return file;
+	}
+	
+	protected static String treeHash(File file) throws IOException {
+		return TreeHashGenerator.calculateTreeHash(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+	}
+}
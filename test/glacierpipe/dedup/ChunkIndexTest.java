@@ -0,0 +1,84 @@
+package glacierpipe.dedup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChunkIndexTest {
+
+	protected File directory;
+	
+	@Before
+	public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("chunks").toFile();
+	}
+	
+	@After
+	public void tearDown() {
+		for (File file : this.directory.listFiles()) {
+			file.delete();
+		}
+		this.directory.delete();
+	}
+	
+	@Test
+	public void testAddAndReopen() throws IOException, NoSuchAlgorithmException {
+		// Enough to grow the table a couple of times
+		int chunks = (int)(ChunkIndex.INITIAL_SLOTS * 2);
+		
+		try (ChunkIndex index = new ChunkIndex(this.directory)) {
+			Assert.assertEquals(0, index.addArchive("v", "/1/vaults/v/archives/abc", "backup.chunks"));
+			for (int i = 0; i < chunks; i++) {
+				index.add(hash(i), 0, i * 1000L, i + 1);
+			}
+			
+			// Adding one that's there doesn't change it
+			index.add(hash(5), 0, 123, 456);
+			Assert.assertEquals(chunks, index.getCount());
+			Assert.assertNull(index.lookup(hash(-1)));
+		}
+		
+		try (ChunkIndex index = new ChunkIndex(this.directory)) {
+			Assert.assertEquals(chunks, index.getCount());
+			Assert.assertEquals("abc", index.getArchive(0).getArchiveId());
+			Assert.assertEquals("v", index.getArchive(0).vault);
+			
+			for (int i = 0; i < chunks; i += 97) {
+				ChunkIndex.Location location = index.lookup(hash(i));
+				Assert.assertEquals(0, location.archive);
+				Assert.assertEquals(i * 1000L, location.offset);
+				Assert.assertEquals(i + 1, location.size);
+			}
+			Assert.assertNull(index.lookup(hash(-1)));
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void testLocked() throws IOException {
+		ChunkIndex index = new ChunkIndex(this.directory);
+		try {
+			new ChunkIndex(this.directory).close();
+		} finally {
+			index.close();
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownArchive() throws IOException, NoSuchAlgorithmException {
+		try (ChunkIndex index = new ChunkIndex(this.directory)) {
+			index.add(hash(0), 0, 0, 1);
+		}
+	}
+	
+	protected static byte[] hash(int i) throws NoSuchAlgorithmException {
+		return MessageDigest.getInstance("SHA-256").digest(ByteBuffer.allocate(4).putInt(i).array());
+	}
+}
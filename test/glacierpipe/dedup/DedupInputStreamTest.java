@@ -0,0 +1,189 @@
+package glacierpipe.dedup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class DedupInputStreamTest {
+
+	protected File directory;
+	
+	@Before
+	public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("chunks").toFile();
+	}
+	
+	@After
+	public void tearDown() {
+		for (File file : this.directory.listFiles()) {
+			file.delete();
+		}
+		this.directory.delete();
+	}
+	
+	@Test
+	public void testDedup() throws IOException, NoSuchAlgorithmException {
+		byte[] first = new byte[1024 * 1024];
+		new Random(1).nextBytes(first);
+		
+		// The next night's, with a change in the middle
+		byte[] second = first.clone();
+		Arrays.fill(second, 500000, 500100, (byte)0);
+		
+		try (ChunkIndex index = new ChunkIndex(this.directory)) {
+			Recipe recipe = new Recipe("first");
+			DedupInputStream in = new DedupInputStream(new ByteArrayInputStream(first), new FastCdcChunker(4096), index, "v", recipe);
+			
+			// Everything's new the first time
+			Assert.assertArrayEquals(first, readFully(in));
+			Assert.assertEquals(first.length, in.getNewSize());
+			Assert.assertEquals(in.getChunks(), in.getNewChunks());
+			
+			in.commit(index.addArchive("v", "/1/vaults/v/archives/first", "first.chunks"));
+			Assert.assertEquals(in.getChunks(), index.getCount());
+			
+			// New chunks follow on from each other in the archive, so they're one run
+			recipe.finish(in.getSize(), in.getStreamDigest(), index, 0);
+			JsonNode root = readRecipe(recipe);
+			Assert.assertEquals("[[0,0," + first.length + "]]", root.get("runs").toString());
+			Assert.assertEquals("first", root.get("archives").get(0).get("archiveId").textValue());
+			
+			// The second time, only the changed chunk is
+			recipe = new Recipe("second");
+			in = new DedupInputStream(new ByteArrayInputStream(second), new FastCdcChunker(4096), index, "v", recipe);
+			byte[] uploaded = readFully(in);
+			Assert.assertEquals(uploaded.length, in.getNewSize());
+			Assert.assertTrue(in.getNewSize() + " new", in.getNewSize() > 0 && in.getNewSize() <= 2 * new FastCdcChunker(4096).getMaxSize());
+			
+			in.commit(index.addArchive("v", "/1/vaults/v/archives/second", "second.chunks"));
+			recipe.finish(in.getSize(), in.getStreamDigest(), index, 1);
+			
+			// Put it back together from the recipe
+			root = readRecipe(recipe);
+			Assert.assertEquals(second.length, root.get("size").longValue());
+			Assert.assertEquals(3, root.get("runs").size());
+			
+			byte[][] archives = { first, uploaded };
+			ByteArrayOutputStream restored = new ByteArrayOutputStream();
+			for (JsonNode run : root.get("runs")) {
+				String archiveId = root.get("archives").get(run.get(0).intValue()).get("archiveId").textValue();
+				byte[] archive = archives[archiveId.equals("first") ? 0 : 1];
+				restored.write(archive, (int)run.get(1).longValue(), (int)run.get(2).longValue());
+			}
+			Assert.assertArrayEquals(second, restored.toByteArray());
+			Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(second), in.getStreamDigest());
+		}
+	}
+	
+	@Test
+	public void testNothingNew() throws IOException {
+		byte[] data = new byte[100000];
+		new Random(2).nextBytes(data);
+		
+		try (ChunkIndex index = new ChunkIndex(this.directory)) {
+			DedupInputStream in = new DedupInputStream(new ByteArrayInputStream(data), new FastCdcChunker(4096), index, "v", new Recipe("first"));
+			readFully(in);
+			in.commit(index.addArchive("v", "/1/vaults/v/archives/first", "first.chunks"));
+			
+			in = new DedupInputStream(new ByteArrayInputStream(data), new FastCdcChunker(4096), index, "v", new Recipe("second"));
+			Assert.assertFalse(in.awaitNewChunk());
+			Assert.assertEquals(data.length, in.getSize());
+			
+			// Chunks in another vault's archives don't count
+			in = new DedupInputStream(new ByteArrayInputStream(data), new FastCdcChunker(4096), index, "other", new Recipe("third"));
+			Assert.assertEquals(data.length, readFully(in).length);
+			in.close();
+		}
+	}
+	
+	@Test
+	public void testRepeatedChunks() throws IOException {
+		byte[] chunk = new byte[50000];
+		new Random(3).nextBytes(chunk);
+		
+		// The same data over and over, so once it's been seen, the rest is found among the new chunks
+		ByteArrayOutputStream repeated = new ByteArrayOutputStream();
+		for (int i = 0; i < 20; i++) {
+			repeated.write(chunk);
+		}
+		byte[] data = repeated.toByteArray();
+		
+		try (ChunkIndex index = new ChunkIndex(this.directory)) {
+			Recipe recipe = new Recipe("first");
+			DedupInputStream in = new DedupInputStream(new ByteArrayInputStream(data), new FastCdcChunker(4096), index, "v", recipe);
+			byte[] uploaded = readFully(in);
+			Assert.assertTrue(uploaded.length + " new", uploaded.length < 2 * chunk.length + 2 * new FastCdcChunker(4096).getMaxSize());
+			Assert.assertTrue(new File(this.directory, ChunkIndex.PENDING).isDirectory());
+			
+			// Committing moves them into the index, and does away with the pending ones
+			in.commit(index.addArchive("v", "/1/vaults/v/archives/first", "first.chunks"));
+			Assert.assertEquals(in.getNewChunks(), index.getCount());
+			Assert.assertFalse(new File(this.directory, ChunkIndex.PENDING).exists());
+			
+			recipe.finish(in.getSize(), in.getStreamDigest(), index, 0);
+			ByteArrayOutputStream restored = new ByteArrayOutputStream();
+			for (JsonNode run : readRecipe(recipe).get("runs")) {
+				restored.write(uploaded, (int)run.get(1).longValue(), (int)run.get(2).longValue());
+			}
+			Assert.assertArrayEquals(data, restored.toByteArray());
+		}
+	}
+	
+	@Test
+	public void testClosedUncommitted() throws IOException {
+		byte[] data = new byte[100000];
+		new Random(4).nextBytes(data);
+		
+		try (ChunkIndex index = new ChunkIndex(this.directory)) {
+			DedupInputStream in = new DedupInputStream(new ByteArrayInputStream(data), new FastCdcChunker(4096), index, "v", new Recipe("first"));
+			readFully(in);
+			in.close();
+			
+			// As though the upload failed; nothing's indexed, or left behind
+			Assert.assertEquals(0, index.getCount());
+			Assert.assertFalse(new File(this.directory, ChunkIndex.PENDING).exists());
+		}
+	}
+	
+	@Test
+	public void testEmpty() throws IOException {
+		try (ChunkIndex index = new ChunkIndex(this.directory)) {
+			Recipe recipe = new Recipe("empty");
+			DedupInputStream in = new DedupInputStream(new ByteArrayInputStream(new byte[0]), new FastCdcChunker(4096), index, "v", recipe);
+			Assert.assertEquals(-1, in.read());
+			
+			recipe.finish(in.getSize(), in.getStreamDigest(), index, DedupInputStream.PENDING);
+			Assert.assertEquals(0, readRecipe(recipe).get("runs").size());
+		}
+	}
+	
+	protected static JsonNode readRecipe(Recipe recipe) throws IOException {
+		return new ObjectMapper().readTree(new GZIPInputStream(new ByteArrayInputStream(recipe.toByteArray())));
+	}
+	
+	protected static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[5000];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,102 @@
+package glacierpipe.dedup;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FastCdcChunkerTest {
+
+	@Test
+	public void testSizes() {
+		FastCdcChunker chunker = new FastCdcChunker(4096);
+		byte[] data = random(1, 1024 * 1024);
+		
+		List<Integer> sizes = chunk(chunker, data);
+		long total = 0;
+		for (int i = 0; i < sizes.size(); i++) {
+			int size = sizes.get(i);
+			Assert.assertTrue(size <= chunker.getMaxSize());
+			Assert.assertTrue(size > chunker.getMinSize() || i == sizes.size() - 1);
+			total += size;
+		}
+		Assert.assertEquals(data.length, total);
+		
+		// Normalized chunking keeps the average close to the one asked for
+		double average = (double)data.length / sizes.size();
+		Assert.assertTrue("average " + average, average > 4096 * 0.75 && average < 4096 * 1.5);
+	}
+	
+	@Test
+	public void testInsertion() {
+		FastCdcChunker chunker = new FastCdcChunker(4096);
+		byte[] data = random(2, 512 * 1024);
+		
+		// Insert a few bytes near the start; only the chunks around them should change
+		byte[] inserted = new byte[data.length + 3];
+		System.arraycopy(data, 0, inserted, 0, 10000);
+		System.arraycopy(data, 10000, inserted, 10003, data.length - 10000);
+		
+		Set<Long> before = boundaries(chunk(chunker, data), 0);
+		Set<Long> after = boundaries(chunk(chunker, inserted), -3);
+		
+		int shared = 0;
+		for (long boundary : after) {
+			if (before.contains(boundary)) {
+				shared++;
+			}
+		}
+		Assert.assertTrue(shared + " of " + before.size(), shared >= before.size() - 3);
+	}
+	
+	@Test
+	public void testMaxSize() {
+		// Zeros never hash to a boundary
+		FastCdcChunker chunker = new FastCdcChunker(4096);
+		Assert.assertEquals(chunker.getMaxSize(), chunker.findBoundary(new byte[chunker.getMaxSize() * 2], 0, chunker.getMaxSize() * 2));
+		Assert.assertEquals(-1, chunker.findBoundary(new byte[chunker.getMaxSize()], 0, chunker.getMaxSize() - 1));
+		Assert.assertEquals(-1, chunker.findBoundary(new byte[100], 0, 100));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testNotPowerOfTwo() {
+		new FastCdcChunker(5000);
+	}
+	
+	protected static List<Integer> chunk(FastCdcChunker chunker, byte[] data) {
+		List<Integer> sizes = new ArrayList<Integer>();
+		int offset = 0;
+		while (offset < data.length) {
+			int size = chunker.findBoundary(data, offset, data.length - offset);
+			if (size < 0) {
+				size = data.length - offset;
+			}
+			sizes.add(size);
+			offset += size;
+		}
+		return sizes;
+	}
+	
+	/**
+	 * @return the chunks' end offsets, shifted by {@code shift}
+	 */
+	protected static Set<Long> boundaries(List<Integer> sizes, long shift) {
+		Set<Long> boundaries = new HashSet<Long>();
+		long offset = shift;
+		for (int size : sizes) {
+			offset += size;
+			boundaries.add(offset);
+		}
+		return boundaries;
+	}
+	
+	protected static byte[] random(long seed, int size) {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
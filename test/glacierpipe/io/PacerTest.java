@@ -0,0 +1,81 @@
+package glacierpipe.io;
+
+import glacierpipe.io.ThrottledInputStream.ThrottlingStrategy;
+import glacierpipe.net.FixedThrottlingStrategy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PacerTest {
+
+	@Test
+	public void testUnlimited() {
+		Assert.assertEquals(1 << 20, new Pacer(new FixedThrottlingStrategy(Double.POSITIVE_INFINITY)).tryAcquire(1 << 20));
+		Assert.assertEquals(1 << 20, new Pacer(new FixedThrottlingStrategy(0)).tryAcquire(1 << 20));
+		Assert.assertEquals(0, new Pacer(new FixedThrottlingStrategy(0)).getDelay(1 << 20));
+	}
+	
+	@Test
+	public void testAllowance() {
+		Pacer pacer = new Pacer(new FixedThrottlingStrategy(1000));
+		long now = pacer.lastRefill;
+		
+		// Nothing's allowed until a 20th of a second's worth accrues, and no more than a 10th of a second's worth builds up
+		Assert.assertEquals(0, pacer.tryAcquire(200, now));
+		Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(50), pacer.getDelay(200, now));
+		Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(10), pacer.getDelay(10, now));
+		Assert.assertEquals(0, pacer.tryAcquire(200, now + TimeUnit.MILLISECONDS.toNanos(25)));
+		Assert.assertEquals(60, pacer.tryAcquire(200, now + TimeUnit.MILLISECONDS.toNanos(60)));
+		Assert.assertEquals(100, pacer.tryAcquire(200, now + TimeUnit.SECONDS.toNanos(10)));
+		
+		pacer.release(20);
+		Assert.assertEquals(0, pacer.tryAcquire(200, now + TimeUnit.SECONDS.toNanos(10)));
+		Assert.assertEquals(20, pacer.tryAcquire(20, now + TimeUnit.SECONDS.toNanos(10)));
+	}
+	
+	@Test
+	public void testRateChanges() {
+		final double[] rate = { 1000 };
+		Pacer pacer = new Pacer(new ThrottlingStrategy() {
+			@Override
+			public double getBytesPerSecond() {
+				return rate[0];
+			}
+		});
+		
+		long now = pacer.lastRefill;
+		Assert.assertEquals(0, pacer.tryAcquire(100, now));
+		
+		// Only picked up once per quantum
+		rate[0] = 2000;
+		Assert.assertEquals(10, pacer.tryAcquire(10, now + TimeUnit.MILLISECONDS.toNanos(10)));
+		Assert.assertEquals(200, pacer.tryAcquire(1000, now + TimeUnit.MILLISECONDS.toNanos(1010)));
+		
+		rate[0] = -1;
+		Assert.assertEquals(1000, pacer.tryAcquire(1000, now + TimeUnit.MILLISECONDS.toNanos(2010)));
+	}
+	
+	@Test
+	public void testPacedOutputStream() throws IOException {
+		Pacer pacer = new Pacer(new FixedThrottlingStrategy(64 * 1024));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		
+		long time = System.nanoTime();
+		
+		// Shared by both streams
+		try (OutputStream a = new PacedOutputStream(bytes, pacer); OutputStream b = new PacedOutputStream(bytes, pacer)) {
+			a.write(new byte[64 * 1024]);
+			b.write(new byte[64 * 1024]);
+		}
+		
+		time = System.nanoTime() - time;
+		
+		Assert.assertEquals(2.0, time / 1000000000.0, 0.5);
+		Assert.assertEquals(128 * 1024, bytes.size());
+	}
+}
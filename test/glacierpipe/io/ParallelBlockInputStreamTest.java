@@ -0,0 +1,123 @@
+package glacierpipe.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelBlockInputStreamTest {
+
+	@Test
+	public void testGzipRoundTrip() throws IOException {
+		Random random = new Random(42);
+		
+		// Half random, half repetitive, ending partway through a block
+		byte[] data = new byte[100000];
+		random.nextBytes(data);
+		Arrays.fill(data, 50000, data.length, (byte)'a');
+		
+		byte[] compressed;
+		try (InputStream in = new ParallelBlockInputStream(new ByteArrayInputStream(data), 4096, new GzipBlockTransform(6), 4)) {
+			compressed = readFully(in);
+		}
+		
+		Assert.assertTrue(compressed.length < data.length);
+		
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			Assert.assertArrayEquals(data, readFully(in));
+		}
+	}
+	
+	@Test
+	public void testOrder() throws IOException {
+		final Random random = new Random(42);
+		byte[] data = new byte[10000];
+		random.nextBytes(data);
+		
+		// Blocks finish out of order, but come out in order
+		BlockTransform slow = new BlockTransform() {
+			@Override
+			public byte[] transform(long index, boolean last, byte[] block, int offset, int length) throws IOException {
+				try {
+					Thread.sleep(block[offset] & 0x7);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				return Arrays.copyOfRange(block, offset, offset + length);
+			}
+		};
+		
+		try (InputStream in = new ParallelBlockInputStream(new ByteArrayInputStream(data), 100, slow, 8)) {
+			Assert.assertArrayEquals(data, readFully(in));
+		}
+	}
+	
+	@Test
+	public void testEmpty() throws IOException {
+		byte[] compressed;
+		try (InputStream in = new ParallelBlockInputStream(new ByteArrayInputStream(new byte[0]), 100, new GzipBlockTransform(6), 2)) {
+			compressed = readFully(in);
+		}
+		
+		// Still a gzip stream, just an empty one
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			Assert.assertEquals(-1, in.read());
+		}
+	}
+	
+	@Test
+	public void testLastBlock() throws IOException {
+		final StringBuffer blocks = new StringBuffer();
+		BlockTransform recording = new BlockTransform() {
+			@Override
+			public byte[] transform(long index, boolean last, byte[] block, int offset, int length) throws IOException {
+				blocks.append(index).append(last ? "L" : "").append(':').append(length).append(' ');
+				return Arrays.copyOfRange(block, offset, offset + length);
+			}
+		};
+		
+		// A last block that's full, found by reading past it
+		byte[] data = new byte[300];
+		new Random(42).nextBytes(data);
+		try (InputStream in = new ParallelBlockInputStream(new ByteArrayInputStream(data), 100, recording, 1)) {
+			Assert.assertArrayEquals(data, readFully(in));
+		}
+		Assert.assertEquals("0:100 1:100 2L:100 ", blocks.toString());
+		
+		blocks.setLength(0);
+		try (InputStream in = new ParallelBlockInputStream(new ByteArrayInputStream(new byte[0]), 100, recording, 1)) {
+			Assert.assertEquals(-1, in.read());
+		}
+		Assert.assertEquals("0L:0 ", blocks.toString());
+	}
+	
+	@Test(expected = IOException.class)
+	public void testFailure() throws IOException {
+		BlockTransform failing = new BlockTransform() {
+			@Override
+			public byte[] transform(long index, boolean last, byte[] block, int offset, int length) throws IOException {
+				throw new IOException("failed");
+			}
+		};
+		
+		try (InputStream in = new ParallelBlockInputStream(new ByteArrayInputStream(new byte[1000]), 100, failing, 2)) {
+			readFully(in);
+		}
+	}
+	
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1000];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
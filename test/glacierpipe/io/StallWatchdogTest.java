@@ -0,0 +1,208 @@
+package glacierpipe.io;
+
+import glacierpipe.io.StallWatchdog.StalledException;
+import glacierpipe.io.StallWatchdog.Watch;
+import glacierpipe.net.FixedThrottlingStrategy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StallWatchdogTest {
+
+	protected static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+		}
+	};
+	
+	@Test
+	public void testWindow() {
+		try (StallWatchdog watchdog = new StallWatchdog(1000, 1000)) {
+			Watch watch = watchdog.watch(NOTHING);
+			
+			// Checked by hand rather than by the watchdog's thread
+			watch.close();
+			long start = watch.start;
+			
+			// Not stalled until a whole window has gone by
+			watch.progress(500);
+			Assert.assertFalse(watch.isStalled(start + 500));
+			Assert.assertTrue(watch.isStalled(start + 1000));
+		}
+		
+		try (StallWatchdog watchdog = new StallWatchdog(1000, 1000)) {
+			Watch watch = watchdog.watch(NOTHING);
+			watch.close();
+			long start = watch.start;
+			
+			watch.progress(2000);
+			Assert.assertFalse(watch.isStalled(start + 1000));
+			
+			// The window still reaches back to the start, so those bytes still count
+			Assert.assertFalse(watch.isStalled(start + 1500));
+			
+			// Now it only reaches back to the second sample, and nothing's been sent since
+			Assert.assertTrue(watch.isStalled(start + 2100));
+		}
+	}
+	
+	@Test
+	public void testMinRate() {
+		try (StallWatchdog watchdog = new StallWatchdog(1000, 0)) {
+			Watch watch = watchdog.watch(NOTHING);
+			watch.close();
+			
+			// Nothing's too slow for a rate of 0
+			Assert.assertFalse(watch.isStalled(watch.start + 10000));
+		}
+		
+		try (StallWatchdog watchdog = new StallWatchdog(1000, 1000)) {
+			Watch watch = watchdog.watch(NOTHING);
+			watch.close();
+			
+			watch.progress(2999);
+			Assert.assertTrue(watch.isStalled(watch.start + 3000));
+			
+			watch.progress(1);
+			Assert.assertFalse(watch.isStalled(watch.start + 3000));
+		}
+	}
+	
+	@Test
+	public void testStallCancels() throws Exception {
+		try (
+				StallWatchdog watchdog = new StallWatchdog(100, 1000);
+				PipedOutputStream out = new PipedOutputStream();
+		) {
+			final CountDownLatch running = new CountDownLatch(1);
+			final InputStream[] body = new InputStream[1];
+			final FutureTask<Integer> attempt = new FutureTask<Integer>(new Callable<Integer>() {
+				@Override
+				public Integer call() throws IOException {
+					running.countDown();
+					return body[0].read();
+				}
+			});
+			
+			final Watch watch = watchdog.watch(new Runnable() {
+				@Override
+				public void run() {
+					attempt.cancel(true);
+				}
+			});
+			body[0] = watch.wrap(new PipedInputStream(out));
+			
+			Thread thread = new Thread(attempt);
+			thread.start();
+			Assert.assertTrue(running.await(5, TimeUnit.SECONDS));
+			
+			// Nothing's ever written, so the read blocks until the stall cancels the attempt
+			try {
+				attempt.get(5, TimeUnit.SECONDS);
+				Assert.fail("Expected the attempt to be cancelled");
+			} catch (CancellationException e) {
+				// Expected
+			}
+			thread.join(5000);
+			
+			Assert.assertTrue(watch.isStalled());
+			try {
+				body[0].read();
+				Assert.fail("Expected the stream to stay stalled");
+			} catch (StalledException e) {
+				// Expected
+			}
+		}
+	}
+	
+	@Test
+	public void testSent() throws IOException {
+		try (StallWatchdog watchdog = new StallWatchdog(1000, 1000)) {
+			Watch watch = watchdog.watch(NOTHING);
+			watch.close();
+			
+			InputStream in = watch.wrap(new ByteArrayInputStream(new byte[10000]));
+			while (in.read(new byte[1000]) >= 0) {
+			}
+			
+			// Plenty was read, but once the body's been read, the response has to arrive in time
+			long sent = watch.sent;
+			Assert.assertTrue(sent >= watch.start);
+			Assert.assertFalse(watch.isStalled(sent + 999));
+			Assert.assertTrue(watch.isStalled(sent + 1000));
+		}
+	}
+	
+	@Test
+	public void testSharedPacer() throws Exception {
+		final Pacer pacer = new Pacer(new FixedThrottlingStrategy(Double.POSITIVE_INFINITY));
+		try (StallWatchdog watchdog = new StallWatchdog(300, 1000)) {
+			final CountDownLatch waitingStalled = new CountDownLatch(1);
+			Watch waiting = watchdog.watch(new Runnable() {
+				@Override
+				public void run() {
+					waitingStalled.countDown();
+				}
+			});
+			Watch sending = watchdog.watch(NOTHING);
+			
+			// One request's been sent and waits on a response that never comes
+			OutputStream out = new PacedOutputStream(new ByteArrayOutputStream(), pacer);
+			InputStream in = waiting.wrap(new ByteArrayInputStream(new byte[1000]));
+			byte[] buffer = new byte[100];
+			for (int read; (read = in.read(buffer)) >= 0; ) {
+				out.write(buffer, 0, read);
+			}
+			
+			// The other keeps sending through the same pacer, which doesn't keep the first one going
+			in = sending.wrap(new ByteArrayInputStream(new byte[1000000]));
+			long start = System.currentTimeMillis();
+			while (waitingStalled.getCount() > 0 && System.currentTimeMillis() - start < 5000) {
+				out.write(buffer, 0, in.read(buffer));
+				Thread.sleep(10);
+			}
+			
+			Assert.assertTrue(waiting.isStalled());
+			Assert.assertFalse(sending.isStalled());
+			sending.close();
+		}
+	}
+	
+	@Test
+	public void testReset() throws IOException {
+		try (StallWatchdog watchdog = new StallWatchdog(60000, 1000)) {
+			Watch watch = watchdog.watch(NOTHING);
+			InputStream in = watch.wrap(new ByteArrayInputStream(new byte[1000]));
+			
+			Assert.assertEquals(1000, in.skip(1000));
+			Assert.assertEquals(-1, in.read());
+			
+			// The end of the stream doesn't end the watch
+			Assert.assertTrue(watchdog.watched.contains(watch));
+			Assert.assertTrue(watch.sent != -1);
+			
+			// Rewinding the stream resumes a closed watch, and goes back to counting what's read
+			watch.close();
+			Assert.assertFalse(watchdog.watched.contains(watch));
+			in.reset();
+			Assert.assertTrue(watchdog.watched.contains(watch));
+			Assert.assertEquals(-1, watch.sent);
+			
+			Assert.assertEquals(0, in.read());
+			Assert.assertEquals(1001, watch.bytes);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package glacierpipe.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TarIndexInputStreamTest {
+
+	@Test
+	public void testIndex() throws IOException {
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		writeMember(tar, "dir/", '5', new byte[0]);
+		writeMember(tar, "dir/a.txt", '0', new byte[100]);
+		writeMember(tar, "dir/b.bin", '0', new byte[1024]);
+		
+		// A GNU long name, then a pax path and size
+		String longName = repeat('n', 150);
+		writeMember(tar, "././@LongLink", 'L', (longName + "\0").getBytes(StandardCharsets.UTF_8));
+		writeMember(tar, "truncated", '0', new byte[10]);
+		writeMember(tar, "PaxHeaders/x", 'x', "24 path=dir/pax-name.txt\n".getBytes(StandardCharsets.UTF_8));
+		writeMember(tar, "pax-name", '0', new byte[600]);
+		writeMember(tar, "link", '1', new byte[0]);
+		tar.write(new byte[1024 * 10]);
+		
+		byte[] bytes = tar.toByteArray();
+		
+		// Read in odd sizes, so headers are split across reads
+		RecordingObserver observer = new RecordingObserver();
+		Assert.assertArrayEquals(bytes, readFully(new TarIndexInputStream(new ByteArrayInputStream(bytes), observer), 333));
+		
+		Assert.assertEquals(
+				"dir/ 5 0 512 0\n"
+				+ "dir/a.txt 0 512 1024 100\n"
+				+ "dir/b.bin 0 1536 2048 1024\n"
+				+ longName + " 0 3072 4608 10\n"
+				+ "dir/pax-name.txt 0 5120 6656 600\n"
+				+ "link 1 7680 8192 0\n",
+				observer.toString());
+		
+		// Byte by byte
+		observer = new RecordingObserver();
+		Assert.assertArrayEquals(bytes, readFully(new TarIndexInputStream(new ByteArrayInputStream(bytes), observer), 1));
+		Assert.assertEquals(6, observer.entries);
+	}
+	
+	@Test
+	public void testNotTar() throws IOException {
+		byte[] bytes = new byte[10000];
+		Arrays.fill(bytes, (byte)'x');
+		
+		RecordingObserver observer = new RecordingObserver();
+		Assert.assertArrayEquals(bytes, readFully(new TarIndexInputStream(new ByteArrayInputStream(bytes), observer), 4096));
+		Assert.assertEquals(0, observer.entries);
+	}
+	
+	@Test
+	public void testBase256Size() {
+		byte[] header = new byte[512];
+		header[124] = (byte)0x80;
+		header[131] = 0x01;
+		header[135] = 0x02;
+		Assert.assertEquals((1L << 32) + 2, TarIndexInputStream.parseNumber(header, 124, 12));
+	}
+	
+	protected static void writeMember(ByteArrayOutputStream out, String name, char type, byte[] data) throws IOException {
+		byte[] header = new byte[512];
+		put(header, 0, name);
+		put(header, 100, "0000644");
+		put(header, 124, String.format("%011o", data.length));
+		put(header, 136, "00000000000");
+		header[156] = (byte)type;
+		put(header, 257, "ustar");
+		put(header, 263, "00");
+		
+		Arrays.fill(header, 148, 156, (byte)' ');
+		int checksum = 0;
+		for (byte b : header) {
+			checksum += b & 0xff;
+		}
+		put(header, 148, String.format("%06o", checksum));
+		header[154] = 0;
+		
+		out.write(header);
+		out.write(data);
+		out.write(new byte[(512 - data.length % 512) % 512]);
+	}
+	
+	protected static void put(byte[] header, int offset, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		System.arraycopy(bytes, 0, header, offset, Math.min(bytes.length, 100));
+	}
+	
+	protected static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+	
+	protected static byte[] readFully(InputStream in, int size) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[size];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+	
+	protected static class RecordingObserver implements TarEntryObserver {
+		
+		protected final StringBuilder entryLog = new StringBuilder();
+		protected int entries = 0;
+		
+		@Override
+		public void entry(String name, char type, long offset, long dataOffset, long size) {
+			this.entryLog.append(name).append(' ').append(type).append(' ').append(offset).append(' ').append(dataOffset).append(' ').append(size).append('\n');
+			this.entries++;
+		}
+		
+		@Override
+		public String toString() {
+			return this.entryLog.toString();
+		}
+	}
+}
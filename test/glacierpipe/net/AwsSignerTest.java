@@ -0,0 +1,53 @@
+package glacierpipe.net;
+
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.util.BinaryUtils;
+
+public class AwsSignerTest {
+
+	// The GET ListUsers example from the Signature Version 4 documentation
+	protected static final String ACCESS_KEY = "AKIDEXAMPLE";
+	protected static final String SECRET_KEY = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+	protected static final String EMPTY_HASH = "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+	@Test
+	public void testSigningKey() {
+		AwsSigner signer = new AwsSigner(ACCESS_KEY, SECRET_KEY, "us-east-1", "iam");
+		Assert.assertEquals("c4afb1cc5771d871763a393e44b703571b55cc28424d1a5e86da6ed3c154a4b9",
+				BinaryUtils.toHex(signer.getSigningKey("20150830")));
+	}
+
+	@Test
+	public void testSign() {
+		GregorianCalendar time = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+		time.clear();
+		time.set(2015, GregorianCalendar.AUGUST, 30, 12, 36, 0);
+
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("Content-Type", "application/x-www-form-urlencoded; charset=utf-8");
+		headers.put("Host", "iam.amazonaws.com");
+
+		AwsSigner signer = new AwsSigner(ACCESS_KEY, SECRET_KEY, "us-east-1", "iam");
+		signer.sign("GET", "/", "Action=ListUsers&Version=2010-05-08", headers, EMPTY_HASH, time.getTime());
+
+		Assert.assertEquals("20150830T123600Z", headers.get("X-Amz-Date"));
+		Assert.assertEquals("AWS4-HMAC-SHA256 Credential=AKIDEXAMPLE/20150830/us-east-1/iam/aws4_request, " +
+				"SignedHeaders=content-type;host;x-amz-date, " +
+				"Signature=5d672d79c15b13162d9279b0855cfba6789a8edb4c82c400e06b5924a6f2b5d7",
+				headers.get("Authorization"));
+	}
+
+	@Test
+	public void testUriEncode() {
+		Assert.assertEquals("my-vault_1.2~", AwsSigner.uriEncode("my-vault_1.2~"));
+		Assert.assertEquals("a%20b%2Fc%2B%3D", AwsSigner.uriEncode("a b/c+="));
+		Assert.assertEquals("%C3%A9", AwsSigner.uriEncode("\u00e9"));
+	}
+}
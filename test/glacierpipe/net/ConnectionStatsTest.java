@@ -0,0 +1,36 @@
+package glacierpipe.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConnectionStatsTest {
+
+	@Test
+	public void testReusedRequests() {
+		ConnectionStats stats = new ConnectionStats();
+		Assert.assertEquals(0, stats.getReusedRequests());
+		
+		// Requests on pre-warmed connections didn't wait for them to open
+		stats.connectionOpened(true);
+		stats.connectionOpened(true);
+		stats.requestSent();
+		stats.requestSent();
+		Assert.assertEquals(2, stats.getReusedRequests());
+		
+		stats.connectionOpened(false);
+		stats.requestSent();
+		stats.requestSent();
+		Assert.assertEquals(3, stats.getReusedRequests());
+		Assert.assertEquals("4 requests, 3 on reused connections; 3 connections opened (2 pre-warmed)", stats.toString());
+	}
+	
+	@Test
+	public void testConnectionsNotCounted() {
+		// Requests over connections nothing counted, like plain HTTP ones, aren't all reuses
+		ConnectionStats stats = new ConnectionStats();
+		stats.requestSent();
+		stats.requestSent();
+		Assert.assertEquals(-1, stats.getReusedRequests());
+		Assert.assertEquals("2 requests; connections not counted", stats.toString());
+	}
+}
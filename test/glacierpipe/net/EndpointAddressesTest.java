@@ -0,0 +1,118 @@
+package glacierpipe.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class EndpointAddressesTest {
+
+	protected static final long QUARANTINE = 60 * 1000;
+
+	@Test
+	public void testSpreadsRequests() throws UnknownHostException {
+		EndpointAddresses addresses = new FixedAddresses(3);
+
+		InetAddress[] acquired = new InetAddress[3];
+		for (int i = 0; i < acquired.length; i++) {
+			acquired[i] = addresses.acquire(0);
+		}
+		Assert.assertEquals(3, new HashSet<InetAddress>(Arrays.asList(acquired)).size());
+
+		// The one that finishes first gets the next request
+		addresses.release(acquired[1], 100, false, 0);
+		Assert.assertEquals(acquired[1], addresses.acquire(0));
+	}
+
+	@Test
+	public void testFailures() throws UnknownHostException {
+		EndpointAddresses addresses = new FixedAddresses(2);
+		InetAddress bad = addresses.acquire(0);
+
+		for (int i = 0; i < EndpointAddresses.FAILURE_THRESHOLD; i++) {
+			Assert.assertEquals(0, quarantined(addresses, 0));
+			addresses.release(bad, -1, true, 0);
+		}
+
+		// Left out until the quarantine's over
+		Assert.assertEquals(1, quarantined(addresses, 0));
+		for (int i = 0; i < 5; i++) {
+			Assert.assertFalse(bad.equals(addresses.acquire(1)));
+		}
+		Assert.assertEquals(0, quarantined(addresses, QUARANTINE));
+	}
+
+	@Test
+	public void testLatency() throws UnknownHostException {
+		EndpointAddresses addresses = new FixedAddresses(3);
+		InetAddress[] all = addresses.lookup("glacier.example.com");
+		addresses.refresh(0);
+
+		for (int i = 0; i < EndpointAddresses.MIN_LATENCY_SAMPLES; i++) {
+			addresses.release(all[0], 100, false, 0);
+			addresses.release(all[1], 120, false, 0);
+			addresses.release(all[2], 500, false, 0);
+		}
+
+		Assert.assertEquals(1, quarantined(addresses, 0));
+		Assert.assertEquals(all[2], addresses.getByPreference(0).get(2).address);
+	}
+
+	@Test
+	public void testLastAddressKept() throws UnknownHostException {
+		EndpointAddresses addresses = new FixedAddresses(1);
+		InetAddress only = addresses.acquire(0);
+
+		for (int i = 0; i < EndpointAddresses.FAILURE_THRESHOLD * 2; i++) {
+			addresses.release(only, -1, true, 0);
+			Assert.assertEquals(only, addresses.acquire(0));
+		}
+		Assert.assertEquals(0, quarantined(addresses, 0));
+	}
+
+	@Test
+	public void testResolveRotates() throws UnknownHostException {
+		EndpointAddresses addresses = new FixedAddresses(3);
+
+		Set<InetAddress> first = new HashSet<InetAddress>();
+		for (int i = 0; i < 3; i++) {
+			InetAddress[] resolved = addresses.resolve("GLACIER.example.com");
+			Assert.assertEquals(3, new HashSet<InetAddress>(Arrays.asList(resolved)).size());
+			first.add(resolved[0]);
+		}
+		Assert.assertEquals(3, first.size());
+	}
+
+	protected static int quarantined(EndpointAddresses addresses, long now) {
+		int quarantined = 0;
+		for (EndpointAddresses.Endpoint endpoint : addresses.endpoints.values()) {
+			if (endpoint.isQuarantined(now)) {
+				quarantined++;
+			}
+		}
+		return quarantined;
+	}
+
+	protected static class FixedAddresses extends EndpointAddresses {
+
+		protected final int count;
+
+		public FixedAddresses(int count) {
+			super("glacier.example.com", Long.MAX_VALUE, QUARANTINE);
+			this.count = count;
+		}
+
+		@Override
+		protected InetAddress[] lookup(String host) throws UnknownHostException {
+			InetAddress[] addresses = new InetAddress[this.count];
+			for (int i = 0; i < this.count; i++) {
+				addresses[i] = InetAddress.getByAddress(host, new byte[] { 10, 0, 0, (byte)(i + 1) });
+			}
+			return addresses;
+		}
+	}
+}
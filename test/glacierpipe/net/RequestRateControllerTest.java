@@ -0,0 +1,79 @@
+package glacierpipe.net;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RequestRateControllerTest {
+
+	@Test
+	public void testConcurrencyLimit() throws InterruptedException {
+		RequestRateController controller = new RequestRateController(2);
+		
+		long first = controller.acquire();
+		long second = controller.acquire();
+		Assert.assertEquals(-1, controller.tryAcquire());
+		
+		controller.succeeded(first);
+		Assert.assertEquals(1, controller.getInFlight());
+		controller.failed(second);
+		Assert.assertEquals(0, controller.getInFlight());
+	}
+	
+	@Test
+	public void testMultiplicativeDecrease() throws InterruptedException {
+		RequestRateController controller = new RequestRateController(8);
+		
+		long[] permits = new long[8];
+		for (int i = 0; i < permits.length; i++) {
+			permits[i] = controller.acquire();
+		}
+		
+		// A burst of throttling responses to requests made under the same limits only counts once
+		Assert.assertTrue(controller.throttled(permits[0]));
+		Assert.assertEquals(4, controller.getConcurrencyLimit());
+		Assert.assertFalse(controller.throttled(permits[1]));
+		Assert.assertEquals(4, controller.getConcurrencyLimit());
+		
+		// Starts are now limited to half the rate they were being made at
+		Assert.assertEquals(8 / 10.0 / 2, controller.getRequestsPerSecond(), 0.0001);
+		
+		for (int i = 2; i < permits.length; i++) {
+			controller.failed(permits[i]);
+		}
+	}
+	
+	@Test
+	public void testRateAfterLull() throws InterruptedException {
+		RequestRateController controller = new RequestRateController(8);
+		
+		long first = controller.acquire();
+		long second = controller.acquire();
+		
+		// A burst long enough ago that it's left the window, though no start since has trimmed it
+		long burst = System.nanoTime() - 2 * RequestRateController.RATE_WINDOW;
+		for (int i = 0; i < 20; i++) {
+			controller.recentStarts.addFirst(burst);
+		}
+		
+		Assert.assertTrue(controller.throttled(first));
+		Assert.assertEquals(2 / 10.0 / 2, controller.getRequestsPerSecond(), 0.0001);
+		controller.failed(second);
+	}
+	
+	@Test
+	public void testAdditiveIncrease() throws InterruptedException {
+		RequestRateController controller = new RequestRateController(4);
+		
+		controller.throttled(controller.acquire());
+		Assert.assertEquals(2, controller.getConcurrencyLimit());
+		double rate = controller.getRequestsPerSecond();
+		
+		// One more concurrent request for roughly every limit's worth of successes
+		controller.succeeded(controller.tryAcquire());
+		Assert.assertEquals(2, controller.getConcurrencyLimit());
+		Assert.assertTrue(controller.getRequestsPerSecond() > rate);
+		
+		// ...but the start rate limit means the next request has to wait
+		Assert.assertEquals(-1, controller.tryAcquire());
+	}
+}
@@ -0,0 +1,102 @@
+package glacierpipe.net;
+
+import glacierpipe.io.StallWatchdog.StalledException;
+import glacierpipe.net.RetryScheduler.ErrorType;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+public class RetrySchedulerTest {
+
+	@Test
+	public void testClassify() {
+		Assert.assertEquals(ErrorType.THROTTLING, RetryScheduler.classify(serviceException(400, "ThrottlingException")));
+		Assert.assertEquals(ErrorType.THROTTLING, RetryScheduler.classify(serviceException(429, "TooManyRequests")));
+		Assert.assertEquals(ErrorType.SERVER, RetryScheduler.classify(serviceException(503, "ServiceUnavailableException")));
+		Assert.assertEquals(ErrorType.NETWORK, RetryScheduler.classify(serviceException(408, "RequestTimeoutException")));
+		Assert.assertEquals(ErrorType.CLIENT, RetryScheduler.classify(serviceException(404, "ResourceNotFoundException")));
+		Assert.assertEquals(ErrorType.NETWORK, RetryScheduler.classify(new AmazonClientException("Checksum mismatch")));
+		Assert.assertEquals(ErrorType.NETWORK, RetryScheduler.classify(new IOException("Connection reset")));
+		Assert.assertEquals(ErrorType.STALLED, RetryScheduler.classify(new StalledException(1.0, 60000)));
+	}
+	
+	@Test
+	public void testDecorrelatedJitter() {
+		try (RetryScheduler scheduler = new RetryScheduler(1000, 300000, 10, new CircuitBreaker(), new Random(42))) {
+			long delay = 0;
+			for (int i = 0; i < 1000; i++) {
+				long previous = delay;
+				delay = scheduler.nextDelay(previous);
+				
+				Assert.assertTrue(delay >= 1000);
+				Assert.assertTrue(delay <= Math.max(1000, previous * 3));
+				Assert.assertTrue(delay <= 300000);
+			}
+		}
+	}
+	
+	@Test
+	public void testBudget() {
+		try (RetryScheduler scheduler = new RetryScheduler(2)) {
+			Assert.assertTrue(scheduler.tryAcquireRetry());
+			Assert.assertTrue(scheduler.tryAcquireRetry());
+			Assert.assertFalse(scheduler.tryAcquireRetry());
+			
+			// Ten successes earn back one retry
+			for (int i = 0; i < 9; i++) {
+				scheduler.recordSuccess();
+			}
+			Assert.assertFalse(scheduler.tryAcquireRetry());
+			scheduler.recordSuccess();
+			Assert.assertTrue(scheduler.tryAcquireRetry());
+			
+			// ...but never more than the budget
+			for (int i = 0; i < 1000; i++) {
+				scheduler.recordSuccess();
+			}
+			Assert.assertEquals(2.0, scheduler.getBudget(), 0.0);
+		}
+	}
+	
+	@Test
+	public void testCircuitBreaker() {
+		CircuitBreaker breaker = new CircuitBreaker(3, 1000, 4000, new Random(42));
+		
+		breaker.recordFailure(0);
+		breaker.recordFailure(0);
+		Assert.assertEquals(0, breaker.admit(0));
+		breaker.recordFailure(0);
+		Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		
+		long wait = breaker.admit(0);
+		Assert.assertTrue(wait >= 500 && wait <= 1000);
+		
+		// The first request after the cooldown is a probe; the rest wait on it
+		Assert.assertEquals(0, breaker.admit(1000));
+		Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		Assert.assertTrue(breaker.admit(1000) > 0);
+		
+		// A failed probe doubles the cooldown
+		breaker.recordFailure(1000);
+		wait = breaker.admit(1000);
+		Assert.assertTrue(wait >= 1000 && wait <= 2000);
+		
+		Assert.assertEquals(0, breaker.admit(3000));
+		breaker.recordSuccess();
+		Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		Assert.assertEquals(0, breaker.admit(3000));
+	}
+	
+	private static AmazonServiceException serviceException(int status, String errorCode) {
+		AmazonServiceException e = new AmazonServiceException(errorCode);
+		e.setStatusCode(status);
+		e.setErrorCode(errorCode);
+		return e;
+	}
+}
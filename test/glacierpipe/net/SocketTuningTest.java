@@ -0,0 +1,39 @@
+package glacierpipe.net;
+
+import java.io.IOException;
+import java.net.Socket;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SocketTuningTest {
+
+	@Test
+	public void testBufferSize() {
+		// 100 Mbit/s for 200 ms
+		Assert.assertEquals(2500 * 1000, SocketTuning.getBufferSize(100.0 * 1000 * 1000 / 8, 200), 1024);
+
+		Assert.assertEquals(SocketTuning.MIN_AUTO_BUFFER_SIZE, SocketTuning.getBufferSize(1024 * 1024, 1));
+		Assert.assertEquals(SocketTuning.MIN_AUTO_BUFFER_SIZE, SocketTuning.getBufferSize(Double.NaN, 100));
+		Assert.assertEquals(SocketTuning.MAX_AUTO_BUFFER_SIZE, SocketTuning.getBufferSize(SocketTuning.DEFAULT_BANDWIDTH, 1000));
+	}
+
+	@Test
+	public void testConfigure() throws IOException {
+		SocketTuning tuning = new SocketTuning(128 * 1024, 256 * 1024, false, 1000, 2000);
+
+		try (Socket socket = new Socket()) {
+			tuning.configure(socket);
+			Assert.assertFalse(socket.getTcpNoDelay());
+
+			// The OS can round these, or double them for its own bookkeeping
+			Assert.assertTrue(socket.getSendBufferSize() >= 64 * 1024);
+			Assert.assertTrue(socket.getReceiveBufferSize() >= 64 * 1024);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAutoNotResolved() {
+		new SocketTuning(SocketTuning.AUTO, 0, true, 1000, 1000);
+	}
+}
@@ -0,0 +1,498 @@
+package glacierpipe.net.nio;
+
+import glacierpipe.GlacierPipe;
+import glacierpipe.StandInGlacier;
+import glacierpipe.io.IOBuffer;
+import glacierpipe.io.MemoryIOBuffer;
+import glacierpipe.net.AwsSigner;
+import glacierpipe.net.CircuitBreaker;
+import glacierpipe.net.RetryScheduler;
+import glacierpipe.terminal.TerminalGlacierPipeObserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.services.glacier.model.UploadMultipartPartRequest;
+import com.amazonaws.services.glacier.model.UploadMultipartPartResult;
+import com.amazonaws.util.BinaryUtils;
+
+/**
+ * Sends requests through {@link GlacierNioClient} and {@link HttpEngine} over TLS to a server on the loopback
+ * interface, using a self-signed certificate for {@code localhost} from {@code loopback.jks}.
+ */
+public class HttpEngineTest {
+
+	protected static final Charset ASCII = Charset.forName("US-ASCII");
+	protected static final char[] PASSWORD = "changeit".toCharArray();
+	protected static final String ACCESS_KEY = "AKIDEXAMPLE";
+	protected static final String SECRET_KEY = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+
+	protected static final Handler OK = new Handler() {
+		@Override
+		public boolean handle(Request request, OutputStream out) throws IOException {
+			respond(out, "204 No Content", "x-amz-sha256-tree-hash: " + request.headers.get("x-amz-sha256-tree-hash") + "\r\n", "");
+			return true;
+		}
+	};
+
+	protected LoopbackServer server;
+	protected HttpEngine engine;
+
+	@After
+	public void tearDown() throws IOException {
+		if (this.engine != null) {
+			this.engine.close();
+		}
+		if (this.server != null) {
+			this.server.close();
+		}
+	}
+
+	@Test
+	public void testSignedPut() throws Exception {
+		GlacierNioClient client = this.start(OK);
+		byte[] body = randomBytes(100000);
+
+		Result<UploadMultipartPartResult> result = new Result<UploadMultipartPartResult>();
+		upload(client, body, result);
+		result.await();
+
+		Assert.assertNull(result.exception);
+		Assert.assertEquals(sha256(body), result.result.getChecksum());
+		Assert.assertEquals(body.length, result.sent.get());
+
+		Request request = this.server.requests.poll(5, TimeUnit.SECONDS);
+		Assert.assertEquals("PUT", request.method);
+		Assert.assertEquals("/-/vaults/vault/multipart-uploads/upload-1", request.path);
+		Assert.assertEquals("localhost:" + this.server.getPort(), request.headers.get("Host"));
+		Assert.assertEquals("bytes 0-99999/*", request.headers.get("Content-Range"));
+		Assert.assertArrayEquals(body, request.body);
+
+		// Signing what was received again gives the same signature
+		Map<String, String> headers = new LinkedHashMap<String, String>(request.headers);
+		String authorization = headers.remove("Authorization");
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		new AwsSigner(ACCESS_KEY, SECRET_KEY, "us-east-1", "glacier").sign("PUT", request.path, "", headers, sha256(body), format.parse(headers.remove("X-Amz-Date")));
+		Assert.assertTrue(authorization, authorization.startsWith("AWS4-HMAC-SHA256 Credential=" + ACCESS_KEY + "/"));
+		Assert.assertEquals(headers.get("Authorization"), authorization);
+	}
+
+	@Test
+	public void testKeepAlive() throws Exception {
+		GlacierNioClient client = this.start(OK);
+
+		for (int i = 0; i < 3; i++) {
+			Result<UploadMultipartPartResult> result = new Result<UploadMultipartPartResult>();
+			upload(client, randomBytes(1000 + i), result);
+			result.await();
+			Assert.assertNull(result.exception);
+
+			Request request = this.server.requests.poll(5, TimeUnit.SECONDS);
+			Assert.assertEquals(1, request.connection);
+			Assert.assertEquals(i + 1, request.index);
+		}
+
+		Assert.assertEquals(1, this.server.connections.get());
+		Assert.assertEquals(1, this.engine.getConnectionStats().getConnectionsOpened());
+		Assert.assertEquals(3, this.engine.getConnectionStats().getRequests());
+		Assert.assertEquals(2, this.engine.getConnectionStats().getReusedRequests());
+	}
+
+	@Test
+	public void testResendOnClosedConnection() throws Exception {
+		// The server gives up on the pooled connection just as the second request arrives on it
+		GlacierNioClient client = this.start(new Handler() {
+			@Override
+			public boolean handle(Request request, OutputStream out) throws IOException {
+				return request.index == 2 ? false : OK.handle(request, out);
+			}
+		});
+
+		Result<UploadMultipartPartResult> first = new Result<UploadMultipartPartResult>();
+		upload(client, randomBytes(1000), first);
+		first.await();
+		Assert.assertNull(first.exception);
+
+		byte[] body = randomBytes(5000);
+		Result<UploadMultipartPartResult> second = new Result<UploadMultipartPartResult>();
+		upload(client, body, second);
+		second.await();
+
+		// Sent again on a new connection, with what was sent the first time taken back
+		Assert.assertNull(second.exception);
+		Assert.assertEquals(sha256(body), second.result.getChecksum());
+		Assert.assertTrue(second.resent);
+		Assert.assertEquals(body.length, second.sent.get());
+
+		this.server.requests.poll(5, TimeUnit.SECONDS);
+		Request closed = this.server.requests.poll(5, TimeUnit.SECONDS);
+		Request resent = this.server.requests.poll(5, TimeUnit.SECONDS);
+		Assert.assertEquals(1, closed.connection);
+		Assert.assertEquals(2, resent.connection);
+		Assert.assertArrayEquals(body, resent.body);
+		Assert.assertEquals(2, this.engine.getConnectionStats().getConnectionsOpened());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		// Never answers
+		GlacierNioClient client = this.start(new Handler() {
+			@Override
+			public boolean handle(Request request, OutputStream out) {
+				return true;
+			}
+		});
+
+		Result<UploadMultipartPartResult> result = new Result<UploadMultipartPartResult>();
+		HttpEngine.Exchange exchange = upload(client, randomBytes(1000), result);
+		Assert.assertNotNull(this.server.requests.poll(5, TimeUnit.SECONDS));
+		Assert.assertFalse(exchange.isDone());
+
+		exchange.cancel();
+		result.await();
+
+		Assert.assertTrue(exchange.isCancelled());
+		Assert.assertEquals("Request cancelled", result.exception.getMessage());
+
+		// The connection's closed rather than pooled
+		Assert.assertEquals(Integer.valueOf(1), this.server.closed.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testErrorResponse() throws Exception {
+		GlacierNioClient client = this.start(new Handler() {
+			@Override
+			public boolean handle(Request request, OutputStream out) throws IOException {
+				if (request.index == 1) {
+					respond(out, "400 Bad Request", "Content-Type: application/json\r\nx-amzn-RequestId: request-1\r\n",
+							"{\"code\":\"InvalidParameterValueException\",\"message\":\"Invalid Content-Range\",\"type\":\"Client\"}");
+				} else {
+					respond(out, "500 Internal Server Error", "Content-Type: text/plain\r\n", "Something broke");
+				}
+				return true;
+			}
+		});
+
+		Result<UploadMultipartPartResult> result = new Result<UploadMultipartPartResult>();
+		upload(client, randomBytes(1000), result);
+		result.await();
+
+		AmazonServiceException e = (AmazonServiceException)result.exception;
+		Assert.assertEquals(400, e.getStatusCode());
+		Assert.assertEquals("InvalidParameterValueException", e.getErrorCode());
+		Assert.assertEquals("Invalid Content-Range", e.getErrorMessage());
+		Assert.assertEquals(ErrorType.Client, e.getErrorType());
+		Assert.assertEquals("request-1", e.getRequestId());
+
+		// Without a JSON body, the status line stands in
+		result = new Result<UploadMultipartPartResult>();
+		upload(client, randomBytes(1000), result);
+		result.await();
+
+		e = (AmazonServiceException)result.exception;
+		Assert.assertEquals(500, e.getStatusCode());
+		Assert.assertEquals("Internal Server Error", e.getErrorCode());
+		Assert.assertEquals(ErrorType.Service, e.getErrorType());
+	}
+
+	@Test
+	public void testPipe() throws Exception {
+		final StandInGlacier glacier = new StandInGlacier("east");
+		final AtomicInteger requests = new AtomicInteger();
+		final AtomicBoolean partThreads = new AtomicBoolean();
+		GlacierNioClient client = this.start(new Handler() {
+			@Override
+			public boolean handle(Request request, OutputStream out) throws IOException {
+				// Nothing waits on the parts; the engine's callbacks finish them
+				for (Thread thread : Thread.getAllStackTraces().keySet()) {
+					if (thread.getName().equals("glacierpipe-part")) {
+						partThreads.set(true);
+					}
+				}
+
+				// The first request fails, and is retried
+				if (requests.incrementAndGet() == 1) {
+					respond(out, "500 Internal Server Error", "Content-Type: text/plain\r\n", "Something broke");
+					return true;
+				}
+
+				UploadMultipartPartResult result = glacier.uploadMultipartPart(new UploadMultipartPartRequest().
+						withUploadId(request.path.substring(request.path.lastIndexOf('/') + 1)).
+						withRange(request.headers.get("Content-Range")).
+						withBody(new ByteArrayInputStream(request.body)));
+				respond(out, "204 No Content", "x-amz-sha256-tree-hash: " + result.getChecksum() + "\r\n", "");
+				return true;
+			}
+		});
+
+		int mb = 1024 * 1024;
+		List<IOBuffer> buffers = Arrays.<IOBuffer>asList(new MemoryIOBuffer(mb), new MemoryIOBuffer(mb));
+		RetryScheduler retryScheduler = new RetryScheduler(1, 10, 1000, new CircuitBreaker(5, 10, 100, new Random(0)), new Random(0));
+		try {
+			GlacierPipe pipe = new GlacierPipe(buffers, new TerminalGlacierPipeObserver(new PrintWriter(new StringWriter())), 5, retryScheduler, null, null, null, null);
+			byte[] data = randomBytes(5 * mb / 2);
+			String location = pipe.pipe(glacier, client, "vault", "archive", new ByteArrayInputStream(data));
+			Assert.assertArrayEquals(data, glacier.getArchive(location));
+		} finally {
+			retryScheduler.close();
+		}
+
+		// Three parts, one of them twice
+		Assert.assertEquals(4, requests.get());
+		Assert.assertFalse(partThreads.get());
+	}
+
+	protected GlacierNioClient start(Handler handler) throws Exception {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		try (InputStream in = HttpEngineTest.class.getResourceAsStream("loopback.jks")) {
+			keyStore.load(in, PASSWORD);
+		}
+
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, PASSWORD);
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(keyManagers.getKeyManagers(), null, null);
+
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keyStore);
+		SSLContext clientContext = SSLContext.getInstance("TLS");
+		clientContext.init(null, trustManagers.getTrustManagers(), null);
+
+		this.server = new LoopbackServer(serverContext, handler);
+
+		// One I/O thread, so every request shares its pool of idle connections
+		this.engine = new HttpEngine(1, clientContext);
+		return new GlacierNioClient(this.engine, "https://localhost:" + this.server.getPort(), ACCESS_KEY, SECRET_KEY);
+	}
+
+	protected static HttpEngine.Exchange upload(GlacierNioClient client, byte[] body, Callback<UploadMultipartPartResult> callback) throws NoSuchAlgorithmException {
+		String hash = sha256(body);
+		return client.uploadMultipartPart("vault", "upload-1", "bytes 0-" + (body.length - 1) + "/*", hash, hash, new ByteBuffer[] { ByteBuffer.wrap(body) }, callback);
+	}
+
+	protected static void respond(OutputStream out, String status, String headers, String body) throws IOException {
+		byte[] bytes = body.getBytes(ASCII);
+		out.write(("HTTP/1.1 " + status + "\r\n" + headers + "Content-Length: " + bytes.length + "\r\n\r\n").getBytes(ASCII));
+		out.write(bytes);
+		out.flush();
+	}
+
+	protected static String sha256(byte[] bytes) throws NoSuchAlgorithmException {
+		return BinaryUtils.toHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+	}
+
+	protected static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+
+	protected static class Result<T> implements Callback<T> {
+
+		protected final CountDownLatch done = new CountDownLatch(1);
+		protected final AtomicInteger sent = new AtomicInteger();
+		protected volatile boolean resent = false;
+		protected volatile T result;
+		protected volatile Exception exception;
+
+		@Override
+		public void bytesSent(long bytes) {
+			if (bytes < 0) {
+				this.resent = true;
+			}
+			this.sent.addAndGet((int)bytes);
+		}
+
+		@Override
+		public void completed(T result) {
+			this.result = result;
+			this.done.countDown();
+		}
+
+		@Override
+		public void failed(Exception e) {
+			this.exception = e;
+			this.done.countDown();
+		}
+
+		public void await() throws InterruptedException {
+			Assert.assertTrue("No response", this.done.await(10, TimeUnit.SECONDS));
+		}
+	}
+
+	protected interface Handler {
+
+		/**
+		 * Answers {@code request}, or not.
+		 *
+		 * @return whether to keep the connection open for another request
+		 */
+		public boolean handle(Request request, OutputStream out) throws IOException;
+
+	}
+
+	protected static class Request {
+
+		protected int connection;
+		protected int index;
+		protected String method;
+		protected String path;
+		protected final Map<String, String> headers = new LinkedHashMap<String, String>();
+		protected byte[] body;
+
+	}
+
+	/**
+	 * Serves each connection on its own thread.  Connections are numbered from 1 in the order they're accepted, as
+	 * are the requests on each.
+	 */
+	protected static class LoopbackServer implements Closeable {
+
+		protected final SSLServerSocket serverSocket;
+		protected final Handler handler;
+		protected final AtomicInteger connections = new AtomicInteger();
+		protected final BlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+		protected final BlockingQueue<Integer> closed = new LinkedBlockingQueue<Integer>();
+
+		protected LoopbackServer(SSLContext sslContext, Handler handler) throws IOException {
+			this.serverSocket = (SSLServerSocket)sslContext.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getByName("localhost"));
+			this.handler = handler;
+
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					LoopbackServer.this.accept();
+				}
+			}, "loopback-server");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public int getPort() {
+			return this.serverSocket.getLocalPort();
+		}
+
+		protected void accept() {
+			while (true) {
+				final Socket socket;
+				try {
+					socket = this.serverSocket.accept();
+				} catch (IOException e) {
+					// Closed
+					return;
+				}
+
+				final int connection = this.connections.incrementAndGet();
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						LoopbackServer.this.serve(socket, connection);
+					}
+				}, "loopback-connection-" + connection);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		protected void serve(Socket socket, int connection) {
+			try (Socket s = socket) {
+				InputStream in = new BufferedInputStream(s.getInputStream());
+				for (int index = 1; ; index++) {
+					Request request = readRequest(in);
+					request.connection = connection;
+					request.index = index;
+					this.requests.add(request);
+
+					if (!this.handler.handle(request, s.getOutputStream())) {
+						break;
+					}
+				}
+			} catch (IOException e) {
+				// The client closed the connection
+			} finally {
+				this.closed.add(connection);
+			}
+		}
+
+		protected static Request readRequest(InputStream in) throws IOException {
+			Request request = new Request();
+
+			String[] requestLine = readLine(in).split(" ");
+			request.method = requestLine[0];
+			request.path = requestLine[1];
+
+			String line;
+			while (!(line = readLine(in)).isEmpty()) {
+				int colon = line.indexOf(':');
+				request.headers.put(line.substring(0, colon), line.substring(colon + 1).trim());
+			}
+
+			request.body = new byte[Integer.parseInt(request.headers.get("Content-Length"))];
+			for (int read = 0; read < request.body.length; ) {
+				int n = in.read(request.body, read, request.body.length - read);
+				if (n < 0) {
+					throw new EOFException("Request body cut short");
+				}
+				read += n;
+			}
+			return request;
+		}
+
+		protected static String readLine(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != '\n') {
+				if (c < 0) {
+					throw new EOFException();
+				} else if (c != '\r') {
+					line.append((char)c);
+				}
+			}
+			return line.toString();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.serverSocket.close();
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package glacierpipe.net.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HttpResponseParserTest {
+
+	protected static final Charset ASCII = Charset.forName("US-ASCII");
+
+	@Test
+	public void testContentLength() throws IOException {
+		HttpResponseParser parser = new HttpResponseParser();
+		ByteBuffer in = ascii("HTTP/1.1 400 Bad Request\r\nContent-Type: application/json\r\nContent-Length: 5\r\n\r\nhelloHTTP/1.1");
+
+		Assert.assertTrue(parser.parse(in));
+		Assert.assertEquals("HTTP/1.1".length(), in.remaining());
+
+		HttpResponse response = parser.getResponse();
+		Assert.assertEquals(400, response.getStatusCode());
+		Assert.assertEquals("Bad Request", response.getReasonPhrase());
+		Assert.assertEquals("application/json", response.getHeader("content-type"));
+		Assert.assertEquals("hello", response.getBodyAsString());
+		Assert.assertTrue(parser.isKeepAlive());
+	}
+
+	@Test
+	public void testByteAtATime() throws IOException {
+		HttpResponseParser parser = new HttpResponseParser();
+		byte[] bytes = "HTTP/1.1 204 No Content\r\nx-amz-sha256-tree-hash: abcd\r\n\r\n".getBytes(ASCII);
+
+		for (int i = 0; i < bytes.length; i++) {
+			Assert.assertEquals(i == bytes.length - 1, parser.parse(ByteBuffer.wrap(bytes, i, 1)));
+		}
+
+		HttpResponse response = parser.getResponse();
+		Assert.assertEquals(204, response.getStatusCode());
+		Assert.assertEquals("abcd", response.getHeader("X-Amz-Sha256-Tree-Hash"));
+		Assert.assertEquals(0, response.getBody().length);
+	}
+
+	@Test
+	public void testChunked() throws IOException {
+		HttpResponseParser parser = new HttpResponseParser();
+
+		Assert.assertFalse(parser.parse(ascii("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5;ext=1\r\nhel")));
+		Assert.assertFalse(parser.parse(ascii("lo\r\n6\r\n world\r\n")));
+		Assert.assertTrue(parser.parse(ascii("0\r\nTrailer: x\r\n\r\n")));
+
+		Assert.assertEquals("hello world", parser.getResponse().getBodyAsString());
+		Assert.assertTrue(parser.isKeepAlive());
+	}
+
+	@Test
+	public void testInterimResponse() throws IOException {
+		HttpResponseParser parser = new HttpResponseParser();
+
+		Assert.assertTrue(parser.parse(ascii("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n")));
+		Assert.assertEquals(201, parser.getResponse().getStatusCode());
+	}
+
+	@Test
+	public void testBodyUntilEndOfStream() throws IOException {
+		HttpResponseParser parser = new HttpResponseParser();
+
+		Assert.assertFalse(parser.parse(ascii("HTTP/1.1 500 Internal Server Error\r\nConnection: close\r\n\r\noops")));
+		parser.endOfStream();
+
+		Assert.assertTrue(parser.isComplete());
+		Assert.assertFalse(parser.isKeepAlive());
+		Assert.assertEquals("oops", parser.getResponse().getBodyAsString());
+	}
+
+	@Test
+	public void testTruncated() throws IOException {
+		HttpResponseParser parser = new HttpResponseParser();
+		Assert.assertFalse(parser.isStarted());
+
+		Assert.assertFalse(parser.parse(ascii("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nabc")));
+		Assert.assertTrue(parser.isStarted());
+
+		try {
+			parser.endOfStream();
+			Assert.fail();
+		} catch (EOFException e) { }
+	}
+
+	@Test(expected = IOException.class)
+	public void testMalformedStatusLine() throws IOException {
+		new HttpResponseParser().parse(ascii("SSH-2.0-OpenSSH\r\n"));
+	}
+
+	protected static ByteBuffer ascii(String s) {
+		return ByteBuffer.wrap(s.getBytes(ASCII));
+	}
+}
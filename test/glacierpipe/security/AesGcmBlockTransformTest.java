@@ -0,0 +1,122 @@
+package glacierpipe.security;
+
+import glacierpipe.io.ParallelBlockInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AesGcmBlockTransformTest {
+
+	private static final int SEGMENT_SIZE = 1000;
+
+	@Test
+	public void testRoundTrip() throws IOException, GeneralSecurityException {
+		byte[] key = new byte[32];
+		new Random(1).nextBytes(key);
+		
+		for (int size : new int[] { 0, 1, SEGMENT_SIZE - 1, SEGMENT_SIZE, SEGMENT_SIZE + 1, 5 * SEGMENT_SIZE, 12345 }) {
+			byte[] data = new byte[size];
+			new Random(size).nextBytes(data);
+			
+			byte[] encrypted = encrypt(key, data);
+			Assert.assertEquals(AesGcmBlockTransform.HEADER_LENGTH + size + AesGcmBlockTransform.TAG_LENGTH * Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE), encrypted.length);
+			Assert.assertArrayEquals(data, decrypt(key, encrypted));
+		}
+	}
+	
+	@Test
+	public void testStreamsDiffer() throws IOException, GeneralSecurityException {
+		byte[] key = new byte[16];
+		byte[] data = new byte[100];
+		Assert.assertFalse(Arrays.equals(encrypt(key, data), encrypt(key, data)));
+	}
+	
+	@Test(expected = IOException.class)
+	public void testModified() throws IOException, GeneralSecurityException {
+		byte[] key = new byte[32];
+		byte[] encrypted = encrypt(key, new byte[3 * SEGMENT_SIZE]);
+		encrypted[encrypted.length / 2] ^= 1;
+		decrypt(key, encrypted);
+	}
+	
+	@Test(expected = IOException.class)
+	public void testCutOffAtSegment() throws IOException, GeneralSecurityException {
+		byte[] key = new byte[32];
+		byte[] encrypted = encrypt(key, new byte[3 * SEGMENT_SIZE]);
+		decrypt(key, Arrays.copyOf(encrypted, encrypted.length - SEGMENT_SIZE - AesGcmBlockTransform.TAG_LENGTH));
+	}
+	
+	@Test(expected = IOException.class)
+	public void testHugeSegmentSize() throws IOException, GeneralSecurityException {
+		byte[] key = new byte[32];
+		byte[] encrypted = encrypt(key, new byte[10]);
+		ByteBuffer.wrap(encrypted).putInt(AesGcmBlockTransform.MAGIC.length, Integer.MAX_VALUE - 16);
+		decrypt(key, encrypted);
+	}
+	
+	@Test(expected = IOException.class)
+	public void testWrongKey() throws IOException, GeneralSecurityException {
+		byte[] encrypted = encrypt(new byte[32], new byte[10]);
+		byte[] wrong = new byte[32];
+		wrong[0] = 1;
+		decrypt(wrong, encrypted);
+	}
+	
+	@Test
+	public void testReadKey() throws IOException {
+		File file = File.createTempFile("key", null);
+		try {
+			byte[] raw = new byte[32];
+			new Random(2).nextBytes(raw);
+			Files.write(file.toPath(), raw);
+			Assert.assertArrayEquals(raw, AesGcmBlockTransform.readKey(file));
+			
+			Files.write(file.toPath(), "000102030405060708090a0b0c0d0e0F\n".getBytes(StandardCharsets.US_ASCII));
+			Assert.assertArrayEquals(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15 }, AesGcmBlockTransform.readKey(file));
+			
+			Files.write(file.toPath(), new byte[10]);
+			try {
+				AesGcmBlockTransform.readKey(file);
+				Assert.fail();
+			} catch (IOException e) {
+				// Expected
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	
+	private static byte[] encrypt(byte[] key, byte[] data) throws IOException, GeneralSecurityException {
+		try (InputStream in = new ParallelBlockInputStream(new ByteArrayInputStream(data), SEGMENT_SIZE, new AesGcmBlockTransform(key, SEGMENT_SIZE), 3)) {
+			return readFully(in);
+		}
+	}
+	
+	private static byte[] decrypt(byte[] key, byte[] encrypted) throws IOException {
+		try (InputStream in = AesGcmBlockTransform.decrypt(new ByteArrayInputStream(encrypted), key, 3)) {
+			return readFully(in);
+		}
+	}
+	
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[777];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+}
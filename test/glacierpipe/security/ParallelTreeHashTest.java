@@ -0,0 +1,41 @@
+package glacierpipe.security;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ParallelTreeHashTest {
+
+	@Test
+	public void testMatchesTreeHashMessageDigest() throws IOException, NoSuchAlgorithmException {
+		// Sizes around the 1 MB chunks and the segments hashed in parallel
+		int[] sizes = { 0, 1, 1024 * 1024, 1024 * 1024 + 1, ParallelTreeHash.SEGMENT_SIZE, 2 * ParallelTreeHash.SEGMENT_SIZE + 12345 };
+		
+		byte[] data = new byte[2 * ParallelTreeHash.SEGMENT_SIZE + 12345 + 100];
+		new Random(0x42).nextBytes(data);
+		
+		File file = File.createTempFile("treehash", null);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.write(data);
+			FileChannel channel = raf.getChannel();
+			
+			for (int size : sizes) {
+				for (int position : new int[] { 0, 100 }) {
+					byte[] expected = new TreeHashMessageDigest(MessageDigest.getInstance("SHA-256")).digest(Arrays.copyOfRange(data, position, position + size));
+					byte[] actual = ParallelTreeHash.compute(channel, position, size, 4);
+					Assert.assertArrayEquals("Failed for size " + size + " at " + position, expected, actual);
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+}
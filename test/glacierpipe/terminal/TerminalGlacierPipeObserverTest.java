@@ -46,7 +46,7 @@ public class TerminalGlacierPipeObserverTest {
 				for (int block = 0; block < 64; block++) {
 					if (block == 54 && part == 2 && attempts == 1) {
 						o.exceptionUploadingPart(part, new IOException("Test Exception"), 0, true);
-						o.sleepingBeforeRetry(3000);
+						o.sleepingBeforeRetry(part, 3000);
 						retry = true;
 						continue outer;
 					}